@@ -0,0 +1,215 @@
+package crypto.pqc.dilithium;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import crypto.pqc.jmh.ParameterSets;
+
+/**
+ * Cost of one call of each polynomial kernel and packing routine of
+ * Dilithium, with the engine and arithmetic of the parameter set. Lives in
+ * crypto.pqc.dilithium to reach the package-private kernels.
+ * <p>
+ * The polynomial kernels work on one polynomial, the Packing routines on a
+ * whole key or signature. Their inputs are taken from a real key pair and
+ * signature. KernelCostTable combines these numbers with the number of
+ * calls per operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules=jdk.incubator.vector"})
+public class DilithiumKernelBenchmark
+{
+    @Param({"dilithium2", "dilithium3", "dilithium5"})
+    public String parameterSet;
+
+    private DilithiumEngine engine;
+    private Poly poly;
+    private Poly low;
+    private Poly high;
+    private Poly hint;
+    private int[] coefficients;
+    private byte[] rho;
+    private byte[] rhoPrime;
+    private short nonce;
+
+    private byte[] publicKey;
+    private byte[] secretKey;
+    private byte[] signature;
+    private DilithiumPrivateKeyParameters privateKey;
+    private PolyVecK t1;
+    private PolyVecK t0;
+    private PolyVecL s1;
+    private PolyVecK s2;
+    private PolyVecL z;
+    private PolyVecK h;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        DilithiumParameters params = ParameterSets.dilithium(parameterSet);
+        SecureRandom random = ParameterSets.random(0);
+        engine = params.getEngine(random);
+
+        poly = new Poly(engine);
+        low = new Poly(engine);
+        high = new Poly(engine);
+        hint = new Poly(engine);
+        coefficients = new int[DilithiumEngine.DilithiumN];
+        for (int i = 0; i < DilithiumEngine.DilithiumN; i++)
+        {
+            coefficients[i] = random.nextInt(DilithiumEngine.DilithiumQ);
+        }
+        high.setCoeffs(coefficients.clone());
+        high.decompose(low);
+
+        rho = new byte[DilithiumEngine.SeedBytes];
+        rhoPrime = new byte[DilithiumEngine.CrhBytes];
+        random.nextBytes(rho);
+        random.nextBytes(rhoPrime);
+
+        DilithiumKeyPairGenerator kpGen = new DilithiumKeyPairGenerator();
+        kpGen.init(new DilithiumKeyGenerationParameters(random, params));
+        AsymmetricCipherKeyPair kp = kpGen.generateKeyPair();
+        privateKey = (DilithiumPrivateKeyParameters)kp.getPrivate();
+        publicKey = ((DilithiumPublicKeyParameters)kp.getPublic()).getPublicKey();
+        secretKey = privateKey.getPrivateKey();
+        DilithiumSigner signer = new DilithiumSigner();
+        signer.init(true, privateKey);
+        signature = signer.generateSignature(rho);
+
+        t1 = new PolyVecK(engine);
+        t0 = new PolyVecK(engine);
+        s1 = new PolyVecL(engine);
+        s2 = new PolyVecK(engine);
+        z = new PolyVecL(engine);
+        h = new PolyVecK(engine);
+        Packing.unpackPublicKey(t1, publicKey, engine);
+        Packing.unpackSecretKey(t0, s1, s2, secretKey, engine);
+        Packing.unpackSignature(z, h, signature, engine);
+    }
+
+    /**
+     * Reloads the polynomial from fixed coefficients in [0, Q), so the
+     * in-place kernels always see valid input. The copy is part of the
+     * measured cost.
+     */
+    private Poly load()
+    {
+        System.arraycopy(coefficients, 0, poly.getCoeffs(), 0, DilithiumEngine.DilithiumN);
+        return poly;
+    }
+
+    @Benchmark
+    public int[] ntt()
+    {
+        Poly p = load();
+        p.polyNtt();
+        return p.getCoeffs();
+    }
+
+    @Benchmark
+    public int[] invNttToMont()
+    {
+        Poly p = load();
+        p.invNttToMont();
+        return p.getCoeffs();
+    }
+
+    @Benchmark
+    public int[] uniformBlocks()
+    {
+        poly.uniformBlocks(rho, nonce++);
+        return poly.getCoeffs();
+    }
+
+    @Benchmark
+    public int[] uniformEta()
+    {
+        poly.uniformEta(rhoPrime, nonce++);
+        return poly.getCoeffs();
+    }
+
+    @Benchmark
+    public int[] uniformGamma1()
+    {
+        poly.uniformGamma1(rhoPrime, nonce++);
+        return poly.getCoeffs();
+    }
+
+    @Benchmark
+    public int[] challenge()
+    {
+        rho[0]++;
+        poly.challenge(rho);
+        return poly.getCoeffs();
+    }
+
+    @Benchmark
+    public int[] decompose()
+    {
+        Poly p = load();
+        p.decompose(hint);
+        return p.getCoeffs();
+    }
+
+    @Benchmark
+    public int makeHint()
+    {
+        return hint.polyMakeHint(low, high);
+    }
+
+    @Benchmark
+    public byte[] packPublicKey()
+    {
+        return Packing.packPublicKey(rho, t1, engine);
+    }
+
+    @Benchmark
+    public byte[] unpackPublicKey()
+    {
+        return Packing.unpackPublicKey(t1, publicKey, engine);
+    }
+
+    @Benchmark
+    public byte[][] packSecretKey()
+    {
+        return Packing.packSecretKey(rho, privateKey.tr, privateKey.k, t0, s1, s2, engine);
+    }
+
+    @Benchmark
+    public PolyVecK unpackSecretKey()
+    {
+        Packing.unpackSecretKey(t0, s1, s2, secretKey, engine);
+        return t0;
+    }
+
+    @Benchmark
+    public byte[] packSignature()
+    {
+        return Packing.packSignature(signature, z, h, engine);
+    }
+
+    @Benchmark
+    public boolean unpackSignature()
+    {
+        return Packing.unpackSignature(z, h, signature, engine);
+    }
+}
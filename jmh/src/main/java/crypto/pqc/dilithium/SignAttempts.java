@@ -0,0 +1,27 @@
+package crypto.pqc.dilithium;
+
+/**
+ * Benchmark access to the rejection loop of DilithiumEngine, which the
+ * signer API does not expose. Signing is deterministic, so the number of
+ * iterations is a fixed property of the key and message and can be
+ * computed once, ahead of the measurement.
+ */
+public final class SignAttempts
+{
+    private SignAttempts()
+    {
+    }
+
+    /**
+     * Iterations of the rejection loop signing a message takes
+     * @param key DilithiumPrivateKeyParameters: Signing key
+     * @param message byte[]: Message to sign
+     * @return int: Iterations, 1 if the first candidate is accepted
+     */
+    public static int count(DilithiumPrivateKeyParameters key, byte[] message)
+    {
+        DilithiumEngine engine = key.getParameters().getEngine(null);
+        engine.signSignature(message, message.length, key.rho, key.k, key.tr, key.getPrivateKey());
+        return engine.getSignAttempts();
+    }
+}
@@ -0,0 +1,180 @@
+package crypto.pqc.jmh;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.openjdk.jmh.annotations.AuxCounters;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import crypto.pqc.dilithium.DilithiumKeyGenerationParameters;
+import crypto.pqc.dilithium.DilithiumKeyPairGenerator;
+import crypto.pqc.dilithium.DilithiumParameters;
+import crypto.pqc.dilithium.DilithiumPrivateKeyParameters;
+import crypto.pqc.dilithium.DilithiumSigner;
+import crypto.pqc.dilithium.SignAttempts;
+
+/**
+ * Key generation, signing and verification through the public
+ * DilithiumKeyPairGenerator and DilithiumSigner API.
+ * <p>
+ * Signing is deterministic, so its cost depends on how many iterations
+ * the rejection loop needs for the key and message. Each run signs a pool
+ * of distinct random messages in turn, which makes the sample time
+ * percentiles (p0.50, p0.99, p0.999) reflect the real spread of the loop.
+ * The iterations of every signature are reported by the aux counters
+ * attempts and rejections; attempts / signatures is the mean loop count.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 10, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"--add-modules=jdk.incubator.vector"})
+public class DilithiumBenchmark
+{
+    // memory the message pool of one run may take
+    private static final int POOL_BYTES = 64 << 20;
+    private static final int MAX_POOL = 256;
+
+    @State(Scope.Benchmark)
+    public static class Keys
+    {
+        @Param({"dilithium2", "dilithium3", "dilithium5"})
+        public String parameterSet;
+
+        DilithiumParameters params;
+        AsymmetricCipherKeyPair keyPair;
+
+        @Setup(Level.Trial)
+        public void setup()
+        {
+            params = ParameterSets.dilithium(parameterSet);
+            DilithiumKeyPairGenerator kpGen = new DilithiumKeyPairGenerator();
+            kpGen.init(new DilithiumKeyGenerationParameters(ParameterSets.random(0), params));
+            keyPair = kpGen.generateKeyPair();
+        }
+    }
+
+    /**
+     * Pool of random messages of one size, their signatures and the
+     * rejection loop iterations each signature takes
+     */
+    @State(Scope.Benchmark)
+    public static class Messages
+    {
+        @Param({"32", "1024", "65536", "1048576"})
+        public int messageSize;
+
+        byte[][] messages;
+        byte[][] signatures;
+        int[] attempts;
+
+        @Setup(Level.Trial)
+        public void setup(Keys keys)
+        {
+            int count = Math.max(8, Math.min(MAX_POOL, POOL_BYTES / messageSize));
+            SecureRandom random = ParameterSets.random(messageSize);
+            DilithiumPrivateKeyParameters privateKey = (DilithiumPrivateKeyParameters)keys.keyPair.getPrivate();
+            DilithiumSigner signer = new DilithiumSigner();
+            signer.init(true, privateKey);
+
+            messages = new byte[count][messageSize];
+            signatures = new byte[count][];
+            attempts = new int[count];
+            for (int i = 0; i < count; i++)
+            {
+                random.nextBytes(messages[i]);
+                signatures[i] = signer.generateSignature(messages[i]);
+                attempts[i] = SignAttempts.count(privateKey, messages[i]);
+            }
+        }
+    }
+
+    /**
+     * Key pair generator, signer, verifier and position in the message
+     * pool of one benchmark thread
+     */
+    @State(Scope.Thread)
+    public static class Worker
+    {
+        DilithiumKeyPairGenerator kpGen;
+        DilithiumSigner signer;
+        DilithiumSigner verifier;
+        int next;
+
+        @Setup(Level.Trial)
+        public void setup(Keys keys)
+        {
+            SecureRandom random = ParameterSets.random(Thread.currentThread().getId());
+            kpGen = new DilithiumKeyPairGenerator();
+            kpGen.init(new DilithiumKeyGenerationParameters(random, keys.params));
+            signer = new DilithiumSigner();
+            signer.init(true, keys.keyPair.getPrivate());
+            verifier = new DilithiumSigner();
+            verifier.init(false, keys.keyPair.getPublic());
+            // threads start at different messages
+            next = (int)Thread.currentThread().getId();
+        }
+
+        int next(int poolSize)
+        {
+            next = (next + 1) % poolSize;
+            return next;
+        }
+    }
+
+    /**
+     * Rejection loop statistics of the signatures made in a measurement iteration
+     */
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.EVENTS)
+    public static class Rejections
+    {
+        public long signatures;
+        public long attempts;
+        public long rejections;
+
+        @Setup(Level.Iteration)
+        public void reset()
+        {
+            signatures = 0;
+            attempts = 0;
+            rejections = 0;
+        }
+    }
+
+    @Benchmark
+    public AsymmetricCipherKeyPair keyGen(Worker worker)
+    {
+        return worker.kpGen.generateKeyPair();
+    }
+
+    @Benchmark
+    public byte[] sign(Messages messages, Worker worker, Rejections rejections)
+    {
+        int i = worker.next(messages.messages.length);
+        int attempts = messages.attempts[i];
+        rejections.signatures++;
+        rejections.attempts += attempts;
+        rejections.rejections += attempts - 1;
+        return worker.signer.generateSignature(messages.messages[i]);
+    }
+
+    @Benchmark
+    public boolean verify(Messages messages, Worker worker)
+    {
+        int i = worker.next(messages.messages.length);
+        return worker.verifier.verifySignature(messages.messages[i], messages.signatures[i]);
+    }
+}
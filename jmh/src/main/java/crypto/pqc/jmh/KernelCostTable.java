@@ -0,0 +1,214 @@
+package crypto.pqc.jmh;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.results.RunResult;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import org.openjdk.jmh.runner.options.TimeValue;
+
+import crypto.pqc.kyber.KyberWorkspace;
+
+/**
+ * Runs the kernel and end-to-end benchmarks of one Kyber and one Dilithium
+ * parameter set, then prints the cost of every kernel per call and how
+ * much of each operation it accounts for: calls per operation times cost
+ * per call, against the measured cost of the operation. What is left over
+ * is hashing, sampling and glue outside the measured kernels.
+ * <p>
+ * Calls per operation follow the structure of KyberEngine and
+ * DilithiumEngine. The Dilithium signing loop runs the mean number of
+ * iterations the benchmark's message pool needs, and its counts assume
+ * every iteration reaches the last check, so they are an upper bound.
+ * <p>
+ * Usage: java -cp benchmarks.jar crypto.pqc.jmh.KernelCostTable [kyber768 [dilithium3]]
+ */
+public class KernelCostTable
+{
+    public static void main(String[] args)
+        throws RunnerException
+    {
+        String kyber = args.length > 0 ? args[0] : "kyber768";
+        String dilithium = args.length > 1 ? args[1] : "dilithium3";
+
+        Map<String, Double> kyberScores = run(kyber,
+            "crypto\\.pqc\\.kyber\\.KyberKernelBenchmark\\.",
+            "crypto\\.pqc\\.jmh\\.KyberBenchmark\\.(keyGen|encapsulate|decapsulate)$");
+        Map<String, Double> dilithiumScores = run(dilithium,
+            "crypto\\.pqc\\.dilithium\\.DilithiumKernelBenchmark\\.",
+            "crypto\\.pqc\\.jmh\\.DilithiumBenchmark\\.(keyGen|sign|verify)$");
+
+        printKyber(kyber, kyberScores);
+        printDilithium(dilithium, dilithiumScores);
+    }
+
+    /**
+     * Average time in ns of every benchmark matching one of the patterns,
+     * keyed by method name
+     */
+    private static Map<String, Double> run(String parameterSet, String kernels, String operations)
+        throws RunnerException
+    {
+        Options options = new OptionsBuilder()
+            .include(kernels)
+            .include(operations)
+            .param("parameterSet", parameterSet)
+            .param("messageSize", "32")
+            .mode(Mode.AverageTime)
+            .timeUnit(TimeUnit.NANOSECONDS)
+            .warmupIterations(5)
+            .warmupTime(TimeValue.seconds(1))
+            .measurementIterations(5)
+            .measurementTime(TimeValue.seconds(1))
+            .forks(1)
+            .build();
+
+        Collection<RunResult> results = new Runner(options).run();
+        Map<String, Double> scores = new HashMap<String, Double>();
+        for (RunResult result : results)
+        {
+            String name = result.getParams().getBenchmark();
+            scores.put(name.substring(name.lastIndexOf('.') + 1), result.getPrimaryResult().getScore());
+        }
+        return scores;
+    }
+
+    private static void printKyber(String parameterSet, Map<String, Double> scores)
+    {
+        int k = new KyberWorkspace(ParameterSets.kyber(parameterSet)).getKyberK();
+
+        printKernels(parameterSet, scores, new String[]{"ntt", "invNtt", "cbdEta1", "cbdEta2", "compressPoly",
+            "compressPolyVec", "generateMatrix", "rejectionSampling", "toBytes", "fromBytes"});
+
+        Map<String, Double> keyGen = new LinkedHashMap<String, Double>();
+        keyGen.put("generateMatrix", 1.0);
+        keyGen.put("cbdEta1", 2.0 * k);
+        keyGen.put("ntt", 2.0 * k);
+        keyGen.put("toBytes", 2.0 * k);
+        printOperation(parameterSet, "keyGen", scores, keyGen);
+
+        // raw public key: decoded and expanded on every call
+        Map<String, Double> encapsulate = new LinkedHashMap<String, Double>();
+        encapsulate.put("fromBytes", (double)k);
+        encapsulate.put("generateMatrix", 1.0);
+        encapsulate.put("cbdEta1", (double)k);
+        encapsulate.put("cbdEta2", k + 1.0);
+        encapsulate.put("ntt", (double)k);
+        encapsulate.put("invNtt", k + 1.0);
+        encapsulate.put("compressPolyVec", 1.0);
+        encapsulate.put("compressPoly", 1.0);
+        printOperation(parameterSet, "encapsulate", scores, encapsulate);
+
+        // KyberKEMExtractor prepares the key, so only decryption and re-encryption remain
+        Map<String, Double> decapsulate = new LinkedHashMap<String, Double>();
+        decapsulate.put("cbdEta1", (double)k);
+        decapsulate.put("cbdEta2", k + 1.0);
+        decapsulate.put("ntt", 2.0 * k);
+        decapsulate.put("invNtt", k + 2.0);
+        decapsulate.put("compressPolyVec", 1.0);
+        decapsulate.put("compressPoly", 1.0);
+        printOperation(parameterSet, "decapsulate", scores, decapsulate);
+    }
+
+    private static void printDilithium(String parameterSet, Map<String, Double> scores)
+    {
+        DilithiumBenchmark.Keys keys = new DilithiumBenchmark.Keys();
+        keys.parameterSet = parameterSet;
+        keys.setup();
+        DilithiumBenchmark.Messages messages = new DilithiumBenchmark.Messages();
+        messages.messageSize = 32;
+        messages.setup(keys);
+
+        double a = 0;
+        for (int i = 0; i < messages.attempts.length; i++)
+        {
+            a += messages.attempts[i];
+        }
+        a /= messages.attempts.length;
+
+        int[] kl = dilithiumKL(parameterSet);
+        int k = kl[0], l = kl[1];
+
+        printKernels(parameterSet, scores, new String[]{"ntt", "invNttToMont", "uniformBlocks", "uniformEta",
+            "uniformGamma1", "challenge", "decompose", "makeHint", "packPublicKey", "unpackPublicKey",
+            "packSecretKey", "unpackSecretKey", "packSignature", "unpackSignature"});
+
+        Map<String, Double> keyGen = new LinkedHashMap<String, Double>();
+        keyGen.put("uniformBlocks", (double)k * l);
+        keyGen.put("uniformEta", (double)k + l);
+        keyGen.put("ntt", (double)l);
+        keyGen.put("invNttToMont", (double)k);
+        keyGen.put("packPublicKey", 1.0);
+        keyGen.put("packSecretKey", 1.0);
+        printOperation(parameterSet, "keyGen", scores, keyGen);
+
+        Map<String, Double> sign = new LinkedHashMap<String, Double>();
+        sign.put("unpackSecretKey", 1.0);
+        sign.put("uniformBlocks", (double)k * l);
+        sign.put("uniformGamma1", a * l);
+        sign.put("ntt", l + 2.0 * k + a * (l + 1));
+        sign.put("invNttToMont", a * (3 * k + l));
+        sign.put("decompose", a * k);
+        sign.put("challenge", a);
+        sign.put("makeHint", a * k);
+        sign.put("packSignature", 1.0);
+        System.out.printf("%n%s sign: %.2f rejection loop iterations on average%n", parameterSet, a);
+        printOperation(parameterSet, "sign", scores, sign);
+
+        Map<String, Double> verify = new LinkedHashMap<String, Double>();
+        verify.put("unpackPublicKey", 1.0);
+        verify.put("unpackSignature", 1.0);
+        verify.put("challenge", 1.0);
+        verify.put("uniformBlocks", (double)k * l);
+        verify.put("ntt", l + 1.0 + k);
+        verify.put("invNttToMont", (double)k);
+        printOperation(parameterSet, "verify", scores, verify);
+    }
+
+    private static int[] dilithiumKL(String parameterSet)
+    {
+        if (parameterSet.equals("dilithium2"))
+        {
+            return new int[]{4, 4};
+        }
+        if (parameterSet.equals("dilithium3"))
+        {
+            return new int[]{6, 5};
+        }
+        return new int[]{8, 7};
+    }
+
+    private static void printKernels(String parameterSet, Map<String, Double> scores, String[] kernels)
+    {
+        System.out.printf("%n%s kernels%n", parameterSet);
+        System.out.printf("  %-20s %12s%n", "kernel", "ns/call");
+        for (int i = 0; i < kernels.length; i++)
+        {
+            System.out.printf("  %-20s %12.1f%n", kernels[i], scores.get(kernels[i]));
+        }
+    }
+
+    private static void printOperation(String parameterSet, String operation, Map<String, Double> scores, Map<String, Double> calls)
+    {
+        double total = scores.get(operation);
+        double attributed = 0;
+
+        System.out.printf("%n%s %s: %.0f ns/op%n", parameterSet, operation, total);
+        System.out.printf("  %-20s %12s %8s %12s %7s%n", "kernel", "ns/call", "calls", "ns/op", "share");
+        for (Map.Entry<String, Double> entry : calls.entrySet())
+        {
+            double perCall = scores.get(entry.getKey());
+            double cost = perCall * entry.getValue();
+            attributed += cost;
+            System.out.printf("  %-20s %12.1f %8.2f %12.0f %6.1f%%%n", entry.getKey(), perCall, entry.getValue(), cost, 100 * cost / total);
+        }
+        System.out.printf("  %-20s %12s %8s %12.0f %6.1f%%%n", "(other)", "", "", total - attributed, 100 * (total - attributed) / total);
+    }
+}
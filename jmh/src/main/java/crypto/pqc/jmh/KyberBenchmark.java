@@ -0,0 +1,150 @@
+package crypto.pqc.jmh;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.bouncycastle.crypto.SecretWithEncapsulation;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import crypto.pqc.kyber.KyberKEMExtractor;
+import crypto.pqc.kyber.KyberKEMGenerator;
+import crypto.pqc.kyber.KyberKeyGenerationParameters;
+import crypto.pqc.kyber.KyberKeyPairGenerator;
+import crypto.pqc.kyber.KyberParameters;
+import crypto.pqc.kyber.KyberPrivateKeyParameters;
+import crypto.pqc.kyber.KyberPublicKeyParameters;
+import crypto.pqc.kyber.PreparedKyberPublicKey;
+
+/**
+ * Key generation, encapsulation and decapsulation through the public
+ * KyberKeyPairGenerator, KyberKEMGenerator and KyberKEMExtractor API.
+ * <p>
+ * Throughput and sample time are both measured by default; pick one with
+ * -bm thrpt or -bm sample. Every thread owns its generators and random
+ * source, so -t scales without contention on shared state, while the keys
+ * and cipher texts under test are shared by all threads as in a server.
+ * Allocation per operation is reported by -prof gc.
+ */
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 10, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 2, jvmArgsAppend = {"--add-modules=jdk.incubator.vector"})
+public class KyberBenchmark
+{
+    /**
+     * Key pair and a cipher text for it, created once per parameter set
+     */
+    @State(Scope.Benchmark)
+    public static class Keys
+    {
+        @Param({"kyber512", "kyber768", "kyber1024"})
+        public String parameterSet;
+
+        KyberParameters params;
+        AsymmetricCipherKeyPair keyPair;
+        PreparedKyberPublicKey preparedPublicKey;
+        KyberKEMExtractor extractor;
+        byte[] cipherText;
+        byte[] secret;
+
+        @Setup(Level.Trial)
+        public void setup()
+        {
+            params = ParameterSets.kyber(parameterSet);
+            SecureRandom random = ParameterSets.random(0);
+
+            KyberKeyPairGenerator kpGen = new KyberKeyPairGenerator();
+            kpGen.init(new KyberKeyGenerationParameters(random, params));
+            keyPair = kpGen.generateKeyPair();
+            preparedPublicKey = new PreparedKyberPublicKey((KyberPublicKeyParameters)keyPair.getPublic());
+            extractor = new KyberKEMExtractor((KyberPrivateKeyParameters)keyPair.getPrivate());
+
+            SecretWithEncapsulation secWenc = new KyberKEMGenerator(random).generateEncapsulated(keyPair.getPublic());
+            cipherText = secWenc.getEncapsulation();
+            secret = secWenc.getSecret();
+        }
+    }
+
+    /**
+     * Generators, random source and output buffers of one benchmark thread
+     */
+    @State(Scope.Thread)
+    public static class Worker
+    {
+        KyberKeyPairGenerator kpGen;
+        KyberKEMGenerator kemGen;
+        byte[] cipherTextOut;
+        byte[] secretOut;
+
+        @Setup(Level.Trial)
+        public void setup(Keys keys)
+        {
+            SecureRandom random = ParameterSets.random(Thread.currentThread().getId());
+            kpGen = new KyberKeyPairGenerator();
+            kpGen.init(new KyberKeyGenerationParameters(random, keys.params));
+            kemGen = new KyberKEMGenerator(random);
+            cipherTextOut = new byte[keys.cipherText.length];
+            secretOut = new byte[keys.secret.length];
+        }
+    }
+
+    @Benchmark
+    public AsymmetricCipherKeyPair keyGen(Worker worker)
+    {
+        return worker.kpGen.generateKeyPair();
+    }
+
+    @Benchmark
+    public SecretWithEncapsulation encapsulate(Keys keys, Worker worker)
+    {
+        return worker.kemGen.generateEncapsulated(keys.keyPair.getPublic());
+    }
+
+    /**
+     * Encapsulation to a PreparedKyberPublicKey, skipping matrix expansion
+     */
+    @Benchmark
+    public SecretWithEncapsulation encapsulatePrepared(Keys keys, Worker worker)
+    {
+        return worker.kemGen.generateEncapsulated(keys.preparedPublicKey);
+    }
+
+    /**
+     * Encapsulation into caller supplied arrays, which should not allocate
+     */
+    @Benchmark
+    public byte[] encapsulateInto(Keys keys, Worker worker)
+    {
+        worker.kemGen.generateEncapsulated(keys.preparedPublicKey, worker.cipherTextOut, 0, worker.secretOut, 0);
+        return worker.secretOut;
+    }
+
+    @Benchmark
+    public byte[] decapsulate(Keys keys)
+    {
+        return keys.extractor.extractSecret(keys.cipherText);
+    }
+
+    /**
+     * Decapsulation into a caller supplied array, which should not allocate
+     */
+    @Benchmark
+    public byte[] decapsulateInto(Keys keys, Worker worker)
+    {
+        keys.extractor.extractSecret(keys.cipherText, 0, worker.secretOut, 0);
+        return worker.secretOut;
+    }
+}
@@ -0,0 +1,85 @@
+package crypto.pqc.jmh;
+
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+
+import crypto.pqc.dilithium.DilithiumParameters;
+import crypto.pqc.kyber.KyberParameters;
+
+/**
+ * Lookup of the predefined parameter sets by the names used in @Param,
+ * and the random source of the benchmarks.
+ */
+public final class ParameterSets
+{
+    private ParameterSets()
+    {
+    }
+
+    public static KyberParameters kyber(String name)
+    {
+        if (name.equals("kyber512"))
+        {
+            return KyberParameters.kyber512;
+        }
+        if (name.equals("kyber768"))
+        {
+            return KyberParameters.kyber768;
+        }
+        if (name.equals("kyber1024"))
+        {
+            return KyberParameters.kyber1024;
+        }
+        if (name.equals("kyber512_90s"))
+        {
+            return KyberParameters.kyber512_90s;
+        }
+        if (name.equals("kyber768_90s"))
+        {
+            return KyberParameters.kyber768_90s;
+        }
+        if (name.equals("kyber1024_90s"))
+        {
+            return KyberParameters.kyber1024_90s;
+        }
+        throw new IllegalArgumentException("unknown Kyber parameter set: " + name);
+    }
+
+    public static DilithiumParameters dilithium(String name)
+    {
+        if (name.equals("dilithium2"))
+        {
+            return DilithiumParameters.dilithium2;
+        }
+        if (name.equals("dilithium3"))
+        {
+            return DilithiumParameters.dilithium3;
+        }
+        if (name.equals("dilithium5"))
+        {
+            return DilithiumParameters.dilithium5;
+        }
+        throw new IllegalArgumentException("unknown Dilithium parameter set: " + name);
+    }
+
+    /**
+     * Deterministic SHA1PRNG, so runs are repeatable and the operating
+     * system's entropy pool, with its global lock, stays out of the numbers.
+     * Not for anything but benchmarking.
+     * @param seed long: Seed, distinct per thread
+     * @return SecureRandom: Random source owned by the caller
+     */
+    public static SecureRandom random(long seed)
+    {
+        try
+        {
+            SecureRandom random = SecureRandom.getInstance("SHA1PRNG");
+            random.setSeed(seed);
+            return random;
+        }
+        catch (NoSuchAlgorithmException e)
+        {
+            throw new IllegalStateException(e);
+        }
+    }
+}
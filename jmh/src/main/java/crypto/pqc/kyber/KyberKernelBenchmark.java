@@ -0,0 +1,169 @@
+package crypto.pqc.kyber;
+
+import java.security.SecureRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import crypto.pqc.jmh.ParameterSets;
+
+/**
+ * Cost of one call of each polynomial kernel of Kyber, with the engine and
+ * arithmetic of the parameter set. Lives in crypto.pqc.kyber to reach the
+ * package-private kernels.
+ * <p>
+ * Every kernel works on one polynomial, except compressPolyVec and
+ * generateMatrix which cover the whole vector and matrix of the parameter
+ * set. rejectionSampling turns one matrix entry's worth of XOF output
+ * into 256 coefficients and is part of generateMatrix. KernelCostTable
+ * combines these numbers with the number of calls per KEM operation.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = {"--add-modules=jdk.incubator.vector"})
+public class KyberKernelBenchmark
+{
+    @Param({"kyber512", "kyber768", "kyber1024"})
+    public String parameterSet;
+
+    private KyberEngine engine;
+    private KyberWorkspace ws;
+    private Poly poly;
+    private PolyVec polyVec;
+    private short[] coefficients;
+    private short[] sampled;
+    private byte[] seed;
+    private byte[] noise;
+    private byte[] xof;
+    private byte[] polyBytes;
+    private byte[] compressed;
+
+    @Setup(Level.Trial)
+    public void setup()
+    {
+        SecureRandom random = ParameterSets.random(0);
+        engine = ParameterSets.kyber(parameterSet).getEngine();
+        ws = new KyberWorkspace(engine);
+        poly = new Poly(engine);
+        polyVec = new PolyVec(engine);
+
+        coefficients = new short[KyberEngine.KyberN];
+        sampled = new short[KyberEngine.KyberN];
+        for (int i = 0; i < KyberEngine.KyberN; i++)
+        {
+            coefficients[i] = (short)random.nextInt(KyberEngine.KyberQ);
+        }
+        for (int i = 0; i < engine.getKyberK(); i++)
+        {
+            System.arraycopy(coefficients, 0, polyVec.coeffs, i * KyberEngine.KyberN, KyberEngine.KyberN);
+        }
+
+        seed = new byte[KyberEngine.KyberSymBytes];
+        noise = new byte[KyberEngine.KyberN * 3 / 4];
+        // the XOF output of one matrix entry, as squeezed by generateMatrix
+        xof = new byte[3 * Symmetric.SHAKE128_rate];
+        random.nextBytes(seed);
+        random.nextBytes(noise);
+        random.nextBytes(xof);
+
+        polyBytes = new byte[KyberEngine.KyberPolyBytes];
+        load().toBytes(polyBytes, 0);
+        compressed = new byte[engine.getKyberPolyVecCompressedBytes()];
+    }
+
+    /**
+     * Reloads the polynomial from fixed reduced coefficients, so the
+     * in-place kernels always see valid input. The copy is part of the
+     * measured cost, a few percent of the cheapest kernel.
+     */
+    private Poly load()
+    {
+        System.arraycopy(coefficients, 0, poly.coeffArray(), poly.coeffOffset(), KyberEngine.KyberN);
+        return poly;
+    }
+
+    @Benchmark
+    public short[] ntt()
+    {
+        Poly p = load();
+        p.polyNtt();
+        return p.coeffArray();
+    }
+
+    @Benchmark
+    public short[] invNtt()
+    {
+        Poly p = load();
+        p.polyInverseNttToMont();
+        return p.coeffArray();
+    }
+
+    @Benchmark
+    public short[] cbdEta1()
+    {
+        CBD.kyberCBD(sampled, 0, noise, engine.getKyberEta1());
+        return sampled;
+    }
+
+    @Benchmark
+    public short[] cbdEta2()
+    {
+        CBD.kyberCBD(sampled, 0, noise, KyberEngine.getKyberEta2());
+        return sampled;
+    }
+
+    @Benchmark
+    public byte[] compressPoly()
+    {
+        load().compressPoly(compressed, 0);
+        return compressed;
+    }
+
+    @Benchmark
+    public byte[] compressPolyVec()
+    {
+        polyVec.compressPolyVec(compressed, 0);
+        return compressed;
+    }
+
+    @Benchmark
+    public short[] generateMatrix()
+    {
+        engine.getIndCpa().generateMatrix(ws.aMatrix, seed, 0, true, ws);
+        return ws.aMatrix;
+    }
+
+    @Benchmark
+    public int rejectionSampling()
+    {
+        return KyberIndCpa.rejectionSampling(sampled, 0, KyberEngine.KyberN, xof, 0, xof.length);
+    }
+
+    @Benchmark
+    public byte[] toBytes()
+    {
+        load().toBytes(polyBytes, 0);
+        return polyBytes;
+    }
+
+    @Benchmark
+    public short[] fromBytes()
+    {
+        poly.fromBytes(polyBytes, 0);
+        return poly.coeffArray();
+    }
+}
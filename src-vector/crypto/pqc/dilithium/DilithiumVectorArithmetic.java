@@ -0,0 +1,308 @@
+package crypto.pqc.dilithium;
+
+import java.util.function.IntUnaryOperator;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.LongVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Montgomery arithmetic of Ntt and Poly on the jdk.incubator.vector API.
+ * <p>
+ * Montgomery reduction needs the high half of a 32x32 bit product, so the
+ * multiplications run on coefficients widened to 64-bit lanes and are
+ * narrowed again on store. Sums and differences wrap at 32 bits exactly as
+ * in the scalar code, so all results are bit-identical to
+ * DilithiumArithmetic.MONTGOMERY.
+ * <p>
+ * The 64-bit multiplications only pay off where they are native, so the
+ * backend requires 512-bit vectors (AVX-512 on x86) and refuses to load on
+ * narrower shapes, leaving Dilithium on the scalar code.
+ * <p>
+ * The NTT layers whose butterflies span fewer coefficients than a vector
+ * holds are computed within each vector: the partner of every coefficient
+ * is brought into the same lane with a shuffle, and the zetas are read from
+ * tables holding the zeta of every lane.
+ */
+final class DilithiumVectorArithmetic
+    extends DilithiumArithmetic
+{
+    private static final VectorSpecies<Long> LONG = LongVector.SPECIES_512;
+    private static final VectorSpecies<Integer> INT = IntVector.SPECIES_256;
+    private static final int LANES = LONG.length();
+
+    private static final int N = DilithiumEngine.DilithiumN;
+    private static final int Q = DilithiumEngine.DilithiumQ;
+    private static final int MONT_F = 41978; // (mont^2)/256
+
+    /*
+     * For the layers with len < LANES: the shuffle exchanging each coefficient
+     * with its butterfly partner, the lanes holding the second coefficient of
+     * a butterfly, and the zeta of the butterfly of every coefficient in the
+     * forward and inverse NTT.
+     */
+    private static final VectorShuffle<Long> PARTNER_1 = partner(1);
+    private static final VectorShuffle<Long> PARTNER_2 = partner(2);
+    private static final VectorShuffle<Long> PARTNER_4 = partner(4);
+    private static final VectorMask<Long> SECOND_1 = second(1);
+    private static final VectorMask<Long> SECOND_2 = second(2);
+    private static final VectorMask<Long> SECOND_4 = second(4);
+    private static final long[] laneZetas1 = laneZetas(1, false);
+    private static final long[] laneZetas2 = laneZetas(2, false);
+    private static final long[] laneZetas4 = laneZetas(4, false);
+    private static final long[] laneZetasInv1 = laneZetas(1, true);
+    private static final long[] laneZetasInv2 = laneZetas(2, true);
+    private static final long[] laneZetasInv4 = laneZetas(4, true);
+
+    DilithiumVectorArithmetic()
+    {
+        super("Vector");
+        if (LongVector.SPECIES_PREFERRED.vectorBitSize() < LONG.vectorBitSize())
+        {
+            throw new UnsupportedOperationException("no native 64-bit vector multiplication");
+        }
+    }
+
+    void ntt(int[] r)
+    {
+        int len, k;
+
+        k = 1;
+        for (len = 128; len >= LANES; len >>= 1)
+        {
+            nttLayer(r, len, k);
+            k += 128 / len;
+        }
+        nttLane(r, PARTNER_4, SECOND_4, laneZetas4);
+        nttLane(r, PARTNER_2, SECOND_2, laneZetas2);
+        nttLane(r, PARTNER_1, SECOND_1, laneZetas1);
+    }
+
+    void invNttToMont(int[] r)
+    {
+        int len, k;
+
+        invNttLane(r, PARTNER_1, SECOND_1, laneZetasInv1);
+        invNttLane(r, PARTNER_2, SECOND_2, laneZetasInv2);
+        invNttLane(r, PARTNER_4, SECOND_4, laneZetasInv4);
+        k = 256 / LANES;
+        for (len = LANES; len < N; len <<= 1)
+        {
+            invNttLayer(r, len, k);
+            k -= 128 / len;
+        }
+        mulMontgomery(r, MONT_F);
+    }
+
+    void pointwiseMontgomery(int[] r, int[] a, int[] b)
+    {
+        LongVector qinv = LongVector.broadcast(LONG, DilithiumEngine.DilithiumQinv);
+        LongVector q = LongVector.broadcast(LONG, Q);
+        for (int i = 0; i < N; i += LANES)
+        {
+            store(montgomeryReduce(load(a, i).mul(load(b, i)), qinv, q), r, i);
+        }
+    }
+
+    void reduce(int[] r)
+    {
+        IntVector half = IntVector.broadcast(INT, 1 << 22);
+        IntVector q = IntVector.broadcast(INT, Q);
+        for (int i = 0; i < N; i += LANES)
+        {
+            IntVector a = IntVector.fromArray(INT, r, i);
+            IntVector t = a.add(half).lanewise(VectorOperators.ASHR, 23);
+            a.sub(t.mul(q)).intoArray(r, i);
+        }
+    }
+
+    void conditionalAddQ(int[] r)
+    {
+        IntVector q = IntVector.broadcast(INT, Q);
+        for (int i = 0; i < N; i += LANES)
+        {
+            IntVector a = IntVector.fromArray(INT, r, i);
+            a.add(a.lanewise(VectorOperators.ASHR, 31).and(q)).intoArray(r, i);
+        }
+    }
+
+    /*
+     * Every NTT layer is a method of its own that only exchanges arrays with
+     * its caller. C2 stops inlining once a compilation grows too large, and a
+     * vector passed to or returned from a method that is not inlined gets
+     * boxed, which costs far more than the loads and stores between layers.
+     */
+
+    /**
+     * Forward NTT layer with len >= LANES, vectorized across butterflies
+     * @param r int[]: Coefficients
+     * @param len int: Distance between the two coefficients of a butterfly
+     * @param k int: Index in Ntt.nttZetas of the zeta of the first butterfly
+     */
+    private static void nttLayer(int[] r, int len, int k)
+    {
+        LongVector qinv = LongVector.broadcast(LONG, DilithiumEngine.DilithiumQinv);
+        LongVector q = LongVector.broadcast(LONG, Q);
+        for (int start = 0; start < N; start += 2 * len)
+        {
+            LongVector z = LongVector.broadcast(LONG, Ntt.nttZetas[k++]);
+            for (int j = start; j < start + len; j += LANES)
+            {
+                LongVector a = load(r, j);
+                LongVector t = montgomeryReduce(load(r, j + len).mul(z), qinv, q);
+                store(a.sub(t), r, j + len);
+                store(a.add(t), r, j);
+            }
+        }
+    }
+
+    /**
+     * Forward NTT layer with len < LANES, each vector transformed on its own
+     * @param r int[]: Coefficients
+     * @param partner VectorShuffle: Exchanges the two coefficients of every butterfly
+     * @param second VectorMask: Lanes of the second coefficient of every butterfly
+     * @param zetas long[]: Zeta of every coefficient
+     */
+    private static void nttLane(int[] r, VectorShuffle<Long> partner, VectorMask<Long> second, long[] zetas)
+    {
+        LongVector qinv = LongVector.broadcast(LONG, DilithiumEngine.DilithiumQinv);
+        LongVector q = LongVector.broadcast(LONG, Q);
+        for (int j = 0; j < N; j += LANES)
+        {
+            LongVector a = load(r, j);
+            LongVector p = a.rearrange(partner);
+            LongVector top = a.blend(p, second);
+            LongVector t = montgomeryReduce(p.blend(a, second).mul(LongVector.fromArray(LONG, zetas, j)), qinv, q);
+            store(top.add(t).blend(top.sub(t), second), r, j);
+        }
+    }
+
+    /**
+     * Inverse NTT layer with len < LANES, each vector transformed on its own
+     * @param r int[]: Coefficients
+     * @param partner VectorShuffle: Exchanges the two coefficients of every butterfly
+     * @param second VectorMask: Lanes of the second coefficient of every butterfly
+     * @param zetas long[]: Zeta of every coefficient
+     */
+    private static void invNttLane(int[] r, VectorShuffle<Long> partner, VectorMask<Long> second, long[] zetas)
+    {
+        LongVector qinv = LongVector.broadcast(LONG, DilithiumEngine.DilithiumQinv);
+        LongVector q = LongVector.broadcast(LONG, Q);
+        for (int j = 0; j < N; j += LANES)
+        {
+            LongVector a = load(r, j);
+            // in the lanes of the second coefficient p - a is top - bottom
+            LongVector p = a.rearrange(partner);
+            LongVector t = montgomeryReduce(toInt(p.sub(a)).mul(LongVector.fromArray(LONG, zetas, j)), qinv, q);
+            store(a.add(p).blend(t, second), r, j);
+        }
+    }
+
+    /**
+     * Inverse NTT layer with len >= LANES, vectorized across butterflies
+     * @param r int[]: Coefficients
+     * @param len int: Distance between the two coefficients of a butterfly
+     * @param k int: One past the index in Ntt.nttZetas of the negated zeta of the first butterfly
+     */
+    private static void invNttLayer(int[] r, int len, int k)
+    {
+        LongVector qinv = LongVector.broadcast(LONG, DilithiumEngine.DilithiumQinv);
+        LongVector q = LongVector.broadcast(LONG, Q);
+        for (int start = 0; start < N; start += 2 * len)
+        {
+            LongVector z = LongVector.broadcast(LONG, -Ntt.nttZetas[--k]);
+            for (int j = start; j < start + len; j += LANES)
+            {
+                LongVector a = load(r, j);
+                LongVector b = load(r, j + len);
+                store(a.add(b), r, j);
+                store(montgomeryReduce(toInt(a.sub(b)).mul(z), qinv, q), r, j + len);
+            }
+        }
+    }
+
+    private static void mulMontgomery(int[] r, int f)
+    {
+        LongVector qinv = LongVector.broadcast(LONG, DilithiumEngine.DilithiumQinv);
+        LongVector q = LongVector.broadcast(LONG, Q);
+        LongVector vf = LongVector.broadcast(LONG, f);
+        for (int j = 0; j < N; j += LANES)
+        {
+            store(montgomeryReduce(load(r, j).mul(vf), qinv, q), r, j);
+        }
+    }
+
+    private static VectorShuffle<Long> partner(final int len)
+    {
+        return VectorShuffle.fromOp(LONG, new IntUnaryOperator()
+        {
+            public int applyAsInt(int i)
+            {
+                return i ^ len;
+            }
+        });
+    }
+
+    private static VectorMask<Long> second(int len)
+    {
+        boolean[] bits = new boolean[LANES];
+        for (int i = 0; i < LANES; i++)
+        {
+            bits[i] = (i & len) != 0;
+        }
+        return VectorMask.fromArray(LONG, bits, 0);
+    }
+
+    /**
+     * Zeta of the butterfly of every coefficient in a layer
+     * @param len int: Distance between the two coefficients of a butterfly
+     * @param inverse boolean: Zetas of the inverse NTT instead of the forward one
+     * @return long[]: Zeta for each of the Dilithium N coefficients
+     */
+    private static long[] laneZetas(int len, boolean inverse)
+    {
+        long[] r = new long[N];
+        for (int i = 0; i < N; i++)
+        {
+            int block = i / (2 * len);
+            r[i] = inverse ? -Ntt.nttZetas[256 / len - 1 - block] : Ntt.nttZetas[128 / len + block];
+        }
+        return r;
+    }
+
+    /**
+     * Lanewise Reduce.montgomeryReduce. The constants are broadcast by the
+     * caller ahead of its loop: C2 does not intrinsify the broadcast behind
+     * the multiplication of a LongVector by a scalar, and the fallback costs
+     * more than the reduction itself.
+     * @param a LongVector: Products to reduce
+     * @param qinv LongVector: DilithiumQinv in every lane
+     * @param q LongVector: DilithiumQ in every lane
+     */
+    private static LongVector montgomeryReduce(LongVector a, LongVector qinv, LongVector q)
+    {
+        LongVector t = toInt(a.mul(qinv));
+        return a.sub(t.mul(q)).lanewise(VectorOperators.ASHR, 32);
+    }
+
+    /**
+     * Truncation of every lane to an int, as an (int) cast in the scalar code
+     */
+    private static LongVector toInt(LongVector a)
+    {
+        return a.lanewise(VectorOperators.LSHL, 32).lanewise(VectorOperators.ASHR, 32);
+    }
+
+    private static LongVector load(int[] r, int off)
+    {
+        return (LongVector)IntVector.fromArray(INT, r, off).convertShape(VectorOperators.I2L, LONG, 0);
+    }
+
+    private static void store(LongVector a, int[] r, int off)
+    {
+        a.convertShape(VectorOperators.L2I, INT, 0).reinterpretAsInts().intoArray(r, off);
+    }
+}
@@ -0,0 +1,333 @@
+package crypto.pqc.kyber;
+
+import java.util.function.IntUnaryOperator;
+
+import jdk.incubator.vector.IntVector;
+import jdk.incubator.vector.ShortVector;
+import jdk.incubator.vector.VectorMask;
+import jdk.incubator.vector.VectorOperators;
+import jdk.incubator.vector.VectorShape;
+import jdk.incubator.vector.VectorShuffle;
+import jdk.incubator.vector.VectorSpecies;
+
+/**
+ * Montgomery arithmetic of Ntt and Poly on the jdk.incubator.vector API.
+ * <p>
+ * Coefficients are widened from 16-bit to 32-bit lanes on load, because
+ * Montgomery reduction needs the high half of a 16x16 bit product, and
+ * narrowed again on store. Every sum and difference that the scalar code
+ * truncates to a short is truncated here as well, so all results are
+ * bit-identical to KyberArithmetic.MONTGOMERY.
+ * <p>
+ * The NTT layers whose butterflies span fewer coefficients than a vector
+ * holds are computed within each vector: the partner of every coefficient
+ * is brought into the same lane with a shuffle, and the zetas are read from
+ * tables holding the zeta of every lane.
+ */
+final class KyberVectorArithmetic
+    extends KyberArithmetic
+{
+    // the NTT is written for 8 or 16 lanes
+    private static final VectorSpecies<Integer> INT = IntVector.SPECIES_PREFERRED.length() > 16 ? IntVector.SPECIES_512 : IntVector.SPECIES_PREFERRED;
+    private static final VectorSpecies<Short> SHORT = VectorSpecies.of(short.class, VectorShape.forBitSize(INT.vectorBitSize() / 2));
+    private static final int LANES = INT.length();
+
+    private static final int MONT_F = (int)(((long)1 << 32) % KyberEngine.KyberQ);
+    private static final int BARRETT_V = ((1 << 26) + KyberEngine.KyberQ / 2) / KyberEngine.KyberQ;
+
+    /**
+     * Swaps the two coefficients of each degree two factor
+     */
+    private static final VectorShuffle<Integer> SWAP = VectorShuffle.fromOp(INT, new IntUnaryOperator()
+    {
+        public int applyAsInt(int i)
+        {
+            return i ^ 1;
+        }
+    });
+
+    private static final VectorMask<Integer> ODD = VectorMask.fromLong(INT, 0xAAAAAAAAAAAAAAAAL);
+
+    /**
+     * Zeta of every base multiplication in the lane of its first output coefficient
+     */
+    private static final int[] baseMultZetas = new int[KyberEngine.KyberN];
+
+    /*
+     * For the layers with len < LANES: the shuffle exchanging each coefficient
+     * with its butterfly partner, the lanes holding the second coefficient of
+     * a butterfly, and the zeta of the butterfly of every coefficient in the
+     * forward and inverse NTT. The layer with len = 8 only exists for 16 lanes.
+     */
+    private static final VectorShuffle<Integer> PARTNER_2 = partner(2);
+    private static final VectorShuffle<Integer> PARTNER_4 = partner(4);
+    private static final VectorShuffle<Integer> PARTNER_8 = LANES > 8 ? partner(8) : null;
+    private static final VectorMask<Integer> SECOND_2 = second(2);
+    private static final VectorMask<Integer> SECOND_4 = second(4);
+    private static final VectorMask<Integer> SECOND_8 = LANES > 8 ? second(8) : null;
+    private static final int[] laneZetas2 = laneZetas(Ntt.nttZetas, 64, 2);
+    private static final int[] laneZetas4 = laneZetas(Ntt.nttZetas, 32, 4);
+    private static final int[] laneZetas8 = laneZetas(Ntt.nttZetas, 16, 8);
+    private static final int[] laneZetasInv2 = laneZetas(Ntt.nttZetasInv, 0, 2);
+    private static final int[] laneZetasInv4 = laneZetas(Ntt.nttZetasInv, 64, 4);
+    private static final int[] laneZetasInv8 = laneZetas(Ntt.nttZetasInv, 96, 8);
+
+    static
+    {
+        for (int i = 0; i < KyberEngine.KyberN / 4; i++)
+        {
+            baseMultZetas[4 * i] = Ntt.nttZetas[64 + i];
+            baseMultZetas[4 * i + 2] = (short)(-1 * Ntt.nttZetas[64 + i]);
+        }
+    }
+
+    KyberVectorArithmetic()
+    {
+        super("Vector");
+        if (LANES < 8)
+        {
+            throw new UnsupportedOperationException("vector shape too narrow: " + INT);
+        }
+    }
+
+    void ntt(short[] r, int off)
+    {
+        nttLayers(r, off);
+        nttLanes(r, off);
+    }
+
+    void invNtt(short[] r, int off)
+    {
+        invNttLanes(r, off);
+        invNttLayers(r, off);
+    }
+
+    /*
+     * The transforms are split into methods that exchange arrays only: C2
+     * gives up inlining once a method gets too large, and a vector passed
+     * to a method that is not inlined is boxed on every call.
+     */
+
+    /**
+     * Forward NTT layers with len >= LANES, vectorized across butterflies
+     */
+    private static void nttLayers(short[] r, int off)
+    {
+        int len, start, j, k;
+
+        k = 1;
+        for (len = 128; len >= LANES; len >>= 1)
+        {
+            for (start = 0; start < 256; start += 2 * len)
+            {
+                IntVector z = IntVector.broadcast(INT, Ntt.nttZetas[k++]);
+                for (j = off + start; j < off + start + len; j += LANES)
+                {
+                    IntVector a = load(r, j);
+                    IntVector t = montgomeryReduce(load(r, j + len).mul(z));
+                    store(a.sub(t), r, j + len);
+                    store(a.add(t), r, j);
+                }
+            }
+        }
+    }
+
+    /**
+     * Forward NTT layers with len < LANES, each vector transformed on its own
+     */
+    private static void nttLanes(short[] r, int off)
+    {
+        for (int j = 0; j < KyberEngine.KyberN; j += LANES)
+        {
+            IntVector a = load(r, off + j);
+            if (LANES > 8)
+            {
+                a = nttLane(a, PARTNER_8, SECOND_8, IntVector.fromArray(INT, laneZetas8, j));
+            }
+            a = nttLane(a, PARTNER_4, SECOND_4, IntVector.fromArray(INT, laneZetas4, j));
+            a = nttLane(a, PARTNER_2, SECOND_2, IntVector.fromArray(INT, laneZetas2, j));
+            store(a, r, off + j);
+        }
+    }
+
+    private static IntVector nttLane(IntVector a, VectorShuffle<Integer> partner, VectorMask<Integer> second, IntVector z)
+    {
+        IntVector p = a.rearrange(partner);
+        IntVector top = a.blend(p, second);
+        IntVector t = montgomeryReduce(p.blend(a, second).mul(z));
+        return toShort(top.add(t).blend(top.sub(t), second));
+    }
+
+    /**
+     * Inverse NTT layers with len < LANES, each vector transformed on its own
+     */
+    private static void invNttLanes(short[] r, int off)
+    {
+        for (int j = 0; j < KyberEngine.KyberN; j += LANES)
+        {
+            IntVector a = load(r, off + j);
+            a = invNttLane(a, PARTNER_2, SECOND_2, IntVector.fromArray(INT, laneZetasInv2, j));
+            a = invNttLane(a, PARTNER_4, SECOND_4, IntVector.fromArray(INT, laneZetasInv4, j));
+            if (LANES > 8)
+            {
+                a = invNttLane(a, PARTNER_8, SECOND_8, IntVector.fromArray(INT, laneZetasInv8, j));
+            }
+            store(a, r, off + j);
+        }
+    }
+
+    private static IntVector invNttLane(IntVector a, VectorShuffle<Integer> partner, VectorMask<Integer> second, IntVector z)
+    {
+        // in the lanes of the second coefficient p - a is top - bottom
+        IntVector p = a.rearrange(partner);
+        return barrettReduce(toShort(a.add(p))).blend(montgomeryReduce(toShort(p.sub(a)).mul(z)), second);
+    }
+
+    /**
+     * Inverse NTT layers with len >= LANES and the final scaling
+     */
+    private static void invNttLayers(short[] r, int off)
+    {
+        int len, start, j, k;
+
+        k = 128 - 256 / LANES;
+        for (len = LANES; len <= 128; len <<= 1)
+        {
+            for (start = 0; start < 256; start += 2 * len)
+            {
+                IntVector z = IntVector.broadcast(INT, Ntt.nttZetasInv[k++]);
+                for (j = off + start; j < off + start + len; j += LANES)
+                {
+                    IntVector a = load(r, j);
+                    IntVector b = load(r, j + len);
+                    store(barrettReduce(toShort(a.add(b))), r, j);
+                    store(montgomeryReduce(toShort(a.sub(b)).mul(z)), r, j + len);
+                }
+            }
+        }
+
+        IntVector f = IntVector.broadcast(INT, Ntt.nttZetasInv[127]);
+        for (j = off; j < off + KyberEngine.KyberN; j += LANES)
+        {
+            store(montgomeryReduce(load(r, j).mul(f)), r, j);
+        }
+    }
+
+    void baseMult(short[] r, int rOff, short[] a, int aOff, short[] b, int bOff)
+    {
+        for (int i = 0; i < KyberEngine.KyberN; i += LANES)
+        {
+            IntVector va = load(a, aOff + i);
+            IntVector vb = load(b, bOff + i);
+            // even lanes a0 * b0, odd lanes a1 * b1
+            IntVector p = montgomeryReduce(va.mul(vb));
+            // even lanes a0 * b1, odd lanes a1 * b0
+            IntVector c = montgomeryReduce(va.mul(vb.rearrange(SWAP)));
+            IntVector z = IntVector.fromArray(INT, baseMultZetas, i);
+
+            IntVector r0 = montgomeryReduce(p.rearrange(SWAP).mul(z)).add(p);
+            IntVector r1 = c.add(c.rearrange(SWAP));
+            store(r0.blend(r1, ODD), r, rOff + i);
+        }
+    }
+
+    void convertToMont(short[] r, int off)
+    {
+        IntVector f = IntVector.broadcast(INT, MONT_F);
+        for (int i = off; i < off + KyberEngine.KyberN; i += LANES)
+        {
+            store(montgomeryReduce(load(r, i).mul(f)), r, i);
+        }
+    }
+
+    void reduce(short[] r, int off, int len)
+    {
+        for (int i = off; i < off + len; i += LANES)
+        {
+            store(barrettReduce(load(r, i)), r, i);
+        }
+    }
+
+    void conditionalSubQ(short[] r, int off, int len)
+    {
+        for (int i = off; i < off + len; i += LANES)
+        {
+            IntVector a = toShort(load(r, i).sub(KyberEngine.KyberQ));
+            store(a.add(a.lanewise(VectorOperators.ASHR, 15).and(KyberEngine.KyberQ)), r, i);
+        }
+    }
+
+    private static VectorShuffle<Integer> partner(final int len)
+    {
+        return VectorShuffle.fromOp(INT, new IntUnaryOperator()
+        {
+            public int applyAsInt(int i)
+            {
+                return i ^ len;
+            }
+        });
+    }
+
+    private static VectorMask<Integer> second(int len)
+    {
+        boolean[] bits = new boolean[LANES];
+        for (int i = 0; i < LANES; i++)
+        {
+            bits[i] = (i & len) != 0;
+        }
+        return VectorMask.fromArray(INT, bits, 0);
+    }
+
+    /**
+     * Zeta of the butterfly of every coefficient in a layer
+     * @param zetas short[]: Zetas of Ntt
+     * @param k int: Index of the zeta of the first butterfly of the layer
+     * @param len int: Distance between the two coefficients of a butterfly
+     * @return int[]: Zeta for each of the Kyber N coefficients
+     */
+    private static int[] laneZetas(short[] zetas, int k, int len)
+    {
+        int[] r = new int[KyberEngine.KyberN];
+        for (int i = 0; i < KyberEngine.KyberN; i++)
+        {
+            r[i] = zetas[k + i / (2 * len)];
+        }
+        return r;
+    }
+
+    /**
+     * Lanewise Reduce.montgomeryReduce
+     */
+    private static IntVector montgomeryReduce(IntVector a)
+    {
+        IntVector u = toShort(a.mul(KyberEngine.KyberQinv));
+        return a.sub(u.mul(KyberEngine.KyberQ)).lanewise(VectorOperators.ASHR, 16);
+    }
+
+    /**
+     * Lanewise Reduce.barretReduce, a holds sign extended shorts
+     */
+    private static IntVector barrettReduce(IntVector a)
+    {
+        IntVector t = a.mul(BARRETT_V).lanewise(VectorOperators.ASHR, 26);
+        return a.sub(t.mul(KyberEngine.KyberQ));
+    }
+
+    /**
+     * Truncation of every lane to a short, as a (short) cast in the scalar code
+     */
+    private static IntVector toShort(IntVector a)
+    {
+        return a.lanewise(VectorOperators.LSHL, 16).lanewise(VectorOperators.ASHR, 16);
+    }
+
+    private static IntVector load(short[] r, int off)
+    {
+        return (IntVector)ShortVector.fromArray(SHORT, r, off).convertShape(VectorOperators.S2I, INT, 0);
+    }
+
+    private static void store(IntVector a, short[] r, int off)
+    {
+        a.convertShape(VectorOperators.I2S, SHORT, 0).reinterpretAsShorts().intoArray(r, off);
+    }
+}
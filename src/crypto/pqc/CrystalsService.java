@@ -0,0 +1,520 @@
+package crypto.pqc;
+
+import java.io.Closeable;
+import java.security.SecureRandom;
+import java.util.ArrayDeque;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.bouncycastle.crypto.SecretWithEncapsulation;
+import org.bouncycastle.crypto.params.ParametersWithRandom;
+
+import crypto.pqc.dilithium.DilithiumKeyGenerationParameters;
+import crypto.pqc.dilithium.DilithiumKeyPairGenerator;
+import crypto.pqc.dilithium.DilithiumParameters;
+import crypto.pqc.dilithium.DilithiumPrivateKeyParameters;
+import crypto.pqc.dilithium.DilithiumPublicKeyParameters;
+import crypto.pqc.dilithium.DilithiumSigner;
+import crypto.pqc.kyber.KyberKEMExtractor;
+import crypto.pqc.kyber.KyberKEMGenerator;
+import crypto.pqc.kyber.KyberKeyGenerationParameters;
+import crypto.pqc.kyber.KyberKeyPairGenerator;
+import crypto.pqc.kyber.KyberParameters;
+import crypto.pqc.kyber.KyberPrivateKeyParameters;
+import crypto.pqc.kyber.KyberPublicKeyParameters;
+import crypto.pqc.probe.HistogramOperationListener.Histogram;
+import crypto.pqc.probe.Operation;
+
+/**
+ * Asynchronous front end for Kyber and Dilithium. Every call returns at
+ * once with a CompletableFuture and the work runs on a bounded CPU
+ * executor of its own, so request threads and event loops, virtual or
+ * not, never run the polynomial arithmetic themselves.
+ * <p>
+ * Each operation has its own lane with a concurrency limit and a queue
+ * limit: at most maxConcurrent tasks of the operation are on the executor
+ * at once, up to maxQueued more wait in the lane, and further calls fail
+ * with a RejectedExecutionException. Lanes keep a burst of one operation,
+ * e.g. signatures, from holding every crypto thread. Per operation, the
+ * service records how long tasks waited in their lane and executor queue
+ * and how long they ran.
+ * <p>
+ * The futures complete on the crypto threads, so dependent stages should
+ * be attached with the *Async methods and the caller's own executor,
+ * otherwise they run on, and hold, a crypto thread.
+ */
+public class CrystalsService
+    implements Closeable
+{
+    /**
+     * Tasks waiting per operation unless configured otherwise
+     */
+    public static final int DEFAULT_MAX_QUEUED = 1024;
+
+    private static final Operation[] OPERATIONS = Operation.values();
+    private static final AtomicInteger SERVICE_IDS = new AtomicInteger();
+
+    private final Executor executor;
+    private final ExecutorService ownedExecutor;
+    private final SecureRandom random;
+    private final KyberKEMGenerator kemGenerator;
+    private final Lane[] lanes = new Lane[OPERATIONS.length];
+
+    private volatile boolean closed;
+
+    /**
+     * Service on its own pool of daemon platform threads, one per
+     * available processor, each operation allowed to use all of them
+     * @param random SecureRandom: Source of randomness for key generation, encapsulation and signing
+     */
+    public CrystalsService(SecureRandom random)
+    {
+        this(random, Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * Service on its own pool of daemon platform threads, each operation
+     * allowed to use all of them
+     * @param random SecureRandom: Source of randomness for key generation, encapsulation and signing
+     * @param threads int: Size of the CPU pool
+     */
+    public CrystalsService(SecureRandom random, int threads)
+    {
+        this(random, newExecutor(threads), true, threads);
+    }
+
+    /**
+     * Service on the caller's executor, which should have a fixed number of
+     * platform threads and is left running by close
+     * @param random SecureRandom: Source of randomness for key generation, encapsulation and signing
+     * @param executor Executor: Runs the crypto tasks
+     * @param maxConcurrent int: Initial concurrency limit of every operation, usually the executor's thread count
+     */
+    public CrystalsService(SecureRandom random, Executor executor, int maxConcurrent)
+    {
+        this(random, executor, false, maxConcurrent);
+    }
+
+    private CrystalsService(SecureRandom random, Executor executor, boolean owned, int maxConcurrent)
+    {
+        if (maxConcurrent < 1)
+        {
+            throw new IllegalArgumentException("concurrency limit must be at least 1: " + maxConcurrent);
+        }
+
+        this.random = random;
+        this.executor = executor;
+        this.ownedExecutor = owned ? (ExecutorService)executor : null;
+        this.kemGenerator = new KyberKEMGenerator(random);
+        for (int i = 0; i < lanes.length; i++)
+        {
+            lanes[i] = new Lane(maxConcurrent, DEFAULT_MAX_QUEUED);
+        }
+    }
+
+    private static ExecutorService newExecutor(int threads)
+    {
+        if (threads < 1)
+        {
+            throw new IllegalArgumentException("at least one thread is needed: " + threads);
+        }
+
+        final String name = "crystals-service-" + SERVICE_IDS.incrementAndGet() + "-";
+        return Executors.newFixedThreadPool(threads, new ThreadFactory()
+        {
+            private final AtomicInteger count = new AtomicInteger();
+
+            public Thread newThread(Runnable r)
+            {
+                Thread t = new Thread(r, name + count.incrementAndGet());
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * Changes the limits of one operation. Raising maxConcurrent starts
+     * waiting tasks at once; lowering either limit lets the tasks already
+     * running or queued finish.
+     * @param operation Operation: Operation to limit
+     * @param maxConcurrent int: Most tasks of the operation on the executor at once
+     * @param maxQueued int: Most tasks of the operation waiting for one of those slots
+     * @return CrystalsService: this service
+     */
+    public CrystalsService setLimits(Operation operation, int maxConcurrent, int maxQueued)
+    {
+        if (maxConcurrent < 1)
+        {
+            throw new IllegalArgumentException("concurrency limit must be at least 1: " + maxConcurrent);
+        }
+        if (maxQueued < 0)
+        {
+            throw new IllegalArgumentException("queue limit must not be negative: " + maxQueued);
+        }
+
+        Lane lane = lanes[operation.ordinal()];
+        synchronized (lane)
+        {
+            lane.maxConcurrent = maxConcurrent;
+            lane.maxQueued = maxQueued;
+        }
+        Task<?> task;
+        while ((task = lane.startWaiting()) != null)
+        {
+            dispatch(lane, task);
+        }
+        return this;
+    }
+
+    public CompletableFuture<AsymmetricCipherKeyPair> generateKeyPair(final KyberParameters params)
+    {
+        return submit(Operation.KYBER_KEYGEN, new Callable<AsymmetricCipherKeyPair>()
+        {
+            public AsymmetricCipherKeyPair call()
+            {
+                KyberKeyPairGenerator generator = new KyberKeyPairGenerator();
+                generator.init(new KyberKeyGenerationParameters(random, params));
+                return generator.generateKeyPair();
+            }
+        });
+    }
+
+    /**
+     * @param key KyberPublicKeyParameters: Recipient key, a PreparedKyberPublicKey skips the matrix expansion
+     * @return CompletableFuture: Shared secret and cipher text
+     */
+    public CompletableFuture<SecretWithEncapsulation> encapsulate(final KyberPublicKeyParameters key)
+    {
+        return submit(Operation.KYBER_ENCAPSULATE, new Callable<SecretWithEncapsulation>()
+        {
+            public SecretWithEncapsulation call()
+            {
+                return kemGenerator.generateEncapsulated(key);
+            }
+        });
+    }
+
+    /**
+     * @param key KyberPrivateKeyParameters: Recipient key, prepared on every call unless it is a PreparedKyberPrivateKey
+     * @param encapsulation byte[]: Cipher text
+     * @return CompletableFuture: Shared secret
+     */
+    public CompletableFuture<byte[]> decapsulate(final KyberPrivateKeyParameters key, final byte[] encapsulation)
+    {
+        return submit(Operation.KYBER_DECAPSULATE, new Callable<byte[]>()
+        {
+            public byte[] call()
+            {
+                return new KyberKEMExtractor(key).extractSecret(encapsulation);
+            }
+        });
+    }
+
+    public CompletableFuture<AsymmetricCipherKeyPair> generateKeyPair(final DilithiumParameters params)
+    {
+        return submit(Operation.DILITHIUM_KEYGEN, new Callable<AsymmetricCipherKeyPair>()
+        {
+            public AsymmetricCipherKeyPair call()
+            {
+                DilithiumKeyPairGenerator generator = new DilithiumKeyPairGenerator();
+                generator.init(new DilithiumKeyGenerationParameters(random, params));
+                return generator.generateKeyPair();
+            }
+        });
+    }
+
+    public CompletableFuture<byte[]> sign(final DilithiumPrivateKeyParameters key, final byte[] message)
+    {
+        return submit(Operation.DILITHIUM_SIGN, new Callable<byte[]>()
+        {
+            public byte[] call()
+            {
+                DilithiumSigner signer = new DilithiumSigner();
+                signer.init(true, new ParametersWithRandom(key, random));
+                return signer.generateSignature(message);
+            }
+        });
+    }
+
+    public CompletableFuture<Boolean> verify(final DilithiumPublicKeyParameters key, final byte[] message, final byte[] signature)
+    {
+        return submit(Operation.DILITHIUM_VERIFY, new Callable<Boolean>()
+        {
+            public Boolean call()
+            {
+                DilithiumSigner verifier = new DilithiumSigner();
+                verifier.init(false, key);
+                return Boolean.valueOf(verifier.verifySignature(message, signature));
+            }
+        });
+    }
+
+    /**
+     * Runs custom work, e.g. with prepared keys or caller owned workspaces,
+     * within the lane of an operation
+     * @param operation Operation: Lane whose limits and metrics apply
+     * @param work Callable: Work to run on the crypto executor
+     * @return CompletableFuture: Result of the work, failed with a RejectedExecutionException
+     *                            when the lane is full or the service closed
+     */
+    public <T> CompletableFuture<T> submit(Operation operation, Callable<T> work)
+    {
+        Lane lane = lanes[operation.ordinal()];
+        Task<T> task = new Task<T>(work);
+        if (closed)
+        {
+            lane.rejected.incrementAndGet();
+            task.future.completeExceptionally(new RejectedExecutionException("service is closed"));
+            return task.future;
+        }
+
+        switch (lane.admit(task))
+        {
+        case Lane.START:
+            dispatch(lane, task);
+            break;
+        case Lane.QUEUED:
+            break;
+        default:
+            lane.rejected.incrementAndGet();
+            task.future.completeExceptionally(new RejectedExecutionException(operation + " queue is full"));
+            break;
+        }
+        return task.future;
+    }
+
+    /**
+     * Stops accepting work. Tasks on the executor still run, tasks waiting
+     * in a lane fail with a RejectedExecutionException. An executor created
+     * by the service is shut down after the running tasks.
+     */
+    public void close()
+    {
+        closed = true;
+        for (int i = 0; i < lanes.length; i++)
+        {
+            Task<?> task;
+            while ((task = lanes[i].poll()) != null)
+            {
+                lanes[i].rejected.incrementAndGet();
+                task.future.completeExceptionally(new RejectedExecutionException("service is closed"));
+            }
+        }
+        if (ownedExecutor != null)
+        {
+            ownedExecutor.shutdown();
+        }
+    }
+
+    /**
+     * @param operation Operation: Operation to look up
+     * @return Histogram: Time from the call to the start of the work, lane and executor queue together
+     */
+    public Histogram getQueueTime(Operation operation)
+    {
+        return lanes[operation.ordinal()].queueTime;
+    }
+
+    /**
+     * @param operation Operation: Operation to look up
+     * @return Histogram: Time the work ran on a crypto thread
+     */
+    public Histogram getRunTime(Operation operation)
+    {
+        return lanes[operation.ordinal()].runTime;
+    }
+
+    /**
+     * @param operation Operation: Operation to look up
+     * @return long: Calls failed because the lane was full or the service closed
+     */
+    public long getRejected(Operation operation)
+    {
+        return lanes[operation.ordinal()].rejected.get();
+    }
+
+    /**
+     * @param operation Operation: Operation to look up
+     * @return int: Tasks of the operation on the executor, queued there or running
+     */
+    public int getRunning(Operation operation)
+    {
+        Lane lane = lanes[operation.ordinal()];
+        synchronized (lane)
+        {
+            return lane.running;
+        }
+    }
+
+    /**
+     * @param operation Operation: Operation to look up
+     * @return int: Tasks of the operation waiting for their lane
+     */
+    public int getQueued(Operation operation)
+    {
+        Lane lane = lanes[operation.ordinal()];
+        synchronized (lane)
+        {
+            return lane.waiting.size();
+        }
+    }
+
+    private void dispatch(final Lane lane, Task<?> task)
+    {
+        // iterative, an executor rejecting every task would otherwise recurse once per waiting task
+        while (task != null)
+        {
+            final Task<?> current = task;
+            try
+            {
+                executor.execute(new Runnable()
+                {
+                    public void run()
+                    {
+                        try
+                        {
+                            current.run(lane);
+                        }
+                        finally
+                        {
+                            Task<?> next = lane.finish();
+                            if (next != null)
+                            {
+                                dispatch(lane, next);
+                            }
+                        }
+                    }
+                });
+                return;
+            }
+            catch (RejectedExecutionException e)
+            {
+                lane.rejected.incrementAndGet();
+                current.future.completeExceptionally(e);
+                task = lane.finish();
+            }
+        }
+    }
+
+    private static final class Task<T>
+    {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+        final Callable<T> work;
+        final long submitted = System.nanoTime();
+
+        Task(Callable<T> work)
+        {
+            this.work = work;
+        }
+
+        void run(Lane lane)
+        {
+            if (future.isDone())
+            {
+                // cancelled while queued
+                return;
+            }
+
+            long start = System.nanoTime();
+            lane.queueTime.record(start - submitted);
+            T result;
+            try
+            {
+                result = work.call();
+            }
+            catch (Throwable t)
+            {
+                lane.runTime.record(System.nanoTime() - start);
+                future.completeExceptionally(t);
+                return;
+            }
+            // recorded first, so the metrics include a task once its future is done
+            lane.runTime.record(System.nanoTime() - start);
+            future.complete(result);
+        }
+    }
+
+    /**
+     * Admission state of one operation, guarded by the lane's monitor
+     */
+    private static final class Lane
+    {
+        static final int START = 0;
+        static final int QUEUED = 1;
+        static final int REJECTED = 2;
+
+        final ArrayDeque<Task<?>> waiting = new ArrayDeque<Task<?>>();
+        final Histogram queueTime = new Histogram();
+        final Histogram runTime = new Histogram();
+        final AtomicLong rejected = new AtomicLong();
+
+        int maxConcurrent;
+        int maxQueued;
+        int running;
+
+        Lane(int maxConcurrent, int maxQueued)
+        {
+            this.maxConcurrent = maxConcurrent;
+            this.maxQueued = maxQueued;
+        }
+
+        synchronized int admit(Task<?> task)
+        {
+            if (running < maxConcurrent)
+            {
+                running++;
+                return START;
+            }
+            if (waiting.size() < maxQueued)
+            {
+                waiting.add(task);
+                return QUEUED;
+            }
+            return REJECTED;
+        }
+
+        /**
+         * Releases the slot of a finished task, or hands it to the next waiting one
+         */
+        synchronized Task<?> finish()
+        {
+            if (running <= maxConcurrent)
+            {
+                Task<?> next = waiting.poll();
+                if (next != null)
+                {
+                    return next;
+                }
+            }
+            running--;
+            return null;
+        }
+
+        synchronized Task<?> poll()
+        {
+            return waiting.poll();
+        }
+
+        /**
+         * Takes a free slot for a waiting task, after the limit was raised
+         */
+        synchronized Task<?> startWaiting()
+        {
+            if (running < maxConcurrent && !waiting.isEmpty())
+            {
+                running++;
+                return waiting.poll();
+            }
+            return null;
+        }
+    }
+}
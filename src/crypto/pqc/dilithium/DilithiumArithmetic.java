@@ -0,0 +1,132 @@
+package crypto.pqc.dilithium;
+
+/**
+ * Modular arithmetic backend for the NTT domain operations of Dilithium:
+ * forward and inverse NTT, pointwise multiplication and the reductions
+ * applied to whole polynomials.
+ * <p>
+ * The backend is chosen through DilithiumParameters. All backends produce
+ * bit-identical keys and signatures.
+ * <p>
+ * The Vector API backend lives in the optional src-vector source tree and
+ * is picked up at runtime when it is on the class path and the JVM was
+ * started with --add-modules jdk.incubator.vector. Setting the system
+ * property crypto.pqc.vector to false disables it.
+ */
+public abstract class DilithiumArithmetic
+{
+    /**
+     * Montgomery reduction with R = 2^32, as in the reference implementation
+     */
+    public static final DilithiumArithmetic MONTGOMERY = new DilithiumArithmetic("Montgomery")
+    {
+        void ntt(int[] r)
+        {
+            Ntt.ntt(r, 0);
+        }
+
+        void invNttToMont(int[] r)
+        {
+            Ntt.invNttToMont(r, 0);
+        }
+
+        void pointwiseMontgomery(int[] r, int[] a, int[] b)
+        {
+            Poly.pointwiseMontgomery(r, a, b);
+        }
+
+        void reduce(int[] r)
+        {
+            Poly.reduce(r);
+        }
+
+        void conditionalAddQ(int[] r)
+        {
+            Poly.conditionalAddQ(r);
+        }
+    };
+
+    /**
+     * jdk.incubator.vector implementation of the Montgomery arithmetic,
+     * null when the Vector API is not available in this JVM or its
+     * preferred vectors are too narrow to pay off
+     */
+    public static final DilithiumArithmetic VECTOR = loadVector();
+
+    /**
+     * Backend of the predefined parameter sets: VECTOR when available, MONTGOMERY otherwise
+     */
+    public static final DilithiumArithmetic DEFAULT = VECTOR != null ? VECTOR : MONTGOMERY;
+
+    private final String name;
+
+    DilithiumArithmetic(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * Inplace forward NTT of one polynomial
+     * @param r int[]: Coefficients of the polynomial
+     */
+    abstract void ntt(int[] r);
+
+    /**
+     * Inplace inverse NTT of one polynomial and multiplication by 2^32
+     * @param r int[]: Coefficients of the polynomial
+     */
+    abstract void invNttToMont(int[] r);
+
+    /**
+     * Pointwise multiplication of two polynomials in NTT domain and multiplication by 2^-32
+     * @param r int[]: Output coefficients, may be a or b
+     * @param a int[]: First input coefficients
+     * @param b int[]: Second input coefficients
+     */
+    abstract void pointwiseMontgomery(int[] r, int[] a, int[] b);
+
+    /**
+     * Inplace reduction of all coefficients to representatives in [-6283009,6283007]
+     * @param r int[]: Coefficients of the polynomial
+     */
+    abstract void reduce(int[] r);
+
+    /**
+     * Inplace addition of Q to all negative coefficients
+     * @param r int[]: Coefficients of the polynomial
+     */
+    abstract void conditionalAddQ(int[] r);
+
+    private static DilithiumArithmetic loadVector()
+    {
+        if (!Boolean.parseBoolean(System.getProperty("crypto.pqc.vector", "true")))
+        {
+            return null;
+        }
+        try
+        {
+            Class<?> c = Class.forName("crypto.pqc.dilithium.DilithiumVectorArithmetic");
+            return (DilithiumArithmetic)c.getDeclaredConstructor().newInstance();
+        }
+        catch (Exception e)
+        {
+            // not compiled in, or the vector shape is too narrow to pay off
+            return null;
+        }
+        catch (LinkageError e)
+        {
+            // jdk.incubator.vector is not resolved
+            return null;
+        }
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public String toString()
+    {
+        return name;
+    }
+}
@@ -0,0 +1,242 @@
+package crypto.pqc.dilithium;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Verifies many (public key, message, signature) entries in parallel.
+ * Entries are grouped by public key and every distinct key is prepared
+ * once per batch, or looked up in a DilithiumPublicKeyCache, so its matrix
+ * is expanded once however many of its signatures the batch holds. The
+ * entries are then verified group by group on a ForkJoinPool, whose
+ * workers share the read-only prepared keys and steal ranges of entries
+ * from each other, so uneven message lengths do not leave cores idle.
+ * <p>
+ * Each entry is verified on its own; there is no aggregate check that
+ * could accept an invalid signature in a valid batch.
+ */
+public class DilithiumBatchVerifier
+{
+    // number of entries a worker verifies without splitting further
+    private static final int BATCH_THRESHOLD = 4;
+
+    private final ForkJoinPool pool;
+    private final DilithiumPublicKeyCache cache;
+
+    public DilithiumBatchVerifier()
+    {
+        this(ForkJoinPool.commonPool(), null);
+    }
+
+    /**
+     * @param pool ForkJoinPool: pool the keys and entries are split across
+     * @param cache DilithiumPublicKeyCache: cache the prepared keys are taken from and kept in
+     *              across batches; null to prepare the keys of every batch afresh
+     */
+    public DilithiumBatchVerifier(ForkJoinPool pool, DilithiumPublicKeyCache cache)
+    {
+        this.pool = pool;
+        this.cache = cache;
+    }
+
+    /**
+     * Verifies every entry of a batch
+     * @param publicKeys DilithiumPublicKeyParameters[]: Key of each entry, prepared keys are used as is
+     * @param messages byte[][]: Message of each entry
+     * @param signatures byte[][]: Signature of each entry
+     * @return BitSet: Bit i set if and only if signatures[i] is valid
+     */
+    public BitSet verify(DilithiumPublicKeyParameters[] publicKeys, byte[][] messages, byte[][] signatures)
+    {
+        return verify(publicKeys, messages, signatures, false);
+    }
+
+    /**
+     * Verifies a batch, optionally stopping at the first invalid signature.
+     * In fail-fast mode the batch is valid if and only if the cardinality of
+     * the result is the number of entries; once a signature has failed,
+     * entries not verified yet are skipped and their bits stay clear.
+     * @param publicKeys DilithiumPublicKeyParameters[]: Key of each entry, prepared keys are used as is
+     * @param messages byte[][]: Message of each entry
+     * @param signatures byte[][]: Signature of each entry
+     * @param failFast boolean: Stop verifying once a signature is invalid
+     * @return BitSet: Bit i set if and only if signatures[i] was verified and is valid
+     */
+    public BitSet verify(DilithiumPublicKeyParameters[] publicKeys, byte[][] messages, byte[][] signatures, boolean failFast)
+    {
+        int n = publicKeys.length;
+        if (messages.length != n || signatures.length != n)
+        {
+            throw new IllegalArgumentException("batch has " + n + " keys, " + messages.length + " messages and "
+                + signatures.length + " signatures");
+        }
+
+        // group the entries by key, the order lists the entries of each group together
+        HashMap<DilithiumPublicKeyId, Integer> groupOf = new HashMap<DilithiumPublicKeyId, Integer>();
+        List<DilithiumPublicKeyParameters> distinct = new ArrayList<DilithiumPublicKeyParameters>();
+        int[] group = new int[n];
+        int[] groupSize = new int[n];
+        for (int i = 0; i < n; i++)
+        {
+            DilithiumPublicKeyParameters key = publicKeys[i];
+            DilithiumPublicKeyId id = new DilithiumPublicKeyId(key.getParameters(), key.getPublicKeyInternal());
+            Integer g = groupOf.get(id);
+            if (g == null)
+            {
+                g = Integer.valueOf(distinct.size());
+                groupOf.put(id, g);
+                distinct.add(key);
+            }
+            group[i] = g.intValue();
+            groupSize[group[i]]++;
+        }
+        int[] order = new int[n];
+        int[] next = new int[distinct.size()];
+        for (int g = 1; g < next.length; g++)
+        {
+            next[g] = next[g - 1] + groupSize[g - 1];
+        }
+        for (int i = 0; i < n; i++)
+        {
+            order[next[group[i]]++] = i;
+        }
+
+        PreparedDilithiumPublicKey[] prepared = new PreparedDilithiumPublicKey[distinct.size()];
+        pool.invoke(new PrepareTask(distinct, prepared, 0, prepared.length));
+
+        boolean[] valid = new boolean[n];
+        AtomicBoolean failed = failFast ? new AtomicBoolean() : null;
+        pool.invoke(new VerifyTask(order, group, prepared, messages, signatures, valid, failed, 0, n));
+
+        BitSet result = new BitSet(n);
+        for (int i = 0; i < n; i++)
+        {
+            if (valid[i])
+            {
+                result.set(i);
+            }
+        }
+        return result;
+    }
+
+    private PreparedDilithiumPublicKey prepare(DilithiumPublicKeyParameters key)
+    {
+        if (key instanceof PreparedDilithiumPublicKey)
+        {
+            return (PreparedDilithiumPublicKey)key;
+        }
+        return cache != null ? cache.get(key) : new PreparedDilithiumPublicKey(key);
+    }
+
+    private class PrepareTask
+        extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final List<DilithiumPublicKeyParameters> keys;
+        private final PreparedDilithiumPublicKey[] prepared;
+        private final int from;
+        private final int to;
+
+        PrepareTask(List<DilithiumPublicKeyParameters> keys, PreparedDilithiumPublicKey[] prepared, int from, int to)
+        {
+            this.keys = keys;
+            this.prepared = prepared;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute()
+        {
+            if (to - from <= 1)
+            {
+                for (int g = from; g < to; g++)
+                {
+                    prepared[g] = prepare(keys.get(g));
+                }
+            }
+            else
+            {
+                int mid = (from + to) >>> 1;
+                invokeAll(new PrepareTask(keys, prepared, from, mid), new PrepareTask(keys, prepared, mid, to));
+            }
+        }
+    }
+
+    private static class VerifyTask
+        extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final int[] order;
+        private final int[] group;
+        private final PreparedDilithiumPublicKey[] prepared;
+        private final byte[][] messages;
+        private final byte[][] signatures;
+        private final boolean[] valid;
+        private final AtomicBoolean failed;
+        private final int from;
+        private final int to;
+
+        VerifyTask(int[] order, int[] group, PreparedDilithiumPublicKey[] prepared, byte[][] messages, byte[][] signatures,
+                   boolean[] valid, AtomicBoolean failed, int from, int to)
+        {
+            this.order = order;
+            this.group = group;
+            this.prepared = prepared;
+            this.messages = messages;
+            this.signatures = signatures;
+            this.valid = valid;
+            this.failed = failed;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute()
+        {
+            if (failed != null && failed.get())
+            {
+                return;
+            }
+
+            if (to - from <= BATCH_THRESHOLD)
+            {
+                // engines are not thread safe, a worker keeps one per parameter set it meets
+                DilithiumParameters params = null;
+                DilithiumEngine engine = null;
+                for (int o = from; o < to; o++)
+                {
+                    if (failed != null && failed.get())
+                    {
+                        return;
+                    }
+
+                    int i = order[o];
+                    PreparedDilithiumPublicKey key = prepared[group[i]];
+                    if (key.getParameters() != params)
+                    {
+                        params = key.getParameters();
+                        engine = params.getEngine(null);
+                    }
+                    byte[] sig = signatures[i];
+                    valid[i] = engine.signVerify(sig, sig.length, messages[i], messages[i].length, key);
+                    if (!valid[i] && failed != null)
+                    {
+                        failed.set(true);
+                    }
+                }
+            }
+            else
+            {
+                int mid = (from + to) >>> 1;
+                invokeAll(new VerifyTask(order, group, prepared, messages, signatures, valid, failed, from, mid),
+                    new VerifyTask(order, group, prepared, messages, signatures, valid, failed, mid, to));
+            }
+        }
+    }
+}
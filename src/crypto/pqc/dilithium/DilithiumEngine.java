@@ -6,13 +6,22 @@ import java.util.Arrays;
 import org.bouncycastle.crypto.digests.SHAKEDigest;
 
 import crypto.pqc.kyber.Helper;
+import crypto.pqc.probe.Operation;
+import crypto.pqc.probe.OperationListener;
+import crypto.pqc.probe.Phase;
 
 public class DilithiumEngine {
 
     private final SecureRandom random;
+    private final DilithiumArithmetic arithmetic;
+    private final OperationListener listener;
+    private final String name;
     private final SHAKEDigest shake128Digest = new SHAKEDigest(128);
     private final SHAKEDigest shake256Digest = new SHAKEDigest(256);
 
+    // iterations of the rejection loop in the last signSignature call
+    private int signAttempts;
+
     public final static int DilithiumN = 256;
     public final static int DilithiumQ = 8380417;
     public final static int DilithiumQinv = 58728449; // q^(-1) mod 2^32
@@ -124,7 +133,23 @@ public class DilithiumEngine {
         return this.shake128Digest;
     }
 
+    public DilithiumArithmetic getArithmetic() {
+        return this.arithmetic;
+    }
+
+    public OperationListener getListener() {
+        return this.listener;
+    }
+
     public DilithiumEngine(int mode, SecureRandom random) {
+        this(mode, random, DilithiumArithmetic.DEFAULT);
+    }
+
+    public DilithiumEngine(int mode, SecureRandom random, DilithiumArithmetic arithmetic) {
+        this(mode, random, arithmetic, OperationListener.NONE);
+    }
+
+    public DilithiumEngine(int mode, SecureRandom random, DilithiumArithmetic arithmetic, OperationListener listener) {
         /*
          * Dilithium Modes
          * Mode = 2
@@ -180,6 +205,9 @@ public class DilithiumEngine {
         }
 
         this.random = random;
+        this.arithmetic = arithmetic;
+        this.listener = listener;
+        this.name = "dilithium" + mode;
         this.DilithiumPolyVecHPackedBytes = this.DilithiumOmega + this.DilithiumK;
         this.CryptoPublicKeyBytes = SeedBytes + this.DilithiumK * DilithiumPolyT1PackedBytes;
         this.CryptoSecretKeyBytes = (3 * SeedBytes
@@ -216,10 +244,12 @@ public class DilithiumEngine {
         PolyVecL s1 = new PolyVecL(this), s1hat;
         PolyVecK s2 = new PolyVecK(this), t1 = new PolyVecK(this), t0 = new PolyVecK(this);
 
+        listener.operationStarted(Operation.DILITHIUM_KEYGEN, name, CryptoPublicKeyBytes + CryptoSecretKeyBytes);
+
         random.nextBytes(seedBuf);
 
-        System.out.print("Seedbuf = ");
-        Helper.printByteArray(seedBuf);
+        // System.out.print("Seedbuf = ");
+        // Helper.printByteArray(seedBuf);
 
         shake256Digest.update(seedBuf, 0, SeedBytes);
 
@@ -232,9 +262,11 @@ public class DilithiumEngine {
         System.arraycopy(buf, SeedBytes + CrhBytes, key, 0, SeedBytes);
         // System.out.println("key = ");
         // Helper.printByteArray(key);
+        listener.phaseCompleted(Phase.HASHED);
 
         aMatrix.expandMatrix(rho);
         // System.out.print(aMatrix.toString("aMatrix"));
+        listener.phaseCompleted(Phase.MATRIX_EXPANDED);
 
         // System.out.println("rhoPrime = ");
         // Helper.printByteArray(rhoPrime);
@@ -242,11 +274,13 @@ public class DilithiumEngine {
         // System.out.println(s1.toString("s1"));
 
         s2.uniformEta(rhoPrime, (short) DilithiumL);
+        listener.phaseCompleted(Phase.NOISE_SAMPLED);
 
         s1hat = new PolyVecL(this);
 
         s1.copyPolyVecL(s1hat);
         s1hat.polyVecNtt();
+        listener.phaseCompleted(Phase.NTT);
 
         // System.out.println(s1hat.toString("s1hat"));
 
@@ -261,23 +295,28 @@ public class DilithiumEngine {
         // System.out.println(t1.toString("t1"));
         t1.conditionalAddQ();
         t1.power2Round(t0);
+        listener.phaseCompleted(Phase.MULTIPLIED);
 
         // System.out.println(t1.toString("t1"));
         // System.out.println("rho = ");
-        Helper.printByteArray(rho);
+        // Helper.printByteArray(rho);
         // System.out.println(t0.toString("t0"));
 
         byte[] pk = Packing.packPublicKey(rho, t1, this);
         // System.out.println("pk engine = ");
         // Helper.printByteArray(pk);
+        listener.phaseCompleted(Phase.PACKED);
 
         shake256Digest.update(pk, 0, CryptoPublicKeyBytes);
         shake256Digest.doFinal(tr, 0, SeedBytes);
+        listener.phaseCompleted(Phase.HASHED);
 
         byte[][] sk = Packing.packSecretKey(rho, tr, key, t0, s1, s2, this);
         // System.out.println("sk engine = ");
         // Helper.printByteArray(sk);
+        listener.phaseCompleted(Phase.PACKED);
 
+        listener.operationCompleted(Operation.DILITHIUM_KEYGEN);
         return new byte[][] { pk, sk[0], sk[1], sk[2], sk[3], sk[4], sk[5] };
     }
 
@@ -293,18 +332,15 @@ public class DilithiumEngine {
      * @return byte[]: Signature of length Crypto Bytes
      */
     public byte[] signSignature(byte[] msg, int msglen, byte[] rho, byte[] key, byte[] tr, byte[] secretKey) {
-        int n;
-        byte[] outSig = new byte[CryptoBytes + msglen];
-        byte[] mu = new byte[CrhBytes], rhoPrime = new byte[CrhBytes];
-        short nonce = 0;
-        PolyVecL s1 = new PolyVecL(this), y = new PolyVecL(this), z = new PolyVecL(this);
-        PolyVecK t0 = new PolyVecK(this), s2 = new PolyVecK(this), w1 = new PolyVecK(this), w0 = new PolyVecK(this),
-                h = new PolyVecK(this);
-        Poly cp = new Poly(this);
+        byte[] mu = new byte[CrhBytes];
+        PolyVecL s1 = new PolyVecL(this);
+        PolyVecK t0 = new PolyVecK(this), s2 = new PolyVecK(this);
         PolyVecMatrix aMatrix = new PolyVecMatrix(this);
-        boolean rej = true;
+
+        listener.operationStarted(Operation.DILITHIUM_SIGN, name, msglen);
 
         Packing.unpackSecretKey(t0, s1, s2, secretKey, this);
+        listener.phaseCompleted(Phase.UNPACKED);
 
         // System.out.print("rho = ");
         // Helper.printByteArray(rho);
@@ -319,14 +355,8 @@ public class DilithiumEngine {
         this.shake256Digest.update(msg, 0, msglen);
         this.shake256Digest.doFinal(mu, 0, CrhBytes);
 
-        if (RandomizedSigning) {
-            random.nextBytes(rhoPrime);
-        } else {
-            byte[] keyMu = Arrays.copyOf(key, SeedBytes + CrhBytes);
-            System.arraycopy(mu, 0, keyMu, SeedBytes, CrhBytes);
-            shake256Digest.update(keyMu, 0, SeedBytes + CrhBytes);
-            shake256Digest.doFinal(rhoPrime, 0, CrhBytes);
-        }
+        byte[] rhoPrime = deriveRhoPrime(key, mu);
+        listener.phaseCompleted(Phase.HASHED);
 
         // System.out.print("mu = ");
         // Helper.printByteArray(mu);
@@ -336,6 +366,7 @@ public class DilithiumEngine {
 
         aMatrix.expandMatrix(rho);
         // System.out.print(aMatrix.toString("aMatrix"));
+        listener.phaseCompleted(Phase.MATRIX_EXPANDED);
 
         s1.polyVecNtt();
         // System.out.println(s1.toString("s1"));
@@ -345,6 +376,70 @@ public class DilithiumEngine {
 
         t0.polyVecNtt();
         // System.out.println(t0.toString("t0"));
+        listener.phaseCompleted(Phase.NTT);
+
+        byte[] outSig = rejectionLoop(msglen, mu, rhoPrime, aMatrix, s1, s2, t0);
+        listener.operationCompleted(Operation.DILITHIUM_SIGN);
+        return outSig;
+    }
+
+    /**
+     * Computes Signature with a prepared private key, skipping the secret
+     * key unpacking, the matrix expansion, the NTT of s1, s2 and t0 and
+     * the absorption of tr
+     * 
+     * @param msg    byte[]: Message to be signed
+     * @param msglen int: Length of Message
+     * @param key    PreparedDilithiumPrivateKey: Private key of this parameter set
+     * @return byte[]: Signature of length Crypto Bytes
+     */
+    public byte[] signSignature(byte[] msg, int msglen, PreparedDilithiumPrivateKey key) {
+        if (key.getDilithiumMode() != DilithiumMode) {
+            throw new IllegalArgumentException("private key prepared for dilithium" + key.getDilithiumMode() + ", not " + name);
+        }
+        byte[] mu = new byte[CrhBytes];
+
+        listener.operationStarted(Operation.DILITHIUM_SIGN, name, msglen);
+
+        SHAKEDigest trDigest = new SHAKEDigest(key.getTrDigest());
+        trDigest.update(msg, 0, msglen);
+        trDigest.doFinal(mu, 0, CrhBytes);
+
+        byte[] rhoPrime = deriveRhoPrime(key.k, mu);
+        listener.phaseCompleted(Phase.HASHED);
+
+        byte[] outSig = rejectionLoop(msglen, mu, rhoPrime, key.getMatrix(), key.getS1Hat(), key.getS2Hat(), key.getT0Hat());
+        listener.operationCompleted(Operation.DILITHIUM_SIGN);
+        return outSig;
+    }
+
+    private byte[] deriveRhoPrime(byte[] key, byte[] mu) {
+        byte[] rhoPrime = new byte[CrhBytes];
+        if (RandomizedSigning) {
+            random.nextBytes(rhoPrime);
+        } else {
+            byte[] keyMu = Arrays.copyOf(key, SeedBytes + CrhBytes);
+            System.arraycopy(mu, 0, keyMu, SeedBytes, CrhBytes);
+            shake256Digest.update(keyMu, 0, SeedBytes + CrhBytes);
+            shake256Digest.doFinal(rhoPrime, 0, CrhBytes);
+        }
+        return rhoPrime;
+    }
+
+    /**
+     * Rejection loop of the signature; only reads the matrix and the NTT
+     * domain secrets, so prepared keys can share them between threads
+     */
+    private byte[] rejectionLoop(int msglen, byte[] mu, byte[] rhoPrime, PolyVecMatrix aMatrix, PolyVecL s1, PolyVecK s2, PolyVecK t0) {
+        int n;
+        byte[] outSig = new byte[CryptoBytes + msglen];
+        short nonce = 0;
+        PolyVecL y = new PolyVecL(this), z = new PolyVecL(this);
+        PolyVecK w1 = new PolyVecK(this), w0 = new PolyVecK(this), h = new PolyVecK(this);
+        Poly cp = new Poly(this);
+        boolean rej = true;
+
+        // every iteration ends with a rejection phase or ACCEPTED
         int count = 0;
         while (rej == true && count < 1000) {
             count++;
@@ -391,6 +486,7 @@ public class DilithiumEngine {
             z.addPolyVecL(y);
             z.reduce();
             if (z.checkNorm(DilithiumGamma1 - DilithiumBeta)) {
+                listener.phaseCompleted(Phase.REJECTED_Z_NORM);
                 continue;
             }
 
@@ -400,6 +496,7 @@ public class DilithiumEngine {
             w0.subtract(h);
             w0.reduce();
             if (w0.checkNorm(DilithiumGamma2 - DilithiumBeta)) {
+                listener.phaseCompleted(Phase.REJECTED_LOW_BITS);
                 continue;
             }
 
@@ -407,6 +504,7 @@ public class DilithiumEngine {
             h.invNttToMont();
             h.reduce();
             if (h.checkNorm(DilithiumGamma2)) {
+                listener.phaseCompleted(Phase.REJECTED_T0_NORM);
                 continue;
             }
 
@@ -420,17 +518,21 @@ public class DilithiumEngine {
 
             n = h.makeHint(w0, w1);
             if (n > DilithiumOmega) {
+                listener.phaseCompleted(Phase.REJECTED_HINTS);
                 continue;
             }
+            listener.phaseCompleted(Phase.ACCEPTED);
 
             // System.out.println(z.toString("z"));
             // System.out.println(h.toString("h"));
             // System.out.println("Signature before pack = ");
             // Helper.printByteArray(outSig);
             outSig = Packing.packSignature(outSig, z, h, this);
+            listener.phaseCompleted(Phase.PACKED);
 
             rej = false;
         }
+        signAttempts = count;
         // System.out.println("Signature = ");
         // Helper.printByteArray(outSig);
 
@@ -438,6 +540,16 @@ public class DilithiumEngine {
 
     }
 
+    /**
+     * Number of iterations the rejection loop of the last signSignature
+     * call needed, 1 if the first candidate was accepted
+     * 
+     * @return int: Iterations of the last signature
+     */
+    int getSignAttempts() {
+        return signAttempts;
+    }
+
     /**
      * Signs Signature Refer to signSignature
      */
@@ -448,21 +560,60 @@ public class DilithiumEngine {
         return signedMessage;
     }
 
+    /**
+     * Signs Signature with a prepared private key Refer to signSignature
+     */
+    public byte[] sign(byte[] msg, int mlen, PreparedDilithiumPrivateKey key) {
+        byte[] signedMessage = new byte[CryptoBytes];
+
+        System.arraycopy(signSignature(msg, mlen, key), 0, signedMessage, 0, CryptoBytes);
+        return signedMessage;
+    }
+
     /**
      * Verifies Signature
      * 
      * @return True if Verified Correctly, False if not.
      */
     public boolean signVerify(byte[] sig, int siglen, byte[] msg, int msglen, byte[] publicKey) {
+        listener.operationStarted(Operation.DILITHIUM_VERIFY, name, msglen);
+        boolean verified = verify(sig, siglen, msg, msglen, publicKey, null);
+        listener.operationCompleted(Operation.DILITHIUM_VERIFY);
+        return verified;
+    }
+
+    /**
+     * Verifies Signature under a prepared public key, skipping the matrix
+     * expansion, the unpacking and NTT of t1 and the hash of the public key
+     * 
+     * @param publicKey PreparedDilithiumPublicKey: Public key of this parameter set
+     * @return True if Verified Correctly, False if not.
+     */
+    public boolean signVerify(byte[] sig, int siglen, byte[] msg, int msglen, PreparedDilithiumPublicKey publicKey) {
+        if (publicKey.getDilithiumMode() != DilithiumMode) {
+            throw new IllegalArgumentException("public key prepared for dilithium" + publicKey.getDilithiumMode() + ", not " + name);
+        }
+        listener.operationStarted(Operation.DILITHIUM_VERIFY, name, msglen);
+        boolean verified = verify(sig, siglen, msg, msglen, null, publicKey);
+        listener.operationCompleted(Operation.DILITHIUM_VERIFY);
+        return verified;
+    }
+
+    /**
+     * Verifies under either the encoded public key or, if it is not null,
+     * the prepared one
+     */
+    private boolean verify(byte[] sig, int siglen, byte[] msg, int msglen, byte[] publicKey, PreparedDilithiumPublicKey prepared) {
         byte[] buf,
-                rho,
+                rho = null,
+                tr,
                 mu = new byte[CrhBytes],
                 c,
                 c2 = new byte[SeedBytes];
         Poly cp = new Poly(this);
-        PolyVecMatrix aMatrix = new PolyVecMatrix(this);
+        PolyVecMatrix aMatrix;
         PolyVecL z = new PolyVecL(this);
-        PolyVecK t1 = new PolyVecK(this), w1 = new PolyVecK(this), h = new PolyVecK(this);
+        PolyVecK t1, ct1 = new PolyVecK(this), w1 = new PolyVecK(this), h = new PolyVecK(this);
 
         if (siglen != CryptoBytes) {
             return false;
@@ -471,7 +622,12 @@ public class DilithiumEngine {
         // System.out.println("publickey = ");
         // Helper.printByteArray(publicKey);
 
-        rho = Packing.unpackPublicKey(t1, publicKey, this);
+        if (prepared == null) {
+            t1 = new PolyVecK(this);
+            rho = Packing.unpackPublicKey(t1, publicKey, this);
+        } else {
+            t1 = prepared.getT1Hat();
+        }
 
         // System.out.println(t1.toString("t1"));
 
@@ -489,14 +645,20 @@ public class DilithiumEngine {
         if (z.checkNorm(getDilithiumGamma1() - getDilithiumBeta())) {
             return false;
         }
+        listener.phaseCompleted(Phase.UNPACKED);
 
         // Compute crh(crh(rho, t1), msg)
-        shake256Digest.update(publicKey, 0, CryptoPublicKeyBytes);
-        shake256Digest.doFinal(mu, 0, SeedBytes);
+        if (prepared == null) {
+            tr = new byte[SeedBytes];
+            shake256Digest.update(publicKey, 0, CryptoPublicKeyBytes);
+            shake256Digest.doFinal(tr, 0, SeedBytes);
+        } else {
+            tr = prepared.getTr();
+        }
         // System.out.println("mu before = ");
-        // Helper.printByteArray(mu);
+        // Helper.printByteArray(tr);
 
-        shake256Digest.update(mu, 0, SeedBytes);
+        shake256Digest.update(tr, 0, SeedBytes);
         shake256Digest.update(msg, 0, msglen);
         shake256Digest.doFinal(mu, 0);
 
@@ -507,24 +669,35 @@ public class DilithiumEngine {
         cp.challenge(c);
         // System.out.println("cp = ");
         // System.out.println(cp.toString());
+        listener.phaseCompleted(Phase.HASHED);
 
-        aMatrix.expandMatrix(rho);
-        // System.out.println(aMatrix.toString("aMatrix = "));
+        if (prepared == null) {
+            aMatrix = new PolyVecMatrix(this);
+            aMatrix.expandMatrix(rho);
+            // System.out.println(aMatrix.toString("aMatrix = "));
+            listener.phaseCompleted(Phase.MATRIX_EXPANDED);
+        } else {
+            aMatrix = prepared.getMatrix();
+        }
 
         z.polyVecNtt();
-        aMatrix.pointwiseMontgomery(w1, z);
-
         cp.polyNtt();
         // System.out.println("cp = ");
         // System.out.println(cp.toString());
 
-        t1.shiftLeft();
-        t1.polyVecNtt();
-        t1.pointwisePolyMontgomery(cp, t1);
+        if (prepared == null) {
+            t1.shiftLeft();
+            t1.polyVecNtt();
+        }
+        listener.phaseCompleted(Phase.NTT);
+
+        aMatrix.pointwiseMontgomery(w1, z);
+        // t1 is shared when prepared, so the product goes to a vector of its own
+        ct1.pointwisePolyMontgomery(cp, t1);
 
-        // System.out.println(t1.toString("t1"));
+        // System.out.println(ct1.toString("ct1"));
 
-        w1.subtract(t1);
+        w1.subtract(ct1);
         w1.reduce();
         w1.invNttToMont();
 
@@ -535,8 +708,10 @@ public class DilithiumEngine {
         // System.out.println(w1.toString("w1 before hint"));
         w1.useHint(w1, h);
         // System.out.println(w1.toString("w1"));
+        listener.phaseCompleted(Phase.MULTIPLIED);
 
         buf = w1.packW1();
+        listener.phaseCompleted(Phase.PACKED);
 
         // System.out.println("buf = ");
         // Helper.printByteArray(buf);
@@ -548,6 +723,7 @@ public class DilithiumEngine {
         shakeDigest256.update(mu, 0, CrhBytes);
         shakeDigest256.update(buf, 0, DilithiumK * DilithiumPolyW1PackedBytes);
         shakeDigest256.doFinal(c2, 0, SeedBytes);
+        listener.phaseCompleted(Phase.HASHED);
 
         // System.out.println("c = ");
         // Helper.printByteArray(c);
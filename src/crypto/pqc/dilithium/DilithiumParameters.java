@@ -2,24 +2,88 @@ package crypto.pqc.dilithium;
 
 import java.security.SecureRandom;
 
+import crypto.pqc.probe.OperationListener;
+
 public class DilithiumParameters
 {
-    public static final DilithiumParameters dilithium2 = new DilithiumParameters("dilithium2", 2);
-    public static final DilithiumParameters dilithium3 = new DilithiumParameters("dilithium3", 3);
-    public static final DilithiumParameters dilithium5 = new DilithiumParameters("dilithium5", 5);
+    public static final DilithiumParameters dilithium2 = new DilithiumParameters("dilithium2", 2, DilithiumArithmetic.DEFAULT);
+    public static final DilithiumParameters dilithium3 = new DilithiumParameters("dilithium3", 3, DilithiumArithmetic.DEFAULT);
+    public static final DilithiumParameters dilithium5 = new DilithiumParameters("dilithium5", 5, DilithiumArithmetic.DEFAULT);
 
     private final int k;
     private final String name;
+    private final DilithiumArithmetic arithmetic;
+    private final OperationListener listener;
+
+    private DilithiumParameters(String name, int k, DilithiumArithmetic arithmetic)
+    {
+        this(name, k, arithmetic, OperationListener.DEFAULT);
+    }
 
-    private DilithiumParameters(String name, int k)
+    private DilithiumParameters(String name, int k, DilithiumArithmetic arithmetic, OperationListener listener)
     {
         this.name = name;
         this.k = k;
+        this.arithmetic = arithmetic;
+        this.listener = listener;
+    }
+
+    /**
+     * Same parameter set computed with another NTT arithmetic.
+     * Keys and signatures are interchangeable between the two. A null
+     * arithmetic, which DilithiumArithmetic.VECTOR is where unavailable, is rejected.
+     * @param arithmetic DilithiumArithmetic: Backend for the NTT domain operations
+     * @return DilithiumParameters: Parameter set using the given arithmetic
+     */
+    public DilithiumParameters withArithmetic(DilithiumArithmetic arithmetic)
+    {
+        if (arithmetic == null)
+        {
+            throw new IllegalArgumentException("arithmetic is not available in this JVM");
+        }
+        if (arithmetic == this.arithmetic)
+        {
+            return this;
+        }
+        return new DilithiumParameters(name, k, arithmetic, listener);
+    }
+
+    /**
+     * Same parameter set reporting its operations and their phases to a listener.
+     * Keys and signatures are interchangeable between the two.
+     * @param listener OperationListener: Probe called at operation and phase boundaries
+     * @return DilithiumParameters: Parameter set whose engines call the given listener
+     */
+    public DilithiumParameters withListener(OperationListener listener)
+    {
+        if (listener == this.listener)
+        {
+            return this;
+        }
+        return new DilithiumParameters(name, k, arithmetic, listener);
+    }
+
+    /**
+     * Getter for the operation listener
+     * @return OperationListener: Probe of engines of this parameter set, OperationListener.DEFAULT unless replaced
+     */
+    public OperationListener getListener()
+    {
+        return listener;
+    }
+
+    /**
+     * Getter for the NTT arithmetic
+     * @return DilithiumArithmetic: Backend used by engines of this parameter set
+     */
+    public DilithiumArithmetic getArithmetic()
+    {
+        return arithmetic;
     }
 
     DilithiumEngine getEngine(SecureRandom random)
     {
-        return new DilithiumEngine(k, random);
+        return new DilithiumEngine(k, random, arithmetic, listener);
     }
 
     public String getName()
@@ -0,0 +1,170 @@
+package crypto.pqc.dilithium;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Least recently used cache of prepared Dilithium public keys, bounded by
+ * the approximate heap the prepared keys hold (about 22 KiB for a
+ * dilithium2 key, 70 KiB for dilithium5). Verifiers seeing the same few
+ * issuer keys again and again look the key up here and verify under the
+ * prepared key, which skips the matrix expansion, t1 unpacking and NTT
+ * and the public key hash:
+ * <pre>
+ * verifier.init(false, cache.get(publicKey));
+ * </pre>
+ * Lookups are thread safe. A key missing from the cache is prepared on
+ * the calling thread outside the lock, so two threads missing the same
+ * key at once may both prepare it; the first to finish is cached.
+ */
+public class DilithiumPublicKeyCache
+{
+    private final long maxBytes;
+    private final LinkedHashMap<DilithiumPublicKeyId, PreparedDilithiumPublicKey> keys = new LinkedHashMap<DilithiumPublicKeyId, PreparedDilithiumPublicKey>(16, 0.75f, true);
+    private long bytes;
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxBytes long: Budget for the prepared keys held, a key larger than it is never cached
+     */
+    public DilithiumPublicKeyCache(long maxBytes)
+    {
+        if (maxBytes < 0)
+        {
+            throw new IllegalArgumentException("budget must not be negative: " + maxBytes);
+        }
+        this.maxBytes = maxBytes;
+    }
+
+    /**
+     * Looks up the prepared form of a public key, preparing and caching it on a miss
+     * @param key DilithiumPublicKeyParameters: Public key, returned as is if already prepared
+     * @return PreparedDilithiumPublicKey: Prepared key equal to the given one
+     */
+    public PreparedDilithiumPublicKey get(DilithiumPublicKeyParameters key)
+    {
+        if (key instanceof PreparedDilithiumPublicKey)
+        {
+            return (PreparedDilithiumPublicKey)key;
+        }
+        return get(key.getParameters(), key.getPublicKeyInternal());
+    }
+
+    /**
+     * Looks up the prepared form of an encoded public key, preparing and caching it on a miss
+     * @param params DilithiumParameters: Parameter set of the key
+     * @param publicKey byte[]: Encoded public key
+     * @return PreparedDilithiumPublicKey: Prepared key
+     */
+    public PreparedDilithiumPublicKey get(DilithiumParameters params, byte[] publicKey)
+    {
+        DilithiumPublicKeyId id = new DilithiumPublicKeyId(params, publicKey);
+        synchronized (keys)
+        {
+            PreparedDilithiumPublicKey prepared = keys.get(id);
+            if (prepared != null)
+            {
+                hits.incrementAndGet();
+                return prepared;
+            }
+        }
+
+        misses.incrementAndGet();
+        PreparedDilithiumPublicKey prepared = new PreparedDilithiumPublicKey(params, publicKey);
+        long size = prepared.getPreparedBytes();
+        if (size > maxBytes)
+        {
+            return prepared;
+        }
+
+        // the id must not alias the caller's array once it is a map key
+        id = new DilithiumPublicKeyId(params, prepared.getPublicKeyInternal());
+        synchronized (keys)
+        {
+            PreparedDilithiumPublicKey existing = keys.get(id);
+            if (existing != null)
+            {
+                return existing;
+            }
+            keys.put(id, prepared);
+            bytes += size;
+
+            for (Iterator<Map.Entry<DilithiumPublicKeyId, PreparedDilithiumPublicKey>> it = keys.entrySet().iterator(); bytes > maxBytes && it.hasNext(); )
+            {
+                Map.Entry<DilithiumPublicKeyId, PreparedDilithiumPublicKey> eldest = it.next();
+                it.remove();
+                bytes -= eldest.getValue().getPreparedBytes();
+                evictions.incrementAndGet();
+            }
+        }
+        return prepared;
+    }
+
+    /**
+     * Drops every cached key. The counters are kept.
+     */
+    public void clear()
+    {
+        synchronized (keys)
+        {
+            keys.clear();
+            bytes = 0;
+        }
+    }
+
+    /**
+     * @return long: Lookups answered from the cache
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * @return long: Lookups that had to prepare the key
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * @return long: Keys dropped to stay within the budget
+     */
+    public long getEvictions()
+    {
+        return evictions.get();
+    }
+
+    /**
+     * @return int: Keys currently cached
+     */
+    public int size()
+    {
+        synchronized (keys)
+        {
+            return keys.size();
+        }
+    }
+
+    /**
+     * @return long: Approximate bytes held by the cached keys
+     */
+    public long getBytes()
+    {
+        synchronized (keys)
+        {
+            return bytes;
+        }
+    }
+
+    public long getMaxBytes()
+    {
+        return maxBytes;
+    }
+}
@@ -0,0 +1,37 @@
+package crypto.pqc.dilithium;
+
+import org.bouncycastle.util.Arrays;
+
+/**
+ * Map key for an encoded public key of a parameter set. The hash covers
+ * the whole encoding: batches group keys taken from their input, and keys
+ * sharing rho but not t1 must not all land in one bucket.
+ */
+final class DilithiumPublicKeyId
+{
+    private final DilithiumParameters params;
+    private final byte[] encoded;
+    private final int hash;
+
+    DilithiumPublicKeyId(DilithiumParameters params, byte[] encoded)
+    {
+        this.params = params;
+        this.encoded = encoded;
+        this.hash = Arrays.hashCode(encoded);
+    }
+
+    public int hashCode()
+    {
+        return hash;
+    }
+
+    public boolean equals(Object o)
+    {
+        if (!(o instanceof DilithiumPublicKeyId))
+        {
+            return false;
+        }
+        DilithiumPublicKeyId other = (DilithiumPublicKeyId)o;
+        return params == other.params && java.util.Arrays.equals(encoded, other.encoded);
+    }
+}
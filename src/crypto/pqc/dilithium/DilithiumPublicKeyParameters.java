@@ -17,6 +17,15 @@ public class DilithiumPublicKeyParameters
         return getPublicKey();
     }
 
+    /**
+     * The encoded key itself rather than a copy, for engine calls that only read it
+     * @return byte[]: Encoded public key, must not be modified
+     */
+    byte[] getPublicKeyInternal()
+    {
+        return publicKey;
+    }
+
     public DilithiumPublicKeyParameters(DilithiumParameters params, byte[] publicKey)
     {
         super(false, params);
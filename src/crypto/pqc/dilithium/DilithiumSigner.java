@@ -44,6 +44,10 @@ public class DilithiumSigner
     {
         DilithiumEngine engine = privKey.getParameters().getEngine(random);
 
+        if (privKey instanceof PreparedDilithiumPrivateKey)
+        {
+            return engine.sign(message, message.length, (PreparedDilithiumPrivateKey)privKey);
+        }
         return engine.sign(message, message.length, privKey.rho, privKey.k, privKey.tr, privKey.getPrivateKey());
     }
 
@@ -51,6 +55,10 @@ public class DilithiumSigner
     {
         DilithiumEngine engine = pubKey.getParameters().getEngine(random);
 
-        return engine.signOpen(message, signature, signature.length, pubKey.getPublicKey());
+        if (pubKey instanceof PreparedDilithiumPublicKey)
+        {
+            return engine.signVerify(signature, signature.length, message, message.length, (PreparedDilithiumPublicKey)pubKey);
+        }
+        return engine.signOpen(message, signature, signature.length, pubKey.getPublicKeyInternal());
     }
 }
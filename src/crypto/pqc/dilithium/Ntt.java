@@ -42,15 +42,25 @@ public class Ntt
 
     /**
      * Forward NTT. No modular reduction is performed after
-     * additions or subtractions. Output vector is in bitreversed order. 
-     * Not in place (Requires In Place)
+     * additions or subtractions. Output vector is in bitreversed order.
      * @param a int[]: Input Coefficient Array
      * @return Output Coefficient Array
      */
     static int[] ntt(int[] a)
     {
         int[] r = Arrays.copyOfRange(a, 0, a.length);
+        ntt(r, 0);
+        return r;
+    }
 
+    /**
+     * Inplace forward NTT. No modular reduction is performed after
+     * additions or subtractions. Output vector is in bitreversed order.
+     * @param r int[]: Coefficient Array
+     * @param off int: Offset of the polynomial in r
+     */
+    static void ntt(int[] r, int off)
+    {
         int len, start, j, k;
         int zeta, t;
 
@@ -62,34 +72,40 @@ public class Ntt
                 zeta = nttZetas[++k];
                 for (j = start; j < start + len; ++j)
                 {
-                    t = Reduce.montgomeryReduce(((long)zeta * (long)r[j + len]));
-                    r[j + len] = r[j] - t;
-                    r[j] = r[j] + t;
+                    t = Reduce.montgomeryReduce(((long)zeta * (long)r[off + j + len]));
+                    r[off + j + len] = r[off + j] - t;
+                    r[off + j] = r[off + j] + t;
                 }
             }
-            // System.out.println();
         }
-        return r;
     }
 
-
     /**
      * Inverse NTT and multiplication by Montgomery factor 2^32.
      * No modular reductions after additions or subtractions;
      * input coefficients need to be smaller than Q in absolute value.
      * Output coefficient are smaller than Q in absolute value.
-     * Not in place (Requires to be In Place)
-     * @param a
-     * @return
+     * @param a int[]: Input Coefficient Array
+     * @return Output Coefficient Array
      */
     static int[] invNttToMont(int[] a)
+    {
+        int[] out = Arrays.copyOfRange(a, 0, a.length);
+        invNttToMont(out, 0);
+        return out;
+    }
+
+    /**
+     * Inplace inverse NTT and multiplication by Montgomery factor 2^32.
+     * @param r int[]: Coefficient Array
+     * @param off int: Offset of the polynomial in r
+     */
+    static void invNttToMont(int[] r, int off)
     {
         int start, len, j, k;
         int t, zeta;
         final int f = 41978; // (mont^2)/256
 
-        int[] out = Arrays.copyOfRange(a, 0, a.length);
-
         k = 256;
         for (len = 1; len < DilithiumEngine.DilithiumN; len <<= 1)
         {
@@ -98,19 +114,17 @@ public class Ntt
                 zeta = (-1) * nttZetas[--k];
                 for (j = start; j < start + len; ++j)
                 {
-                    t = out[j];
-                    out[j] = t + out[j + len];
-                    out[j + len] = t - out[j + len];
-                    out[j + len] = Reduce.montgomeryReduce((long)((long)zeta * (long)out[j + len]));
+                    t = r[off + j];
+                    r[off + j] = t + r[off + j + len];
+                    r[off + j + len] = t - r[off + j + len];
+                    r[off + j + len] = Reduce.montgomeryReduce((long)((long)zeta * (long)r[off + j + len]));
                 }
             }
         }
 
         for (j = 0; j < DilithiumEngine.DilithiumN; ++j)
         {
-            out[j] = Reduce.montgomeryReduce((long)((long)f * (long)out[j]));
+            r[off + j] = Reduce.montgomeryReduce((long)((long)f * (long)r[off + j]));
         }
-        return out;
     }
 }
-
@@ -6,7 +6,7 @@ import org.bouncycastle.crypto.digests.SHAKEDigest;
 
 public class Poly
 {
-    private int polyUniformNBlocks = (768 + Symmetric.Shake128Rate - 1) / Symmetric.Shake128Rate;
+    private static final int polyUniformNBlocks = (768 + Symmetric.Shake128Rate - 1) / Symmetric.Shake128Rate;
     private int[] coeffs;
     private DilithiumEngine engine;
     private int dilithiumN;
@@ -48,35 +48,42 @@ public class Poly
      */
     public void uniformBlocks(byte[] seed, short nonce)
     {
-        int i, ctr, off,
-            buflen = polyUniformNBlocks * Symmetric.Shake128Rate;
-        byte[] buf = new byte[buflen + 2];
-
         SHAKEDigest shake128Digest = new SHAKEDigest(128);
 
         Symmetric.shakeStreamInit(shake128Digest, seed, nonce);
 
-        shake128Digest.doOutput(buf, 0, buflen + 2);
+        uniformBlocks(coeffs, shake128Digest);
+    }
 
-        // System.out.println("buf = ");
-        // Helper.printByteArray(buf);
+    /**
+     * Sample all N coefficients in [0,Q-1] by rejection sampling on
+     * an initialised SHAKE-128 stream, squeezing further blocks while
+     * fewer than N candidates have been accepted
+     * @param coeffs int[]: Output coefficients
+     * @param shake128Digest SHAKEDigest: Stream to squeeze the candidates from
+     */
+    public static void uniformBlocks(int[] coeffs, SHAKEDigest shake128Digest)
+    {
+        int i, ctr, off,
+            buflen = polyUniformNBlocks * Symmetric.Shake128Rate;
+        byte[] buf = new byte[buflen + 2];
 
-        // problems with last 2 bytes in buf
+        shake128Digest.doOutput(buf, 0, buflen);
 
-        ctr = rejectUniform(this, 0, dilithiumN, buf, buflen);
+        ctr = rejectUniform(coeffs, 0, DilithiumEngine.DilithiumN, buf, buflen);
 
         // ctr can be less than N
 
-        while (ctr < dilithiumN)
+        while (ctr < DilithiumEngine.DilithiumN)
         {
             off = buflen % 3;
             for (i = 0; i < off; ++i)
             {
                 buf[i] = buf[buflen - off + i];
             }
-            shake128Digest.doOutput(buf, buflen + off, 1);
+            shake128Digest.doOutput(buf, off, Symmetric.Shake128Rate);
             buflen = Symmetric.Shake128Rate + off;
-            ctr += rejectUniform(this, ctr, dilithiumN, buf, buflen);
+            ctr += rejectUniform(coeffs, ctr, DilithiumEngine.DilithiumN - ctr, buf, buflen);
         }
 
     }
@@ -84,32 +91,31 @@ public class Poly
     /**
      * Sample uniformly random coefficients in [0, Q-1] by
      * performing rejection sampling on array of random bytes.
-     * @param outputPoly Poly: Output Poly
-     * @param coeffOff
-     * @param len
-     * @param inpBuf
-     * @param buflen
-     * @return
+     * Candidates are written straight into the coefficient array and
+     * the counter only advances on acceptance, so there is no branch
+     * on the candidate.
+     * @param coeffs int[]: Output coefficients
+     * @param coeffOff int: Index of the first coefficient to write
+     * @param len int: Maximum number of coefficients to write
+     * @param inpBuf byte[]: Random bytes, 3 per candidate
+     * @param buflen int: Number of bytes of inpBuf to use
+     * @return int: Number of coefficients written
      */
-    private static int rejectUniform(Poly outputPoly, int coeffOff, int len, byte[] inpBuf, int buflen)
+    private static int rejectUniform(int[] coeffs, int coeffOff, int len, byte[] inpBuf, int buflen)
     {
         int ctr, pos;
         int t;
 
-
         ctr = pos = 0;
         while (ctr < len && pos + 3 <= buflen)
         {
-            t = (inpBuf[pos++] & 0xFF);
-            t |= (inpBuf[pos++] & 0xFF) << 8;
-            t |= (inpBuf[pos++] & 0xFF) << 16;
-            t &= 0x7FFFFF;
+            t = (inpBuf[pos] & 0xFF)
+                | (inpBuf[pos + 1] & 0xFF) << 8
+                | (inpBuf[pos + 2] & 0x7F) << 16;
+            pos += 3;
 
-            if (t < DilithiumEngine.DilithiumQ)
-            {
-                outputPoly.setCoeffIndex(coeffOff + ctr, t);
-                ctr++;
-            }
+            coeffs[coeffOff + ctr] = t;
+            ctr += (t - DilithiumEngine.DilithiumQ) >>> 31;
         }
 
         return ctr;
@@ -224,7 +230,7 @@ public class Poly
      */
     public void polyNtt()
     {
-        this.setCoeffs(Ntt.ntt(this.coeffs));
+        engine.getArithmetic().ntt(coeffs);
     }
 
     /**
@@ -236,10 +242,14 @@ public class Poly
      */
     public void pointwiseMontgomery(Poly v, Poly w)
     {
-        int i;
-        for (i = 0; i < dilithiumN; ++i)
+        engine.getArithmetic().pointwiseMontgomery(coeffs, v.coeffs, w.coeffs);
+    }
+
+    static void pointwiseMontgomery(int[] r, int[] a, int[] b)
+    {
+        for (int i = 0; i < DilithiumEngine.DilithiumN; ++i)
         {
-            this.setCoeffIndex(i, Reduce.montgomeryReduce((long)((long)v.getCoeffIndex(i) * (long)w.getCoeffIndex(i))));
+            r[i] = Reduce.montgomeryReduce((long)a[i] * (long)b[i]);
         }
     }
 
@@ -281,9 +291,14 @@ public class Poly
      */
     public void reduce()
     {
-        for (int i = 0; i < dilithiumN; ++i)
+        engine.getArithmetic().reduce(coeffs);
+    }
+
+    static void reduce(int[] r)
+    {
+        for (int i = 0; i < DilithiumEngine.DilithiumN; ++i)
         {
-            this.setCoeffIndex(i, Reduce.reduce32(this.getCoeffIndex(i)));
+            r[i] = Reduce.reduce32(r[i]);
         }
     }
 
@@ -294,7 +309,7 @@ public class Poly
      */
     public void invNttToMont()
     {
-        this.setCoeffs(Ntt.invNttToMont(this.getCoeffs()));
+        engine.getArithmetic().invNttToMont(coeffs);
     }
 
     /**
@@ -303,9 +318,14 @@ public class Poly
      */
     public void conditionalAddQ()
     {
-        for (int i = 0; i < dilithiumN; ++i)
+        engine.getArithmetic().conditionalAddQ(coeffs);
+    }
+
+    static void conditionalAddQ(int[] r)
+    {
+        for (int i = 0; i < DilithiumEngine.DilithiumN; ++i)
         {
-            this.setCoeffIndex(i, Reduce.conditionalAddQ(this.getCoeffIndex(i)));
+            r[i] = Reduce.conditionalAddQ(r[i]);
         }
     }
 
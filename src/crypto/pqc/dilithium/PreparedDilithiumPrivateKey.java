@@ -0,0 +1,82 @@
+package crypto.pqc.dilithium;
+
+import org.bouncycastle.crypto.digests.SHAKEDigest;
+
+/**
+ * Dilithium private key with everything signing derives from the key
+ * computed once: the matrix A in NTT form, NTT(s1), NTT(s2), NTT(t0) and
+ * a SHAKE-256 state that has already absorbed tr. Signing under it only
+ * costs the message hash and the rejection loop.
+ * The cached values are never modified after construction, so one
+ * instance can be shared by any number of signatures; each signature
+ * hashes from its own copy of the absorbed state.
+ */
+public class PreparedDilithiumPrivateKey
+    extends DilithiumPrivateKeyParameters
+{
+    private final int dilithiumMode;
+    private final PolyVecMatrix aMatrix;
+    private final PolyVecL s1Hat;
+    private final PolyVecK s2Hat;
+    private final PolyVecK t0Hat;
+    private final SHAKEDigest trDigest;
+
+    /**
+     * Prepare an existing private key
+     * @param key DilithiumPrivateKeyParameters: Private key to prepare
+     */
+    public PreparedDilithiumPrivateKey(DilithiumPrivateKeyParameters key)
+    {
+        super(key.getParameters(), key.rho, key.k, key.tr, key.getS1(), key.getS2(), key.getT0());
+
+        DilithiumEngine engine = key.getParameters().getEngine(null);
+        this.dilithiumMode = engine.getDilithiumMode();
+
+        this.s1Hat = new PolyVecL(engine);
+        this.s2Hat = new PolyVecK(engine);
+        this.t0Hat = new PolyVecK(engine);
+        Packing.unpackSecretKey(t0Hat, s1Hat, s2Hat, getEncoded(), engine);
+        s1Hat.polyVecNtt();
+        s2Hat.polyVecNtt();
+        t0Hat.polyVecNtt();
+
+        this.aMatrix = new PolyVecMatrix(engine);
+        aMatrix.expandMatrix(rho);
+
+        this.trDigest = new SHAKEDigest(256);
+        trDigest.update(tr, 0, DilithiumEngine.SeedBytes);
+    }
+
+    int getDilithiumMode()
+    {
+        return dilithiumMode;
+    }
+
+    PolyVecMatrix getMatrix()
+    {
+        return aMatrix;
+    }
+
+    PolyVecL getS1Hat()
+    {
+        return s1Hat;
+    }
+
+    PolyVecK getS2Hat()
+    {
+        return s2Hat;
+    }
+
+    PolyVecK getT0Hat()
+    {
+        return t0Hat;
+    }
+
+    /**
+     * @return SHAKEDigest: State after absorbing tr, to be copied rather than updated
+     */
+    SHAKEDigest getTrDigest()
+    {
+        return trDigest;
+    }
+}
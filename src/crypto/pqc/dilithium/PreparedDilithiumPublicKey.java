@@ -0,0 +1,90 @@
+package crypto.pqc.dilithium;
+
+/**
+ * Dilithium public key with everything verification derives from the key
+ * computed once: the matrix A in NTT form, NTT(t1 * 2^d) and
+ * tr = CRH(pk). Verifying under it only costs the message hash, the
+ * signature unpacking and one matrix-vector product.
+ * The cached values are never modified after construction, so one
+ * instance can be shared by any number of verifications.
+ */
+public class PreparedDilithiumPublicKey
+    extends DilithiumPublicKeyParameters
+{
+    private final int dilithiumMode;
+    private final PolyVecMatrix aMatrix;
+    private final PolyVecK t1Hat;
+    private final byte[] tr;
+    private final long preparedBytes;
+
+    /**
+     * Prepare an existing public key
+     * @param key DilithiumPublicKeyParameters: Public key to prepare
+     */
+    public PreparedDilithiumPublicKey(DilithiumPublicKeyParameters key)
+    {
+        this(key.getParameters(), key.getPublicKeyInternal());
+    }
+
+    /**
+     * Prepare an encoded public key
+     * @param params DilithiumParameters: Parameter set of the key
+     * @param publicKey byte[]: Encoded public key
+     */
+    public PreparedDilithiumPublicKey(DilithiumParameters params, byte[] publicKey)
+    {
+        super(params, publicKey);
+
+        DilithiumEngine engine = params.getEngine(null);
+        if (publicKey.length != engine.getCryptoPublicKeyBytes())
+        {
+            throw new IllegalArgumentException("public key must be " + engine.getCryptoPublicKeyBytes() + " bytes");
+        }
+
+        this.dilithiumMode = engine.getDilithiumMode();
+        this.t1Hat = new PolyVecK(engine);
+        byte[] rho = Packing.unpackPublicKey(t1Hat, publicKey, engine);
+        t1Hat.shiftLeft();
+        t1Hat.polyVecNtt();
+
+        this.aMatrix = new PolyVecMatrix(engine);
+        aMatrix.expandMatrix(rho);
+
+        this.tr = new byte[DilithiumEngine.SeedBytes];
+        engine.getShake256Digest().update(publicKey, 0, publicKey.length);
+        engine.getShake256Digest().doFinal(tr, 0, DilithiumEngine.SeedBytes);
+
+        // coefficient arrays plus a rough 48 bytes of headers per polynomial
+        int polys = engine.getDilithiumK() * (engine.getDilithiumL() + 1);
+        this.preparedBytes = (long)polys * (DilithiumEngine.DilithiumN * 4 + 48) + publicKey.length + tr.length;
+    }
+
+    int getDilithiumMode()
+    {
+        return dilithiumMode;
+    }
+
+    PolyVecMatrix getMatrix()
+    {
+        return aMatrix;
+    }
+
+    PolyVecK getT1Hat()
+    {
+        return t1Hat;
+    }
+
+    byte[] getTr()
+    {
+        return tr;
+    }
+
+    /**
+     * Approximate heap held by the key, for caches with a memory budget
+     * @return long: Bytes held by the cached matrix, vector and encodings
+     */
+    public long getPreparedBytes()
+    {
+        return preparedBytes;
+    }
+}
@@ -0,0 +1,167 @@
+package crypto.pqc.kyber;
+
+import org.bouncycastle.util.Pack;
+
+/**
+ * A batch of up to four independent SHAKE-128 instances, absorbed and
+ * squeezed together.
+ * <p>
+ * The Keccak-f[1600] states are stored one after the other, word i of
+ * instance l at index l * 25 + i, and are permuted one at a time with the
+ * state held in locals for all 24 rounds. The permutation is no faster than
+ * a SHAKEDigest's; the gain is everything around it. Only what Kyber's
+ * matrix expansion needs is supported: absorbing a Kyber SymBytes seed
+ * followed by two index bytes into a single block, and squeezing whole
+ * blocks straight into the output, which skips the per-entry reset,
+ * buffering and padding of a SHAKEDigest.
+ */
+class BatchedShake128
+{
+    static final int LANES = 4;
+
+    private static final int RATE_WORDS = Symmetric.SHAKE128_rate / 8;
+
+    private static final long[] KeccakRoundConstants = new long[]{
+        0x0000000000000001L, 0x0000000000008082L, 0x800000000000808aL, 0x8000000080008000L,
+        0x000000000000808bL, 0x0000000080000001L, 0x8000000080008081L, 0x8000000000008009L,
+        0x000000000000008aL, 0x0000000000000088L, 0x0000000080008009L, 0x000000008000000aL,
+        0x000000008000808bL, 0x800000000000008bL, 0x8000000000008089L, 0x8000000000008003L,
+        0x8000000000008002L, 0x8000000000000080L, 0x000000000000800aL, 0x800000008000000aL,
+        0x8000000080008081L, 0x8000000000008080L, 0x0000000080000001L, 0x8000000080008008L};
+
+    private final long[] state = new long[25 * LANES];
+
+    /**
+     * Resets one instance and absorbs seed || a || b, as Symmetric.KyberXOF does
+     * @param lane int: Instance to initialise, 0 to LANES - 1
+     * @param seed byte[]: Byte array holding the Kyber SymBytes seed
+     * @param seedOff int: Offset of the seed within the byte array
+     * @param a int: Additional byte of input
+     * @param b int: Additional byte of input
+     */
+    void kyberXOF(int lane, byte[] seed, int seedOff, int a, int b)
+    {
+        long[] s = state;
+        int base = lane * 25;
+        for (int i = 0; i < 25; i++)
+        {
+            s[base + i] = 0L;
+        }
+        for (int i = 0; i < KyberEngine.KyberSymBytes / 8; i++)
+        {
+            s[base + i] = Pack.littleEndianToLong(seed, seedOff + 8 * i);
+        }
+        // index bytes followed by the SHAKE domain separator and the final padding bit
+        s[base + KyberEngine.KyberSymBytes / 8] = (a & 0xFFL) | (b & 0xFFL) << 8 | 0x1FL << 16;
+        s[base + RATE_WORDS - 1] ^= 0x80L << 56;
+    }
+
+    /**
+     * Squeezes whole blocks from the first lanes instances
+     * @param out byte[]: Output Byte Array
+     * @param off int: Offset of the first block of instance 0
+     * @param stride int: Distance between the outputs of consecutive instances
+     * @param nBlocks int: Number of SHAKE-128 blocks to squeeze per instance
+     * @param lanes int: Number of instances to squeeze, at most LANES
+     */
+    void squeezeBlocks(byte[] out, int off, int stride, int nBlocks, int lanes)
+    {
+        for (int blk = 0; blk < nBlocks; blk++)
+        {
+            for (int l = 0; l < lanes; l++)
+            {
+                permute(l * 25);
+                Pack.longToLittleEndian(state, l * 25, RATE_WORDS, out, off + l * stride + blk * Symmetric.SHAKE128_rate);
+            }
+        }
+    }
+
+    /**
+     * Keccak-f[1600] on one state
+     * @param base int: Index of the first word of the state
+     */
+    private void permute(int base)
+    {
+        long[] s = state;
+        long a00 = s[base + 0]; long a10 = s[base + 1]; long a20 = s[base + 2]; long a30 = s[base + 3]; long a40 = s[base + 4];
+        long a01 = s[base + 5]; long a11 = s[base + 6]; long a21 = s[base + 7]; long a31 = s[base + 8]; long a41 = s[base + 9];
+        long a02 = s[base + 10]; long a12 = s[base + 11]; long a22 = s[base + 12]; long a32 = s[base + 13]; long a42 = s[base + 14];
+        long a03 = s[base + 15]; long a13 = s[base + 16]; long a23 = s[base + 17]; long a33 = s[base + 18]; long a43 = s[base + 19];
+        long a04 = s[base + 20]; long a14 = s[base + 21]; long a24 = s[base + 22]; long a34 = s[base + 23]; long a44 = s[base + 24];
+
+        for (int round = 0; round < 24; round++)
+        {
+            // theta
+            long c0 = a00 ^ a01 ^ a02 ^ a03 ^ a04;
+            long c1 = a10 ^ a11 ^ a12 ^ a13 ^ a14;
+            long c2 = a20 ^ a21 ^ a22 ^ a23 ^ a24;
+            long c3 = a30 ^ a31 ^ a32 ^ a33 ^ a34;
+            long c4 = a40 ^ a41 ^ a42 ^ a43 ^ a44;
+            long d0 = c4 ^ Long.rotateLeft(c1, 1);
+            long d1 = c0 ^ Long.rotateLeft(c2, 1);
+            long d2 = c1 ^ Long.rotateLeft(c3, 1);
+            long d3 = c2 ^ Long.rotateLeft(c4, 1);
+            long d4 = c3 ^ Long.rotateLeft(c0, 1);
+
+            // rho and pi
+            long b00 = a00 ^ d0;
+            long b10 = Long.rotateLeft(a11 ^ d1, 44);
+            long b20 = Long.rotateLeft(a22 ^ d2, 43);
+            long b30 = Long.rotateLeft(a33 ^ d3, 21);
+            long b40 = Long.rotateLeft(a44 ^ d4, 14);
+            long b01 = Long.rotateLeft(a30 ^ d3, 28);
+            long b11 = Long.rotateLeft(a41 ^ d4, 20);
+            long b21 = Long.rotateLeft(a02 ^ d0, 3);
+            long b31 = Long.rotateLeft(a13 ^ d1, 45);
+            long b41 = Long.rotateLeft(a24 ^ d2, 61);
+            long b02 = Long.rotateLeft(a10 ^ d1, 1);
+            long b12 = Long.rotateLeft(a21 ^ d2, 6);
+            long b22 = Long.rotateLeft(a32 ^ d3, 25);
+            long b32 = Long.rotateLeft(a43 ^ d4, 8);
+            long b42 = Long.rotateLeft(a04 ^ d0, 18);
+            long b03 = Long.rotateLeft(a40 ^ d4, 27);
+            long b13 = Long.rotateLeft(a01 ^ d0, 36);
+            long b23 = Long.rotateLeft(a12 ^ d1, 10);
+            long b33 = Long.rotateLeft(a23 ^ d2, 15);
+            long b43 = Long.rotateLeft(a34 ^ d3, 56);
+            long b04 = Long.rotateLeft(a20 ^ d2, 62);
+            long b14 = Long.rotateLeft(a31 ^ d3, 55);
+            long b24 = Long.rotateLeft(a42 ^ d4, 39);
+            long b34 = Long.rotateLeft(a03 ^ d0, 41);
+            long b44 = Long.rotateLeft(a14 ^ d1, 2);
+
+            // chi and iota
+            a00 = b00 ^ (~b10 & b20) ^ KeccakRoundConstants[round];
+            a10 = b10 ^ (~b20 & b30);
+            a20 = b20 ^ (~b30 & b40);
+            a30 = b30 ^ (~b40 & b00);
+            a40 = b40 ^ (~b00 & b10);
+            a01 = b01 ^ (~b11 & b21);
+            a11 = b11 ^ (~b21 & b31);
+            a21 = b21 ^ (~b31 & b41);
+            a31 = b31 ^ (~b41 & b01);
+            a41 = b41 ^ (~b01 & b11);
+            a02 = b02 ^ (~b12 & b22);
+            a12 = b12 ^ (~b22 & b32);
+            a22 = b22 ^ (~b32 & b42);
+            a32 = b32 ^ (~b42 & b02);
+            a42 = b42 ^ (~b02 & b12);
+            a03 = b03 ^ (~b13 & b23);
+            a13 = b13 ^ (~b23 & b33);
+            a23 = b23 ^ (~b33 & b43);
+            a33 = b33 ^ (~b43 & b03);
+            a43 = b43 ^ (~b03 & b13);
+            a04 = b04 ^ (~b14 & b24);
+            a14 = b14 ^ (~b24 & b34);
+            a24 = b24 ^ (~b34 & b44);
+            a34 = b34 ^ (~b44 & b04);
+            a44 = b44 ^ (~b04 & b14);
+        }
+
+        s[base + 0] = a00; s[base + 1] = a10; s[base + 2] = a20; s[base + 3] = a30; s[base + 4] = a40;
+        s[base + 5] = a01; s[base + 6] = a11; s[base + 7] = a21; s[base + 8] = a31; s[base + 9] = a41;
+        s[base + 10] = a02; s[base + 11] = a12; s[base + 12] = a22; s[base + 13] = a32; s[base + 14] = a42;
+        s[base + 15] = a03; s[base + 16] = a13; s[base + 17] = a23; s[base + 18] = a33; s[base + 19] = a43;
+        s[base + 20] = a04; s[base + 21] = a14; s[base + 22] = a24; s[base + 23] = a34; s[base + 24] = a44;
+    }
+}
@@ -1,5 +1,7 @@
 package crypto.pqc.kyber;
 
+import org.bouncycastle.util.Pack;
+
 public final class CBD
 {
 
@@ -14,82 +16,61 @@ public final class CBD
      */
     public static void kyberCBD(Poly r, byte[] bytes, int eta)
     {
-        long t, d;
-        int a, b;
+        kyberCBD(r.coeffArray(), r.coeffOffset(), bytes, eta);
+    }
+
+    /**
+     * Centred Binomial Distribution into a coefficient array
+     * <p>
+     * The input is read as 64-bit little-endian words and every step works
+     * on all coefficients of a word at once: the bits of each half of a
+     * coefficient's input are summed by masks and shifts, and the difference
+     * of the two halves is taken with a bias that keeps every field from
+     * borrowing into its neighbour, so only the final extraction is done per
+     * coefficient.
+     * @param r Output coefficient array
+     * @param off Offset of the output polynomial
+     * @param bytes Input Byte Array
+     * @param eta Eta Value of Kyber
+     */
+    static void kyberCBD(short[] r, int off, byte[] bytes, int eta)
+    {
+        long t, d, e;
 
         switch (eta)
         {
         case 3:
-            for (int i = 0; i < KyberEngine.KyberN / 4; i++)
+            // 48 bits give 8 coefficients of 6 bits, a in the low 3 and b in the high 3
+            for (int i = 0; i < KyberEngine.KyberN / 8; i++)
             {
-                t = convertByteTo24BitUnsignedInt(bytes, 3 * i);
-                d = t & 0x00249249;
-                d = d + ((t >> 1) & 0x00249249);
-                d = d + ((t >> 2) & 0x00249249);
-                for (int j = 0; j < 4; j++)
+                int pos = 6 * i;
+                t = (Pack.littleEndianToInt(bytes, pos) & 0xFFFFFFFFL)
+                    | ((long)((bytes[pos + 4] & 0xFF) | (bytes[pos + 5] & 0xFF) << 8) << 32);
+                d = t & 0x249249249249L;
+                d = d + ((t >>> 1) & 0x249249249249L);
+                d = d + ((t >>> 2) & 0x249249249249L);
+                // (a + 4) - b lies in [1, 7]
+                e = (d & 0x1C71C71C71C7L) + 0x104104104104L - ((d >>> 3) & 0x1C71C71C71C7L);
+                for (int j = 0; j < 8; j++)
                 {
-                    a = (short)((d >> (6 * j + 0)) & 0x7);
-                    b = (short)((d >> (6 * j + 3)) & 0x7);
-                    // System.out.printf("a = %d, b = %d\n", a, b);
-                    r.setCoeffIndex(4 * i + j, (short)(a - b));
+                    r[off + 8 * i + j] = (short)(((int)(e >>> (6 * j)) & 0x7) - 4);
                 }
             }
             break;
         default:
-            // Only for Kyber512 where eta = 2
-            for (int i = 0; i < KyberEngine.KyberN / 8; i++)
+            // 64 bits give 16 coefficients of 4 bits, a in the low 2 and b in the high 2
+            for (int i = 0; i < KyberEngine.KyberN / 16; i++)
             {
-                t = convertByteTo32BitUnsignedInt(bytes, 4 * i); // ? Problem
-                d = t & 0x55555555;
-                d = d + ((t >> 1) & 0x55555555);
-                for (int j = 0; j < 8; j++)
+                t = Pack.littleEndianToLong(bytes, 8 * i);
+                d = t & 0x5555555555555555L;
+                d = d + ((t >>> 1) & 0x5555555555555555L);
+                // (a + 4) - b lies in [2, 6]
+                e = ((d & 0x3333333333333333L) | 0x4444444444444444L) - ((d >>> 2) & 0x3333333333333333L);
+                for (int j = 0; j < 16; j++)
                 {
-                    a = (short)((d >> (4 * j + 0)) & 0x3);
-                    b = (short)((d >> (4 * j + eta)) & 0x3);
-                    r.setCoeffIndex(8 * i + j, (short)(a - b));
+                    r[off + 16 * i + j] = (short)(((int)(e >>> (4 * j)) & 0xF) - 4);
                 }
             }
         }
     }
-
-    /**
-     * Converts an Array of Bytes to a 32-bit Unsigned Integer
-     * Returns a 32-bit unsigned integer as a long
-     *
-     * @param x Input Byte Array
-     * @param int Offset within the Byte Array
-     * @return 32-bit unsigned integer as long 
-     */
-    private static long convertByteTo32BitUnsignedInt(byte[] x, int offset)
-    {
-        // Convert first byte to an unsigned integer 
-        // byte x & 0xFF allows us to grab the last 8 bits
-        long r = (long)(x[offset] & 0xFF);
-
-        // Perform the same operation then left bit shift to store the next 8 bits without
-        // altering the previous bits
-        r = r | (long)((long)(x[offset + 1] & 0xFF) << 8);
-        r = r | (long)((long)(x[offset + 2] & 0xFF) << 16);
-        r = r | (long)((long)(x[offset + 3] & 0xFF) << 24);
-        return r;
-    }
-
-    /**
-     * Converts an Array of Bytes to a 24-bit Unsigned Integer
-     * Returns a 24-bit unsigned integer as a long from byte x
-     *
-     * @param x Input Byte Array
-     * @param int Offset within the Byte Array
-     * @return 24-bit unsigned integer as long 
-     */
-    private static long convertByteTo24BitUnsignedInt(byte[] x, int offset)
-    {
-        // Refer to convertByteTo32-BitUnsignedInt for explanation
-        long r = (long)(x[offset] & 0xFF);
-        r = r | (long)((long)(x[offset + 1] & 0xFF) << 8);
-        r = r | (long)((long)(x[offset + 2] & 0xFF) << 16);
-        return r;
-    }
-
-
 }
@@ -0,0 +1,176 @@
+package crypto.pqc.kyber;
+
+/**
+ * Modular arithmetic backend used for the NTT domain operations of Kyber:
+ * forward and inverse NTT, base multiplication and the conversion of the
+ * public key out of the base multiplication domain.
+ * <p>
+ * The backend is chosen when a KyberEngine is constructed. All backends
+ * produce bit-identical keys, ciphertexts and shared secrets, so keys
+ * created with one backend can be used with any other.
+ * <p>
+ * The Vector API backend lives in the optional src-vector source tree and
+ * is picked up at runtime when it is on the class path and the JVM was
+ * started with --add-modules jdk.incubator.vector. Setting the system
+ * property crypto.pqc.vector to false disables it.
+ */
+public abstract class KyberArithmetic
+{
+    /**
+     * Montgomery reduction with R = 2^16, as in the reference implementation
+     */
+    public static final KyberArithmetic MONTGOMERY = new KyberArithmetic("Montgomery")
+    {
+        void ntt(short[] r, int off)
+        {
+            Ntt.ntt(r, off);
+        }
+
+        void invNtt(short[] r, int off)
+        {
+            Ntt.invNtt(r, off);
+        }
+
+        void baseMult(short[] r, int rOff, short[] a, int aOff, short[] b, int bOff)
+        {
+            Poly.baseMultMontgomery(r, rOff, a, aOff, b, bOff);
+        }
+
+        void convertToMont(short[] r, int off)
+        {
+            Poly.convertToMont(r, off);
+        }
+    };
+
+    /**
+     * Plantard multiplication with precomputed twiddle factors, see PlantardNtt
+     */
+    public static final KyberArithmetic PLANTARD = new KyberArithmetic("Plantard")
+    {
+        void ntt(short[] r, int off)
+        {
+            PlantardNtt.ntt(r, off);
+        }
+
+        void invNtt(short[] r, int off)
+        {
+            PlantardNtt.invNtt(r, off);
+        }
+
+        void baseMult(short[] r, int rOff, short[] a, int aOff, short[] b, int bOff)
+        {
+            PlantardNtt.baseMult(r, rOff, a, aOff, b, bOff);
+        }
+
+        void convertToMont(short[] r, int off)
+        {
+            PlantardNtt.convertToMont(r, off);
+        }
+    };
+
+    /**
+     * jdk.incubator.vector implementation of the Montgomery arithmetic,
+     * null when the Vector API is not available in this JVM or its
+     * preferred vectors are too narrow to pay off
+     */
+    public static final KyberArithmetic VECTOR = loadVector();
+
+    /**
+     * Backend of the predefined parameter sets: VECTOR when available, MONTGOMERY otherwise
+     */
+    public static final KyberArithmetic DEFAULT = VECTOR != null ? VECTOR : MONTGOMERY;
+
+    private final String name;
+
+    KyberArithmetic(String name)
+    {
+        this.name = name;
+    }
+
+    /**
+     * Inplace forward NTT of one polynomial, without the final reduction
+     * @param r short[]: Coefficient array
+     * @param off int: Offset of the polynomial
+     */
+    abstract void ntt(short[] r, int off);
+
+    /**
+     * Inplace inverse NTT of one polynomial, undoing the scaling of baseMult
+     * @param r short[]: Coefficient array
+     * @param off int: Offset of the polynomial
+     */
+    abstract void invNtt(short[] r, int off);
+
+    /**
+     * Multiplication of two polynomials in NTT domain
+     * @param r short[]: Output coefficient array
+     * @param rOff int: Offset of the output polynomial
+     * @param a short[]: First input coefficient array
+     * @param aOff int: Offset of the first input polynomial
+     * @param b short[]: Second input coefficient array
+     * @param bOff int: Offset of the second input polynomial
+     */
+    abstract void baseMult(short[] r, int rOff, short[] a, int aOff, short[] b, int bOff);
+
+    /**
+     * Inplace removal of the scaling of baseMult from a polynomial kept in NTT domain
+     * @param r short[]: Coefficient array
+     * @param off int: Offset of the polynomial
+     */
+    abstract void convertToMont(short[] r, int off);
+
+    /**
+     * Inplace Barrett reduction of len consecutive coefficients
+     * @param r short[]: Coefficient array
+     * @param off int: Offset of the first coefficient
+     * @param len int: Number of coefficients, a multiple of Kyber N
+     */
+    void reduce(short[] r, int off, int len)
+    {
+        Poly.reduce(r, off, len);
+    }
+
+    /**
+     * Inplace conditional subtraction of q from len consecutive coefficients
+     * @param r short[]: Coefficient array
+     * @param off int: Offset of the first coefficient
+     * @param len int: Number of coefficients, a multiple of Kyber N
+     */
+    void conditionalSubQ(short[] r, int off, int len)
+    {
+        Poly.conditionalSubQ(r, off, len);
+    }
+
+    private static KyberArithmetic loadVector()
+    {
+        if (!Boolean.parseBoolean(System.getProperty("crypto.pqc.vector", "true")))
+        {
+            return null;
+        }
+        try
+        {
+            Class<?> c = Class.forName("crypto.pqc.kyber.KyberVectorArithmetic");
+            return (KyberArithmetic)c.getDeclaredConstructor().newInstance();
+        }
+        catch (Exception e)
+        {
+            // not compiled in, or the vector shape is too narrow to pay off
+            return null;
+        }
+        catch (LinkageError e)
+        {
+            // jdk.incubator.vector is not resolved
+            return null;
+        }
+    }
+
+    public String getName()
+    {
+        return name;
+    }
+
+    public String toString()
+    {
+        return name;
+    }
+}
@@ -0,0 +1,362 @@
+package crypto.pqc.kyber;
+
+import java.io.Closeable;
+import java.security.SecureRandom;
+import java.util.Iterator;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.bouncycastle.crypto.EncapsulatedSecretGenerator;
+import org.bouncycastle.crypto.SecretWithEncapsulation;
+import org.bouncycastle.crypto.params.AsymmetricKeyParameter;
+import org.bouncycastle.util.Arrays;
+
+/**
+ * Encapsulations to a few hot recipient keys computed ahead of time.
+ * Encapsulation only depends on the public key and fresh randomness, so
+ * for every registered key the pool keeps up to depth ready (cipher text,
+ * shared secret) pairs, refilled in the background on an executor. An
+ * encapsulation to a registered key is then a queue poll and a copy.
+ * <p>
+ * Every pair is handed out exactly once, and the pool's copy is zeroized
+ * as soon as it has been copied out. Unregistering a key or closing the
+ * pool zeroizes the pairs still queued. Keys that are not registered, and
+ * registered keys whose queue is empty, are encapsulated to inline as by
+ * KyberKEMGenerator, so the pool can replace one.
+ */
+public class KyberEncapsulationPool
+    implements EncapsulatedSecretGenerator, Closeable
+{
+    private final SecureRandom random;
+    private final int depth;
+    private final Executor executor;
+    private final ExecutorService ownedExecutor;
+    private final KyberKEMGenerator inline;
+    private final ConcurrentHashMap<KeyId, Slot> slots = new ConcurrentHashMap<KeyId, Slot>();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+
+    private volatile boolean closed;
+
+    /**
+     * Pool refilling on its own daemon thread of minimum priority
+     * @param random SecureRandom: Source of the encapsulation coins
+     * @param depth int: Pairs kept ready per registered key
+     */
+    public KyberEncapsulationPool(SecureRandom random, int depth)
+    {
+        this(random, depth, null);
+    }
+
+    /**
+     * @param random SecureRandom: Source of the encapsulation coins
+     * @param depth int: Pairs kept ready per registered key
+     * @param executor Executor: Runs the refills, ideally one with idle capacity;
+     *                 null for a daemon thread of minimum priority owned by the pool
+     */
+    public KyberEncapsulationPool(SecureRandom random, int depth, Executor executor)
+    {
+        if (depth < 1)
+        {
+            throw new IllegalArgumentException("depth must be at least 1: " + depth);
+        }
+
+        this.random = random;
+        this.depth = depth;
+        this.inline = new KyberKEMGenerator(random);
+        if (executor == null)
+        {
+            this.ownedExecutor = Executors.newSingleThreadExecutor(new ThreadFactory()
+            {
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, "kyber-encapsulation-pool");
+                    t.setDaemon(true);
+                    t.setPriority(Thread.MIN_PRIORITY);
+                    return t;
+                }
+            });
+            this.executor = ownedExecutor;
+        }
+        else
+        {
+            this.ownedExecutor = null;
+            this.executor = executor;
+        }
+    }
+
+    /**
+     * Starts keeping encapsulations to a key ready. Registering a key
+     * twice, or an equal key, has no further effect.
+     * @param key KyberPublicKeyParameters: Recipient key, prepared if it is not already
+     * @return PreparedKyberPublicKey: Prepared form of the key used by the pool
+     */
+    public PreparedKyberPublicKey register(KyberPublicKeyParameters key)
+    {
+        if (closed)
+        {
+            throw new IllegalStateException("pool is closed");
+        }
+
+        KeyId id = new KeyId(key);
+        Slot slot = slots.get(id);
+        if (slot == null)
+        {
+            PreparedKyberPublicKey prepared = key instanceof PreparedKyberPublicKey ? (PreparedKyberPublicKey)key : new PreparedKyberPublicKey(key);
+            Slot created = new Slot(prepared);
+            Slot existing = slots.putIfAbsent(id, created);
+            slot = existing != null ? existing : created;
+        }
+        scheduleRefill(slot);
+        return slot.key;
+    }
+
+    /**
+     * Stops keeping encapsulations to a key ready and zeroizes the queued ones
+     * @param key KyberPublicKeyParameters: Key passed to register, or an equal one
+     */
+    public void unregister(KyberPublicKeyParameters key)
+    {
+        Slot slot = slots.remove(new KeyId(key));
+        if (slot != null)
+        {
+            slot.removed = true;
+            slot.clear();
+        }
+    }
+
+    /**
+     * Encapsulates to the recipient key, from the queue if the key is registered
+     * @param recipientKey AsymmetricKeyParameter: Kyber public key to encapsulate to
+     * @return SecretWithEncapsulation: shared secret and cipher text
+     */
+    public SecretWithEncapsulation generateEncapsulated(AsymmetricKeyParameter recipientKey)
+    {
+        KyberPublicKeyParameters key = (KyberPublicKeyParameters)recipientKey;
+        Slot slot = closed ? null : slots.get(new KeyId(key));
+        if (slot == null)
+        {
+            return inline.generateEncapsulated(key);
+        }
+
+        KyberEngine engine = slot.key.getParameters().getEngine();
+        byte[] cipherText = new byte[engine.getCryptoCipherTextBytes()];
+        byte[] sessionKey = new byte[engine.getCryptoBytes()];
+        take(slot, cipherText, 0, sessionKey, 0);
+        return new KyberKEMGenerator.SecretWithEncapsulationImpl(sessionKey, cipherText);
+    }
+
+    /**
+     * Encapsulates to the recipient key into caller supplied arrays, from
+     * the queue if the key is registered
+     * @param recipientKey AsymmetricKeyParameter: Kyber public key to encapsulate to
+     * @param enc byte[]: Receives the cipher text
+     * @param encOff int: Offset to write the cipher text to
+     * @param secret byte[]: Receives the shared secret
+     * @param secretOff int: Offset to write the shared secret to
+     */
+    public void generateEncapsulated(AsymmetricKeyParameter recipientKey, byte[] enc, int encOff, byte[] secret, int secretOff)
+    {
+        KyberPublicKeyParameters key = (KyberPublicKeyParameters)recipientKey;
+        Slot slot = closed ? null : slots.get(new KeyId(key));
+        if (slot == null)
+        {
+            inline.generateEncapsulated(key, enc, encOff, secret, secretOff);
+            return;
+        }
+        take(slot, enc, encOff, secret, secretOff);
+    }
+
+    /**
+     * Stops refilling and zeroizes every queued pair. An executor passed
+     * to the constructor is left running.
+     */
+    public void close()
+    {
+        closed = true;
+        for (Iterator<Slot> it = slots.values().iterator(); it.hasNext(); )
+        {
+            Slot slot = it.next();
+            it.remove();
+            slot.removed = true;
+            slot.clear();
+        }
+        if (ownedExecutor != null)
+        {
+            ownedExecutor.shutdownNow();
+        }
+    }
+
+    public int getDepth()
+    {
+        return depth;
+    }
+
+    /**
+     * @return long: Encapsulations to registered keys served from a queue
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * @return long: Encapsulations to registered keys computed inline because the queue was empty
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * @param key KyberPublicKeyParameters: Registered key
+     * @return int: Pairs currently queued for the key, 0 if it is not registered
+     */
+    public int getQueueDepth(KyberPublicKeyParameters key)
+    {
+        Slot slot = slots.get(new KeyId(key));
+        return slot == null ? 0 : slot.entries.size();
+    }
+
+    private void take(Slot slot, byte[] enc, int encOff, byte[] secret, int secretOff)
+    {
+        KyberEngine engine = slot.key.getParameters().getEngine();
+        int ctBytes = engine.getCryptoCipherTextBytes();
+
+        byte[] entry = slot.entries.poll();
+        if (entry != null)
+        {
+            hits.incrementAndGet();
+            System.arraycopy(entry, 0, enc, encOff, ctBytes);
+            System.arraycopy(entry, ctBytes, secret, secretOff, engine.getCryptoBytes());
+            Arrays.clear(entry);
+        }
+        else
+        {
+            misses.incrementAndGet();
+            engine.kemEncrypt(enc, encOff, secret, secretOff, slot.key, engine.getWorkspace(), random);
+        }
+        scheduleRefill(slot);
+    }
+
+    private void scheduleRefill(final Slot slot)
+    {
+        if (closed || slot.removed || slot.entries.size() >= depth || !slot.refilling.compareAndSet(false, true))
+        {
+            return;
+        }
+        try
+        {
+            executor.execute(new Runnable()
+            {
+                public void run()
+                {
+                    refill(slot);
+                }
+            });
+        }
+        catch (RejectedExecutionException e)
+        {
+            // executor shut down or saturated, retried on the next take
+            slot.refilling.set(false);
+        }
+    }
+
+    private void refill(Slot slot)
+    {
+        KyberEngine engine = slot.key.getParameters().getEngine();
+        int ctBytes = engine.getCryptoCipherTextBytes();
+        KyberWorkspace ws = engine.getWorkspace();
+        try
+        {
+            while (!closed && !slot.removed && slot.entries.size() < depth)
+            {
+                byte[] entry = new byte[ctBytes + engine.getCryptoBytes()];
+                engine.kemEncrypt(entry, 0, entry, ctBytes, slot.key, ws, random);
+                if (!slot.entries.offer(entry))
+                {
+                    Arrays.clear(entry);
+                    break;
+                }
+            }
+        }
+        finally
+        {
+            slot.refilling.set(false);
+        }
+
+        if (closed || slot.removed)
+        {
+            // raced with unregister or close
+            slot.clear();
+        }
+        else
+        {
+            // takes that happened while this refill was finishing
+            scheduleRefill(slot);
+        }
+    }
+
+    private final class Slot
+    {
+        final PreparedKyberPublicKey key;
+        final ArrayBlockingQueue<byte[]> entries = new ArrayBlockingQueue<byte[]>(depth);
+        final AtomicBoolean refilling = new AtomicBoolean();
+        volatile boolean removed;
+
+        Slot(PreparedKyberPublicKey key)
+        {
+            this.key = key;
+        }
+
+        void clear()
+        {
+            byte[] entry;
+            while ((entry = entries.poll()) != null)
+            {
+                Arrays.clear(entry);
+            }
+        }
+    }
+
+    /**
+     * Map key for an encoded public key. The hash only covers the 32 byte
+     * matrix seed at the end of the encoding, which is uniformly random.
+     */
+    private static final class KeyId
+    {
+        private final KyberParameters params;
+        private final byte[] encoded;
+        private final int hash;
+
+        KeyId(KyberPublicKeyParameters key)
+        {
+            this.params = key.getParameters();
+            this.encoded = key.getPublicKeyInternal();
+            this.hash = Arrays.hashCode(encoded, encoded.length - KyberEngine.KyberSymBytes, KyberEngine.KyberSymBytes);
+        }
+
+        public int hashCode()
+        {
+            return hash;
+        }
+
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof KeyId))
+            {
+                return false;
+            }
+            KeyId other = (KeyId)o;
+            return params.getName().equals(other.params.getName()) && java.util.Arrays.equals(encoded, other.encoded);
+        }
+    }
+}
@@ -1,24 +1,43 @@
 package crypto.pqc.kyber;
 
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
-import java.util.Arrays;
-
-import org.bouncycastle.crypto.digests.SHA3Digest;
-import org.bouncycastle.crypto.digests.SHAKEDigest;
 
+import crypto.pqc.probe.Operation;
+import crypto.pqc.probe.OperationListener;
+import crypto.pqc.probe.Phase;
 
 /**
  * Engine for Kyber
+ * <p>
+ * An engine only holds the constants of its parameter set, so a single
+ * instance is shared by every caller (see KyberParameters). All mutable
+ * state - digests, polynomials and buffers - lives in a KyberWorkspace,
+ * either passed in explicitly or taken from a per-thread workspace, and
+ * randomness is supplied on each call.
+ * <p>
+ * Every operation is reported to the engine's OperationListener, together
+ * with the phase boundaries of KyberEngine and KyberIndCpa.
  */
 public class KyberEngine
 {
-    private SecureRandom random;
-    private KyberIndCpa indCpa;
-    private PolyVec polyVec;
-    private byte[] seed;
-    private SHA3Digest sha3Digest256 = new SHA3Digest(256);
-    private SHA3Digest sha3Digest512 = new SHA3Digest(512);
-    private SHAKEDigest shakeDigest = new SHAKEDigest(256);
+    private final KyberIndCpa indCpa;
+    private final KyberArithmetic arithmetic;
+    private final boolean usingAes;
+    private final OperationListener listener;
+    private final String name;
+
+    // Per-thread workspaces shared by every engine, one per K and variant.
+    // The thread-local is static and its workspaces hold no engine, so
+    // engines made by withArithmetic or withListener do not stay reachable
+    // from the threads that used them.
+    private static final ThreadLocal<KyberWorkspace[]> workspaces = new ThreadLocal<KyberWorkspace[]>()
+    {
+        protected KyberWorkspace[] initialValue()
+        {
+            return new KyberWorkspace[6];
+        }
+    };
 
 
     // constant parameters
@@ -146,10 +165,79 @@ public class KyberEngine
     }
 
     /**
-     * Kyber Engine
+     * Getter for the NTT arithmetic
+     * @return KyberArithmetic: Backend used for NTT domain operations
+     */
+    public KyberArithmetic getArithmetic()
+    {
+        return arithmetic;
+    }
+
+    /**
+     * Getter for the symmetric primitives in use
+     * @return boolean: true for the Kyber-90s variants using SHA-2 and AES-256-CTR
+     */
+    public boolean isUsingAes()
+    {
+        return usingAes;
+    }
+
+    /**
+     * Getter for the parameter set name
+     * @return String: kyber512, kyber768 or kyber1024, with an _90s suffix for the Kyber-90s variants
+     */
+    public String getName()
+    {
+        return name;
+    }
+
+    /**
+     * Getter for the operation listener
+     * @return OperationListener: Probe called at operation and phase boundaries
+     */
+    public OperationListener getListener()
+    {
+        return listener;
+    }
+
+    /**
+     * Kyber Engine using the default arithmetic
      * @param k: Integer Determines the security level of Kyber
      */
     public KyberEngine(int k)
+    {
+        this(k, KyberArithmetic.DEFAULT);
+    }
+
+    /**
+     * Kyber Engine using SHA-3 and SHAKE
+     * @param k: Integer Determines the security level of Kyber
+     * @param arithmetic KyberArithmetic: Backend for the NTT, inverse NTT and base multiplication
+     */
+    public KyberEngine(int k, KyberArithmetic arithmetic)
+    {
+        this(k, arithmetic, false);
+    }
+
+    /**
+     * Kyber Engine
+     * @param k: Integer Determines the security level of Kyber
+     * @param arithmetic KyberArithmetic: Backend for the NTT, inverse NTT and base multiplication
+     * @param usingAes boolean: true for Kyber-90s, SHA-2 and AES-256-CTR instead of SHA-3 and SHAKE
+     */
+    public KyberEngine(int k, KyberArithmetic arithmetic, boolean usingAes)
+    {
+        this(k, arithmetic, usingAes, OperationListener.NONE);
+    }
+
+    /**
+     * Kyber Engine reporting its operations to a listener
+     * @param k: Integer Determines the security level of Kyber
+     * @param arithmetic KyberArithmetic: Backend for the NTT, inverse NTT and base multiplication
+     * @param usingAes boolean: true for Kyber-90s, SHA-2 and AES-256-CTR instead of SHA-3 and SHAKE
+     * @param listener OperationListener: Probe called at operation and phase boundaries
+     */
+    public KyberEngine(int k, KyberArithmetic arithmetic, boolean usingAes, OperationListener listener)
     {
         /**
          * Security Levels:
@@ -158,6 +246,10 @@ public class KyberEngine
          * k = 4: Kyber 1024
          */
         this.KyberK = k;
+        this.arithmetic = arithmetic;
+        this.usingAes = usingAes;
+        this.listener = listener;
+        this.name = "kyber" + k * KyberN + (usingAes ? "_90s" : "");
         switch (k)
         {
         case 2:
@@ -205,52 +297,47 @@ public class KyberEngine
     }
 
     /**
-     * Initialise Kyber Engine with a Secure Random
-     * @param random: SecureRandom Sets a Secure Random Number Generator
-     */
-    public void init(SecureRandom random)
-    {
-        this.random = random;
-    }
-
-    /**
-     * Updates the seed of the RNG
-     * @param seed
+     * Generates Public Key, Private Key Pair
+     * for CCA-secure Kyber key encapsulation mechanism
+     * @param random SecureRandom: Source of the key generation seeds
+     * @return Byte[]: [Public Key for CCA,
+     *                  Private Key for CCA]
      */
-    public void updateSeed(byte[] seed)
+    public byte[][] generateKemKeyPair(SecureRandom random)
     {
-        this.seed = seed;
-        random.setSeed(seed);
+        return generateKemKeyPair(getWorkspace(), random);
     }
 
     /**
      * Generates Public Key, Private Key Pair
      * for CCA-secure Kyber key encapsulation mechanism
+     * @param ws KyberWorkspace: Workspace holding all intermediate values
+     * @param random SecureRandom: Source of the key generation seeds
      * @return Byte[]: [Public Key for CCA,
      *                  Private Key for CCA]
      */
-    public byte[][] generateKemKeyPair()
+    public byte[][] generateKemKeyPair(KyberWorkspace ws, SecureRandom random)
     {
-        byte[][] indCpaKeyPair = indCpa.generateKeyPair();
+        checkWorkspace(ws);
 
+        byte[] outputPublicKey = new byte[KyberIndCpaPublicKeyBytes];
         byte[] secretKey = new byte[KyberSecretKeyBytes];
 
-        System.arraycopy(indCpaKeyPair[1], 0, secretKey, 0, KyberIndCpaSecretKeyBytes);
-        System.arraycopy(indCpaKeyPair[0], 0, secretKey, KyberIndCpaSecretKeyBytes, KyberIndCpaPublicKeyBytes);
+        listener.operationStarted(Operation.KYBER_KEYGEN, name, KyberPublicKeyBytes + KyberSecretKeyBytes);
 
-        byte[] hashedPublicKey = new byte[32];
+        indCpa.generateKeyPair(outputPublicKey, secretKey, ws, random);
 
-        sha3Digest256.update(indCpaKeyPair[0], 0, KyberIndCpaPublicKeyBytes);
-        sha3Digest256.doFinal(hashedPublicKey, 0);
+        System.arraycopy(outputPublicKey, 0, secretKey, KyberIndCpaSecretKeyBytes, KyberIndCpaPublicKeyBytes);
 
-        System.arraycopy(hashedPublicKey, 0, secretKey, KyberSecretKeyBytes - 2 * KyberSymBytes, KyberSymBytes);
+        ws.symmetric.hashH(secretKey, KyberSecretKeyBytes - 2 * KyberSymBytes, outputPublicKey, 0, KyberIndCpaPublicKeyBytes);
 
-        byte[] z = new byte[KyberSymBytes];
+        byte[] z = ws.randBytes;
         random.nextBytes(z);
         System.arraycopy(z, 0, secretKey, KyberSecretKeyBytes - KyberSymBytes, KyberSymBytes);
+        listener.phaseCompleted(Phase.HASHED);
+        ws.clearSecrets();
 
-        byte[] outputPublicKey = new byte[KyberIndCpaPublicKeyBytes];
-        System.arraycopy(indCpaKeyPair[0], 0, outputPublicKey, 0, KyberIndCpaPublicKeyBytes);
+        listener.operationCompleted(Operation.KYBER_KEYGEN);
         return new byte[][]{outputPublicKey, secretKey};
     }
 
@@ -258,56 +345,251 @@ public class KyberEngine
      * Generates cipher text and
      * shared secret for given public key
      * @param publicKeyInput: Public Key Byte Array
-     * @return CipherText || Shared Secret
+     * @param random: SecureRandom used for the encapsulation coins
+     * @return Shared Secret || CipherText
+     */
+    public byte[][] kemEncrypt(byte[] publicKeyInput, SecureRandom random)
+    {
+        return kemEncrypt(publicKeyInput, getWorkspace(), random);
+    }
+
+    /**
+     * Generates cipher text and
+     * shared secret for given public key
+     * @param publicKeyInput byte[]: Public Key Byte Array
+     * @param ws KyberWorkspace: Workspace holding all intermediate values
+     * @param random SecureRandom: Source of the encapsulation coins
+     * @return Shared Secret || CipherText
+     */
+    public byte[][] kemEncrypt(byte[] publicKeyInput, KyberWorkspace ws, SecureRandom random)
+    {
+        byte[] outputSharedSecret = new byte[CryptoBytes];
+        byte[] outputCipherText = new byte[CryptoCipherTextBytes];
+
+        kemEncrypt(outputCipherText, outputSharedSecret, publicKeyInput, ws, random);
+
+        return new byte[][]{outputSharedSecret, outputCipherText};
+    }
+
+    /**
+     * Generates cipher text and shared secret for given public key
+     * into caller supplied arrays, without allocating
+     * @param cipherText byte[]: Output array of Cipher Text Bytes
+     * @param sharedSecret byte[]: Output array of Shared Secret Bytes
+     * @param publicKeyInput byte[]: Public Key Byte Array
+     * @param ws KyberWorkspace: Workspace holding all intermediate values
+     * @param random SecureRandom: Source of the encapsulation coins
+     */
+    public void kemEncrypt(byte[] cipherText, byte[] sharedSecret, byte[] publicKeyInput, KyberWorkspace ws, SecureRandom random)
+    {
+        kemEncrypt(cipherText, 0, sharedSecret, 0, publicKeyInput, 0, ws, random);
+    }
+
+    /**
+     * Generates cipher text and shared secret for a public key held at an
+     * offset within a larger array, writing both outputs at offsets within
+     * caller supplied arrays. Nothing is copied or allocated.
+     * @param cipherText byte[]: Output array of Cipher Text Bytes
+     * @param ctOff int: Offset to write the Cipher Text to
+     * @param sharedSecret byte[]: Output array of Shared Secret Bytes
+     * @param ssOff int: Offset to write the Shared Secret to
+     * @param publicKeyInput byte[]: Array holding the Public Key
+     * @param pkOff int: Offset of the Public Key
+     * @param ws KyberWorkspace: Workspace holding all intermediate values
+     * @param random SecureRandom: Source of the encapsulation coins
+     */
+    public void kemEncrypt(byte[] cipherText, int ctOff, byte[] sharedSecret, int ssOff, byte[] publicKeyInput, int pkOff, KyberWorkspace ws, SecureRandom random)
+    {
+        checkWorkspace(ws);
+        listener.operationStarted(Operation.KYBER_ENCAPSULATE, name, CryptoCipherTextBytes);
+
+        loadPublicKey(publicKeyInput, pkOff, ws);
+
+        random.nextBytes(ws.randBytes);
+        encapsulate(cipherText, ctOff, sharedSecret, ssOff, ws.publicKeyPolyVec, ws.aMatrix, ws.randBytes, 0, ws);
+
+        listener.operationCompleted(Operation.KYBER_ENCAPSULATE);
+    }
+
+    /**
+     * Generates cipher text and
+     * shared secret for a prepared public key
+     * @param publicKey PreparedKyberPublicKey: Public Key with cached matrix, vector and hash
+     * @param random SecureRandom: Source of the encapsulation coins
+     * @return Shared Secret || CipherText
      */
-    public byte[][] kemEncrypt(byte[] publicKeyInput)
+    public byte[][] kemEncrypt(PreparedKyberPublicKey publicKey, SecureRandom random)
+    {
+        return kemEncrypt(publicKey, getWorkspace(), random);
+    }
+
+    /**
+     * Generates cipher text and
+     * shared secret for a prepared public key
+     * @param publicKey PreparedKyberPublicKey: Public Key with cached matrix, vector and hash
+     * @param ws KyberWorkspace: Workspace holding all intermediate values
+     * @param random SecureRandom: Source of the encapsulation coins
+     * @return Shared Secret || CipherText
+     */
+    public byte[][] kemEncrypt(PreparedKyberPublicKey publicKey, KyberWorkspace ws, SecureRandom random)
     {
-        byte[] outputCipherText;
         byte[] outputSharedSecret = new byte[CryptoBytes];
+        byte[] outputCipherText = new byte[CryptoCipherTextBytes];
 
-        byte[] buf = new byte[2 * KyberSymBytes];
-        byte[] kr = new byte[2 * KyberSymBytes];
+        kemEncrypt(outputCipherText, outputSharedSecret, publicKey, ws, random);
 
-        byte[] randBytes = new byte[KyberSymBytes];
+        return new byte[][]{outputSharedSecret, outputCipherText};
+    }
 
-        random.nextBytes(randBytes);
+    /**
+     * Generates cipher text and shared secret for a prepared public key
+     * into caller supplied arrays. Skips matrix expansion, public key
+     * decoding and hashing of the public key.
+     * @param cipherText byte[]: Output array of Cipher Text Bytes
+     * @param sharedSecret byte[]: Output array of Shared Secret Bytes
+     * @param publicKey PreparedKyberPublicKey: Public Key with cached matrix, vector and hash
+     * @param ws KyberWorkspace: Workspace holding all intermediate values
+     * @param random SecureRandom: Source of the encapsulation coins
+     */
+    public void kemEncrypt(byte[] cipherText, byte[] sharedSecret, PreparedKyberPublicKey publicKey, KyberWorkspace ws, SecureRandom random)
+    {
+        kemEncrypt(cipherText, 0, sharedSecret, 0, publicKey, ws, random);
+    }
 
-        // SHA3-256 Random Bytes
-        sha3Digest256.update(randBytes, 0, KyberSymBytes);
-        sha3Digest256.doFinal(randBytes, 0);
-        System.arraycopy(randBytes, 0, buf, 0, KyberSymBytes);
+    /**
+     * Generates cipher text and shared secret for a prepared public key,
+     * writing both outputs at offsets within caller supplied arrays
+     * @param cipherText byte[]: Output array of Cipher Text Bytes
+     * @param ctOff int: Offset to write the Cipher Text to
+     * @param sharedSecret byte[]: Output array of Shared Secret Bytes
+     * @param ssOff int: Offset to write the Shared Secret to
+     * @param publicKey PreparedKyberPublicKey: Public Key with cached matrix, vector and hash
+     * @param ws KyberWorkspace: Workspace holding all intermediate values
+     * @param random SecureRandom: Source of the encapsulation coins
+     */
+    public void kemEncrypt(byte[] cipherText, int ctOff, byte[] sharedSecret, int ssOff, PreparedKyberPublicKey publicKey, KyberWorkspace ws, SecureRandom random)
+    {
+        checkWorkspace(ws);
+        checkPreparedKey(publicKey, "public key");
+        listener.operationStarted(Operation.KYBER_ENCAPSULATE, name, CryptoCipherTextBytes);
 
-        // SHA3-256 Public Key
-        sha3Digest256.update(publicKeyInput, 0, KyberIndCpaPublicKeyBytes);
-        sha3Digest256.doFinal(buf, KyberSymBytes);
+        System.arraycopy(publicKey.getHashedPublicKey(), 0, ws.buf, KyberSymBytes, KyberSymBytes);
 
-        // SHA3-512( SHA3-256(RandBytes) || SHA3-256(PublicKey) )
+        random.nextBytes(ws.randBytes);
+        encapsulate(cipherText, ctOff, sharedSecret, ssOff, publicKey.getPublicKeyPolyVec(), publicKey.getMatrixTranspose(), ws.randBytes, 0, ws);
 
-        sha3Digest512.update(buf, 0, 2 * KyberSymBytes);
-        sha3Digest512.doFinal(kr, 0);
+        listener.operationCompleted(Operation.KYBER_ENCAPSULATE);
+    }
 
-        // System.out.println("buffer len = " + buf.length);
+    /**
+     * Generates cipher text and shared secret for a plain or prepared
+     * public key from caller supplied random coins, as used by batch
+     * encapsulation after drawing the randomness for the whole batch.
+     * @param cipherText byte[]: Output array of Cipher Text Bytes
+     * @param sharedSecret byte[]: Output array of Shared Secret Bytes
+     * @param publicKey KyberPublicKeyParameters: Public Key, prepared or not
+     * @param coins byte[]: Array holding Sym Bytes of randomness
+     * @param coinsOff int: Offset of the randomness
+     * @param ws KyberWorkspace: Workspace holding all intermediate values
+     */
+    void kemEncrypt(byte[] cipherText, byte[] sharedSecret, KyberPublicKeyParameters publicKey, byte[] coins, int coinsOff, KyberWorkspace ws)
+    {
+        checkWorkspace(ws);
 
-        // IndCpa Encryption
-        outputCipherText = indCpa.encrypt(Arrays.copyOfRange(buf, 0, KyberSymBytes), publicKeyInput, Arrays.copyOfRange(kr, 32, kr.length));
+        if (publicKey instanceof PreparedKyberPublicKey)
+        {
+            PreparedKyberPublicKey prepared = (PreparedKyberPublicKey)publicKey;
+            checkPreparedKey(prepared, "public key");
+            listener.operationStarted(Operation.KYBER_ENCAPSULATE, name, CryptoCipherTextBytes);
 
-        // System.out.printf("cipher text = %d [", outputCipherText.length);
-        // Helper.printByteArray(outputCipherText);
-        // System.out.print("]\n");
+            System.arraycopy(prepared.getHashedPublicKey(), 0, ws.buf, KyberSymBytes, KyberSymBytes);
+            encapsulate(cipherText, 0, sharedSecret, 0, prepared.getPublicKeyPolyVec(), prepared.getMatrixTranspose(), coins, coinsOff, ws);
+        }
+        else
+        {
+            listener.operationStarted(Operation.KYBER_ENCAPSULATE, name, CryptoCipherTextBytes);
+
+            loadPublicKey(publicKey.getPublicKeyInternal(), 0, ws);
+            encapsulate(cipherText, 0, sharedSecret, 0, ws.publicKeyPolyVec, ws.aMatrix, coins, coinsOff, ws);
+        }
+
+        listener.operationCompleted(Operation.KYBER_ENCAPSULATE);
+    }
+
+    /**
+     * Hashes, decodes and expands an encoded public key into the workspace
+     * @param publicKeyInput byte[]: Array holding the Public Key
+     * @param pkOff int: Offset of the Public Key
+     * @param ws KyberWorkspace: Workspace receiving H(pk), t and the transposed matrix
+     */
+    private void loadPublicKey(byte[] publicKeyInput, int pkOff, KyberWorkspace ws)
+    {
+        // H(Public Key)
+        ws.symmetric.hashH(ws.buf, KyberSymBytes, publicKeyInput, pkOff, KyberIndCpaPublicKeyBytes);
+        listener.phaseCompleted(Phase.HASHED);
+
+        ws.publicKeyPolyVec.fromBytes(publicKeyInput, pkOff);
+        listener.phaseCompleted(Phase.UNPACKED);
+
+        indCpa.generateMatrix(ws.aMatrix, publicKeyInput, pkOff + KyberPolyVecBytes, true, ws);
+        listener.phaseCompleted(Phase.MATRIX_EXPANDED);
+    }
+
+    /**
+     * Checks that the prepared key belongs to this engine's parameter set
+     * @param publicKey PreparedKyberPublicKey: Key to check
+     * @param keyType String: "public key" or "secret key", for the error message
+     */
+    private void checkPreparedKey(PreparedKyberPublicKey publicKey, String keyType)
+    {
+        if (publicKey.getKyberK() != KyberK)
+        {
+            throw new IllegalArgumentException(keyType + " was prepared for Kyber K = " + publicKey.getKyberK() + ", engine uses K = " + KyberK);
+        }
+        if (publicKey.isUsingAes() != usingAes)
+        {
+            throw new IllegalArgumentException(keyType + " was prepared for " + variantName(publicKey.isUsingAes()) + ", engine uses " + variantName(usingAes));
+        }
+    }
 
-        sha3Digest256.update(outputCipherText, 0, CryptoCipherTextBytes);
-        sha3Digest256.doFinal(kr, KyberSymBytes);
+    private static String variantName(boolean usingAes)
+    {
+        return usingAes ? "Kyber-90s" : "Kyber";
+    }
 
-        // Helper.printByteArray(kr);
+    /**
+     * Shared encapsulation once the public key is decoded
+     * and its hash is in the second half of ws.buf
+     * @param cipherText byte[]: Output array of Cipher Text Bytes
+     * @param ctOff int: Offset to write the Cipher Text to
+     * @param sharedSecret byte[]: Output array of Shared Secret Bytes
+     * @param ssOff int: Offset to write the Shared Secret to
+     * @param publicKeyPolyVec PolyVec: Decoded public vector t
+     * @param aMatrixTranspose short[]: Transposed public Matrix A, K * K polynomials
+     * @param coins byte[]: Array holding Sym Bytes of randomness
+     * @param coinsOff int: Offset of the randomness
+     * @param ws KyberWorkspace: Workspace holding all intermediate values
+     */
+    private void encapsulate(byte[] cipherText, int ctOff, byte[] sharedSecret, int ssOff, PolyVec publicKeyPolyVec, short[] aMatrixTranspose, byte[] coins, int coinsOff, KyberWorkspace ws)
+    {
+        byte[] buf = ws.buf;
+        byte[] kr = ws.kr;
+
+        // H(Random Bytes)
+        ws.symmetric.hashH(buf, 0, coins, coinsOff, KyberSymBytes);
+
+        // G( H(RandBytes) || H(PublicKey) )
+        ws.symmetric.hashG(kr, 0, buf, 0, 2 * KyberSymBytes);
+        listener.phaseCompleted(Phase.HASHED);
 
-        shakeDigest.update(kr, 0, 2 * KyberSymBytes);
-        shakeDigest.doFinal(outputSharedSecret, 0, KyberSymBytes);
+        // IndCpa Encryption
+        indCpa.encrypt(cipherText, ctOff, buf, 0, publicKeyPolyVec, aMatrixTranspose, kr, KyberSymBytes, ws);
 
-        byte[][] outBuf = new byte[2][];
-        outBuf[0] = outputSharedSecret;
-        outBuf[1] = outputCipherText;
+        ws.symmetric.hashH(kr, KyberSymBytes, cipherText, ctOff, CryptoCipherTextBytes);
 
-        return outBuf;
+        ws.symmetric.kdf(sharedSecret, ssOff, kr, 0, 2 * KyberSymBytes);
+        listener.phaseCompleted(Phase.HASHED);
+        ws.clearSecrets();
     }
 
     /**
@@ -318,68 +600,405 @@ public class KyberEngine
      * @return Decrypted Message
      */
     public byte[] kemDecrypt(byte[] cipherText, byte[] secretKey)
+    {
+        return kemDecrypt(cipherText, secretKey, getWorkspace());
+    }
+
+    /**
+     * Decrypt function of the CPA-secure
+     * public-key encryption scheme underlying Kyber
+     * @param cipherText byte[]: Encrypted Message
+     * @param secretKey byte[]: Secret Key
+     * @param ws KyberWorkspace: Workspace holding all intermediate values
+     * @return Decrypted Message
+     */
+    public byte[] kemDecrypt(byte[] cipherText, byte[] secretKey, KyberWorkspace ws)
     {
         byte[] outputSharedSecret = new byte[KyberSharedSecretBytes];
-        byte[] buf = new byte[2 * KyberSymBytes],
-            kr = new byte[2 * KyberSymBytes],
-            cmp = new byte[KyberCipherTextBytes];
+        kemDecrypt(outputSharedSecret, cipherText, secretKey, ws);
+        return outputSharedSecret;
+    }
 
-        int i;
-        byte[] publicKey = Arrays.copyOfRange(secretKey, KyberIndCpaSecretKeyBytes, secretKey.length);
+    /**
+     * Recovers the shared secret for a cipher text into a
+     * caller supplied array, without allocating
+     * @param sharedSecret byte[]: Output array of Shared Secret Bytes
+     * @param cipherText byte[]: Encrypted Message
+     * @param secretKey byte[]: Secret Key
+     * @param ws KyberWorkspace: Workspace holding all intermediate values
+     */
+    public void kemDecrypt(byte[] sharedSecret, byte[] cipherText, byte[] secretKey, KyberWorkspace ws)
+    {
+        kemDecrypt(sharedSecret, 0, cipherText, 0, secretKey, 0, ws);
+    }
 
-        System.arraycopy(indCpa.decrypt(cipherText, secretKey), 0, buf, 0, KyberSymBytes);
+    /**
+     * Recovers the shared secret for a cipher text and secret key held at
+     * offsets within larger arrays, writing it at an offset within a caller
+     * supplied array. Nothing is copied or allocated.
+     * @param sharedSecret byte[]: Output array of Shared Secret Bytes
+     * @param ssOff int: Offset to write the Shared Secret to
+     * @param cipherText byte[]: Array holding the Encrypted Message
+     * @param ctOff int: Offset of the Encrypted Message
+     * @param secretKey byte[]: Array holding the Secret Key
+     * @param skOff int: Offset of the Secret Key
+     * @param ws KyberWorkspace: Workspace holding all intermediate values
+     */
+    public void kemDecrypt(byte[] sharedSecret, int ssOff, byte[] cipherText, int ctOff, byte[] secretKey, int skOff, KyberWorkspace ws)
+    {
+        checkWorkspace(ws);
+        listener.operationStarted(Operation.KYBER_DECAPSULATE, name, CryptoCipherTextBytes);
 
-        // System.out.print("ct = ");
-        // Helper.printByteArray(Arrays.copyOfRange(cipherText, 0, KyberSymBytes));
+        indCpa.decrypt(ws.buf, 0, cipherText, ctOff, secretKey, skOff, ws);
 
-        System.arraycopy(secretKey, KyberSecretKeyBytes - 2 * KyberSymBytes, buf, KyberSymBytes, KyberSymBytes);
+        ws.publicKeyPolyVec.fromBytes(secretKey, skOff + KyberIndCpaSecretKeyBytes);
+        listener.phaseCompleted(Phase.UNPACKED);
 
-        sha3Digest512.update(buf, 0, 2 * KyberSymBytes);
-        sha3Digest512.doFinal(kr, 0);
+        indCpa.generateMatrix(ws.aMatrix, secretKey, skOff + KyberIndCpaSecretKeyBytes + KyberPolyVecBytes, true, ws);
+        listener.phaseCompleted(Phase.MATRIX_EXPANDED);
 
-        cmp = indCpa.encrypt(Arrays.copyOfRange(buf, 0, KyberSymBytes), publicKey, Arrays.copyOfRange(kr, KyberSymBytes, kr.length));
+        decapsulate(sharedSecret, ssOff, cipherText, ctOff, ws.publicKeyPolyVec, ws.aMatrix,
+            secretKey, skOff + KyberSecretKeyBytes - 2 * KyberSymBytes, secretKey, skOff + KyberSecretKeyBytes - KyberSymBytes, ws);
 
-        boolean fail = !(Arrays.equals(cipherText, cmp));
+        listener.operationCompleted(Operation.KYBER_DECAPSULATE);
+    }
 
-        // System.out.println("fail = " + fail);
+    /**
+     * Decrypt function of the CPA-secure
+     * public-key encryption scheme underlying Kyber
+     * @param cipherText byte[]: Encrypted Message
+     * @param secretKey PreparedKyberPrivateKey: Secret Key with cached vectors, matrix and hashes
+     * @return Decrypted Message
+     */
+    public byte[] kemDecrypt(byte[] cipherText, PreparedKyberPrivateKey secretKey)
+    {
+        return kemDecrypt(cipherText, secretKey, getWorkspace());
+    }
 
-        sha3Digest256.update(cipherText, 0, KyberCipherTextBytes);
-        sha3Digest256.doFinal(kr, KyberSymBytes);
+    /**
+     * Decrypt function of the CPA-secure
+     * public-key encryption scheme underlying Kyber
+     * @param cipherText byte[]: Encrypted Message
+     * @param secretKey PreparedKyberPrivateKey: Secret Key with cached vectors, matrix and hashes
+     * @param ws KyberWorkspace: Workspace holding all intermediate values
+     * @return Decrypted Message
+     */
+    public byte[] kemDecrypt(byte[] cipherText, PreparedKyberPrivateKey secretKey, KyberWorkspace ws)
+    {
+        byte[] outputSharedSecret = new byte[KyberSharedSecretBytes];
+        kemDecrypt(outputSharedSecret, cipherText, secretKey, ws);
+        return outputSharedSecret;
+    }
 
-        cmov(kr, Arrays.copyOfRange(secretKey, KyberSecretKeyBytes - KyberSymBytes, KyberSecretKeyBytes), KyberSymBytes, fail);
+    /**
+     * Recovers the shared secret for a cipher text using a prepared
+     * secret key, into a caller supplied array. Skips secret key
+     * decoding and the matrix expansion of the re-encryption.
+     * @param sharedSecret byte[]: Output array of Shared Secret Bytes
+     * @param cipherText byte[]: Encrypted Message
+     * @param secretKey PreparedKyberPrivateKey: Secret Key with cached vectors, matrix and hashes
+     * @param ws KyberWorkspace: Workspace holding all intermediate values
+     */
+    public void kemDecrypt(byte[] sharedSecret, byte[] cipherText, PreparedKyberPrivateKey secretKey, KyberWorkspace ws)
+    {
+        kemDecrypt(sharedSecret, 0, cipherText, 0, secretKey, ws);
+    }
 
-        shakeDigest.update(kr, 0, 2 * KyberSymBytes);
-        shakeDigest.doFinal(outputSharedSecret, 0, KyberSymBytes);
+    /**
+     * Recovers the shared secret for a cipher text held at an offset
+     * within a larger array, using a prepared secret key, and writes it
+     * at an offset within a caller supplied array.
+     * @param sharedSecret byte[]: Output array of Shared Secret Bytes
+     * @param ssOff int: Offset to write the Shared Secret to
+     * @param cipherText byte[]: Array holding the Encrypted Message
+     * @param ctOff int: Offset of the Encrypted Message
+     * @param secretKey PreparedKyberPrivateKey: Secret Key with cached vectors, matrix and hashes
+     * @param ws KyberWorkspace: Workspace holding all intermediate values
+     */
+    public void kemDecrypt(byte[] sharedSecret, int ssOff, byte[] cipherText, int ctOff, PreparedKyberPrivateKey secretKey, KyberWorkspace ws)
+    {
+        checkWorkspace(ws);
+        PreparedKyberPublicKey publicKey = secretKey.getPreparedPublicKey();
+        checkPreparedKey(publicKey, "secret key");
+        listener.operationStarted(Operation.KYBER_DECAPSULATE, name, CryptoCipherTextBytes);
 
-        return outputSharedSecret;
+        indCpa.decrypt(ws.buf, 0, cipherText, ctOff, secretKey.getSecretKeyPolyVec(), ws);
+
+        decapsulate(sharedSecret, ssOff, cipherText, ctOff, publicKey.getPublicKeyPolyVec(), publicKey.getMatrixTranspose(),
+            secretKey.getHashedPublicKey(), 0, secretKey.getZ(), 0, ws);
+
+        listener.operationCompleted(Operation.KYBER_DECAPSULATE);
+    }
+
+    /**
+     * Shared re-encryption check and key derivation of decapsulation,
+     * once the decrypted message is in the first half of ws.buf
+     * @param sharedSecret byte[]: Output array of Shared Secret Bytes
+     * @param ssOff int: Offset to write the Shared Secret to
+     * @param cipherText byte[]: Array holding the Encrypted Message
+     * @param ctOff int: Offset of the Encrypted Message
+     * @param publicKeyPolyVec PolyVec: Decoded public vector t
+     * @param aMatrixTranspose short[]: Transposed public Matrix A, K * K polynomials
+     * @param hpk byte[]: Array holding H(pk)
+     * @param hpkOff int: Offset of H(pk)
+     * @param z byte[]: Array holding the implicit rejection value z
+     * @param zOff int: Offset of z
+     * @param ws KyberWorkspace: Workspace holding all intermediate values
+     */
+    private void decapsulate(byte[] sharedSecret, int ssOff, byte[] cipherText, int ctOff, PolyVec publicKeyPolyVec, short[] aMatrixTranspose,
+                             byte[] hpk, int hpkOff, byte[] z, int zOff, KyberWorkspace ws)
+    {
+        byte[] buf = ws.buf,
+            kr = ws.kr,
+            cmp = ws.cmp;
+
+        System.arraycopy(hpk, hpkOff, buf, KyberSymBytes, KyberSymBytes);
+
+        ws.symmetric.hashG(kr, 0, buf, 0, 2 * KyberSymBytes);
+        listener.phaseCompleted(Phase.HASHED);
+
+        indCpa.encrypt(cmp, 0, buf, 0, publicKeyPolyVec, aMatrixTranspose, kr, KyberSymBytes, ws);
+
+        int fail = verify(cipherText, ctOff, cmp, KyberCipherTextBytes);
+
+        ws.symmetric.hashH(kr, KyberSymBytes, cipherText, ctOff, KyberCipherTextBytes);
+
+        cmov(kr, z, zOff, KyberSymBytes, fail);
+
+        ws.symmetric.kdf(sharedSecret, ssOff, kr, 0, 2 * KyberSymBytes);
+        listener.phaseCompleted(Phase.HASHED);
+        ws.clearSecrets();
+    }
+
+    /*
+     * ByteBuffer variants. As with Cipher.doFinal(ByteBuffer, ByteBuffer),
+     * the position of every input buffer advances past the bytes read and
+     * the position of every output buffer past the bytes written. Buffers
+     * backed by an accessible array, which includes slices and duplicates of
+     * heap buffers, are read and written in place. Direct and read-only
+     * buffers are bulk-copied through staging arrays of the workspace, so no
+     * call allocates.
+     */
+
+    /**
+     * Generates cipher text and shared secret for a public key read from a buffer
+     * @param cipherText ByteBuffer: Receives Cipher Text Bytes
+     * @param sharedSecret ByteBuffer: Receives Shared Secret Bytes
+     * @param publicKey ByteBuffer: Holds the Public Key at its position
+     * @param ws KyberWorkspace: Workspace holding all intermediate values
+     * @param random SecureRandom: Source of the encapsulation coins
+     */
+    public void kemEncrypt(ByteBuffer cipherText, ByteBuffer sharedSecret, ByteBuffer publicKey, KyberWorkspace ws, SecureRandom random)
+    {
+        checkRemaining(publicKey, KyberPublicKeyBytes, "public key");
+        checkRemaining(cipherText, CryptoCipherTextBytes, "cipher text output");
+        checkRemaining(sharedSecret, CryptoBytes, "shared secret output");
+
+        kemEncrypt(outputArray(cipherText, ws.ctBuf), offset(cipherText), outputArray(sharedSecret, ws.ssBuf), offset(sharedSecret),
+            inputArray(publicKey, KyberPublicKeyBytes, ws.keyBuf), offset(publicKey), ws, random);
+
+        consume(publicKey, KyberPublicKeyBytes);
+        produce(cipherText, CryptoCipherTextBytes, ws.ctBuf);
+        produce(sharedSecret, CryptoBytes, ws.ssBuf);
+        ws.clearStaging();
+    }
+
+    /**
+     * Generates cipher text and shared secret for a prepared public key
+     * @param cipherText ByteBuffer: Receives Cipher Text Bytes
+     * @param sharedSecret ByteBuffer: Receives Shared Secret Bytes
+     * @param publicKey PreparedKyberPublicKey: Public Key with cached matrix, vector and hash
+     * @param ws KyberWorkspace: Workspace holding all intermediate values
+     * @param random SecureRandom: Source of the encapsulation coins
+     */
+    public void kemEncrypt(ByteBuffer cipherText, ByteBuffer sharedSecret, PreparedKyberPublicKey publicKey, KyberWorkspace ws, SecureRandom random)
+    {
+        checkRemaining(cipherText, CryptoCipherTextBytes, "cipher text output");
+        checkRemaining(sharedSecret, CryptoBytes, "shared secret output");
+
+        kemEncrypt(outputArray(cipherText, ws.ctBuf), offset(cipherText), outputArray(sharedSecret, ws.ssBuf), offset(sharedSecret),
+            publicKey, ws, random);
+
+        produce(cipherText, CryptoCipherTextBytes, ws.ctBuf);
+        produce(sharedSecret, CryptoBytes, ws.ssBuf);
+        ws.clearStaging();
     }
 
     /**
-     * If b is True, then copy the contents of x to r, otherwise, return r.
+     * Recovers the shared secret for a cipher text and secret key read from buffers
+     * @param sharedSecret ByteBuffer: Receives Shared Secret Bytes
+     * @param cipherText ByteBuffer: Holds the Encrypted Message at its position
+     * @param secretKey ByteBuffer: Holds the Secret Key at its position
+     * @param ws KyberWorkspace: Workspace holding all intermediate values
+     */
+    public void kemDecrypt(ByteBuffer sharedSecret, ByteBuffer cipherText, ByteBuffer secretKey, KyberWorkspace ws)
+    {
+        checkRemaining(cipherText, CryptoCipherTextBytes, "cipher text");
+        checkRemaining(secretKey, KyberSecretKeyBytes, "secret key");
+        checkRemaining(sharedSecret, CryptoBytes, "shared secret output");
+
+        kemDecrypt(outputArray(sharedSecret, ws.ssBuf), offset(sharedSecret), inputArray(cipherText, CryptoCipherTextBytes, ws.ctBuf), offset(cipherText),
+            inputArray(secretKey, KyberSecretKeyBytes, ws.keyBuf), offset(secretKey), ws);
+
+        consume(cipherText, CryptoCipherTextBytes);
+        consume(secretKey, KyberSecretKeyBytes);
+        produce(sharedSecret, CryptoBytes, ws.ssBuf);
+        ws.clearStaging();
+    }
+
+    /**
+     * Recovers the shared secret for a cipher text read from a buffer, using a prepared secret key
+     * @param sharedSecret ByteBuffer: Receives Shared Secret Bytes
+     * @param cipherText ByteBuffer: Holds the Encrypted Message at its position
+     * @param secretKey PreparedKyberPrivateKey: Secret Key with cached vectors, matrix and hashes
+     * @param ws KyberWorkspace: Workspace holding all intermediate values
+     */
+    public void kemDecrypt(ByteBuffer sharedSecret, ByteBuffer cipherText, PreparedKyberPrivateKey secretKey, KyberWorkspace ws)
+    {
+        checkRemaining(cipherText, CryptoCipherTextBytes, "cipher text");
+        checkRemaining(sharedSecret, CryptoBytes, "shared secret output");
+
+        kemDecrypt(outputArray(sharedSecret, ws.ssBuf), offset(sharedSecret), inputArray(cipherText, CryptoCipherTextBytes, ws.ctBuf), offset(cipherText),
+            secretKey, ws);
+
+        consume(cipherText, CryptoCipherTextBytes);
+        produce(sharedSecret, CryptoBytes, ws.ssBuf);
+        ws.clearStaging();
+    }
+
+    private static void checkRemaining(ByteBuffer buffer, int len, String what)
+    {
+        if (buffer.remaining() < len)
+        {
+            throw new IllegalArgumentException(what + " has " + buffer.remaining() + " bytes remaining, expected " + len);
+        }
+    }
+
+    /**
+     * Array to read an input from: the buffer's own array, or the staging
+     * array after copying the input into it
+     */
+    private static byte[] inputArray(ByteBuffer buffer, int len, byte[] staging)
+    {
+        if (buffer.hasArray())
+        {
+            return buffer.array();
+        }
+        buffer.duplicate().get(staging, 0, len);
+        return staging;
+    }
+
+    /**
+     * Array to write an output to: the buffer's own array, or the staging
+     * array that produce() copies into the buffer afterwards
+     */
+    private static byte[] outputArray(ByteBuffer buffer, byte[] staging)
+    {
+        return buffer.hasArray() ? buffer.array() : staging;
+    }
+
+    /**
+     * Offset matching the array returned by inputArray or outputArray
+     */
+    private static int offset(ByteBuffer buffer)
+    {
+        return buffer.hasArray() ? buffer.arrayOffset() + buffer.position() : 0;
+    }
+
+    private static void consume(ByteBuffer buffer, int len)
+    {
+        buffer.position(buffer.position() + len);
+    }
+
+    private static void produce(ByteBuffer buffer, int len, byte[] staging)
+    {
+        if (buffer.hasArray())
+        {
+            buffer.position(buffer.position() + len);
+        }
+        else
+        {
+            buffer.put(staging, 0, len);
+        }
+    }
+
+    /**
+     * Compare two byte arrays in constant time.
+     * @param a: First Byte Array
+     * @param aOff: Offset within the first Byte Array
+     * @param b: Second Byte Array
+     * @param len: Number of bytes to compare
+     * @return 0 if the arrays are equal, 1 otherwise
+     */
+    private static int verify(byte[] a, int aOff, byte[] b, int len)
+    {
+        int r = 0;
+        for (int i = 0; i < len; i++)
+        {
+            r |= (a[aOff + i] ^ b[i]) & 0xFF;
+        }
+        return (-r) >>> 31;
+    }
+
+    /**
+     * If b is 1, then copy the contents of x to r, otherwise, leave r unchanged.
+     * Runs in constant time.
      * @param r: Byte to return
      * @param x: Byte to check
+     * @param xOff: Offset of x within its array
      * @param xlen: length of byte to check
-     * @param b: Boolean value to verify that it's correct
+     * @param b: 1 to copy, 0 to keep r
      */
-    private void cmov(byte[] r, byte[] x, int xlen, boolean b)
+    private static void cmov(byte[] r, byte[] x, int xOff, int xlen, int b)
     {
-        if (b)
+        int mask = -b;
+        for (int i = 0; i < xlen; i++)
         {
-            System.arraycopy(x, 0, r, 0, xlen);
+            r[i] ^= (byte)(mask & (x[xOff + i] ^ r[i]));
         }
-        else
+    }
+
+    /**
+     * Checks that the workspace was sized for this engine's parameter set
+     * @param ws KyberWorkspace: Workspace to check
+     */
+    private void checkWorkspace(KyberWorkspace ws)
+    {
+        if (ws.getKyberK() != KyberK)
+        {
+            throw new IllegalArgumentException("workspace was created for Kyber K = " + ws.getKyberK() + ", engine uses K = " + KyberK);
+        }
+        if (ws.isUsingAes() != usingAes)
+        {
+            throw new IllegalArgumentException("workspace was created for " + variantName(ws.isUsingAes()) + ", engine uses " + variantName(usingAes));
+        }
+    }
+
+    /**
+     * Workspace used by the overloads that do not take one explicitly
+     * @return KyberWorkspace: Workspace confined to the calling thread
+     */
+    KyberWorkspace getWorkspace()
+    {
+        KyberWorkspace[] threadWorkspaces = workspaces.get();
+        int slot = 2 * (KyberK - 2) + (usingAes ? 1 : 0);
+        KyberWorkspace ws = threadWorkspaces[slot];
+        if (ws == null || ws.getArithmetic() != arithmetic)
         {
-            System.arraycopy(r, 0, r, 0, xlen);
+            // the workspace polynomials carry the arithmetic they were created with
+            ws = new KyberWorkspace(this);
+            threadWorkspaces[slot] = ws;
         }
+        return ws;
     }
 
     /**
-     * Generates Random Byte Array
-     * @param buf: Byte array to generate random bytes into
+     * Getter for the CPA-secure scheme
+     * @return KyberIndCpa: IndCpa instance bound to this engine
      */
-    public void getRandomBytes(byte[] buf)
+    KyberIndCpa getIndCpa()
     {
-        this.random.nextBytes(buf);
+        return indCpa;
     }
 
 }
@@ -1,20 +1,22 @@
 package crypto.pqc.kyber;
 
-import java.util.Arrays;
+import java.security.SecureRandom;
 
-import org.bouncycastle.crypto.digests.SHA3Digest;
-import org.bouncycastle.crypto.digests.SHAKEDigest;
+import crypto.pqc.probe.OperationListener;
+import crypto.pqc.probe.Phase;
 
 public class KyberIndCpa
 {
-    private KyberEngine engine;
-    private int kyberK;
-    private int eta1;
-    private int indCpaPublicKeyBytes;
-    private int polyVecBytes;
-    private int indCpaBytes;
-    private int polyVecCompressedBytes;
-    private int polyCompressedBytes;
+    private final KyberEngine engine;
+    private final int kyberK;
+    private final int eta1;
+    private final int indCpaPublicKeyBytes;
+    private final int polyVecBytes;
+    private final int indCpaBytes;
+    private final int polyVecCompressedBytes;
+    private final int polyCompressedBytes;
+    private final KyberArithmetic arithmetic;
+    private final OperationListener listener;
 
     /**
      * Kyber IND CPA Object Parameters
@@ -30,6 +32,8 @@ public class KyberIndCpa
         this.indCpaBytes = engine.getKyberIndCpaBytes();
         this.polyVecCompressedBytes = engine.getKyberPolyVecCompressedBytes();
         this.polyCompressedBytes = engine.getKyberPolyCompressedBytes();
+        this.arithmetic = engine.getArithmetic();
+        this.listener = engine.getListener();
     }
 
 
@@ -37,113 +41,69 @@ public class KyberIndCpa
      * Generates public and private key for the CPA-secure
      * public-key encryption scheme underlying Kyber
      *
+     * @param random SecureRandom: Source of the key generation seed
      * @return Byte[]: [Public Key Byte Array, Private Key Byte Array]
      */
-    public byte[][] generateKeyPair()
+    public byte[][] generateKeyPair(SecureRandom random)
     {
-        PolyVec secretKey = new PolyVec(engine),
-            publicKey = new PolyVec(engine),
-            e = new PolyVec(engine);
-
-        byte[] d = new byte[32];
+        byte[] pk = new byte[indCpaPublicKeyBytes];
+        byte[] sk = new byte[polyVecBytes];
+        generateKeyPair(pk, sk, new KyberWorkspace(engine), random);
+        return new byte[][]{pk, sk};
+    }
 
-        SHA3Digest sha3Digest512 = new SHA3Digest(512);
+    /**
+     * Generates public and private key for the CPA-secure
+     * public-key encryption scheme underlying Kyber
+     * @param pk byte[]: Output array for the Public Key, IndCpa Public Key Bytes long
+     * @param sk byte[]: Output array whose first PolyVec Bytes receive the Private Key
+     * @param ws KyberWorkspace: Workspace holding all intermediate values
+     * @param random SecureRandom: Source of the key generation seed
+     */
+    void generateKeyPair(byte[] pk, byte[] sk, KyberWorkspace ws, SecureRandom random)
+    {
+        PolyVec secretKey = ws.sp,
+            publicKey = ws.bp,
+            e = ws.errorPolyVector;
+        short[] aMatrix = ws.aMatrix;
 
         // (p, sigma) <- G(d)
+        byte[] d = ws.randBytes;
+        random.nextBytes(d);
 
-        engine.getRandomBytes(d);
-
-
-        // System.out.println("IndCpa");
-
-        sha3Digest512.update(d, 0, 32);
-
-        byte[] buf = new byte[64];
-
-        sha3Digest512.doFinal(buf, 0);
-
-        byte[] publicSeed = new byte[32]; // p in docs
-        byte[] noiseSeed = new byte[32]; // sigma in docs
-        System.arraycopy(buf, 0, publicSeed, 0, 32);
-        System.arraycopy(buf, 32, noiseSeed, 0, 32);
+        // buf = p || sigma, p in docs at offset 0, sigma at offset SymBytes
+        byte[] buf = ws.kr;
+        ws.symmetric.hashG(buf, 0, d, 0, KyberEngine.KyberSymBytes);
+        listener.phaseCompleted(Phase.HASHED);
 
         byte count = (byte)0;
-
-        // Helper.printByteArray(buf);
-
-
-        PolyVec[] aMatrix = new PolyVec[kyberK];
-
         int i;
-        for (i = 0; i < kyberK; i++)
-        {
-            aMatrix[i] = new PolyVec(engine);
-        }
 
-        generateMatrix(aMatrix, publicSeed, false);
-
-        // System.out.println("aMatrix = ");
-        // for(i = 0; i < kyberK; i++) {
-        //     System.out.print("[");
-        //     for (int j = 0; j < kyberK; j++) {
-        //       System.out.print("[");
-        //       for (int k = 0; k < KyberEngine.KyberN; k++) {
-        //         System.out.printf("%d ,", aMatrix[i].getVectorIndex(j).getCoeffIndex(k));
-        //       }
-        //       System.out.print("], \n");
-        //     }
-        //     System.out.print("]\n");
-        //   }
+        generateMatrix(aMatrix, buf, 0, false, ws);
+        listener.phaseCompleted(Phase.MATRIX_EXPANDED);
 
-        for (i = 0; i < kyberK; i++)
-        {
-            secretKey.getVectorIndex(i).getEta1Noise(noiseSeed, count);
-
-            // System.out.print("SecretKeyPolyVec["+i+"] = [");
-            // for (int j =0; j < KyberEngine.KyberN; j++) {
-            //     System.out.print(secretKey.getVectorIndex(i).getCoeffIndex(j) + ", ");
-            // }
-            // System.out.println("]");
-            count = (byte)(count + (byte)1);
-        }
-
-        for (i = 0; i < kyberK; i++)
-        {
-            e.getVectorIndex(i).getEta1Noise(noiseSeed, count);
-            count = (byte)(count + (byte)1);
-        }
+        count = secretKey.getEta1Noise(buf, KyberEngine.KyberSymBytes, count, ws);
+        e.getEta1Noise(buf, KyberEngine.KyberSymBytes, count, ws);
+        listener.phaseCompleted(Phase.NOISE_SAMPLED);
 
         secretKey.polyVecNtt();
-        // System.out.print("SecretKey PolyVec = ");
-        // Helper.printPolyVec(secretKey, kyberK);
-        // System.out.print("SecretKeyPolyVec = [");
-        // for (i = 0; i < kyberK; i++) {
-        //     System.out.print("[");
-        //     for (int j =0; j < KyberEngine.KyberN; j++) {
-        //         System.out.print(secretKey.getVectorIndex(i).getCoeffIndex(j) + ", ");
-        //     }
-        //     System.out.println("],");
-        // }
-        // System.out.println("]");
-
-
         e.polyVecNtt();
+        listener.phaseCompleted(Phase.NTT);
 
         for (i = 0; i < kyberK; i++)
         {
-            PolyVec.pointwiseAccountMontgomery(publicKey.getVectorIndex(i), aMatrix[i], secretKey, engine);
-            publicKey.getVectorIndex(i).convertToMont();
+            PolyVec.pointwiseAccountMontgomery(publicKey.coeffs, i * KyberEngine.KyberN,
+                aMatrix, i * kyberK * KyberEngine.KyberN, secretKey.coeffs, 0, kyberK, ws.t, arithmetic);
+            arithmetic.convertToMont(publicKey.coeffs, i * KyberEngine.KyberN);
         }
 
-
-
-        // System.out.printf("sk bytes = %d\n", engine.getCryptoSecretKeyBytes());
-
         publicKey.addPoly(e);
         publicKey.reducePoly();
+        listener.phaseCompleted(Phase.MULTIPLIED);
 
-        // return new byte[][]{};
-        return new byte[][]{packPublicKey(publicKey, publicSeed), packSecretKey(secretKey)};
+        packPublicKey(pk, publicKey, buf, 0);
+        packSecretKey(sk, secretKey);
+        listener.phaseCompleted(Phase.PACKED);
     }
 
     /**
@@ -157,109 +117,76 @@ public class KyberIndCpa
     public byte[] encrypt(byte[] msg, byte[] publicKeyInput, byte[] coins)
     {
         byte[] outputCipherText = new byte[indCpaBytes];
+        encrypt(outputCipherText, 0, msg, 0, publicKeyInput, 0, coins, 0, new KyberWorkspace(engine));
+        return outputCipherText;
+    }
 
-        int i;
-        byte[] seed;
-        byte nonce = (byte)0;
-        PolyVec sp = new PolyVec(engine),
-            publicKeyPolyVec = new PolyVec(engine),
-            errorPolyVector = new PolyVec(engine),
-            bp = new PolyVec(engine);
-        PolyVec[] aMatrixTranspose = new PolyVec[engine.getKyberK()];
-        Poly errorPoly = new Poly(engine),
-            v = new Poly(engine),
-            k = new Poly(engine);
-
-
-        // System.out.print("publickeyinput = ");
-        // Helper.printByteArray(publicKeyInput);
-        // System.out.println();
-
-        seed = unpackPublicKey(publicKeyPolyVec, publicKeyInput);
-
-        // System.out.print("publickeyPolyVec = [");
-        // for (i = 0; i < kyberK; i++) {
-        //     Helper.printShortArray(publicKeyPolyVec.getVectorIndex(i).getCoeffs());
-        //     System.out.print("], \n");
-        // }
-        // System.out.println("]"); 
-
-        // System.out.print("seed = ");
-        // Helper.printByteArray(seed);
-        // System.out.println();
-
-        k.fromMsg(msg);
-
-        for (i = 0; i < kyberK; i++)
-        {
-            aMatrixTranspose[i] = new PolyVec(engine);
-        }
-
-        generateMatrix(aMatrixTranspose, seed, true);
+    /**
+     * Encryption function of the CPA-Secure
+     * public-key encryption scheme underlying Kyber
+     * @param out byte[]: Output array for the IND CPA Cipher Text
+     * @param outOff int: Offset within out to write the Cipher Text to
+     * @param msg byte[]: Byte Array holding the Message to Encrypt
+     * @param msgOff int: Offset of the Message
+     * @param publicKeyInput byte[]: Byte Array holding the Public Key
+     * @param pkOff int: Offset of the Public Key
+     * @param coins byte[]: Byte Array holding the Coins to use for Encryption
+     * @param coinsOff int: Offset of the Coins
+     * @param ws KyberWorkspace: Workspace holding all intermediate values
+     */
+    void encrypt(byte[] out, int outOff, byte[] msg, int msgOff, byte[] publicKeyInput, int pkOff, byte[] coins, int coinsOff, KyberWorkspace ws)
+    {
+        ws.publicKeyPolyVec.fromBytes(publicKeyInput, pkOff);
+        listener.phaseCompleted(Phase.UNPACKED);
 
-        // System.out.print("matrix transposed = ");
-        // for (i = 0; i < kyberK; i++) {
-        //     System.out.print("[");
-        //     for(int j = 0; j < kyberK; j++) {
-        //         System.out.print("[");
-        //         for (int l = 0; l < 256; l++) {
-        //             System.out.printf("%d ,", aMatrixTranspose[i].getVectorIndex(j).getCoeffIndex(l));
-        //         }
-        //         System.out.print("] ,\n");
-        //     }
-        //     System.out.println("] ,");
-        // }
+        generateMatrix(ws.aMatrix, publicKeyInput, pkOff + polyVecBytes, true, ws);
+        listener.phaseCompleted(Phase.MATRIX_EXPANDED);
 
+        encrypt(out, outOff, msg, msgOff, ws.publicKeyPolyVec, ws.aMatrix, coins, coinsOff, ws);
+    }
 
-        for (i = 0; i < kyberK; i++)
-        {
-            sp.getVectorIndex(i).getEta1Noise(coins, nonce);
-            nonce = (byte)(nonce + (byte)1);
-        }
+    /**
+     * Encryption function of the CPA-Secure public-key encryption scheme
+     * underlying Kyber, for a public key that has already been decoded.
+     * Neither publicKeyPolyVec nor aMatrixTranspose is modified.
+     * @param out byte[]: Output array for the IND CPA Cipher Text
+     * @param outOff int: Offset within out to write the Cipher Text to
+     * @param msg byte[]: Byte Array holding the Message to Encrypt
+     * @param msgOff int: Offset of the Message
+     * @param publicKeyPolyVec PolyVec: Decoded public vector t
+     * @param aMatrixTranspose short[]: Transposed public Matrix A, K * K polynomials
+     * @param coins byte[]: Byte Array holding the Coins to use for Encryption
+     * @param coinsOff int: Offset of the Coins
+     * @param ws KyberWorkspace: Workspace holding all intermediate values
+     */
+    void encrypt(byte[] out, int outOff, byte[] msg, int msgOff, PolyVec publicKeyPolyVec, short[] aMatrixTranspose, byte[] coins, int coinsOff, KyberWorkspace ws)
+    {
+        int i;
+        byte nonce = (byte)0;
+        PolyVec sp = ws.sp,
+            errorPolyVector = ws.errorPolyVector,
+            bp = ws.bp;
+        Poly errorPoly = ws.errorPoly,
+            v = ws.v,
+            k = ws.k;
 
+        k.fromMsg(msg, msgOff);
 
-        for (i = 0; i < kyberK; i++)
-        {
-            errorPolyVector.getVectorIndex(i).getEta2Noise(coins, nonce);
-            nonce = (byte)(nonce + (byte)1);
-        }
-        errorPoly.getEta2Noise(coins, nonce);
-        nonce = (byte)(nonce + (byte)1);
+        nonce = sp.getEta1Noise(coins, coinsOff, nonce, ws);
+        nonce = errorPolyVector.getEta2Noise(coins, coinsOff, nonce, ws);
+        errorPoly.getEta2Noise(coins, coinsOff, nonce, ws);
+        listener.phaseCompleted(Phase.NOISE_SAMPLED);
 
         sp.polyVecNtt();
-
-        // System.out.print("sp = [");
-        // for (i = 0; i < kyberK; i++) {
-        //     Helper.printShortArray(sp.getVectorIndex(i).getCoeffs());
-        //     System.out.print("], \n");
-        // }
-        // System.out.println("]"); 
-
-
-        // System.out.print("sp = [");
-        // for (i = 0; i < kyberK; i++) {
-        //     Helper.printShortArray(sp.getVectorIndex(i).getCoeffs());
-        //     System.out.print("], \n");
-        // }
-        // System.out.println("]"); 
+        listener.phaseCompleted(Phase.NTT);
 
         for (i = 0; i < kyberK; i++)
         {
-
-            PolyVec.pointwiseAccountMontgomery(bp.getVectorIndex(i), aMatrixTranspose[i], sp, engine);
+            PolyVec.pointwiseAccountMontgomery(bp.coeffs, i * KyberEngine.KyberN,
+                aMatrixTranspose, i * kyberK * KyberEngine.KyberN, sp.coeffs, 0, kyberK, ws.t, arithmetic);
         }
-        // System.out.print("bp = [");
-        // for (i = 0; i < kyberK; i++) {
-        //     Helper.printShortArray(bp.getVectorIndex(i).getCoeffs());
-        //     System.out.print("], \n");
-        // }
-        // System.out.println("]");     
-
-        PolyVec.pointwiseAccountMontgomery(v, publicKeyPolyVec, sp, engine);
 
-        // System.out.print("v = ");
-        // Helper.printShortArray(v.getCoeffs());
-        // System.out.println();
+        PolyVec.pointwiseAccountMontgomery(v.coeffArray(), v.coeffOffset(), publicKeyPolyVec.coeffs, 0, sp.coeffs, 0, kyberK, ws.t, arithmetic);
 
         bp.polyVecInverseNttToMont();
 
@@ -267,44 +194,28 @@ public class KyberIndCpa
 
         bp.addPoly(errorPolyVector);
 
-
         v.addCoeffs(errorPoly);
         v.addCoeffs(k);
 
         bp.reducePoly();
         v.reduce();
+        listener.phaseCompleted(Phase.MULTIPLIED);
 
-        //         System.out.print("bp = [");
-        // for (i = 0; i < kyberK; i++) {
-        //     Helper.printShortArray(bp.getVectorIndex(i).getCoeffs());
-        //     System.out.print("], \n");
-        // }
-        // System.out.println("]"); 
-
-
-
-
-
-        outputCipherText = packCipherText(bp, v);
-
-        // return new byte[]{};
-        return outputCipherText;
+        packCipherText(out, outOff, bp, v);
+        listener.phaseCompleted(Phase.PACKED);
     }
 
     /**
-     * Pack Cipher Text from the Polynomial Form to a Byte Array
+     * Pack Cipher Text from the Polynomial Form into an existing Byte Array
+     * @param outBuf: Output Byte Array
+     * @param off: Offset within outBuf to write the Cipher Text to
      * @param b: Compressed
      * @param v: Compressed
-     * @return Compressed CipherText
      */
-    private byte[] packCipherText(PolyVec b, Poly v)
+    private void packCipherText(byte[] outBuf, int off, PolyVec b, Poly v)
     {
-        byte[] outBuf = new byte[indCpaBytes];
-        System.arraycopy(b.compressPolyVec(), 0, outBuf, 0, polyVecCompressedBytes);
-        System.arraycopy(v.compressPoly(), 0, outBuf, polyVecCompressedBytes, polyCompressedBytes);
-        // System.out.print("outBuf = [");
-        // Helper.printByteArray(outBuf);        
-        return outBuf;
+        b.compressPolyVec(outBuf, off);
+        v.compressPoly(outBuf, off + polyVecCompressedBytes);
     }
 
     /**
@@ -312,14 +223,12 @@ public class KyberIndCpa
      * @param b
      * @param v
      * @param cipherText
+     * @param off: Offset of the Cipher Text within the Byte Array
      */
-    private void unpackCipherText(PolyVec b, Poly v, byte[] cipherText)
+    private void unpackCipherText(PolyVec b, Poly v, byte[] cipherText, int off)
     {
-        byte[] compressedPolyVecCipherText = Arrays.copyOfRange(cipherText, 0, engine.getKyberPolyVecCompressedBytes());
-        b.decompressPolyVec(compressedPolyVecCipherText);
-
-        byte[] compressedPolyCipherText = Arrays.copyOfRange(cipherText, engine.getKyberPolyVecCompressedBytes(), cipherText.length);
-        v.decompressPoly(compressedPolyCipherText);
+        b.decompressPolyVec(cipherText, off);
+        v.decompressPoly(cipherText, off + polyVecCompressedBytes);
     }
 
     /**
@@ -331,11 +240,23 @@ public class KyberIndCpa
     public byte[] packPublicKey(PolyVec publicKeyPolyVec, byte[] seed)
     {
         byte[] buf = new byte[indCpaPublicKeyBytes];
-        System.arraycopy(publicKeyPolyVec.toBytes(), 0, buf, 0, polyVecBytes);
-        System.arraycopy(seed, 0, buf, polyVecBytes, KyberEngine.KyberSymBytes);
+        packPublicKey(buf, publicKeyPolyVec, seed, 0);
         return buf;
     }
 
+    /**
+     * Pack Public Key into an existing Byte Array
+     * @param buf: Output Byte Array
+     * @param publicKeyPolyVec
+     * @param seed
+     * @param seedOff: Offset of the seed within its Byte Array
+     */
+    void packPublicKey(byte[] buf, PolyVec publicKeyPolyVec, byte[] seed, int seedOff)
+    {
+        publicKeyPolyVec.toBytes(buf, 0);
+        System.arraycopy(seed, seedOff, buf, polyVecBytes, KyberEngine.KyberSymBytes);
+    }
+
     /**
      * Unpack Public Key
      * @param publicKeyPolyVec
@@ -360,6 +281,16 @@ public class KyberIndCpa
         return secretKeyPolyVec.toBytes();
     }
 
+    /**
+     * Pack Private Key into an existing Byte Array
+     * @param buf: Output Byte Array
+     * @param secretKeyPolyVec
+     */
+    void packSecretKey(byte[] buf, PolyVec secretKeyPolyVec)
+    {
+        secretKeyPolyVec.toBytes(buf, 0);
+    }
+
     /**
      * Unpack Private Key
      * @param secretKeyPolyVec
@@ -391,85 +322,147 @@ public class KyberIndCpa
      */
     public void generateMatrix(PolyVec[] aMatrix, byte[] seed, boolean transposed)
     {
-        int i, j, k, ctr, off;
-        SHAKEDigest kyberXOF;
-        byte[] buf = new byte[KyberGenerateMatrixNBlocks * Symmetric.SHAKE128_rate + 2];
-        for (i = 0; i < kyberK; i++)
+        short[] flat = generateMatrix(seed, 0, transposed);
+        for (int i = 0; i < kyberK; i++)
         {
-            for (j = 0; j < kyberK; j++)
+            System.arraycopy(flat, i * kyberK * KyberEngine.KyberN, aMatrix[i].coeffs, 0, kyberK * KyberEngine.KyberN);
+        }
+    }
+
+    /**
+     * Generate a new Matrix of size K
+     * @param seed
+     * @param seedOff: Offset of the seed within its Byte Array
+     * @param transposed
+     * @return short[]: Generated Matrix, row i column j at offset (i * K + j) * N
+     */
+    short[] generateMatrix(byte[] seed, int seedOff, boolean transposed)
+    {
+        KyberWorkspace ws = new KyberWorkspace(engine);
+        generateMatrix(ws.aMatrix, seed, seedOff, transposed, ws);
+        return ws.aMatrix;
+    }
+
+    /**
+     * Generate a Matrix of size K using the symmetric layer and squeeze buffer of a workspace.
+     * Entries are expanded xofLanes() at a time, four for the SHAKE variants.
+     * @param aMatrix: Output Matrix, row i column j at offset (i * K + j) * N
+     * @param seed
+     * @param seedOff: Offset of the seed within its Byte Array
+     * @param transposed
+     * @param ws: Workspace providing the XOF, squeeze buffer and sample counters
+     */
+    void generateMatrix(short[] aMatrix, byte[] seed, int seedOff, boolean transposed, KyberWorkspace ws)
+    {
+        Symmetric symmetric = ws.symmetric;
+        int entries = kyberK * kyberK;
+        int blockBytes = symmetric.xofBlockBytes();
+        int stride = symmetric.xofBufStride();
+        int entry, lanes, l, i, j, k, off, buflen;
+        byte[] buf = ws.xofBuf;
+        int[] ctr = ws.xofCtr;
+        boolean done;
+
+        for (entry = 0; entry < entries; entry += lanes)
+        {
+            lanes = Math.min(symmetric.xofLanes(), entries - entry);
+            for (l = 0; l < lanes; l++)
             {
+                i = (entry + l) / kyberK;
+                j = (entry + l) % kyberK;
                 if (transposed)
                 {
-                    kyberXOF = Symmetric.KyberXOF(seed, i, j);
+                    symmetric.xofAbsorb(l, seed, seedOff, i, j);
                 }
                 else
                 {
-                    kyberXOF = Symmetric.KyberXOF(seed, j, i);
+                    symmetric.xofAbsorb(l, seed, seedOff, j, i);
                 }
-                kyberXOF.doOutput(buf, 0, Symmetric.SHAKE128_rate * KyberGenerateMatrixNBlocks);
-
-                // System.out.print("xof squeeze output = ");
-                // Helper.printByteArray(buf);
-                int buflen = KyberGenerateMatrixNBlocks * Symmetric.SHAKE128_rate;
-
-                /**
-                 * Reject Sampling returns the number of elements in the matrix that it performed rejection
-                 * Sampling on.
-                 */
-                ctr = rejectionSampling(aMatrix[i].getVectorIndex(j), 0, KyberEngine.KyberN, buf, buflen);
+            }
+            symmetric.xofSqueezeBlocks(buf, 0, stride, symmetric.genMatrixNBlocks(), lanes);
+            buflen = symmetric.genMatrixNBlocks() * blockBytes;
+
+            /**
+             * Reject Sampling returns the number of elements in the matrix that it performed rejection
+             * Sampling on.
+             */
+            done = true;
+            for (l = 0; l < lanes; l++)
+            {
+                ctr[l] = rejectionSampling(aMatrix, (entry + l) * KyberEngine.KyberN, KyberEngine.KyberN, buf, l * stride, buflen);
+                done &= ctr[l] == KyberEngine.KyberN;
+            }
 
-                while (ctr < KyberEngine.KyberN)
+            // all streams of the batch are squeezed together until every entry is complete
+            while (!done)
+            {
+                off = buflen % 3;
+                for (l = 0; l < lanes; l++)
                 {
-                    off = buflen % 3;
                     for (k = 0; k < off; k++)
                     {
-                        buf[k] = buf[buflen - off + k];
+                        buf[l * stride + k] = buf[l * stride + buflen - off + k];
                     }
-                    // System.out.print("ctr buf before = ");
-                    // Helper.printByteArray(buf);
-                    kyberXOF.doOutput(buf, off, Symmetric.SHAKE128_rate * 2);
-                    // System.out.print("ctr buf after = ");
-                    // Helper.printByteArray(buf);
-                    buflen = off + Symmetric.SHAKE128_rate;
-                    ctr += rejectionSampling(aMatrix[i].getVectorIndex(j), ctr, KyberEngine.KyberN - ctr, buf, buflen);
+                }
+                symmetric.xofSqueezeBlocks(buf, off, stride, 1, lanes);
+                buflen = off + blockBytes;
+
+                done = true;
+                for (l = 0; l < lanes; l++)
+                {
+                    ctr[l] += rejectionSampling(aMatrix, (entry + l) * KyberEngine.KyberN + ctr[l], KyberEngine.KyberN - ctr[l], buf, l * stride, buflen);
+                    done &= ctr[l] == KyberEngine.KyberN;
                 }
             }
         }
-
     }
 
     /**
-     * Rejects values which are larger than Kyber Q
-     * @param outputBuffer: Output Polynomial
-     * @param coeffOff: Integer Coefficient offset
+     * Rejects values which are larger than Kyber Q.
+     * Every candidate is written to the next free coefficient and the counter only advances
+     * when it is accepted, so the loop has no data dependent branch: about one in five
+     * candidates is rejected, which a branch predictor cannot learn from the XOF output.
+     * @param outputBuffer: Output coefficient array
+     * @param coeffOff: Integer offset of the first coefficient to write
      * @param len: int Max size of input buffer
      * @param inpBuf: Byte array Input Buffer
+     * @param inpOff: Offset of the input within inpBuf
      * @param inpBufLen: Int length of Input Buffer
      * @return
      */
-    private static int rejectionSampling(Poly outputBuffer, int coeffOff, int len, byte[] inpBuf, int inpBufLen)
+    static int rejectionSampling(short[] outputBuffer, int coeffOff, int len, byte[] inpBuf, int inpOff, int inpBufLen)
     {
-        int ctr, pos;
-        short val0, val1;
-        ctr = pos = 0;
-        while (ctr < len && pos + 3 <= inpBufLen)
+        int ctr, pos, end, b1, val0, val1;
+        ctr = 0;
+        pos = inpOff;
+        end = inpOff + inpBufLen;
+        while (len - ctr >= 2 && pos + 3 <= end)
+        {
+            b1 = inpBuf[pos + 1] & 0xFF;
+            val0 = (inpBuf[pos] & 0xFF) | ((b1 & 0x0F) << 8);
+            val1 = (b1 >> 4) | ((inpBuf[pos + 2] & 0xFF) << 4);
+            pos = pos + 3;
+            outputBuffer[coeffOff + ctr] = (short)val0;
+            ctr += (val0 - KyberEngine.KyberQ) >>> 31;
+            outputBuffer[coeffOff + ctr] = (short)val1;
+            ctr += (val1 - KyberEngine.KyberQ) >>> 31;
+        }
+        // a single coefficient left: take the first candidate below q
+        while (ctr < len && pos + 3 <= end)
         {
-            val0 = (short)(((((short)(inpBuf[pos] & 0xFF)) >> 0) | (((short)(inpBuf[pos + 1] & 0xFF)) << 8)) & 0xFFF);
-            val1 = (short)(((((short)(inpBuf[pos + 1] & 0xFF)) >> 4) | (((short)(inpBuf[pos + 2] & 0xFF)) << 4)) & 0xFFF);
+            val0 = (inpBuf[pos] & 0xFF) | ((inpBuf[pos + 1] & 0x0F) << 8);
+            val1 = ((inpBuf[pos + 1] & 0xFF) >> 4) | ((inpBuf[pos + 2] & 0xFF) << 4);
             pos = pos + 3;
-            if (val0 < (short)KyberEngine.KyberQ)
+            if (val0 < KyberEngine.KyberQ)
             {
-                outputBuffer.setCoeffIndex(coeffOff + ctr, (short)val0);
-                ctr++;
+                outputBuffer[coeffOff + ctr++] = (short)val0;
             }
-            if (ctr < len && val1 < (short)KyberEngine.KyberQ)
+            else if (val1 < KyberEngine.KyberQ)
             {
-                outputBuffer.setCoeffIndex(coeffOff + ctr, (short)val1);
-                ctr++;
+                outputBuffer[coeffOff + ctr++] = (short)val1;
             }
         }
         return ctr;
-
     }
 
     /**
@@ -480,69 +473,60 @@ public class KyberIndCpa
      */
     public byte[] decrypt(byte[] cipherText, byte[] secretKey)
     {
-        int i;
         byte[] outputMessage = new byte[KyberEngine.getKyberIndCpaMsgBytes()];
+        decrypt(outputMessage, 0, cipherText, 0, secretKey, 0, new KyberWorkspace(engine));
+        return outputMessage;
+    }
 
-        PolyVec bp = new PolyVec(engine), secretKeyPolyVec = new PolyVec(engine);
-        Poly v = new Poly(engine), mp = new Poly(engine);
-
-        unpackCipherText(bp, v, cipherText);
-
-        // System.out.print("bp = [");
-        // for (i = 0; i < kyberK; i++) {
-        //     Helper.printShortArray(bp.getVectorIndex(i).getCoeffs());
-        //     System.out.print("], \n");
-        // }
-        // System.out.println("]"); 
-
-
-        // System.out.print("v = ");
-        // Helper.printShortArray(v.getCoeffs());
-        // System.out.println();
-
-        unpackSecretKey(secretKeyPolyVec, secretKey);
+    /**
+     * Decrypt Message with the Cipher Text and Secret Key
+     * @param out: Output array for the Message
+     * @param outOff: Offset within out to write the Message to
+     * @param cipherText: Byte Array holding the Cipher Text
+     * @param ctOff: Offset of the Cipher Text
+     * @param secretKey: Byte Array holding the IND CPA Secret Key
+     * @param skOff: Offset of the Secret Key
+     * @param ws: Workspace holding all intermediate values
+     */
+    void decrypt(byte[] out, int outOff, byte[] cipherText, int ctOff, byte[] secretKey, int skOff, KyberWorkspace ws)
+    {
+        ws.sp.fromBytes(secretKey, skOff);
+        listener.phaseCompleted(Phase.UNPACKED);
 
-        // System.out.print("decrypt secretkey = ");;
-        // Helper.printByteArray(secretKey);
+        decrypt(out, outOff, cipherText, ctOff, ws.sp, ws);
+    }
 
-        // System.out.print("SecretKeyPolyVec = [");
-        // for (i = 0; i < kyberK; i++) {
-        //     System.out.print("[");
-        //     for (int j =0; j < KyberEngine.KyberN; j++) {
-        //         System.out.print(secretKeyPolyVec.getVectorIndex(i).getCoeffIndex(j) + ", ");
-        //     }
-        //     System.out.println("],");
-        // }
-        // System.out.println("]");
+    /**
+     * Decrypt Message with the Cipher Text and an already decoded Secret Key
+     * @param out: Output array for the Message
+     * @param outOff: Offset within out to write the Message to
+     * @param cipherText: Byte Array holding the Cipher Text
+     * @param ctOff: Offset of the Cipher Text
+     * @param secretKeyPolyVec: Decoded IND CPA Secret Key, not modified
+     * @param ws: Workspace holding all intermediate values
+     */
+    void decrypt(byte[] out, int outOff, byte[] cipherText, int ctOff, PolyVec secretKeyPolyVec, KyberWorkspace ws)
+    {
+        PolyVec bp = ws.bp;
+        Poly v = ws.v, mp = ws.k;
 
-        // System.out.print("bp before ntt = [");
-        // for (i = 0; i < kyberK; i++) {
-        //     Helper.printShortArray(bp.getVectorIndex(i).getCoeffs());
-        //     System.out.print("], \n");
-        // }
-        // System.out.println("]"); 
+        unpackCipherText(bp, v, cipherText, ctOff);
+        listener.phaseCompleted(Phase.UNPACKED);
 
         bp.polyVecNtt();
+        listener.phaseCompleted(Phase.NTT);
 
-        // System.out.print("bp after ntt = [");
-        // for (i = 0; i < kyberK; i++) {
-        //     Helper.printShortArray(bp.getVectorIndex(i).getCoeffs());
-        //     System.out.print("], \n");
-        // }
-        // System.out.println("]"); 
-
-        PolyVec.pointwiseAccountMontgomery(mp, secretKeyPolyVec, bp, engine);
-
+        PolyVec.pointwiseAccountMontgomery(mp.coeffArray(), mp.coeffOffset(), secretKeyPolyVec.coeffs, 0, bp.coeffs, 0, kyberK, ws.t, arithmetic);
 
         mp.polyInverseNttToMont();
 
         mp.polySubtract(v);
 
         mp.reduce();
+        listener.phaseCompleted(Phase.MULTIPLIED);
 
-        outputMessage = mp.toMsg();
-
-        return outputMessage;
+        mp.toMsg(out, outOff);
+        listener.phaseCompleted(Phase.PACKED);
     }
 
 }
@@ -1,18 +1,42 @@
 package crypto.pqc.kyber;
 
+import java.nio.ByteBuffer;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+
 import org.bouncycastle.crypto.EncapsulatedSecretExtractor;
 import org.bouncycastle.crypto.params.AsymmetricKeyParameter;
 
 public class KyberKEMExtractor
     implements EncapsulatedSecretExtractor
 {
+    // number of cipher texts a batch worker handles without splitting further
+    private static final int BATCH_THRESHOLD = 8;
+
     private KyberEngine engine;
 
-    private KyberPrivateKeyParameters key;
+    private PreparedKyberPrivateKey key;
+
+    // pool used for batch extraction
+    private final ForkJoinPool pool;
 
+    /**
+     * The private key is decoded and prepared once here, so each
+     * extraction only pays for the decryption and the re-encryption check.
+     * @param privParams KyberPrivateKeyParameters: Private key, reused as is if already prepared
+     */
     public KyberKEMExtractor(KyberPrivateKeyParameters privParams)
     {
-        this.key = privParams;
+        this(privParams, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param privParams KyberPrivateKeyParameters: Private key, reused as is if already prepared
+     * @param pool ForkJoinPool: pool batch extraction is split across
+     */
+    public KyberKEMExtractor(KyberPrivateKeyParameters privParams, ForkJoinPool pool)
+    {
+        this.pool = pool;
         initCipher(privParams);
     }
 
@@ -20,16 +44,171 @@ public class KyberKEMExtractor
     {
         KyberPrivateKeyParameters key = (KyberPrivateKeyParameters)recipientKey;
         engine = key.getParameters().getEngine();
+        if (key instanceof PreparedKyberPrivateKey)
+        {
+            this.key = (PreparedKyberPrivateKey)key;
+        }
+        else
+        {
+            this.key = new PreparedKyberPrivateKey(key);
+        }
     }
 
     @Override
     public byte[] extractSecret(byte[] encapsulation)
     {
         // Decryption
-        byte[] sharedSecret = engine.kemDecrypt(encapsulation, ((KyberPrivateKeyParameters)key).getPrivateKey());
+        byte[] sharedSecret = engine.kemDecrypt(encapsulation, key);
         return sharedSecret;
     }
 
+    /**
+     * Extract the shared secret using the caller's workspace for all intermediate values.
+     * @param encapsulation byte[]: Cipher Text
+     * @param workspace KyberWorkspace: Workspace created for the same parameter set as the key
+     * @return byte[]: Shared Secret
+     */
+    public byte[] extractSecret(byte[] encapsulation, KyberWorkspace workspace)
+    {
+        return engine.kemDecrypt(encapsulation, key, workspace);
+    }
+
+    /**
+     * Extract the shared secret of a cipher text read from a buffer, writing
+     * it into another buffer. The cipher text buffer's position advances past
+     * the cipher text and the secret buffer's past the secret; buffers that
+     * are not backed by an accessible array go through the per-thread workspace.
+     * @param encapsulation ByteBuffer: Holds the Cipher Text at its position
+     * @param secret ByteBuffer: Receives the Shared Secret
+     */
+    public void extractSecret(ByteBuffer encapsulation, ByteBuffer secret)
+    {
+        engine.kemDecrypt(secret, encapsulation, key, engine.getWorkspace());
+    }
+
+    /**
+     * Extract the shared secret of a cipher text held at an offset within a
+     * larger array, writing it at an offset within a caller supplied array.
+     * @param encapsulation byte[]: Array holding the Cipher Text
+     * @param encOff int: Offset of the Cipher Text
+     * @param secret byte[]: Receives the Shared Secret
+     * @param secretOff int: Offset to write the Shared Secret to
+     */
+    public void extractSecret(byte[] encapsulation, int encOff, byte[] secret, int secretOff)
+    {
+        engine.kemDecrypt(secret, secretOff, encapsulation, encOff, key, engine.getWorkspace());
+    }
+
+    /**
+     * Extract the shared secrets of many encapsulations in parallel. The
+     * prepared private key is shared by all workers of the extractor's
+     * ForkJoinPool, each of which uses its own per-thread workspace.
+     * <p>
+     * The returned array is in input order: element i is the secret of
+     * encapsulations[i], regardless of how the work was scheduled.
+     * @param encapsulations byte[][]: Cipher Texts, each getInputSize() bytes
+     * @return byte[][]: Shared Secrets, in the order of encapsulations
+     */
+    public byte[][] extractSecrets(byte[][] encapsulations)
+    {
+        int ctBytes = engine.getCryptoCipherTextBytes();
+        for (int i = 0; i < encapsulations.length; i++)
+        {
+            checkLength(i, encapsulations[i].length, ctBytes);
+        }
+        return extractSecrets(encapsulations, new int[encapsulations.length]);
+    }
+
+    /**
+     * Extract the shared secrets of many encapsulations in parallel, each
+     * held in the remaining bytes of a ByteBuffer, typically slices of one
+     * larger receive buffer. Buffer positions are not changed, and heap
+     * buffers are read in place without copying.
+     * <p>
+     * The returned array is in input order: element i is the secret of
+     * encapsulations[i], regardless of how the work was scheduled.
+     * @param encapsulations ByteBuffer[]: Cipher Texts, each with getInputSize() bytes remaining
+     * @return byte[][]: Shared Secrets, in the order of encapsulations
+     */
+    public byte[][] extractSecrets(ByteBuffer[] encapsulations)
+    {
+        int ctBytes = engine.getCryptoCipherTextBytes();
+        byte[][] arrays = new byte[encapsulations.length][];
+        int[] offsets = new int[encapsulations.length];
+        for (int i = 0; i < encapsulations.length; i++)
+        {
+            ByteBuffer buffer = encapsulations[i];
+            checkLength(i, buffer.remaining(), ctBytes);
+            if (buffer.hasArray())
+            {
+                arrays[i] = buffer.array();
+                offsets[i] = buffer.arrayOffset() + buffer.position();
+            }
+            else
+            {
+                arrays[i] = new byte[ctBytes];
+                buffer.duplicate().get(arrays[i]);
+            }
+        }
+        return extractSecrets(arrays, offsets);
+    }
+
+    private byte[][] extractSecrets(byte[][] encapsulations, int[] offsets)
+    {
+        byte[][] secrets = new byte[encapsulations.length][];
+        pool.invoke(new ExtractTask(encapsulations, offsets, secrets, 0, encapsulations.length));
+        return secrets;
+    }
+
+    private static void checkLength(int index, int length, int expected)
+    {
+        if (length != expected)
+        {
+            throw new IllegalArgumentException("encapsulation " + index + " is " + length + " bytes, expected " + expected);
+        }
+    }
+
+    private class ExtractTask
+        extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final byte[][] encapsulations;
+        private final int[] offsets;
+        private final byte[][] secrets;
+        private final int from;
+        private final int to;
+
+        ExtractTask(byte[][] encapsulations, int[] offsets, byte[][] secrets, int from, int to)
+        {
+            this.encapsulations = encapsulations;
+            this.offsets = offsets;
+            this.secrets = secrets;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute()
+        {
+            if (to - from <= BATCH_THRESHOLD)
+            {
+                KyberWorkspace ws = engine.getWorkspace();
+                for (int i = from; i < to; i++)
+                {
+                    byte[] secret = new byte[engine.getCryptoBytes()];
+                    engine.kemDecrypt(secret, 0, encapsulations[i], offsets[i], key, ws);
+                    secrets[i] = secret;
+                }
+            }
+            else
+            {
+                int mid = (from + to) >>> 1;
+                invokeAll(new ExtractTask(encapsulations, offsets, secrets, from, mid),
+                    new ExtractTask(encapsulations, offsets, secrets, mid, to));
+            }
+        }
+    }
+
     public int getInputSize()
     {
         return engine.getCryptoCipherTextBytes();
@@ -1,6 +1,11 @@
 package crypto.pqc.kyber;
 
+import java.nio.ByteBuffer;
 import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import javax.security.auth.DestroyFailedException;
@@ -13,24 +18,198 @@ import org.bouncycastle.util.Arrays;
 public class KyberKEMGenerator
     implements EncapsulatedSecretGenerator
 {
+    // number of recipients a batch worker handles without splitting further
+    private static final int BATCH_THRESHOLD = 8;
+
     // the source of randomness
     private final SecureRandom sr;
 
+    // pool used for batch encapsulation
+    private final ForkJoinPool pool;
+
     public KyberKEMGenerator(SecureRandom random)
+    {
+        this(random, ForkJoinPool.commonPool());
+    }
+
+    /**
+     * @param random SecureRandom: source of randomness
+     * @param pool ForkJoinPool: pool batch encapsulation is split across
+     */
+    public KyberKEMGenerator(SecureRandom random, ForkJoinPool pool)
     {
         this.sr = random;
+        this.pool = pool;
     }
 
+    /**
+     * Encapsulate to the recipient key. Passing a {@link PreparedKyberPublicKey}
+     * reuses its cached matrix, decoded vector and hash.
+     * @param recipientKey AsymmetricKeyParameter: Kyber public key to encapsulate to
+     * @return SecretWithEncapsulation: shared secret and cipher text
+     */
     public SecretWithEncapsulation generateEncapsulated(AsymmetricKeyParameter recipientKey)
     {
         KyberPublicKeyParameters key = (KyberPublicKeyParameters)recipientKey;
         KyberEngine engine = key.getParameters().getEngine();
-        engine.init(sr);
-        byte[][] kemEncrypt = engine.kemEncrypt(key.getPublicKey());
+        byte[][] kemEncrypt;
+        if (key instanceof PreparedKyberPublicKey)
+        {
+            kemEncrypt = engine.kemEncrypt((PreparedKyberPublicKey)key, sr);
+        }
+        else
+        {
+            kemEncrypt = engine.kemEncrypt(key.getPublicKey(), sr);
+        }
+        return new KyberKEMGenerator.SecretWithEncapsulationImpl(kemEncrypt[0], kemEncrypt[1]);
+    }
+
+    /**
+     * Encapsulate to the recipient key using the caller's workspace for all intermediate values.
+     * @param recipientKey AsymmetricKeyParameter: Kyber public key to encapsulate to
+     * @param workspace KyberWorkspace: Workspace created for the same parameter set as the key
+     * @return SecretWithEncapsulation: shared secret and cipher text
+     */
+    public SecretWithEncapsulation generateEncapsulated(AsymmetricKeyParameter recipientKey, KyberWorkspace workspace)
+    {
+        KyberPublicKeyParameters key = (KyberPublicKeyParameters)recipientKey;
+        KyberEngine engine = key.getParameters().getEngine();
+        byte[][] kemEncrypt;
+        if (key instanceof PreparedKyberPublicKey)
+        {
+            kemEncrypt = engine.kemEncrypt((PreparedKyberPublicKey)key, workspace, sr);
+        }
+        else
+        {
+            kemEncrypt = engine.kemEncrypt(key.getPublicKey(), workspace, sr);
+        }
         return new KyberKEMGenerator.SecretWithEncapsulationImpl(kemEncrypt[0], kemEncrypt[1]);
     }
 
-    private class SecretWithEncapsulationImpl
+    /**
+     * Encapsulate to the recipient key, writing the cipher text and the shared
+     * secret straight into caller supplied buffers. The position of each buffer
+     * advances past the bytes written; buffers that are not backed by an
+     * accessible array are filled from the per-thread workspace.
+     * @param recipientKey AsymmetricKeyParameter: Kyber public key to encapsulate to
+     * @param encapsulation ByteBuffer: Receives the cipher text
+     * @param secret ByteBuffer: Receives the shared secret
+     */
+    public void generateEncapsulated(AsymmetricKeyParameter recipientKey, ByteBuffer encapsulation, ByteBuffer secret)
+    {
+        KyberPublicKeyParameters key = (KyberPublicKeyParameters)recipientKey;
+        KyberEngine engine = key.getParameters().getEngine();
+        if (key instanceof PreparedKyberPublicKey)
+        {
+            engine.kemEncrypt(encapsulation, secret, (PreparedKyberPublicKey)key, engine.getWorkspace(), sr);
+        }
+        else
+        {
+            engine.kemEncrypt(encapsulation, secret, ByteBuffer.wrap(key.getPublicKeyInternal()), engine.getWorkspace(), sr);
+        }
+    }
+
+    /**
+     * Encapsulate to the recipient key, writing the cipher text and the shared
+     * secret at offsets within caller supplied arrays.
+     * @param recipientKey AsymmetricKeyParameter: Kyber public key to encapsulate to
+     * @param encapsulation byte[]: Receives the cipher text
+     * @param encOff int: Offset to write the cipher text to
+     * @param secret byte[]: Receives the shared secret
+     * @param secretOff int: Offset to write the shared secret to
+     */
+    public void generateEncapsulated(AsymmetricKeyParameter recipientKey, byte[] encapsulation, int encOff, byte[] secret, int secretOff)
+    {
+        KyberPublicKeyParameters key = (KyberPublicKeyParameters)recipientKey;
+        KyberEngine engine = key.getParameters().getEngine();
+        if (key instanceof PreparedKyberPublicKey)
+        {
+            engine.kemEncrypt(encapsulation, encOff, secret, secretOff, (PreparedKyberPublicKey)key, engine.getWorkspace(), sr);
+        }
+        else
+        {
+            engine.kemEncrypt(encapsulation, encOff, secret, secretOff, key.getPublicKeyInternal(), 0, engine.getWorkspace(), sr);
+        }
+    }
+
+    /**
+     * Encapsulate a fresh secret to each recipient key. The randomness for the
+     * whole batch is drawn from the generator's SecureRandom up front, then the
+     * recipients are split across the generator's ForkJoinPool, each worker
+     * thread reusing its own workspace. Keys may mix parameter sets and may be
+     * {@link PreparedKyberPublicKey} instances.
+     * @param recipientKeys List: Kyber public keys to encapsulate to
+     * @return List: one SecretWithEncapsulation per key, in the order of recipientKeys
+     */
+    public List<SecretWithEncapsulation> generateEncapsulated(List<? extends AsymmetricKeyParameter> recipientKeys)
+    {
+        int count = recipientKeys.size();
+        KyberPublicKeyParameters[] keys = new KyberPublicKeyParameters[count];
+        for (int i = 0; i < count; i++)
+        {
+            keys[i] = (KyberPublicKeyParameters)recipientKeys.get(i);
+        }
+
+        byte[] coins = new byte[count * KyberEngine.KyberSymBytes];
+        sr.nextBytes(coins);
+
+        SecretWithEncapsulation[] results = new SecretWithEncapsulation[count];
+        pool.invoke(new EncapsulateTask(keys, coins, results, 0, count));
+        Arrays.clear(coins);
+
+        List<SecretWithEncapsulation> batch = new ArrayList<SecretWithEncapsulation>(count);
+        for (int i = 0; i < count; i++)
+        {
+            batch.add(results[i]);
+        }
+        return batch;
+    }
+
+    private class EncapsulateTask
+        extends RecursiveAction
+    {
+        private static final long serialVersionUID = 1L;
+
+        private final KyberPublicKeyParameters[] keys;
+        private final byte[] coins;
+        private final SecretWithEncapsulation[] results;
+        private final int from;
+        private final int to;
+
+        EncapsulateTask(KyberPublicKeyParameters[] keys, byte[] coins, SecretWithEncapsulation[] results, int from, int to)
+        {
+            this.keys = keys;
+            this.coins = coins;
+            this.results = results;
+            this.from = from;
+            this.to = to;
+        }
+
+        protected void compute()
+        {
+            if (to - from <= BATCH_THRESHOLD)
+            {
+                for (int i = from; i < to; i++)
+                {
+                    KyberEngine engine = keys[i].getParameters().getEngine();
+                    byte[] sessionKey = new byte[engine.getCryptoBytes()];
+                    byte[] cipherText = new byte[engine.getCryptoCipherTextBytes()];
+
+                    engine.kemEncrypt(cipherText, sessionKey, keys[i], coins, i * KyberEngine.KyberSymBytes, engine.getWorkspace());
+
+                    results[i] = new SecretWithEncapsulationImpl(sessionKey, cipherText);
+                }
+            }
+            else
+            {
+                int mid = (from + to) >>> 1;
+                invokeAll(new EncapsulateTask(keys, coins, results, from, mid),
+                    new EncapsulateTask(keys, coins, results, mid, to));
+            }
+        }
+    }
+
+    static class SecretWithEncapsulationImpl
         implements SecretWithEncapsulation
     {
 
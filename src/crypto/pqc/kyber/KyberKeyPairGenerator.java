@@ -25,9 +25,7 @@ public class KyberKeyPairGenerator
     {
         KyberEngine engine = kyberParams.getEngine();
 
-        engine.init(random);
-
-        byte[][] keyPair = engine.generateKemKeyPair();
+        byte[][] keyPair = engine.generateKemKeyPair(random);
 
         KyberPublicKeyParameters pubKey = new KyberPublicKeyParameters(kyberParams, keyPair[0]);
         KyberPrivateKeyParameters privKey = new KyberPrivateKeyParameters(kyberParams, keyPair[1]);
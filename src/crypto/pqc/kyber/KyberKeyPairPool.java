@@ -0,0 +1,353 @@
+package crypto.pqc.kyber;
+
+import java.io.Closeable;
+import java.security.SecureRandom;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+
+/**
+ * Pool of ephemeral Kyber key pairs generated ahead of time on background
+ * threads, so that handshakes take a key pair from a queue instead of
+ * paying for key generation on their critical path.
+ * <p>
+ * The queue never holds more than the high-water mark. Below that, the
+ * workers keep it at a target depth that follows the consumption rate:
+ * enough key pairs for REFILL_HORIZON_MILLIS of demand at the smoothed
+ * rate of the last seconds, and at least one per worker. A pool that
+ * starts idle holds only a few secret keys, a busy one grows up to the
+ * high-water mark; when demand drops the workers stop generating, and the
+ * queued key pairs stay until taken. When the queue is empty, takeKeyPair
+ * generates the key pair on the calling thread.
+ * <p>
+ * Every key pair is handed out once. Closing the pool stops the workers
+ * and drops the key pairs still queued.
+ */
+public class KyberKeyPairPool
+    implements Closeable
+{
+    /**
+     * Demand the target depth covers, in milliseconds
+     */
+    public static final long REFILL_HORIZON_MILLIS = 1000;
+
+    // interval at which the workers re-estimate the consumption rate
+    private static final long TICK_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+    // weight of the latest tick in the smoothed rate, about 2 s of memory
+    private static final double RATE_ALPHA = 0.05;
+
+    private static final AtomicInteger POOL_IDS = new AtomicInteger();
+
+    private final KyberParameters params;
+    private final SecureRandom random;
+    private final int highWaterMark;
+    private final int minDepth;
+    private final ArrayBlockingQueue<AsymmetricCipherKeyPair> queue;
+    private final Thread[] workers;
+
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition belowTarget = lock.newCondition();
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong generated = new AtomicLong();
+
+    // consumption rate estimate, updated by whichever worker sees a tick expire
+    private long tickStart;
+    private long tickTakes;
+    private volatile double rate;
+    private volatile int targetDepth;
+
+    // System.nanoTime() when the queue fell below its target, 0 while it is at or above it
+    private final AtomicLong belowTargetSince = new AtomicLong();
+
+    private volatile boolean closed;
+
+    /**
+     * Pool with one background worker on a daemon platform thread
+     * @param params KyberKeyGenerationParameters: Parameter set and source of randomness of the key pairs
+     * @param highWaterMark int: Most key pairs held at any time
+     */
+    public KyberKeyPairPool(KyberKeyGenerationParameters params, int highWaterMark)
+    {
+        this(params, highWaterMark, 1, null);
+    }
+
+    /**
+     * @param params KyberKeyGenerationParameters: Parameter set and source of randomness of the key pairs
+     * @param highWaterMark int: Most key pairs held at any time
+     * @param threads int: Number of background workers
+     * @param threadFactory ThreadFactory: Creates the workers, e.g. a virtual thread factory;
+     *                      null for daemon platform threads
+     */
+    public KyberKeyPairPool(KyberKeyGenerationParameters params, int highWaterMark, int threads, ThreadFactory threadFactory)
+    {
+        if (highWaterMark < 1)
+        {
+            throw new IllegalArgumentException("high-water mark must be at least 1: " + highWaterMark);
+        }
+        if (threads < 1)
+        {
+            throw new IllegalArgumentException("at least one worker thread is needed: " + threads);
+        }
+
+        this.params = params.getParameters();
+        this.random = params.getRandom();
+        this.highWaterMark = highWaterMark;
+        this.minDepth = Math.min(threads, highWaterMark);
+        this.targetDepth = minDepth;
+        this.queue = new ArrayBlockingQueue<AsymmetricCipherKeyPair>(highWaterMark);
+        this.tickStart = System.nanoTime();
+        this.belowTargetSince.set(tickStart);
+
+        final String name = this.params.getName() + "-keypair-pool-" + POOL_IDS.incrementAndGet() + "-";
+        if (threadFactory == null)
+        {
+            threadFactory = new ThreadFactory()
+            {
+                private final AtomicInteger count = new AtomicInteger();
+
+                public Thread newThread(Runnable r)
+                {
+                    Thread t = new Thread(r, name + count.incrementAndGet());
+                    t.setDaemon(true);
+                    return t;
+                }
+            };
+        }
+
+        Runnable worker = new Runnable()
+        {
+            public void run()
+            {
+                refill();
+            }
+        };
+        this.workers = new Thread[threads];
+        for (int i = 0; i < threads; i++)
+        {
+            workers[i] = threadFactory.newThread(worker);
+        }
+        for (int i = 0; i < threads; i++)
+        {
+            workers[i].start();
+        }
+    }
+
+    /**
+     * Takes a pre-generated key pair, or generates one on the calling
+     * thread if the pool is empty
+     * @return AsymmetricCipherKeyPair: Kyber key pair not handed out before
+     */
+    public AsymmetricCipherKeyPair takeKeyPair()
+    {
+        if (closed)
+        {
+            throw new IllegalStateException("pool is closed");
+        }
+
+        AsymmetricCipherKeyPair kp = queue.poll();
+        if (kp != null)
+        {
+            hits.incrementAndGet();
+        }
+        else
+        {
+            misses.incrementAndGet();
+            kp = generate();
+        }
+
+        if (queue.size() < targetDepth)
+        {
+            belowTargetSince.compareAndSet(0, System.nanoTime());
+            signal();
+        }
+        return kp;
+    }
+
+    /**
+     * Stops the workers and drops the queued key pairs
+     */
+    public void close()
+    {
+        closed = true;
+        for (int i = 0; i < workers.length; i++)
+        {
+            workers[i].interrupt();
+        }
+        queue.clear();
+    }
+
+    public KyberParameters getParameters()
+    {
+        return params;
+    }
+
+    /**
+     * @return long: Key pairs taken from the queue
+     */
+    public long getHits()
+    {
+        return hits.get();
+    }
+
+    /**
+     * @return long: Key pairs generated inline because the queue was empty
+     */
+    public long getMisses()
+    {
+        return misses.get();
+    }
+
+    /**
+     * @return double: Share of takeKeyPair calls served from the queue, 1 before the first call
+     */
+    public double getHitRate()
+    {
+        long h = hits.get(), n = h + misses.get();
+        return n == 0 ? 1.0 : (double)h / n;
+    }
+
+    /**
+     * @return long: Key pairs generated by the background workers
+     */
+    public long getGenerated()
+    {
+        return generated.get();
+    }
+
+    /**
+     * @return int: Key pairs currently queued
+     */
+    public int getQueueDepth()
+    {
+        return queue.size();
+    }
+
+    /**
+     * @return int: Depth the workers currently refill the queue to
+     */
+    public int getTargetDepth()
+    {
+        return targetDepth;
+    }
+
+    public int getHighWaterMark()
+    {
+        return highWaterMark;
+    }
+
+    /**
+     * @return double: Smoothed consumption rate in key pairs per second
+     */
+    public double getConsumptionRate()
+    {
+        return rate;
+    }
+
+    /**
+     * How far refilling is behind demand
+     * @return long: Nanoseconds the queue has been below its target depth, 0 if it is not
+     */
+    public long getRefillLagNanos()
+    {
+        long since = belowTargetSince.get();
+        return since == 0 ? 0 : Math.max(0, System.nanoTime() - since);
+    }
+
+    private AsymmetricCipherKeyPair generate()
+    {
+        byte[][] keyPair = params.getEngine().generateKemKeyPair(random);
+        return new AsymmetricCipherKeyPair(new KyberPublicKeyParameters(params, keyPair[0]),
+            new KyberPrivateKeyParameters(params, keyPair[1]));
+    }
+
+    private void signal()
+    {
+        lock.lock();
+        try
+        {
+            belowTarget.signal();
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private void refill()
+    {
+        while (!closed)
+        {
+            updateTarget();
+
+            if (queue.size() < targetDepth)
+            {
+                AsymmetricCipherKeyPair kp = generate();
+                if (closed || !queue.offer(kp))
+                {
+                    continue;
+                }
+                if (closed)
+                {
+                    // offered after close() cleared the queue
+                    queue.clear();
+                    continue;
+                }
+                generated.incrementAndGet();
+                continue;
+            }
+
+            belowTargetSince.set(0);
+            lock.lock();
+            try
+            {
+                if (queue.size() >= targetDepth)
+                {
+                    belowTarget.awaitNanos(TICK_NANOS);
+                }
+            }
+            catch (InterruptedException e)
+            {
+                // close() interrupts the workers, the loop checks closed
+            }
+            finally
+            {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * Re-estimates the consumption rate once per tick and derives the target depth from it
+     */
+    private synchronized void updateTarget()
+    {
+        long now = System.nanoTime();
+        long elapsed = now - tickStart;
+        if (elapsed < TICK_NANOS)
+        {
+            return;
+        }
+
+        long takes = hits.get() + misses.get();
+        double tickRate = (takes - tickTakes) * 1e9 / elapsed;
+        rate = rate + RATE_ALPHA * (tickRate - rate);
+        tickStart = now;
+        tickTakes = takes;
+
+        long demand = (long)Math.ceil(rate * REFILL_HORIZON_MILLIS / 1000.0);
+        int target = (int)Math.max(minDepth, Math.min(highWaterMark, demand));
+        targetDepth = target;
+        if (queue.size() < target)
+        {
+            belowTargetSince.compareAndSet(0, now);
+        }
+    }
+}
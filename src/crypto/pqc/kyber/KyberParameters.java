@@ -1,22 +1,109 @@
 package crypto.pqc.kyber;
 
+import crypto.pqc.probe.OperationListener;
+
 public class KyberParameters
 {
-    public static final KyberParameters kyber512 = new KyberParameters(2);
-    public static final KyberParameters kyber768 = new KyberParameters(3);
-    public static final KyberParameters kyber1024 = new KyberParameters(4);
+    public static final KyberParameters kyber512 = new KyberParameters(2, KyberArithmetic.DEFAULT, false);
+    public static final KyberParameters kyber768 = new KyberParameters(3, KyberArithmetic.DEFAULT, false);
+    public static final KyberParameters kyber1024 = new KyberParameters(4, KyberArithmetic.DEFAULT, false);
+
+    public static final KyberParameters kyber512_90s = new KyberParameters(2, KyberArithmetic.DEFAULT, true);
+    public static final KyberParameters kyber768_90s = new KyberParameters(3, KyberArithmetic.DEFAULT, true);
+    public static final KyberParameters kyber1024_90s = new KyberParameters(4, KyberArithmetic.DEFAULT, true);
 
     private final int k;
+    private final KyberEngine engine;
+
+    private KyberParameters(int k, KyberArithmetic arithmetic, boolean usingAes)
+    {
+        this(k, arithmetic, usingAes, OperationListener.DEFAULT);
+    }
 
-    private KyberParameters(int k)
+    private KyberParameters(int k, KyberArithmetic arithmetic, boolean usingAes, OperationListener listener)
     {
         this.k = k;
+        this.engine = new KyberEngine(k, arithmetic, usingAes, listener);
     }
 
-    KyberEngine getEngine()
+    /**
+     * Same parameter set computed with another NTT arithmetic.
+     * Keys and ciphertexts are interchangeable between the two. A null
+     * arithmetic, which KyberArithmetic.VECTOR is where unavailable, is rejected.
+     * @param arithmetic KyberArithmetic: Backend for the NTT domain operations
+     * @return KyberParameters: Parameter set with its own engine using the given arithmetic
+     */
+    public KyberParameters withArithmetic(KyberArithmetic arithmetic)
+    {
+        if (arithmetic == null)
+        {
+            throw new IllegalArgumentException("arithmetic is not available in this JVM");
+        }
+        if (arithmetic == engine.getArithmetic())
+        {
+            return this;
+        }
+        return new KyberParameters(k, arithmetic, engine.isUsingAes(), engine.getListener());
+    }
+
+    /**
+     * Same parameter set reporting its operations and their phases to a listener.
+     * Keys and ciphertexts are interchangeable between the two.
+     * @param listener OperationListener: Probe called at operation and phase boundaries
+     * @return KyberParameters: Parameter set with its own engine calling the given listener
+     */
+    public KyberParameters withListener(OperationListener listener)
+    {
+        if (listener == engine.getListener())
+        {
+            return this;
+        }
+        return new KyberParameters(k, engine.getArithmetic(), engine.isUsingAes(), listener);
+    }
+
+    /**
+     * Getter for the parameter set name
+     * @return String: kyber512, kyber768 or kyber1024, with an _90s suffix for the Kyber-90s variants
+     */
+    public String getName()
     {
+        return engine.getName();
+    }
+
+    /**
+     * Getter for the operation listener
+     * @return OperationListener: Probe of this parameter set's engine, OperationListener.DEFAULT unless replaced
+     */
+    public OperationListener getListener()
+    {
+        return engine.getListener();
+    }
+
+    /**
+     * Getter for the NTT arithmetic
+     * @return KyberArithmetic: Backend used by this parameter set's engine
+     */
+    public KyberArithmetic getArithmetic()
+    {
+        return engine.getArithmetic();
+    }
+
+    /**
+     * Getter for the symmetric primitives
+     * @return boolean: true for the Kyber-90s variants using SHA-2 and AES-256-CTR
+     */
+    public boolean isUsingAes()
+    {
+        return engine.isUsingAes();
+    }
 
-        return new KyberEngine(k);
+    /**
+     * The engine is immutable and shared by every user of this parameter set.
+     * @return KyberEngine: Engine for this parameter set
+     */
+    KyberEngine getEngine()
+    {
+        return engine;
     }
 
 }
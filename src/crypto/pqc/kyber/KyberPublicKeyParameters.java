@@ -18,6 +18,15 @@ public class KyberPublicKeyParameters
         return getPublicKey();
     }
 
+    /**
+     * The encoded key itself rather than a copy, for engine calls that only read it
+     * @return byte[]: Encoded public key, must not be modified
+     */
+    byte[] getPublicKeyInternal()
+    {
+        return publicKey;
+    }
+
     public KyberPublicKeyParameters(KyberParameters params, byte[] publicKey)
     {
         super(false, params);
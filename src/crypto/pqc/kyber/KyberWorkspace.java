@@ -0,0 +1,138 @@
+package crypto.pqc.kyber;
+
+import java.util.Arrays;
+
+/**
+ * Scratch space for one Kyber parameter set.
+ * Owns every intermediate polynomial, hash buffer and digest used by
+ * key generation, encapsulation and decapsulation, so that repeated
+ * operations on the same workspace do not allocate.
+ * A workspace must only be used by one thread at a time.
+ * <p>
+ * Every operation clears the buffers that held secret values - seeds,
+ * coins, the message, the secret and noise vectors and the decrypted or
+ * re-encrypted values - before it returns. The public key, matrix and
+ * cipher text buffers are left as they are.
+ */
+public final class KyberWorkspace
+{
+    private final int kyberK;
+    private final boolean usingAes;
+    private final KyberArithmetic arithmetic;
+
+    // Hashes, XOF and PRF
+    final Symmetric symmetric;
+
+    // Polynomials
+    final short[] aMatrix;
+    final PolyVec sp;
+    final PolyVec publicKeyPolyVec;
+    final PolyVec errorPolyVector;
+    final PolyVec bp;
+    final Poly errorPoly;
+    final Poly v;
+    final Poly k;
+
+
+    // Byte Buffers
+    final byte[] buf = new byte[2 * KyberEngine.KyberSymBytes];
+    final byte[] kr = new byte[2 * KyberEngine.KyberSymBytes];
+    final byte[] randBytes = new byte[KyberEngine.KyberSymBytes];
+    final byte[] cmp;
+    final byte[] xofBuf;
+    final int[] xofCtr;
+    final byte[] prfBuf = new byte[KyberEngine.KyberN * 3 / 4];
+    final short[] t = new short[KyberEngine.KyberN];
+
+    // Staging for ByteBuffers that are not backed by an accessible array
+    final byte[] keyBuf;
+    final byte[] ctBuf;
+    final byte[] ssBuf = new byte[KyberEngine.KyberSymBytes];
+
+    /**
+     * Creates a workspace sized for the given parameter set
+     * @param params KyberParameters: Parameter set the workspace is used with
+     */
+    public KyberWorkspace(KyberParameters params)
+    {
+        this(params.getEngine());
+    }
+
+    KyberWorkspace(KyberEngine engine)
+    {
+        this.kyberK = engine.getKyberK();
+        this.usingAes = engine.isUsingAes();
+        this.arithmetic = engine.getArithmetic();
+        this.symmetric = Symmetric.create(usingAes);
+        this.xofBuf = new byte[symmetric.xofLanes() * symmetric.xofBufStride()];
+        this.xofCtr = new int[symmetric.xofLanes()];
+
+        this.aMatrix = new short[kyberK * kyberK * KyberEngine.KyberN];
+        this.sp = new PolyVec(engine);
+        this.publicKeyPolyVec = new PolyVec(engine);
+        this.errorPolyVector = new PolyVec(engine);
+        this.bp = new PolyVec(engine);
+        this.errorPoly = new Poly(engine);
+        this.v = new Poly(engine);
+        this.k = new Poly(engine);
+
+        this.cmp = new byte[engine.getKyberCipherTextBytes()];
+        this.keyBuf = new byte[engine.getKyberSecretKeyBytes()];
+        this.ctBuf = new byte[engine.getKyberCipherTextBytes()];
+    }
+
+    /**
+     * Getter for K
+     * @return int: Kyber K the workspace was sized for
+     */
+    public int getKyberK()
+    {
+        return kyberK;
+    }
+
+    /**
+     * Getter for the symmetric primitives the workspace holds
+     * @return boolean: true if sized for a Kyber-90s parameter set
+     */
+    public boolean isUsingAes()
+    {
+        return usingAes;
+    }
+
+    /**
+     * Getter for the NTT arithmetic the workspace polynomials use
+     * @return KyberArithmetic: Backend of the engine the workspace was created for
+     */
+    KyberArithmetic getArithmetic()
+    {
+        return arithmetic;
+    }
+
+    /**
+     * Zeroizes every buffer that may hold a secret value at the end of an operation
+     */
+    void clearSecrets()
+    {
+        Arrays.fill(buf, (byte)0);
+        Arrays.fill(kr, (byte)0);
+        Arrays.fill(randBytes, (byte)0);
+        Arrays.fill(cmp, (byte)0);
+        Arrays.fill(prfBuf, (byte)0);
+        Arrays.fill(t, (short)0);
+        sp.clear();
+        errorPolyVector.clear();
+        bp.clear();
+        errorPoly.clear();
+        v.clear();
+        k.clear();
+    }
+
+    /**
+     * Zeroizes the ByteBuffer staging arrays that may hold a secret key or shared secret
+     */
+    void clearStaging()
+    {
+        Arrays.fill(keyBuf, (byte)0);
+        Arrays.fill(ssBuf, (byte)0);
+    }
+}
@@ -110,7 +110,7 @@ public class Ntt
 
     /**
      * NTT
-     * Inplace number-theoretic transform (NTT) in Rq
+     * Number-theoretic transform (NTT) in Rq on a copy of the input
      * input is in standard order, output is in bitreversed order
      * @param inp Array of Short: Standard Polynomial Values
      * @return Array of Short: Bit Reversed Polynomial Values
@@ -119,6 +119,19 @@ public class Ntt
     {
         short[] r = new short[KyberEngine.KyberN];
         System.arraycopy(inp, 0, r, 0, r.length);
+        ntt(r, 0);
+        return r;
+    }
+
+    /**
+     * NTT
+     * Inplace number-theoretic transform (NTT) in Rq
+     * input is in standard order, output is in bitreversed order
+     * @param r Array of Short: Coefficients to transform
+     * @param off int: Offset of the first coefficient in r
+     */
+    public static void ntt(short[] r, int off)
+    {
         int len, start, j, k;
         short t, zeta;
 
@@ -130,21 +143,18 @@ public class Ntt
                 zeta = nttZetas[k++];
                 for (j = start; j < start + len; ++j)
                 {
-                    t = factorQMulMont(zeta, r[j + len]);
-                    r[j + len] = (short)(r[j] - t);
-                    r[j] = (short)(r[j] + t);
+                    t = factorQMulMont(zeta, r[off + j + len]);
+                    r[off + j + len] = (short)(r[off + j] - t);
+                    r[off + j] = (short)(r[off + j] + t);
                 }
             }
         }
-        return r;
     }
 
-    
-
     /**
      * Inverse NTT
-     * Inplace inverse number-theoretic transform in Rq and
-     * multiplication by Montgomery factor 2^16.
+     * Inverse number-theoretic transform in Rq on a copy of the input
+     * and multiplication by Montgomery factor 2^16.
      * @param inp
      * @return
      */
@@ -152,6 +162,19 @@ public class Ntt
     {
         short[] r = new short[KyberEngine.KyberN];
         System.arraycopy(inp, 0, r, 0, KyberEngine.KyberN);
+        invNtt(r, 0);
+        return r;
+    }
+
+    /**
+     * Inverse NTT
+     * Inplace inverse number-theoretic transform in Rq and
+     * multiplication by Montgomery factor 2^16.
+     * @param r Array of Short: Coefficients to transform
+     * @param off int: Offset of the first coefficient in r
+     */
+    public static void invNtt(short[] r, int off)
+    {
         int len, start, j, k;
         short t, zeta;
         k = 0;
@@ -162,10 +185,10 @@ public class Ntt
                 zeta = nttZetasInv[k++];
                 for (j = start; j < start + len; ++j)
                 {
-                    t = r[j];
-                    r[j] = Reduce.barretReduce((short)(t + r[j + len]));
-                    r[j + len] = (short)(t - r[j + len]);
-                    r[j + len] = factorQMulMont(zeta, r[j + len]);
+                    t = r[off + j];
+                    r[off + j] = Reduce.barretReduce((short)(t + r[off + j + len]));
+                    r[off + j + len] = (short)(t - r[off + j + len]);
+                    r[off + j + len] = factorQMulMont(zeta, r[off + j + len]);
 
                 }
             }
@@ -175,9 +198,8 @@ public class Ntt
         // Multiply Inverse NTT by MONT
         for (j = 0; j < 256; ++j)
         {
-            r[j] = factorQMulMont(r[j], Ntt.nttZetasInv[127]);
+            r[off + j] = factorQMulMont(r[off + j], Ntt.nttZetasInv[127]);
         }
-        return r;
     }
 
     /**
@@ -209,14 +231,29 @@ public class Ntt
      * @param zeta
      */
     public static void baseMult(Poly outPoly, int outIndex, short a0, short a1, short b0, short b1, short zeta)
+    {
+        baseMult(outPoly.coeffArray(), outPoly.coeffOffset() + outIndex, a0, a1, b0, b1, zeta);
+    }
+
+    /**
+     * Base Multiplication / Butterfly into a coefficient array
+     * @param r Output coefficient array
+     * @param rIndex Index within r of the first output coefficient
+     * @param a0
+     * @param a1
+     * @param b0
+     * @param b1
+     * @param zeta
+     */
+    static void baseMult(short[] r, int rIndex, short a0, short a1, short b0, short b1, short zeta)
     {
         short outVal0 = factorQMulMont(a1, b1);
         outVal0 = factorQMulMont(outVal0, zeta);
         outVal0 += factorQMulMont(a0, b0);
-        outPoly.setCoeffIndex(outIndex, outVal0);
+        r[rIndex] = outVal0;
 
         short outVal1 = factorQMulMont(a0, b1);
         outVal1 += factorQMulMont(a1, b0);
-        outPoly.setCoeffIndex(outIndex + 1, outVal1);
+        r[rIndex + 1] = outVal1;
     }
 }
\ No newline at end of file
@@ -0,0 +1,230 @@
+package crypto.pqc.kyber;
+
+/**
+ * Plantard arithmetic for the Kyber NTT, inverse NTT and base multiplication.
+ * <p>
+ * Every twiddle factor b is stored premultiplied as b * q^-1 mod 2^32, so a
+ * multiplication by a constant costs one 32-bit product and the Plantard
+ * reduction in Reduce.plantardMulReduce, which yields a * b * -2^-32 mod q.
+ * The tables fold -2^32 into every twiddle, so the transforms compute the
+ * same residues as the Montgomery ones in Ntt.
+ * <p>
+ * Base multiplication leaves its products scaled by -2^-32 instead of the
+ * Montgomery 2^-16. The inverse NTT and the conversion of the public key
+ * cancel that factor, so every value leaving the NTT domain - and therefore
+ * keys, ciphertexts and shared secrets - is identical to the Montgomery path.
+ */
+public class PlantardNtt
+{
+
+    /* Code to generate the tables (Python):
+
+    q = 3329
+    qinv = pow(q, -1, 2**32)                # 1806234369
+    pinv = -2**32 % q                       # (-2^-32)^-1 mod q
+    rinv = pow(2**16, -1, q)                # undoes the Montgomery factor of Ntt's tables
+
+    def center(x):
+        x %= q
+        return x - q if x > q // 2 else x
+
+    def plantard(b):                        # b * -2^32 * q^-1 mod 2^32, signed
+        c = center(b * pinv) * qinv % 2**32
+        return c - 2**32 if c >= 2**31 else c
+
+    zetas     = [plantard(z * rinv) for z in Ntt.nttZetas]
+    zetasInv  = [plantard(z * rinv) for z in Ntt.nttZetasInv[:127]]
+    zetasInv += [plantard(pinv * pow(128, -1, q))]
+    baseZetas = [center(z * rinv * pinv) for z in Ntt.nttZetas[64:]]
+    convert   = plantard(pinv)
+
+    */
+
+    public static final int[] nttZetas = new int[]{
+        1290167, -2064267850, -966335387, -51606696, -886345008, 812805466,
+        -1847519726, 1094061961, 1370157786, -1819136043, 249002309, 1028263423,
+        -700560902, -89021551, 734105254, -2042335004, 381889552, -1137927652,
+        1727534157, 1904287092, -365117376, 72249375, -1404992306, 1719793153,
+        1839778722, -1593356747, 690239562, -576704831, -1207596692, -580575333,
+        -1748176836, 1059227441, 372858380, 427045412, -98052723, -2029433330,
+        1544330385, -1322421592, -1357256112, -1643673276, 838608814, -1744306333,
+        -1052776604, 815385801, -598637677, 42575524, 1703020976, -1824296713,
+        -1303069080, 1851390228, 1041165097, 583155668, 1855260730, -594767174,
+        1979116801, -1195985186, -879894171, -918599193, 1910737929, 836028479,
+        -1103093132, -282546662, 1583035408, 1174052340, 21932846, -732815087,
+        752167598, -877313836, 2112004044, 932791035, -1343064270, 1419184147,
+        1817845876, -860541660, -61928036, 300609006, 975366559, -1513366368,
+        -405112566, -359956706, -2097812203, 2130066388, -696690399, -1986857806,
+        -1912028096, 1228239371, 1884934581, -828287475, 1211467195, -1317260922,
+        -1150829327, -1214047529, 945692709, -1279846067, 345764865, 826997308,
+        2043625172, -1330162596, -1666896289, -140628247, 483812777, -1006330577,
+        -1598517417, 2122325384, 1371447953, 411563403, -717333078, 976656727,
+        -1586905910, 723783915, -1113414472, -948273044, -677337888, 1408862808,
+        519937465, 1323711759, 1474661346, -1521107372, -714752743, 1143088322,
+        -2073299022, 1563682897, -1877193576, 1327582261, -1572714068, -508325958,
+        1141798155, -1515946703};
+
+    public static final int[] nttZetasInv = new int[]{
+        1515946703, -1141798155, 508325958, 1572714068, -1327582261, 1877193576,
+        -1563682897, 2073299022, -1143088322, 714752743, 1521107372, -1474661346,
+        -1323711759, -519937465, -1408862808, 677337888, 948273044, 1113414472,
+        -723783915, 1586905910, -976656727, 717333078, -411563403, -1371447953,
+        -2122325384, 1598517417, 1006330577, -483812777, 140628247, 1666896289,
+        1330162596, -2043625172, -826997308, -345764865, 1279846067, -945692709,
+        1214047529, 1150829327, 1317260922, -1211467195, 828287475, -1884934581,
+        -1228239371, 1912028096, 1986857806, 696690399, -2130066388, 2097812203,
+        359956706, 405112566, 1513366368, -975366559, -300609006, 61928036,
+        860541660, -1817845876, -1419184147, 1343064270, -932791035, -2112004044,
+        877313836, -752167598, 732815087, -21932846, -1174052340, -1583035408,
+        282546662, 1103093132, -836028479, -1910737929, 918599193, 879894171,
+        1195985186, -1979116801, 594767174, -1855260730, -583155668, -1041165097,
+        -1851390228, 1303069080, 1824296713, -1703020976, -42575524, 598637677,
+        -815385801, 1052776604, 1744306333, -838608814, 1643673276, 1357256112,
+        1322421592, -1544330385, 2029433330, 98052723, -427045412, -372858380,
+        -1059227441, 1748176836, 580575333, 1207596692, 576704831, -690239562,
+        1593356747, -1839778722, -1719793153, 1404992306, -72249375, 365117376,
+        -1904287092, -1727534157, 1137927652, -381889552, 2042335004, -734105254,
+        89021551, 700560902, -1028263423, -249002309, 1819136043, -1370157786,
+        -1094061961, 1847519726, -812805466, 886345008, 51606696, 966335387,
+        2064267850, -1859131233};
+
+    /**
+     * Zetas of the degree two factors used by base multiplication,
+     * as plain residues zeta * -2^32 mod q
+     */
+    public static final short[] baseMultZetas = new short[]{
+        302, -495, 174, 1236, -1076, 507, 306, -237, 1140, 292, -1636, 1006,
+        -865, -864, -1270, 1310, -491, -44, 1569, -334, 1088, 267, 693, -243,
+        1211, -122, -1551, 1495, 293, 589, 257, 1596, 724, 92, 351, 1001,
+        -1367, 47, -1449, 1416, -111, 1163, -86, 1111, -310, -21, -840, -916,
+        1248, 600, 697, 15, 1506, 596, 537, -318, 434, 1361, 1176, -715,
+        1452, 442, 1035, -1487};
+
+    /**
+     * -2^32 in Plantard form; removes the -2^-32 factor
+     * left by base multiplication when converting the public key
+     */
+    private static final int convertFactor = -1745596501;
+
+    /**
+     * NTT
+     * Inplace number-theoretic transform (NTT) in Rq using Plantard multiplication
+     * input is in standard order, output is in bitreversed order
+     * @param r Array of Short: Coefficients to transform
+     * @param off int: Offset of the first coefficient in r
+     */
+    public static void ntt(short[] r, int off)
+    {
+        int len, start, j, k, zeta;
+        short t;
+
+        k = 1;
+        for (len = 128; len >= 2; len >>= 1)
+        {
+            for (start = 0; start < 256; start = j + len)
+            {
+                zeta = nttZetas[k++];
+                for (j = start; j < start + len; ++j)
+                {
+                    t = Reduce.plantardMulReduce(r[off + j + len], zeta);
+                    r[off + j + len] = (short)(r[off + j] - t);
+                    r[off + j] = (short)(r[off + j] + t);
+                }
+            }
+        }
+    }
+
+    /**
+     * Inverse NTT
+     * Inplace inverse number-theoretic transform in Rq using Plantard multiplication.
+     * The final scaling by 1/128 also removes the -2^-32 factor of base
+     * multiplication, the counterpart of the Montgomery factor 2^16 in Ntt.invNtt.
+     * @param r Array of Short: Coefficients to transform
+     * @param off int: Offset of the first coefficient in r
+     */
+    public static void invNtt(short[] r, int off)
+    {
+        int len, start, j, k, zeta;
+        short t;
+
+        k = 0;
+        for (len = 2; len <= 128; len <<= 1)
+        {
+            for (start = 0; start < 256; start = j + len)
+            {
+                zeta = nttZetasInv[k++];
+                for (j = start; j < start + len; ++j)
+                {
+                    t = r[off + j];
+                    r[off + j] = Reduce.barretReduce((short)(t + r[off + j + len]));
+                    r[off + j + len] = Reduce.plantardMulReduce((short)(t - r[off + j + len]), zeta);
+                }
+            }
+        }
+
+        for (j = 0; j < 256; ++j)
+        {
+            r[off + j] = Reduce.plantardMulReduce(r[off + j], nttZetasInv[127]);
+        }
+    }
+
+    /**
+     * Multiplication of two polynomials in NTT domain, result scaled by -2^-32
+     * @param r short[]: Output coefficient array
+     * @param rOff int: Offset of the output polynomial
+     * @param a short[]: First input coefficient array
+     * @param aOff int: Offset of the first input polynomial
+     * @param b short[]: Second input coefficient array
+     * @param bOff int: Offset of the second input polynomial
+     */
+    public static void baseMult(short[] r, int rOff, short[] a, int aOff, short[] b, int bOff)
+    {
+        int i;
+        short zeta;
+        for (i = 0; i < KyberEngine.KyberN / 4; i++)
+        {
+            zeta = baseMultZetas[i];
+            baseMult(r, rOff + 4 * i,
+                a[aOff + 4 * i], a[aOff + 4 * i + 1],
+                b[bOff + 4 * i], b[bOff + 4 * i + 1],
+                zeta);
+            baseMult(r, rOff + 4 * i + 2,
+                a[aOff + 4 * i + 2], a[aOff + 4 * i + 3],
+                b[bOff + 4 * i + 2], b[bOff + 4 * i + 3],
+                (short)(-zeta));
+        }
+    }
+
+    /**
+     * Base Multiplication in Zq[X]/(X^2-zeta)
+     * Products are summed before reducing, so a pair costs three
+     * Plantard reductions instead of five Montgomery ones.
+     * @param r Output coefficient array
+     * @param rIndex Index within r of the first output coefficient
+     * @param a0
+     * @param a1
+     * @param b0
+     * @param b1
+     * @param zeta short: zeta * -2^32 mod q
+     */
+    static void baseMult(short[] r, int rIndex, short a0, short a1, short b0, short b1, short zeta)
+    {
+        short t = Reduce.plantardReduce(a1 * b1);
+        r[rIndex] = Reduce.plantardReduce(t * zeta + a0 * b0);
+        r[rIndex + 1] = Reduce.plantardReduce(a0 * b1 + a1 * b0);
+    }
+
+    /**
+     * Inplace conversion of the public key polynomial after base multiplication,
+     * the Plantard counterpart of Poly.convertToMont
+     * @param r short[]: Coefficient array
+     * @param off int: Offset of the polynomial
+     */
+    public static void convertToMont(short[] r, int off)
+    {
+        for (int i = off; i < off + KyberEngine.KyberN; i++)
+        {
+            r[i] = Reduce.plantardMulReduce(r[i], convertFactor);
+        }
+    }
+}
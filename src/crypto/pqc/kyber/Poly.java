@@ -2,43 +2,94 @@ package crypto.pqc.kyber;
 
 import java.util.Arrays;
 
-import org.bouncycastle.crypto.digests.SHAKEDigest;
-
+/**
+ * A polynomial of Kyber N coefficients, stored at an offset within a short array.
+ * A Poly either owns its array or is a view into the flat coefficient array
+ * of a PolyVec. The kernels behind every method are also available as static
+ * methods working on (array, offset) pairs, which is what PolyVec and the
+ * matrix code use directly.
+ */
 public class Poly
 {
-    private short[] coeffs;
-    private KyberEngine engine;
-    private int polyCompressedBytes;
-    private int eta1;
-    private int eta2;
+    private final short[] coeffs;
+    private final int off;
+    private final int polyCompressedBytes;
+    private final int eta1;
+    private final KyberArithmetic arithmetic;
+    private final boolean usingAes;
 
     public Poly(KyberEngine engine)
     {
-        this.coeffs = new short[KyberEngine.KyberN];
-        this.engine = engine;
-        polyCompressedBytes = engine.getKyberPolyCompressedBytes();
+        this(engine, new short[KyberEngine.KyberN], 0);
+    }
+
+    /**
+     * View onto Kyber N coefficients of an existing array
+     * @param engine KyberEngine: Engine holding the parameters
+     * @param coeffs short[]: Backing coefficient array
+     * @param off int: Offset of the first coefficient
+     */
+    Poly(KyberEngine engine, short[] coeffs, int off)
+    {
+        this.coeffs = coeffs;
+        this.off = off;
+        this.polyCompressedBytes = engine.getKyberPolyCompressedBytes();
         this.eta1 = engine.getKyberEta1();
-        this.eta2 = engine.getKyberEta2();
+        this.arithmetic = engine.getArithmetic();
+        this.usingAes = engine.isUsingAes();
     }
 
     public short getCoeffIndex(int i)
     {
-        return this.coeffs[i];
+        return this.coeffs[off + i];
     }
 
+    /**
+     * Coefficients of the polynomial. For a polynomial that owns its
+     * array this is the array itself, for a view it is a copy.
+     * @return short[]: Kyber N coefficients
+     */
     public short[] getCoeffs()
     {
-        return this.coeffs;
+        if (off == 0 && coeffs.length == KyberEngine.KyberN)
+        {
+            return this.coeffs;
+        }
+        return Arrays.copyOfRange(coeffs, off, off + KyberEngine.KyberN);
     }
 
     public void setCoeffIndex(int i, short val)
     {
-        this.coeffs[i] = val;
+        this.coeffs[off + i] = val;
     }
 
     public void setCoeffs(short[] coeffs)
     {
-        this.coeffs = coeffs;
+        System.arraycopy(coeffs, 0, this.coeffs, off, KyberEngine.KyberN);
+    }
+
+    /**
+     * Sets every coefficient to zero
+     */
+    void clear()
+    {
+        Arrays.fill(coeffs, off, off + KyberEngine.KyberN, (short)0);
+    }
+
+    /**
+     * @return short[]: Backing coefficient array
+     */
+    short[] coeffArray()
+    {
+        return coeffs;
+    }
+
+    /**
+     * @return int: Offset of the first coefficient in the backing array
+     */
+    int coeffOffset()
+    {
+        return off;
     }
 
 
@@ -49,14 +100,8 @@ public class Poly
      */
     public void polyNtt()
     {
-        // Make Constant Space Complexity
-        this.setCoeffs(Ntt.ntt(this.getCoeffs()));
-        // System.out.print("PolyNTT = [");
-        // for (int i = 0; i < KyberEngine.KyberN; i++) {
-        //     System.out.printf("%d, ", this.getCoeffIndex(i));
-        // }
-        // System.out.println("]");
-        this.reduce();
+        arithmetic.ntt(coeffs, off);
+        arithmetic.reduce(coeffs, off, KyberEngine.KyberN);
     }
 
     /**
@@ -66,7 +111,7 @@ public class Poly
      */
     public void polyInverseNttToMont()
     {
-        this.setCoeffs(Ntt.invNtt(this.getCoeffs()));
+        arithmetic.invNtt(coeffs, off);
     }
 
     /**
@@ -75,10 +120,20 @@ public class Poly
      */
     public void reduce()
     {
-        int i;
-        for (i = 0; i < KyberEngine.KyberN; i++)
+        arithmetic.reduce(coeffs, off, KyberEngine.KyberN);
+    }
+
+    /**
+     * Barrett reduction of len consecutive coefficients
+     * @param r short[]: Coefficient array
+     * @param off int: Offset of the first coefficient
+     * @param len int: Number of coefficients, a multiple of Kyber N for whole polynomials
+     */
+    static void reduce(short[] r, int off, int len)
+    {
+        for (int i = off; i < off + len; i++)
         {
-            this.setCoeffIndex(i, Reduce.barretReduce(this.getCoeffIndex(i)));
+            r[i] = Reduce.barretReduce(r[i]);
         }
     }
 
@@ -89,17 +144,31 @@ public class Poly
      * @param b Poly: Second input Polynomial
      */
     public static void baseMultMontgomery(Poly r, Poly a, Poly b)
+    {
+        r.arithmetic.baseMult(r.coeffs, r.off, a.coeffs, a.off, b.coeffs, b.off);
+    }
+
+    /**
+     * Multiplication of two polynomials in NTT domain
+     * @param r short[]: Output coefficient array
+     * @param rOff int: Offset of the output polynomial
+     * @param a short[]: First input coefficient array
+     * @param aOff int: Offset of the first input polynomial
+     * @param b short[]: Second input coefficient array
+     * @param bOff int: Offset of the second input polynomial
+     */
+    static void baseMultMontgomery(short[] r, int rOff, short[] a, int aOff, short[] b, int bOff)
     {
         int i;
         for (i = 0; i < KyberEngine.KyberN / 4; i++)
         {
-            Ntt.baseMult(r, 4 * i,
-                a.getCoeffIndex(4 * i), a.getCoeffIndex(4 * i + 1),
-                b.getCoeffIndex(4 * i), b.getCoeffIndex(4 * i + 1),
+            Ntt.baseMult(r, rOff + 4 * i,
+                a[aOff + 4 * i], a[aOff + 4 * i + 1],
+                b[bOff + 4 * i], b[bOff + 4 * i + 1],
                 Ntt.nttZetas[64 + i]);
-            Ntt.baseMult(r, 4 * i + 2,
-                a.getCoeffIndex(4 * i + 2), a.getCoeffIndex(4 * i + 3),
-                b.getCoeffIndex(4 * i + 2), b.getCoeffIndex(4 * i + 3),
+            Ntt.baseMult(r, rOff + 4 * i + 2,
+                a[aOff + 4 * i + 2], a[aOff + 4 * i + 3],
+                b[bOff + 4 * i + 2], b[bOff + 4 * i + 3],
                 (short)(-1 * Ntt.nttZetas[64 + i]));
         }
     }
@@ -111,10 +180,22 @@ public class Poly
      */
     public void addCoeffs(Poly b)
     {
-        int i;
-        for (i = 0; i < KyberEngine.KyberN; i++)
+        add(coeffs, off, b.coeffs, b.off, KyberEngine.KyberN);
+    }
+
+    /**
+     * Add len consecutive coefficients of b to r
+     * @param r short[]: Coefficient array added to
+     * @param rOff int: Offset within r
+     * @param b short[]: Coefficient array to add
+     * @param bOff int: Offset within b
+     * @param len int: Number of coefficients
+     */
+    static void add(short[] r, int rOff, short[] b, int bOff, int len)
+    {
+        for (int i = 0; i < len; i++)
         {
-            this.setCoeffIndex(i, (short)(this.getCoeffIndex(i) + b.getCoeffIndex(i)));
+            r[rOff + i] = (short)(r[rOff + i] + b[bOff + i]);
         }
     }
 
@@ -123,13 +204,18 @@ public class Poly
      * from normal domain to Montgomery domain
      */
     public void convertToMont()
+    {
+        arithmetic.convertToMont(coeffs, off);
+    }
+
+    static void convertToMont(short[] r, int off)
     {
         int i;
         final short f = (short)(((long)1 << 32) % KyberEngine.KyberQ);
-        for (i = 0; i < KyberEngine.KyberN; i++)
+        for (i = off; i < off + KyberEngine.KyberN; i++)
         {
-            // this.setCoeffIndex(i, Reduce.plantardReduce(this.getCoeffIndex(i) * f));
-            this.setCoeffIndex(i, Reduce.montgomeryReduce(this.getCoeffIndex(i) * f));
+            // r[i] = Reduce.plantardReduce(r[i] * f);
+            r[i] = Reduce.montgomeryReduce(r[i] * f);
         }
     }
 
@@ -139,34 +225,36 @@ public class Poly
      */
     public byte[] compressPoly()
     {
-        int i, j;
-        byte[] t = new byte[8];
         byte[] r = new byte[polyCompressedBytes];
-        int count = 0;
-        this.conditionalSubQ();
+        compressPoly(r, 0);
+        return r;
+    }
 
-        // System.out.print("v = [");
-        // Helper.printShortArray(this.coeffs);
-        // System.out.print("]\n");
+    /**
+     * Compression and subsequent serialization of a polynomial
+     * into an existing byte array
+     * @param r byte[]: Output Byte Array
+     * @param off int: Offset within r to write the compressed polynomial to
+     */
+    public void compressPoly(byte[] r, int off)
+    {
+        int i, j;
+        int t0, t1, t2, t3, t4, t5, t6, t7;
+        int count = off;
+        short[] c = this.coeffs;
+        int co = this.off;
+        this.conditionalSubQ();
 
         if (polyCompressedBytes == 128)
         {
             for (i = 0; i < KyberEngine.KyberN / 8; i++)
             {
-                for (j = 0; j < 8; j++)
+                for (j = 0; j < 4; j++)
                 {
-                    t[j] =
-                        (byte)((((((short)this.getCoeffIndex(8 * i + j)) << 4)
-                            +
-                            (KyberEngine.KyberQ / 2)
-                        ) / KyberEngine.KyberQ)
-                            & 15);
+                    t0 = compress4(c[co + 8 * i + 2 * j]);
+                    t1 = compress4(c[co + 8 * i + 2 * j + 1]);
+                    r[count + j] = (byte)(t0 | (t1 << 4));
                 }
-
-                r[count + 0] = (byte)(t[0] | (t[1] << 4));
-                r[count + 1] = (byte)(t[2] | (t[3] << 4));
-                r[count + 2] = (byte)(t[4] | (t[5] << 4));
-                r[count + 3] = (byte)(t[6] | (t[7] << 4));
                 count += 4;
             }
         }
@@ -174,21 +262,19 @@ public class Poly
         {
             for (i = 0; i < KyberEngine.KyberN / 8; i++)
             {
-                for (j = 0; j < 8; j++)
-                {
-                    t[j] =
-                        (byte)(((((this.getCoeffIndex(8 * i + j) << 5))
-                            +
-                            (KyberEngine.KyberQ / 2)
-                        ) / KyberEngine.KyberQ
-                        ) & 31
-                        );
-                }
-                r[count + 0] = (byte)((t[0] >> 0) | (t[1] << 5));
-                r[count + 1] = (byte)((t[1] >> 3) | (t[2] << 2) | (t[3] << 7));
-                r[count + 2] = (byte)((t[3] >> 1) | (t[4] << 4));
-                r[count + 3] = (byte)((t[4] >> 4) | (t[5] << 1) | (t[6] << 6));
-                r[count + 4] = (byte)((t[6] >> 2) | (t[7] << 3));
+                t0 = compress5(c[co + 8 * i + 0]);
+                t1 = compress5(c[co + 8 * i + 1]);
+                t2 = compress5(c[co + 8 * i + 2]);
+                t3 = compress5(c[co + 8 * i + 3]);
+                t4 = compress5(c[co + 8 * i + 4]);
+                t5 = compress5(c[co + 8 * i + 5]);
+                t6 = compress5(c[co + 8 * i + 6]);
+                t7 = compress5(c[co + 8 * i + 7]);
+                r[count + 0] = (byte)((t0 >> 0) | (t1 << 5));
+                r[count + 1] = (byte)((t1 >> 3) | (t2 << 2) | (t3 << 7));
+                r[count + 2] = (byte)((t3 >> 1) | (t4 << 4));
+                r[count + 3] = (byte)((t4 >> 4) | (t5 << 1) | (t6 << 6));
+                r[count + 4] = (byte)((t6 >> 2) | (t7 << 3));
                 count += 5;
             }
         }
@@ -196,12 +282,16 @@ public class Poly
         {
             throw new RuntimeException("PolyCompressedBytes is neither 128 or 160!");
         }
+    }
 
-        // System.out.print("r = ");
-        // Helper.printByteArray(r);
-        // System.out.println();
+    private static int compress4(short c)
+    {
+        return ((((c << 4) + (KyberEngine.KyberQ / 2)) / KyberEngine.KyberQ) & 15);
+    }
 
-        return r;
+    private static int compress5(short c)
+    {
+        return ((((c << 5) + (KyberEngine.KyberQ / 2)) / KyberEngine.KyberQ) & 31);
     }
 
     /**
@@ -211,9 +301,21 @@ public class Poly
      */
     public void decompressPoly(byte[] compressedPolyCipherText)
     {
-        int i, count = 0;
+        decompressPoly(compressedPolyCipherText, 0);
+    }
+
+    /**
+     * De-serialization and subsequent decompression of a polynomial;
+     * Approximate Inverse of compressPoly
+     * @param compressedPolyCipherText byte[]: Byte Array holding the Compressed Poly
+     * @param off int: Offset of the Compressed Poly within the Byte Array
+     */
+    public void decompressPoly(byte[] compressedPolyCipherText, int off)
+    {
+        int i, j, count = off;
+        int t0, t1, t2, t3, t4, t5, t6, t7;
 
-        if (engine.getKyberPolyCompressedBytes() == 128)
+        if (polyCompressedBytes == 128)
         {
             for (i = 0; i < KyberEngine.KyberN / 2; i++)
             {
@@ -222,25 +324,27 @@ public class Poly
                 count += 1;
             }
         }
-        else if (engine.getKyberPolyCompressedBytes() == 160)
+        else if (polyCompressedBytes == 160)
         {
-            int j;
-            byte[] t = new byte[8];
             for (i = 0; i < KyberEngine.KyberN / 8; i++)
             {
-                t[0] = (byte)((compressedPolyCipherText[count + 0] & 0xFF) >> 0);
-                t[1] = (byte)(((compressedPolyCipherText[count + 0] & 0xFF) >> 5) | ((compressedPolyCipherText[count + 1] & 0xFF) << 3));
-                t[2] = (byte)((compressedPolyCipherText[count + 1] & 0xFF) >> 2);
-                t[3] = (byte)(((compressedPolyCipherText[count + 1] & 0xFF) >> 7) | ((compressedPolyCipherText[count + 2] & 0xFF) << 1));
-                t[4] = (byte)(((compressedPolyCipherText[count + 2] & 0xFF) >> 4) | ((compressedPolyCipherText[count + 3] & 0xFF) << 4));
-                t[5] = (byte)((compressedPolyCipherText[count + 3] & 0xFF) >> 1);
-                t[6] = (byte)(((compressedPolyCipherText[count + 3] & 0xFF) >> 6) | ((compressedPolyCipherText[count + 4] & 0xFF) << 2));
-                t[7] = (byte)((compressedPolyCipherText[count + 4] & 0xFF) >> 3);
+                t0 = ((compressedPolyCipherText[count + 0] & 0xFF) >> 0);
+                t1 = ((compressedPolyCipherText[count + 0] & 0xFF) >> 5) | ((compressedPolyCipherText[count + 1] & 0xFF) << 3);
+                t2 = ((compressedPolyCipherText[count + 1] & 0xFF) >> 2);
+                t3 = ((compressedPolyCipherText[count + 1] & 0xFF) >> 7) | ((compressedPolyCipherText[count + 2] & 0xFF) << 1);
+                t4 = ((compressedPolyCipherText[count + 2] & 0xFF) >> 4) | ((compressedPolyCipherText[count + 3] & 0xFF) << 4);
+                t5 = ((compressedPolyCipherText[count + 3] & 0xFF) >> 1);
+                t6 = ((compressedPolyCipherText[count + 3] & 0xFF) >> 6) | ((compressedPolyCipherText[count + 4] & 0xFF) << 2);
+                t7 = ((compressedPolyCipherText[count + 4] & 0xFF) >> 3);
                 count += 5;
-                for (j = 0; j < 8; j++)
-                {
-                    this.setCoeffIndex(8 * i + j, (short)(((t[j] & 31) * KyberEngine.KyberQ + 16) >> 5));
-                }
+                this.setCoeffIndex(8 * i + 0, decompress5(t0));
+                this.setCoeffIndex(8 * i + 1, decompress5(t1));
+                this.setCoeffIndex(8 * i + 2, decompress5(t2));
+                this.setCoeffIndex(8 * i + 3, decompress5(t3));
+                this.setCoeffIndex(8 * i + 4, decompress5(t4));
+                this.setCoeffIndex(8 * i + 5, decompress5(t5));
+                this.setCoeffIndex(8 * i + 6, decompress5(t6));
+                this.setCoeffIndex(8 * i + 7, decompress5(t7));
             }
         }
         else
@@ -250,6 +354,11 @@ public class Poly
 
     }
 
+    private static short decompress5(int t)
+    {
+        return (short)(((t & 31) * KyberEngine.KyberQ + 16) >> 5);
+    }
+
     /**
      * Serialisation of Polynomial
      * @return byte[]: Serialised Poly Byte Array
@@ -257,19 +366,39 @@ public class Poly
     public byte[] toBytes()
     {
         byte[] r = new byte[KyberEngine.KyberPolyBytes];
+        toBytes(r, 0);
+        return r;
+    }
+
+    /**
+     * Serialisation of Polynomial into an existing byte array
+     * @param r byte[]: Output Byte Array
+     * @param off int: Offset within r to write the serialised Poly to
+     */
+    public void toBytes(byte[] r, int off)
+    {
+        toBytes(coeffs, this.off, r, off);
+    }
+
+    /**
+     * Serialisation of a polynomial held in a coefficient array
+     * @param a short[]: Coefficient array, conditionally reduced in place
+     * @param aOff int: Offset of the polynomial
+     * @param r byte[]: Output Byte Array
+     * @param off int: Offset within r to write the serialised Poly to
+     */
+    static void toBytes(short[] a, int aOff, byte[] r, int off)
+    {
         short t0, t1;
-        this.conditionalSubQ();
+        conditionalSubQ(a, aOff, KyberEngine.KyberN);
         for (int i = 0; i < KyberEngine.KyberN / 2; i++)
         {
-            t0 = this.getCoeffIndex(2 * i);
-            t1 = this.getCoeffIndex(2 * i + 1);
-            r[3 * i] = (byte)(t0 >> 0);
-            r[3 * i + 1] = (byte)((t0 >> 8) | (t1 << 4));
-            r[3 * i + 2] = (byte)(t1 >> 4);
+            t0 = a[aOff + 2 * i];
+            t1 = a[aOff + 2 * i + 1];
+            r[off + 3 * i] = (byte)(t0 >> 0);
+            r[off + 3 * i + 1] = (byte)((t0 >> 8) | (t1 << 4));
+            r[off + 3 * i + 2] = (byte)(t1 >> 4);
         }
-
-        return r;
-
     }
 
     /**
@@ -278,22 +407,43 @@ public class Poly
      * @param inpBytes byte[]: Byte Array to Deserialise
      */
     public void fromBytes(byte[] inpBytes)
+    {
+        fromBytes(inpBytes, 0);
+    }
+
+    /**
+     * De-Serialisation of a polynomial;
+     * Inverse of toBytes
+     * @param inpBytes byte[]: Byte Array holding the serialised Poly
+     * @param off int: Offset of the serialised Poly within the Byte Array
+     */
+    public void fromBytes(byte[] inpBytes, int off)
+    {
+        fromBytes(coeffs, this.off, inpBytes, off);
+    }
+
+    /**
+     * De-Serialisation of a polynomial into a coefficient array
+     * @param a short[]: Output coefficient array
+     * @param aOff int: Offset of the polynomial
+     * @param inpBytes byte[]: Byte Array holding the serialised Poly
+     * @param off int: Offset of the serialised Poly within the Byte Array
+     */
+    static void fromBytes(short[] a, int aOff, byte[] inpBytes, int off)
     {
         int i;
         for (i = 0; i < KyberEngine.KyberN / 2; i++)
         {
-            this.setCoeffIndex(2 * i, (short)(
+            a[aOff + 2 * i] = (short)(
                 (
-                    ((inpBytes[3 * i + 0] & 0xFF) >> 0)
-                        | ((inpBytes[3 * i + 1] & 0xFF) << 8)
-                ) & 0xFFF)
-            );
-            this.setCoeffIndex(2 * i + 1, (short)(
+                    ((inpBytes[off + 3 * i + 0] & 0xFF) >> 0)
+                        | ((inpBytes[off + 3 * i + 1] & 0xFF) << 8)
+                ) & 0xFFF);
+            a[aOff + 2 * i + 1] = (short)(
                 (
-                    ((inpBytes[3 * i + 1] & 0xFF) >> 4)
-                        | (long)((inpBytes[3 * i + 2] & 0xFF) << 4)
-                ) & 0xFFF)
-            );
+                    ((inpBytes[off + 3 * i + 1] & 0xFF) >> 4)
+                        | (long)((inpBytes[off + 3 * i + 2] & 0xFF) << 4)
+                ) & 0xFFF);
         }
     }
 
@@ -304,6 +454,17 @@ public class Poly
     public byte[] toMsg()
     {
         byte[] outMsg = new byte[KyberEngine.getKyberIndCpaMsgBytes()];
+        toMsg(outMsg, 0);
+        return outMsg;
+    }
+
+    /**
+     * Convert polynomial to 32-byte message written into an existing byte array
+     * @param outMsg byte[]: Output Byte Array
+     * @param off int: Offset within outMsg to write the message to
+     */
+    public void toMsg(byte[] outMsg, int off)
+    {
         int i, j;
         short t;
 
@@ -311,14 +472,13 @@ public class Poly
 
         for (i = 0; i < KyberEngine.KyberN / 8; i++)
         {
-            outMsg[i] = 0;
+            outMsg[off + i] = 0;
             for (j = 0; j < 8; j++)
             {
                 t = (short)(((((short)(this.getCoeffIndex(8 * i + j) << 1) + KyberEngine.KyberQ / 2) / KyberEngine.KyberQ) & 1));
-                outMsg[i] |= (byte)(t << j);
+                outMsg[off + i] |= (byte)(t << j);
             }
         }
-        return outMsg;
     }
 
     /**
@@ -327,17 +487,27 @@ public class Poly
      */
     public void fromMsg(byte[] msg)
     {
-        int i, j;
-        short mask;
         if (msg.length != KyberEngine.KyberN / 8)
         {
             throw new RuntimeException("KYBER_INDCPA_MSGBYTES must be equal to KYBER_N/8 bytes!");
         }
+        fromMsg(msg, 0);
+    }
+
+    /**
+     * Convert 32-byte message to polynomial
+     * @param msg byte[]: Byte Array holding the Input Message
+     * @param off int: Offset of the message within the Byte Array
+     */
+    public void fromMsg(byte[] msg, int off)
+    {
+        int i, j;
+        short mask;
         for (i = 0; i < KyberEngine.KyberN / 8; i++)
         {
             for (j = 0; j < 8; j++)
             {
-                mask = (short)((-1) * (short)(((msg[i] & 0xFF) >> j) & 1));
+                mask = (short)((-1) * (short)(((msg[off + i] & 0xFF) >> j) & 1));
                 this.setCoeffIndex(8 * i + j, (short)(mask & (short)((KyberEngine.KyberQ + 1) / 2)));
             }
         }
@@ -350,10 +520,20 @@ public class Poly
      */
     public void conditionalSubQ()
     {
-        int i;
-        for (i = 0; i < KyberEngine.KyberN; i++)
+        arithmetic.conditionalSubQ(coeffs, off, KyberEngine.KyberN);
+    }
+
+    /**
+     * Conditional subtraction of q from len consecutive coefficients
+     * @param r short[]: Coefficient array
+     * @param off int: Offset of the first coefficient
+     * @param len int: Number of coefficients
+     */
+    static void conditionalSubQ(short[] r, int off, int len)
+    {
+        for (int i = off; i < off + len; i++)
         {
-            this.setCoeffIndex(i, Reduce.conditionalSubQ(this.getCoeffIndex(i)));
+            r[i] = Reduce.conditionalSubQ(r[i]);
         }
     }
 
@@ -367,8 +547,7 @@ public class Poly
     public void getEta1Noise(byte[] seed, byte nonce)
     {
         byte[] buf = new byte[KyberEngine.KyberN * eta1 / 4];
-        SHAKEDigest prf = Symmetric.KyberPRF(seed, nonce);
-        prf.doFinal(buf, 0, buf.length);
+        Symmetric.create(usingAes).prf(buf, buf.length, seed, 0, nonce);
         CBD.kyberCBD(this, buf, eta1);
     }
 
@@ -381,12 +560,27 @@ public class Poly
      */
     public void getEta2Noise(byte[] seed, byte nonce)
     {
+        int eta2 = KyberEngine.getKyberEta2();
         byte[] buf = new byte[KyberEngine.KyberN * eta2 / 4];
-        SHAKEDigest prf = Symmetric.KyberPRF(seed, nonce);
-        prf.doFinal(buf, 0, buf.length);
+        Symmetric.create(usingAes).prf(buf, buf.length, seed, 0, nonce);
         CBD.kyberCBD(this, buf, eta2);
     }
 
+    /**
+     * Sample a polynomial deterministically from a seed and a nonce
+     * with parameter Kyber Eta2, using the PRF and buffer of a workspace
+     * @param seed byte[]: Byte Array holding the Seed
+     * @param seedOff int: Offset of the Seed within the Byte Array
+     * @param nonce byte: Nonce Byte
+     * @param ws KyberWorkspace: Workspace providing the PRF and noise buffer
+     */
+    void getEta2Noise(byte[] seed, int seedOff, byte nonce, KyberWorkspace ws)
+    {
+        int eta2 = KyberEngine.getKyberEta2();
+        ws.symmetric.prf(ws.prfBuf, KyberEngine.KyberN * eta2 / 4, seed, seedOff, nonce);
+        CBD.kyberCBD(this, ws.prfBuf, eta2);
+    }
+
     /**
      * Subtract This Polynomial from b Poly. (b Poly - This Poly)
      * @param b Poly: Polynomial to Subtract from
@@ -396,7 +590,7 @@ public class Poly
         int i;
         for (i = 0; i < KyberEngine.KyberN; i++)
         {
-            this.setCoeffIndex(i, (short)(b.getCoeffIndex(i) - this.getCoeffIndex(i)));
+            coeffs[off + i] = (short)(b.coeffs[b.off + i] - coeffs[off + i]);
         }
     }
 
@@ -406,7 +600,7 @@ public class Poly
      */
     public String toString()
     {
-        return Arrays.toString(coeffs);
+        return Arrays.toString(getCoeffs());
     }
 }
 
@@ -2,23 +2,34 @@ package crypto.pqc.kyber;
 
 import java.util.Arrays;
 
+/**
+ * A vector of Kyber K polynomials stored contiguously in one short[K * N],
+ * polynomial i starting at offset i * N. The Poly objects returned by
+ * getVectorIndex are views onto that array.
+ */
 public class PolyVec
 {
-    Poly[] vec;
-    private KyberEngine engine;
-    private int kyberK;
-    private int polyVecBytes;
+    final short[] coeffs;
+    private final Poly[] vec;
+    private final int kyberK;
+    private final int eta1;
+    private final int polyVecBytes;
+    private final int polyVecCompressedBytes;
+    private final KyberArithmetic arithmetic;
 
     public PolyVec(KyberEngine engine)
     {
-        this.engine = engine;
         this.kyberK = engine.getKyberK();
+        this.eta1 = engine.getKyberEta1();
         this.polyVecBytes = engine.getKyberPolyVecBytes();
+        this.polyVecCompressedBytes = engine.getKyberPolyVecCompressedBytes();
+        this.arithmetic = engine.getArithmetic();
 
+        this.coeffs = new short[kyberK * KyberEngine.KyberN];
         this.vec = new Poly[kyberK];
         for (int i = 0; i < kyberK; i++)
         {
-            vec[i] = new Poly(engine);
+            vec[i] = new Poly(engine, coeffs, i * KyberEngine.KyberN);
         }
     }
 
@@ -33,6 +44,55 @@ public class PolyVec
         return vec[i];
     }
 
+    /**
+     * Sets every coefficient of every polynomial to zero
+     */
+    void clear()
+    {
+        Arrays.fill(coeffs, (short)0);
+    }
+
+    /**
+     * Sample all polynomials of the vector with parameter Kyber Eta1,
+     * polynomial i from the seed and nonce + i. The PRF output of every
+     * polynomial is squeezed into the noise buffer of the workspace.
+     * @param seed byte[]: Byte Array holding the Seed
+     * @param seedOff int: Offset of the Seed within the Byte Array
+     * @param nonce byte: Nonce of the first polynomial
+     * @param ws KyberWorkspace: Workspace providing the PRF and noise buffer
+     * @return byte: First nonce following the ones used
+     */
+    byte getEta1Noise(byte[] seed, int seedOff, byte nonce, KyberWorkspace ws)
+    {
+        return getNoise(seed, seedOff, nonce, eta1, ws);
+    }
+
+    /**
+     * Sample all polynomials of the vector with parameter Kyber Eta2,
+     * polynomial i from the seed and nonce + i
+     * @param seed byte[]: Byte Array holding the Seed
+     * @param seedOff int: Offset of the Seed within the Byte Array
+     * @param nonce byte: Nonce of the first polynomial
+     * @param ws KyberWorkspace: Workspace providing the PRF and noise buffer
+     * @return byte: First nonce following the ones used
+     */
+    byte getEta2Noise(byte[] seed, int seedOff, byte nonce, KyberWorkspace ws)
+    {
+        return getNoise(seed, seedOff, nonce, KyberEngine.getKyberEta2(), ws);
+    }
+
+    private byte getNoise(byte[] seed, int seedOff, byte nonce, int eta, KyberWorkspace ws)
+    {
+        int len = KyberEngine.KyberN * eta / 4;
+        for (int i = 0; i < kyberK; i++)
+        {
+            ws.symmetric.prf(ws.prfBuf, len, seed, seedOff, nonce);
+            CBD.kyberCBD(coeffs, i * KyberEngine.KyberN, ws.prfBuf, eta);
+            nonce = (byte)(nonce + (byte)1);
+        }
+        return nonce;
+    }
+
     /**
      * Apply forward NTT to all elements of a vector of polynomials
      */
@@ -41,8 +101,9 @@ public class PolyVec
         int i;
         for (i = 0; i < kyberK; i++)
         {
-            this.getVectorIndex(i).polyNtt();
+            arithmetic.ntt(coeffs, i * KyberEngine.KyberN);
         }
+        arithmetic.reduce(coeffs, 0, coeffs.length);
     }
 
     /**
@@ -53,7 +114,7 @@ public class PolyVec
     {
         for (int i = 0; i < kyberK; i++)
         {
-            this.getVectorIndex(i).polyInverseNttToMont();
+            arithmetic.invNtt(coeffs, i * KyberEngine.KyberN);
         }
     }
 
@@ -63,88 +124,81 @@ public class PolyVec
      */
     public byte[] compressPolyVec()
     {
-        int i, j, k;
-        // System.out.print("bp before sub q = [");
-        // for (i = 0; i < kyberK; i++) {
-        //     Helper.printShortArray(this.getVectorIndex(i).getCoeffs());
-        //     System.out.print("], \n");
-        // }
-        // System.out.println("]"); 
+        byte[] r = new byte[polyVecCompressedBytes];
+        compressPolyVec(r, 0);
+        return r;
+    }
+
+    /**
+     * Compress and serialize vector of polynomials into an existing byte array
+     * @param r byte[]: Output Byte Array
+     * @param off int: Offset within r to write the compressed PolyVec to
+     */
+    public void compressPolyVec(byte[] r, int off)
+    {
+        int j;
+        int t0, t1, t2, t3, t4, t5, t6, t7;
+        short[] c = this.coeffs;
 
         this.conditionalSubQ();
 
-        // System.out.print("bp sub q = [");
-        // for (i = 0; i < kyberK; i++) {
-        //     Helper.printShortArray(this.getVectorIndex(i).getCoeffs());
-        //     System.out.print("], \n");
-        // }
-        // System.out.println("]"); 
-        short[] t;
-        byte[] r = new byte[engine.getKyberPolyVecCompressedBytes()];
-        int count = 0;
-        if (engine.getKyberPolyVecCompressedBytes() == kyberK * 320)
+        int count = off;
+        if (polyVecCompressedBytes == kyberK * 320)
         {
-            t = new short[4];
-            for (i = 0; i < kyberK; i++)
+            for (j = 0; j < kyberK * KyberEngine.KyberN / 4; j++)
             {
-                for (j = 0; j < KyberEngine.KyberN / 4; j++)
-                {
-                    for (k = 0; k < 4; k++)
-                    {
-                        t[k] = (short)
-                            (
-                                (
-                                    ((this.getVectorIndex(i).getCoeffIndex(4 * j + k) << 10)
-                                        + (KyberEngine.KyberQ / 2))
-                                        / KyberEngine.KyberQ)
-                                    & 0x3ff);
-                    }
-                    r[count + 0] = (byte)(t[0] >> 0);
-                    r[count + 1] = (byte)((t[0] >> 8) | (t[1] << 2));
-                    r[count + 2] = (byte)((t[1] >> 6) | (t[2] << 4));
-                    r[count + 3] = (byte)((t[2] >> 4) | (t[3] << 6));
-                    r[count + 4] = (byte)((t[3] >> 2));
-                    count += 5;
-                }
+                t0 = compress10(c[4 * j + 0]);
+                t1 = compress10(c[4 * j + 1]);
+                t2 = compress10(c[4 * j + 2]);
+                t3 = compress10(c[4 * j + 3]);
+                r[count + 0] = (byte)(t0 >> 0);
+                r[count + 1] = (byte)((t0 >> 8) | (t1 << 2));
+                r[count + 2] = (byte)((t1 >> 6) | (t2 << 4));
+                r[count + 3] = (byte)((t2 >> 4) | (t3 << 6));
+                r[count + 4] = (byte)((t3 >> 2));
+                count += 5;
             }
         }
-        else if (engine.getKyberPolyVecCompressedBytes() == kyberK * 352)
+        else if (polyVecCompressedBytes == kyberK * 352)
         {
-            t = new short[8];
-            for (i = 0; i < kyberK; i++)
+            for (j = 0; j < kyberK * KyberEngine.KyberN / 8; j++)
             {
-                for (j = 0; j < KyberEngine.KyberN / 8; j++)
-                {
-                    for (k = 0; k < 8; k++)
-                    {
-                        t[k] = (short)
-                            (
-                                (
-                                    ((this.getVectorIndex(i).getCoeffIndex(8 * j + k) << 11)
-                                        + (KyberEngine.KyberQ / 2))
-                                        / KyberEngine.KyberQ)
-                                    & 0x7ff);
-                    }
-                    r[count + 0] = (byte)((t[0] >> 0));
-                    r[count + 1] = (byte)((t[0] >> 8) | (t[1] << 3));
-                    r[count + 2] = (byte)((t[1] >> 5) | (t[2] << 6));
-                    r[count + 3] = (byte)((t[2] >> 2));
-                    r[count + 4] = (byte)((t[2] >> 10) | (t[3] << 1));
-                    r[count + 5] = (byte)((t[3] >> 7) | (t[4] << 4));
-                    r[count + 6] = (byte)((t[4] >> 4) | (t[5] << 7));
-                    r[count + 7] = (byte)((t[5] >> 1));
-                    r[count + 8] = (byte)((t[5] >> 9) | (t[6] << 2));
-                    r[count + 9] = (byte)((t[6] >> 6) | (t[7] << 5));
-                    r[count + 10] = (byte)((t[7] >> 3));
-                    count += 11;
-                }
+                t0 = compress11(c[8 * j + 0]);
+                t1 = compress11(c[8 * j + 1]);
+                t2 = compress11(c[8 * j + 2]);
+                t3 = compress11(c[8 * j + 3]);
+                t4 = compress11(c[8 * j + 4]);
+                t5 = compress11(c[8 * j + 5]);
+                t6 = compress11(c[8 * j + 6]);
+                t7 = compress11(c[8 * j + 7]);
+                r[count + 0] = (byte)((t0 >> 0));
+                r[count + 1] = (byte)((t0 >> 8) | (t1 << 3));
+                r[count + 2] = (byte)((t1 >> 5) | (t2 << 6));
+                r[count + 3] = (byte)((t2 >> 2));
+                r[count + 4] = (byte)((t2 >> 10) | (t3 << 1));
+                r[count + 5] = (byte)((t3 >> 7) | (t4 << 4));
+                r[count + 6] = (byte)((t4 >> 4) | (t5 << 7));
+                r[count + 7] = (byte)((t5 >> 1));
+                r[count + 8] = (byte)((t5 >> 9) | (t6 << 2));
+                r[count + 9] = (byte)((t6 >> 6) | (t7 << 5));
+                r[count + 10] = (byte)((t7 >> 3));
+                count += 11;
             }
         }
         else
         {
             throw new RuntimeException("Kyber PolyVecCompressedBytes neither 320 * KyberK or 352 * KyberK!");
         }
-        return r;
+    }
+
+    private static int compress10(short c)
+    {
+        return (((c << 10) + (KyberEngine.KyberQ / 2)) / KyberEngine.KyberQ) & 0x3ff;
+    }
+
+    private static int compress11(short c)
+    {
+        return (((c << 11) + (KyberEngine.KyberQ / 2)) / KyberEngine.KyberQ) & 0x7ff;
     }
 
     /**
@@ -154,50 +208,58 @@ public class PolyVec
      */
     public void decompressPolyVec(byte[] compressedPolyVecCipherText)
     {
-        int i, j, k, count = 0;
+        decompressPolyVec(compressedPolyVecCipherText, 0);
+    }
+
+    /**
+     * De-serialize and decompress vector of polynomials;
+     * approximate inverse of polyvec_compress
+     * @param compressedPolyVecCipherText byte[]: Byte Array holding the Compressed PolyVec
+     * @param off int: Offset of the Compressed PolyVec within the Byte Array
+     */
+    public void decompressPolyVec(byte[] compressedPolyVecCipherText, int off)
+    {
+        int j, count = off;
+        int t0, t1, t2, t3, t4, t5, t6, t7;
+        byte[] a = compressedPolyVecCipherText;
+        short[] c = this.coeffs;
 
-        if (engine.getKyberPolyVecCompressedBytes() == (kyberK * 320))
+        if (polyVecCompressedBytes == (kyberK * 320))
         {
-            short[] t = new short[4];
-            for (i = 0; i < kyberK; i++)
+            for (j = 0; j < kyberK * KyberEngine.KyberN / 4; j++)
             {
-                for (j = 0; j < KyberEngine.KyberN / 4; j++)
-                {
-                    t[0] = (short)(((compressedPolyVecCipherText[count] & 0xFF) >> 0) | (short)((compressedPolyVecCipherText[count + 1] & 0xFF) << 8));
-                    t[1] = (short)(((compressedPolyVecCipherText[count + 1] & 0xFF) >> 2) | (short)((compressedPolyVecCipherText[count + 2] & 0xFF) << 6));
-                    t[2] = (short)(((compressedPolyVecCipherText[count + 2] & 0xFF) >> 4) | (short)((compressedPolyVecCipherText[count + 3] & 0xFF) << 4));
-                    t[3] = (short)(((compressedPolyVecCipherText[count + 3] & 0xFF) >> 6) | (short)((compressedPolyVecCipherText[count + 4] & 0xFF) << 2));
-                    count += 5;
-                    for (k = 0; k < 4; k++)
-                    {
-                        this.vec[i].setCoeffIndex(4 * j + k, (short)(((t[k] & 0x3FF) * KyberEngine.KyberQ + 512) >> 10));
-                    }
-                }
-
+                t0 = ((a[count] & 0xFF) >> 0) | ((a[count + 1] & 0xFF) << 8);
+                t1 = ((a[count + 1] & 0xFF) >> 2) | ((a[count + 2] & 0xFF) << 6);
+                t2 = ((a[count + 2] & 0xFF) >> 4) | ((a[count + 3] & 0xFF) << 4);
+                t3 = ((a[count + 3] & 0xFF) >> 6) | ((a[count + 4] & 0xFF) << 2);
+                count += 5;
+                c[4 * j + 0] = decompress10(t0);
+                c[4 * j + 1] = decompress10(t1);
+                c[4 * j + 2] = decompress10(t2);
+                c[4 * j + 3] = decompress10(t3);
             }
-
         }
-        else if (engine.getKyberPolyVecCompressedBytes() == (kyberK * 352))
+        else if (polyVecCompressedBytes == (kyberK * 352))
         {
-            short[] t = new short[8];
-            for (i = 0; i < kyberK; i++)
+            for (j = 0; j < kyberK * KyberEngine.KyberN / 8; j++)
             {
-                for (j = 0; j < KyberEngine.KyberN / 8; j++)
-                {
-                    t[0] = (short)(((compressedPolyVecCipherText[count] & 0xFF) >> 0) | ((short)(compressedPolyVecCipherText[count + 1] & 0xFF) << 8));
-                    t[1] = (short)(((compressedPolyVecCipherText[count + 1] & 0xFF) >> 3) | ((short)(compressedPolyVecCipherText[count + 2] & 0xFF) << 5));
-                    t[2] = (short)(((compressedPolyVecCipherText[count + 2] & 0xFF) >> 6) | ((short)(compressedPolyVecCipherText[count + 3] & 0xFF) << 2) | ((short)((compressedPolyVecCipherText[count + 4] & 0xFF) << 10)));
-                    t[3] = (short)(((compressedPolyVecCipherText[count + 4] & 0xFF) >> 1) | ((short)(compressedPolyVecCipherText[count + 5] & 0xFF) << 7));
-                    t[4] = (short)(((compressedPolyVecCipherText[count + 5] & 0xFF) >> 4) | ((short)(compressedPolyVecCipherText[count + 6] & 0xFF) << 4));
-                    t[5] = (short)(((compressedPolyVecCipherText[count + 6] & 0xFF) >> 7) | ((short)(compressedPolyVecCipherText[count + 7] & 0xFF) << 1) | ((short)((compressedPolyVecCipherText[count + 8] & 0xFF) << 9)));
-                    t[6] = (short)(((compressedPolyVecCipherText[count + 8] & 0xFF) >> 2) | ((short)(compressedPolyVecCipherText[count + 9] & 0xFF) << 6));
-                    t[7] = (short)(((compressedPolyVecCipherText[count + 9] & 0xFF) >> 5) | ((short)(compressedPolyVecCipherText[count + 10] & 0xFF) << 3));
-                    count += 11;
-                    for (k = 0; k < 8; k++)
-                    {
-                        this.vec[i].setCoeffIndex(8 * j + k, (short)(((t[k] & 0x7FF) * KyberEngine.KyberQ + 1024) >> 11));
-                    }
-                }
+                t0 = ((a[count] & 0xFF) >> 0) | ((a[count + 1] & 0xFF) << 8);
+                t1 = ((a[count + 1] & 0xFF) >> 3) | ((a[count + 2] & 0xFF) << 5);
+                t2 = ((a[count + 2] & 0xFF) >> 6) | ((a[count + 3] & 0xFF) << 2) | ((a[count + 4] & 0xFF) << 10);
+                t3 = ((a[count + 4] & 0xFF) >> 1) | ((a[count + 5] & 0xFF) << 7);
+                t4 = ((a[count + 5] & 0xFF) >> 4) | ((a[count + 6] & 0xFF) << 4);
+                t5 = ((a[count + 6] & 0xFF) >> 7) | ((a[count + 7] & 0xFF) << 1) | ((a[count + 8] & 0xFF) << 9);
+                t6 = ((a[count + 8] & 0xFF) >> 2) | ((a[count + 9] & 0xFF) << 6);
+                t7 = ((a[count + 9] & 0xFF) >> 5) | ((a[count + 10] & 0xFF) << 3);
+                count += 11;
+                c[8 * j + 0] = decompress11(t0);
+                c[8 * j + 1] = decompress11(t1);
+                c[8 * j + 2] = decompress11(t2);
+                c[8 * j + 3] = decompress11(t3);
+                c[8 * j + 4] = decompress11(t4);
+                c[8 * j + 5] = decompress11(t5);
+                c[8 * j + 6] = decompress11(t6);
+                c[8 * j + 7] = decompress11(t7);
             }
         }
         else
@@ -206,6 +268,16 @@ public class PolyVec
         }
     }
 
+    private static short decompress10(int t)
+    {
+        return (short)(((t & 0x3FF) * KyberEngine.KyberQ + 512) >> 10);
+    }
+
+    private static short decompress11(int t)
+    {
+        return (short)(((t & 0x7FF) * KyberEngine.KyberQ + 1024) >> 11);
+    }
+
     /**
      * Pointwise multiply elements of a and b, accumulate into output Polynomial,
      * and multiply by 2^-16.
@@ -215,17 +287,37 @@ public class PolyVec
      * @param engine KyberEngine: Kyber Engine holding all constant variables
      */
     public static void pointwiseAccountMontgomery(Poly out, PolyVec inp1, PolyVec inp2, KyberEngine engine)
+    {
+        pointwiseAccountMontgomery(out.coeffArray(), out.coeffOffset(), inp1.coeffs, 0, inp2.coeffs, 0,
+            engine.getKyberK(), new short[KyberEngine.KyberN], engine.getArithmetic());
+    }
+
+    /**
+     * Pointwise multiply elements of a and b, accumulate into output Polynomial,
+     * and multiply by 2^-16. Works on flat coefficient arrays, so a row of the
+     * public matrix can be used directly as the first input.
+     * @param r short[]: Output coefficient array
+     * @param rOff int: Offset of the output polynomial
+     * @param a short[]: First input coefficient array
+     * @param aOff int: Offset of the first input vector of kyberK polynomials
+     * @param b short[]: Second input coefficient array
+     * @param bOff int: Offset of the second input vector of kyberK polynomials
+     * @param kyberK int: Number of polynomials in each vector
+     * @param t short[]: Temporary array of Kyber N coefficients, overwritten
+     * @param arithmetic KyberArithmetic: Backend performing the base multiplications
+     */
+    static void pointwiseAccountMontgomery(short[] r, int rOff, short[] a, int aOff, short[] b, int bOff, int kyberK, short[] t,
+                                           KyberArithmetic arithmetic)
     {
         int i;
-        Poly t = new Poly(engine);
 
-        Poly.baseMultMontgomery(out, inp1.getVectorIndex(0), inp2.getVectorIndex(0));
-        for (i = 1; i < engine.getKyberK(); i++)
+        arithmetic.baseMult(r, rOff, a, aOff, b, bOff);
+        for (i = 1; i < kyberK; i++)
         {
-            Poly.baseMultMontgomery(t, inp1.getVectorIndex(i), inp2.getVectorIndex(i));
-            out.addCoeffs(t);
+            arithmetic.baseMult(t, 0, a, aOff + i * KyberEngine.KyberN, b, bOff + i * KyberEngine.KyberN);
+            Poly.add(r, rOff, t, 0, KyberEngine.KyberN);
         }
-        out.reduce();
+        arithmetic.reduce(r, rOff, KyberEngine.KyberN);
     }
 
     /**
@@ -235,12 +327,7 @@ public class PolyVec
      */
     public void reducePoly()
     {
-        int i;
-        for (i = 0; i < kyberK; i++)
-        {
-            this.getVectorIndex(i).reduce();
-            ;
-        }
+        arithmetic.reduce(coeffs, 0, coeffs.length);
     }
 
     /**
@@ -249,11 +336,7 @@ public class PolyVec
      */
     public void addPoly(PolyVec b)
     {
-        int i;
-        for (i = 0; i < kyberK; i++)
-        {
-            this.getVectorIndex(i).addCoeffs(b.getVectorIndex(i));
-        }
+        Poly.add(coeffs, 0, b.coeffs, 0, coeffs.length);
     }
 
     /**
@@ -263,12 +346,21 @@ public class PolyVec
     public byte[] toBytes()
     {
         byte[] r = new byte[polyVecBytes];
+        toBytes(r, 0);
+        return r;
+    }
+
+    /**
+     * Serialize vector of polynomials into an existing byte array
+     * @param r byte[]: Output Byte Array
+     * @param off int: Offset within r to write the serialised PolyVec to
+     */
+    public void toBytes(byte[] r, int off)
+    {
         for (int i = 0; i < kyberK; i++)
         {
-            System.arraycopy(this.vec[i].toBytes(), 0, r, i * KyberEngine.KyberPolyBytes, KyberEngine.KyberPolyBytes);
+            Poly.toBytes(coeffs, i * KyberEngine.KyberN, r, off + i * KyberEngine.KyberPolyBytes);
         }
-
-        return r;
     }
 
     /**
@@ -277,10 +369,21 @@ public class PolyVec
      * @param inputBytes byte[]: Bytes which require conversion to PolyVec
      */
     public void fromBytes(byte[] inputBytes)
+    {
+        fromBytes(inputBytes, 0);
+    }
+
+    /**
+     * De-serialize vector of polynomials;
+     * inverse of PolyVec toBytes
+     * @param inputBytes byte[]: Byte Array holding the serialised PolyVec
+     * @param off int: Offset of the serialised PolyVec within the Byte Array
+     */
+    public void fromBytes(byte[] inputBytes, int off)
     {
         for (int i = 0; i < kyberK; i++)
         {
-            this.getVectorIndex(i).fromBytes(Arrays.copyOfRange(inputBytes, i * KyberEngine.KyberPolyBytes, (i + 1) * KyberEngine.KyberPolyBytes));
+            Poly.fromBytes(coeffs, i * KyberEngine.KyberN, inputBytes, off + i * KyberEngine.KyberPolyBytes);
         }
     }
 
@@ -291,10 +394,7 @@ public class PolyVec
      */
     public void conditionalSubQ()
     {
-        for (int i = 0; i < kyberK; i++)
-        {
-            this.getVectorIndex(i).conditionalSubQ();
-        }
+        arithmetic.conditionalSubQ(coeffs, 0, coeffs.length);
     }
 
     /**
@@ -303,7 +403,7 @@ public class PolyVec
      */
     public String toString()
     {
-        String[] out = new String[engine.getKyberK()];
+        String[] out = new String[kyberK];
         for (int i = 0; i < kyberK; i++)
         {
             out[i] = vec[i].toString();
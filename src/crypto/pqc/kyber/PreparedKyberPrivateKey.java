@@ -0,0 +1,81 @@
+package crypto.pqc.kyber;
+
+import org.bouncycastle.util.Arrays;
+
+/**
+ * Kyber private key with everything decapsulation derives from the key
+ * computed once: the decoded secret vector, the prepared public key
+ * used for the re-encryption check (decoded t and transposed matrix A),
+ * H(pk) and the implicit rejection value z.
+ * The cached values are never modified after construction, so one
+ * instance can be shared by any number of decapsulations.
+ */
+public class PreparedKyberPrivateKey
+    extends KyberPrivateKeyParameters
+{
+    private final PolyVec secretKeyPolyVec;
+    private final PreparedKyberPublicKey publicKey;
+    private final byte[] hashedPublicKey;
+    private final byte[] z;
+
+    /**
+     * Prepare an existing private key
+     * @param key KyberPrivateKeyParameters: Private key to prepare
+     */
+    public PreparedKyberPrivateKey(KyberPrivateKeyParameters key)
+    {
+        this(key.getParameters(), key.getPrivateKey());
+    }
+
+    /**
+     * Prepare an encoded private key
+     * @param params KyberParameters: Parameter set of the key
+     * @param privateKey byte[]: Encoded private key, sk || pk || H(pk) || z
+     */
+    public PreparedKyberPrivateKey(KyberParameters params, byte[] privateKey)
+    {
+        super(params, privateKey);
+
+        KyberEngine engine = params.getEngine();
+        int secretKeyBytes = engine.getKyberSecretKeyBytes();
+        if (privateKey.length != secretKeyBytes)
+        {
+            throw new IllegalArgumentException("private key must be " + secretKeyBytes + " bytes");
+        }
+
+        int indCpaSecretKeyBytes = engine.getKyberIndCpaSecretKeyBytes();
+
+        this.secretKeyPolyVec = new PolyVec(engine);
+        secretKeyPolyVec.fromBytes(privateKey, 0);
+
+        this.publicKey = new PreparedKyberPublicKey(params,
+            Arrays.copyOfRange(privateKey, indCpaSecretKeyBytes, indCpaSecretKeyBytes + engine.getKyberPublicKeyBytes()));
+
+        this.hashedPublicKey = Arrays.copyOfRange(privateKey, secretKeyBytes - 2 * KyberEngine.KyberSymBytes, secretKeyBytes - KyberEngine.KyberSymBytes);
+        this.z = Arrays.copyOfRange(privateKey, secretKeyBytes - KyberEngine.KyberSymBytes, secretKeyBytes);
+    }
+
+    /**
+     * Getter for the public half of the key
+     * @return PreparedKyberPublicKey: Prepared public key embedded in this private key
+     */
+    public PreparedKyberPublicKey getPreparedPublicKey()
+    {
+        return publicKey;
+    }
+
+    PolyVec getSecretKeyPolyVec()
+    {
+        return secretKeyPolyVec;
+    }
+
+    byte[] getHashedPublicKey()
+    {
+        return hashedPublicKey;
+    }
+
+    byte[] getZ()
+    {
+        return z;
+    }
+}
@@ -0,0 +1,78 @@
+package crypto.pqc.kyber;
+
+/**
+ * Kyber public key with everything encapsulation derives from the key
+ * computed once: the transposed matrix A in NTT form, the decoded
+ * public vector t and H(pk).
+ * The cached values are never modified after construction, so one
+ * instance can be shared by any number of encapsulations.
+ */
+public class PreparedKyberPublicKey
+    extends KyberPublicKeyParameters
+{
+    private final PolyVec publicKeyPolyVec;
+    private final int kyberK;
+    private final boolean usingAes;
+    private final short[] aMatrixTranspose;
+    private final byte[] hashedPublicKey;
+
+    /**
+     * Prepare an existing public key
+     * @param key KyberPublicKeyParameters: Public key to prepare
+     */
+    public PreparedKyberPublicKey(KyberPublicKeyParameters key)
+    {
+        this(key.getParameters(), key.getPublicKey());
+    }
+
+    /**
+     * Prepare an encoded public key
+     * @param params KyberParameters: Parameter set of the key
+     * @param publicKey byte[]: Encoded public key
+     */
+    public PreparedKyberPublicKey(KyberParameters params, byte[] publicKey)
+    {
+        super(params, publicKey);
+
+        KyberEngine engine = params.getEngine();
+        if (publicKey.length != engine.getKyberPublicKeyBytes())
+        {
+            throw new IllegalArgumentException("public key must be " + engine.getKyberPublicKeyBytes() + " bytes");
+        }
+
+        this.kyberK = engine.getKyberK();
+        this.usingAes = engine.isUsingAes();
+        this.publicKeyPolyVec = new PolyVec(engine);
+        publicKeyPolyVec.fromBytes(publicKey, 0);
+
+        this.aMatrixTranspose = engine.getIndCpa().generateMatrix(publicKey, engine.getKyberPolyVecBytes(), true);
+
+        this.hashedPublicKey = new byte[KyberEngine.KyberSymBytes];
+        Symmetric.create(usingAes).hashH(hashedPublicKey, 0, publicKey, 0, publicKey.length);
+    }
+
+    int getKyberK()
+    {
+        return kyberK;
+    }
+
+    boolean isUsingAes()
+    {
+        return usingAes;
+    }
+
+    PolyVec getPublicKeyPolyVec()
+    {
+        return publicKeyPolyVec;
+    }
+
+    short[] getMatrixTranspose()
+    {
+        return aMatrixTranspose;
+    }
+
+    byte[] getHashedPublicKey()
+    {
+        return hashedPublicKey;
+    }
+}
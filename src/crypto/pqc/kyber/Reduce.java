@@ -25,18 +25,31 @@ public class Reduce
 
     /**
      * Plantard Reduction where l = 16, alpha = 3, q = 3329
-     * @param a
-     * @return (a * -2^(32) mod +- q)
+     * @param a int: Input integer to be reduced;
+     *               has to be in {-q2^18,...,q2^18}
+     * @return short: integer in {-q+1,...,q-1} congruent to a * -2^(-32) modulo q
      */
-    public static short plantardReduce(int a) 
+    public static short plantardReduce(int a)
     {
-        int plantardQInv = 1806234369; // q^-1 mod 2^32
+        return plantardFinish(a * plantardQInv);
+    }
 
-        int u = a * plantardQInv;
+    /**
+     * Plantard Multiplication by a constant b, given as b * q^-1 mod 2^32
+     * @param a short: Input coefficient
+     * @param bQInv int: Constant b premultiplied by q^-1 mod 2^32, b in {-q/2,...,q/2}
+     * @return short: integer in {-q+1,...,q-1} congruent to a * b * -2^(-32) modulo q
+     */
+    public static short plantardMulReduce(short a, int bQInv)
+    {
+        return plantardFinish(a * bQInv);
+    }
 
-        short v = (short) (((((short) (u >>> 16)) + 8) * KyberEngine.KyberQ) >>> 16);
+    private static final int plantardQInv = 1806234369; // q^-1 mod 2^32
 
-        return v;
+    private static short plantardFinish(int u)
+    {
+        return (short)(((((short)(u >>> 16)) + 8) * KyberEngine.KyberQ) >>> 16);
     }
 
     /**
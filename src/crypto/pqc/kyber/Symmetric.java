@@ -1,9 +1,151 @@
 package crypto.pqc.kyber;
 
+import java.security.DigestException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+
+import javax.crypto.Cipher;
+import javax.crypto.ShortBufferException;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.bouncycastle.crypto.digests.SHA3Digest;
 import org.bouncycastle.crypto.digests.SHAKEDigest;
+import org.bouncycastle.util.Arrays;
 
-public class Symmetric
+/**
+ * Symmetric primitives of Kyber: the hashes H and G, the XOF used to expand
+ * the public matrix, the PRF used for noise sampling and the KDF.
+ * <p>
+ * ShakeSymmetric is the standard instantiation built on SHA-3 and SHAKE,
+ * AesSymmetric the Kyber-90s one built on SHA-2 and AES-256-CTR. Instances
+ * keep digest and cipher state, so every KyberWorkspace owns its own.
+ * <p>
+ * The XOF may run several independent streams (lanes) at once; matrix
+ * expansion absorbs up to xofLanes() entries and squeezes them together.
+ */
+public abstract class Symmetric
 {
+    public final static int SHAKE128_rate = 168;
+
+    private final int xofBlockBytes;
+    private final int xofLanes;
+    private final int genMatrixNBlocks;
+
+    Symmetric(int xofBlockBytes, int xofLanes)
+    {
+        this.xofBlockBytes = xofBlockBytes;
+        this.xofLanes = xofLanes;
+        this.genMatrixNBlocks = (12 * KyberEngine.KyberN / 8 * (1 << 12) / KyberEngine.KyberQ + xofBlockBytes) / xofBlockBytes;
+    }
+
+    /**
+     * Creates the symmetric layer for a parameter set
+     * @param usingAes boolean: true for the Kyber-90s variants
+     * @return Symmetric: New instance with its own digest and cipher state
+     */
+    static Symmetric create(boolean usingAes)
+    {
+        return usingAes ? new AesSymmetric() : new ShakeSymmetric();
+    }
+
+    /**
+     * Size of one XOF output block
+     * @return int: Block size in bytes
+     */
+    int xofBlockBytes()
+    {
+        return xofBlockBytes;
+    }
+
+    /**
+     * Number of XOF streams that can be absorbed and squeezed together
+     * @return int: Number of lanes
+     */
+    int xofLanes()
+    {
+        return xofLanes;
+    }
+
+    /**
+     * Number of XOF blocks squeezed up front for one matrix entry
+     * @return int: Number of blocks
+     */
+    int genMatrixNBlocks()
+    {
+        return genMatrixNBlocks;
+    }
+
+    /**
+     * Squeeze buffer size of one XOF lane, two spare bytes for
+     * the leftover of an incomplete 3 byte group
+     * @return int: Buffer size in bytes
+     */
+    int xofBufStride()
+    {
+        return genMatrixNBlocks * xofBlockBytes + 2;
+    }
+
+    /**
+     * H: hash to Kyber SymBytes
+     * @param out byte[]: Output Byte Array
+     * @param outOff int: Offset of the output
+     * @param in byte[]: Input Byte Array
+     * @param inOff int: Offset of the input
+     * @param inLen int: Length of the input
+     */
+    abstract void hashH(byte[] out, int outOff, byte[] in, int inOff, int inLen);
+
+    /**
+     * G: hash to 2 * Kyber SymBytes
+     * @param out byte[]: Output Byte Array
+     * @param outOff int: Offset of the output
+     * @param in byte[]: Input Byte Array
+     * @param inOff int: Offset of the input
+     * @param inLen int: Length of the input
+     */
+    abstract void hashG(byte[] out, int outOff, byte[] in, int inOff, int inLen);
+
+    /**
+     * KDF: derives the Kyber SymBytes shared secret
+     * @param out byte[]: Output Byte Array
+     * @param outOff int: Offset of the output
+     * @param in byte[]: Input Byte Array
+     * @param inOff int: Offset of the input
+     * @param inLen int: Length of the input
+     */
+    abstract void kdf(byte[] out, int outOff, byte[] in, int inOff, int inLen);
+
+    /**
+     * PRF keyed with Kyber SymBytes and a single-byte nonce
+     * @param out byte[]: Output Byte Array, filled from offset 0
+     * @param outLen int: Number of bytes to produce
+     * @param key byte[]: Byte array holding the Kyber SymBytes key
+     * @param keyOff int: Offset of the key within the byte array
+     * @param nonce byte: single-byte nonce (public PRF input)
+     */
+    abstract void prf(byte[] out, int outLen, byte[] key, int keyOff, byte nonce);
+
+    /**
+     * Initialises one XOF lane with seed || a || b
+     * @param lane int: Lane to initialise, 0 to xofLanes() - 1
+     * @param seed byte[]: Byte array holding the Kyber SymBytes seed
+     * @param seedOff int: Offset of the seed within the byte array
+     * @param a int: Additional byte of input
+     * @param b int: Additional byte of input
+     */
+    abstract void xofAbsorb(int lane, byte[] seed, int seedOff, int a, int b);
+
+    /**
+     * Squeezes whole blocks from the first lanes XOF streams
+     * @param out byte[]: Output Byte Array
+     * @param off int: Offset of the output of lane 0
+     * @param stride int: Distance between the outputs of consecutive lanes
+     * @param nBlocks int: Number of blocks to squeeze per lane
+     * @param lanes int: Number of lanes to squeeze
+     */
+    abstract void xofSqueezeBlocks(byte[] out, int off, int stride, int nBlocks, int lanes);
+
     /**
      * Absorb step of the SHAKE128 specialized for the Kyber context.
      * @param seed byte[]: Kyber SymBytes byte array
@@ -25,7 +167,22 @@ public class Symmetric
         return xof;
     }
 
-    public final static int SHAKE128_rate = 168;
+    /**
+     * Absorb step of the SHAKE128 specialized for the Kyber context,
+     * reusing an existing digest instead of allocating a new one.
+     * @param xof SHAKEDigest: SHAKE-128 Object to reset and absorb into
+     * @param seed byte[]: Byte array holding the Kyber SymBytes seed
+     * @param seedOff int: Offset of the seed within the byte array
+     * @param a int: Additional byte of input
+     * @param b int: Additional byte of input
+     */
+    public static void KyberXOF(SHAKEDigest xof, byte[] seed, int seedOff, int a, int b)
+    {
+        xof.reset();
+        xof.update(seed, seedOff, KyberEngine.KyberSymBytes);
+        xof.update((byte)a);
+        xof.update((byte)b);
+    }
 
     /**
      * Usage of SHAKE256 as a PRF, concatenates secret and public input
@@ -43,4 +200,238 @@ public class Symmetric
         prf.update(extSeed, 0, extSeed.length);
         return prf;
     }
+
+    /**
+     * Usage of SHAKE256 as a PRF, squeezing straight into an output buffer
+     * with an existing digest instead of allocating a new one.
+     * @param prf SHAKEDigest: SHAKE-256 Object, left reset on return
+     * @param out byte[]: Output Byte Array
+     * @param outLen int: Number of bytes to squeeze
+     * @param seed byte[]: Byte array holding the Kyber SymBytes key
+     * @param seedOff int: Offset of the key within the byte array
+     * @param nonce byte: single-byte nonce (public PRF input)
+     */
+    public static void KyberPRF(SHAKEDigest prf, byte[] out, int outLen, byte[] seed, int seedOff, byte nonce)
+    {
+        prf.update(seed, seedOff, KyberEngine.KyberSymBytes);
+        prf.update(nonce);
+        prf.doFinal(out, 0, outLen);
+    }
+
+    /**
+     * SHA3-256 / SHA3-512 for H and G, SHAKE-128 for the XOF,
+     * SHAKE-256 for the PRF and KDF
+     */
+    static class ShakeSymmetric
+        extends Symmetric
+    {
+        private final SHA3Digest sha3Digest256 = new SHA3Digest(256);
+        private final SHA3Digest sha3Digest512 = new SHA3Digest(512);
+        private final SHAKEDigest shakeDigest = new SHAKEDigest(256);
+        private final SHAKEDigest prf = new SHAKEDigest(256);
+        private final BatchedShake128 xof = new BatchedShake128();
+
+        ShakeSymmetric()
+        {
+            super(SHAKE128_rate, BatchedShake128.LANES);
+        }
+
+        void hashH(byte[] out, int outOff, byte[] in, int inOff, int inLen)
+        {
+            sha3Digest256.update(in, inOff, inLen);
+            sha3Digest256.doFinal(out, outOff);
+        }
+
+        void hashG(byte[] out, int outOff, byte[] in, int inOff, int inLen)
+        {
+            sha3Digest512.update(in, inOff, inLen);
+            sha3Digest512.doFinal(out, outOff);
+        }
+
+        void kdf(byte[] out, int outOff, byte[] in, int inOff, int inLen)
+        {
+            shakeDigest.update(in, inOff, inLen);
+            shakeDigest.doFinal(out, outOff, KyberEngine.KyberSymBytes);
+        }
+
+        void prf(byte[] out, int outLen, byte[] key, int keyOff, byte nonce)
+        {
+            KyberPRF(prf, out, outLen, key, keyOff, nonce);
+        }
+
+        void xofAbsorb(int lane, byte[] seed, int seedOff, int a, int b)
+        {
+            xof.kyberXOF(lane, seed, seedOff, a, b);
+        }
+
+        void xofSqueezeBlocks(byte[] out, int off, int stride, int nBlocks, int lanes)
+        {
+            xof.squeezeBlocks(out, off, stride, nBlocks, lanes);
+        }
+    }
+
+    /**
+     * Kyber-90s: SHA-256 / SHA-512 for H and G, SHA-256 for the KDF and
+     * AES-256-CTR for the XOF and PRF, keyed with the seed and using
+     * (a, b) or the nonce as the first bytes of a zero 12 byte nonce.
+     * Everything runs through the JDK providers so the hardware AES and
+     * SHA intrinsics are used where available.
+     * <p>
+     * Each cipher keeps the SecretKeySpec of its last seed, and the
+     * IvParameterSpec of every small nonce it has seen, so the noise and
+     * matrix entries of one operation, which share a seed, are keyed
+     * without allocating. The last seed of each cipher stays in the
+     * workspace and in the provider's key schedule until a later call
+     * re-keys it.
+     */
+    static class AesSymmetric
+        extends Symmetric
+    {
+        private static final int AES_BLOCK_BYTES = 64;
+
+        private final MessageDigest sha256;
+        private final MessageDigest sha512;
+        private final Aes256Ctr xof;
+        private final Aes256Ctr prf;
+        private final byte[] zeros;
+
+        AesSymmetric()
+        {
+            super(AES_BLOCK_BYTES, 1);
+
+            try
+            {
+                this.sha256 = MessageDigest.getInstance("SHA-256");
+                this.sha512 = MessageDigest.getInstance("SHA-512");
+                this.xof = new Aes256Ctr(Cipher.getInstance("AES/CTR/NoPadding"));
+                this.prf = new Aes256Ctr(Cipher.getInstance("AES/CTR/NoPadding"));
+            }
+            catch (GeneralSecurityException e)
+            {
+                throw new IllegalStateException("Kyber-90s requires SHA-256, SHA-512 and AES/CTR/NoPadding: " + e.getMessage(), e);
+            }
+            this.zeros = new byte[Math.max(genMatrixNBlocks() * AES_BLOCK_BYTES, KyberEngine.KyberN * 3 / 4)];
+        }
+
+        void hashH(byte[] out, int outOff, byte[] in, int inOff, int inLen)
+        {
+            digest(sha256, out, outOff, in, inOff, inLen);
+        }
+
+        void hashG(byte[] out, int outOff, byte[] in, int inOff, int inLen)
+        {
+            digest(sha512, out, outOff, in, inOff, inLen);
+        }
+
+        void kdf(byte[] out, int outOff, byte[] in, int inOff, int inLen)
+        {
+            digest(sha256, out, outOff, in, inOff, inLen);
+        }
+
+        void prf(byte[] out, int outLen, byte[] key, int keyOff, byte nonce)
+        {
+            prf.init(key, keyOff, nonce, 0);
+            update(prf.cipher, out, 0, outLen);
+        }
+
+        void xofAbsorb(int lane, byte[] seed, int seedOff, int a, int b)
+        {
+            xof.init(seed, seedOff, a, b);
+        }
+
+        void xofSqueezeBlocks(byte[] out, int off, int stride, int nBlocks, int lanes)
+        {
+            update(xof.cipher, out, off, nBlocks * AES_BLOCK_BYTES);
+        }
+
+        private void update(Cipher cipher, byte[] out, int outOff, int len)
+        {
+            try
+            {
+                cipher.update(zeros, 0, len, out, outOff);
+            }
+            catch (ShortBufferException e)
+            {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        }
+
+        private static void digest(MessageDigest md, byte[] out, int outOff, byte[] in, int inOff, int inLen)
+        {
+            md.update(in, inOff, inLen);
+            try
+            {
+                md.digest(out, outOff, md.getDigestLength());
+            }
+            catch (DigestException e)
+            {
+                throw new IllegalStateException(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * An AES/CTR cipher with the key and IV objects it was last initialised with
+     */
+    private static final class Aes256Ctr
+    {
+        // nonces whose two leading bytes are both below this have their IvParameterSpec kept
+        private static final int CACHED_NONCE = 16;
+
+        final Cipher cipher;
+        private final byte[] seed = new byte[KyberEngine.KyberSymBytes];
+        private final IvParameterSpec[] ivs = new IvParameterSpec[CACHED_NONCE * CACHED_NONCE];
+        private SecretKeySpec key;
+
+        Aes256Ctr(Cipher cipher)
+        {
+            this.cipher = cipher;
+        }
+
+        /**
+         * Starts the stream keyed with seed and nonce (n0, n1, 0, ..., 0)
+         * @param seed byte[]: Byte array holding the Kyber SymBytes key
+         * @param seedOff int: Offset of the key
+         * @param n0 int: First byte of the nonce
+         * @param n1 int: Second byte of the nonce
+         */
+        void init(byte[] seed, int seedOff, int n0, int n1)
+        {
+            if (key == null || !Arrays.constantTimeAreEqual(KyberEngine.KyberSymBytes, this.seed, 0, seed, seedOff))
+            {
+                System.arraycopy(seed, seedOff, this.seed, 0, KyberEngine.KyberSymBytes);
+                key = new SecretKeySpec(this.seed, "AES");
+            }
+            try
+            {
+                cipher.init(Cipher.ENCRYPT_MODE, key, iv(n0 & 0xFF, n1 & 0xFF));
+            }
+            catch (GeneralSecurityException e)
+            {
+                throw new IllegalStateException("AES-256-CTR initialisation failed: " + e.getMessage(), e);
+            }
+        }
+
+        private IvParameterSpec iv(int n0, int n1)
+        {
+            if (n0 >= CACHED_NONCE || n1 >= CACHED_NONCE)
+            {
+                return ivSpec(n0, n1);
+            }
+            int i = n0 * CACHED_NONCE + n1;
+            if (ivs[i] == null)
+            {
+                ivs[i] = ivSpec(n0, n1);
+            }
+            return ivs[i];
+        }
+
+        private static IvParameterSpec ivSpec(int n0, int n1)
+        {
+            byte[] iv = new byte[16];
+            iv[0] = (byte)n0;
+            iv[1] = (byte)n1;
+            return new IvParameterSpec(iv);
+        }
+    }
 }
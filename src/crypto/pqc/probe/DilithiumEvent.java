@@ -0,0 +1,55 @@
+package crypto.pqc.probe;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event for one Dilithium key generation, signature or verification,
+ * committed by JfrOperationListener. Its duration is the duration of the
+ * operation. The rejection loop fields are only set for signatures: each
+ * counts the iterations rejected by one check, and iterations is their sum
+ * plus the accepted one.
+ */
+@Name("crypto.pqc.Dilithium")
+@Label("Dilithium Operation")
+@Category({"Crypto", "PQC"})
+@Description("Dilithium key generation, signature or verification")
+@StackTrace(false)
+public final class DilithiumEvent
+    extends jdk.jfr.Event
+{
+    @Label("Operation")
+    public String operation;
+
+    @Label("Parameter Set")
+    public String parameterSet;
+
+    @Label("Bytes")
+    @Description("Message length, or public plus secret key length for key generation")
+    @DataAmount(DataAmount.BYTES)
+    public int bytes;
+
+    @Label("Iterations")
+    @Description("Iterations of the signing rejection loop")
+    public int iterations;
+
+    @Label("Z Norm Rejections")
+    @Description("Iterations rejected because z exceeds gamma1 - beta")
+    public int zNormRejections;
+
+    @Label("Low Bits Rejections")
+    @Description("Iterations rejected because the low bits of w - cs2 (w0) exceed gamma2 - beta")
+    public int lowBitsRejections;
+
+    @Label("T0 Norm Rejections")
+    @Description("Iterations rejected because ct0 (h) exceeds gamma2")
+    public int t0NormRejections;
+
+    @Label("Hint Rejections")
+    @Description("Iterations rejected because the hint has more than omega ones")
+    public int hintRejections;
+}
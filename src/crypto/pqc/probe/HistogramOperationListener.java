@@ -0,0 +1,243 @@
+package crypto.pqc.probe;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * OperationListener recording the duration of every operation and of
+ * every phase into log2 histograms, one per operation and one per
+ * (operation, phase) pair. Recording is lock free and allocation free:
+ * a ThreadLocal lookup, System.nanoTime and a few atomic increments per
+ * call.
+ * <p>
+ * Rejected Dilithium signing iterations are recorded as phases too, so
+ * getHistogram(DILITHIUM_SIGN, REJECTED_Z_NORM).getCount() is the number
+ * of iterations that check rejected and its mean the cost of one.
+ */
+public class HistogramOperationListener
+    implements OperationListener
+{
+    private static final Operation[] OPERATIONS = Operation.values();
+    private static final Phase[] PHASES = Phase.values();
+
+    private final Histogram[] operations = new Histogram[OPERATIONS.length];
+    private final Histogram[][] phases = new Histogram[OPERATIONS.length][PHASES.length];
+
+    private final ThreadLocal<Timer> timers = new ThreadLocal<Timer>()
+    {
+        protected Timer initialValue()
+        {
+            return new Timer();
+        }
+    };
+
+    public HistogramOperationListener()
+    {
+        for (int i = 0; i < OPERATIONS.length; i++)
+        {
+            operations[i] = new Histogram();
+            for (int j = 0; j < PHASES.length; j++)
+            {
+                phases[i][j] = new Histogram();
+            }
+        }
+    }
+
+    public void operationStarted(Operation operation, String parameterSet, int bytes)
+    {
+        Timer timer = timers.get();
+        timer.operation = operation;
+        timer.start = System.nanoTime();
+        timer.last = timer.start;
+    }
+
+    public void phaseCompleted(Phase phase)
+    {
+        Timer timer = timers.get();
+        if (timer.operation == null)
+        {
+            return;
+        }
+        long now = System.nanoTime();
+        phases[timer.operation.ordinal()][phase.ordinal()].record(now - timer.last);
+        timer.last = now;
+    }
+
+    public void operationCompleted(Operation operation)
+    {
+        Timer timer = timers.get();
+        if (timer.operation != operation)
+        {
+            return;
+        }
+        operations[operation.ordinal()].record(System.nanoTime() - timer.start);
+        timer.operation = null;
+    }
+
+    /**
+     * @param operation Operation: Operation to look up
+     * @return Histogram: Durations of whole operations
+     */
+    public Histogram getHistogram(Operation operation)
+    {
+        return operations[operation.ordinal()];
+    }
+
+    /**
+     * @param operation Operation: Operation to look up
+     * @param phase Phase: Phase within the operation
+     * @return Histogram: Durations of every occurrence of the phase within the operation
+     */
+    public Histogram getHistogram(Operation operation, Phase phase)
+    {
+        return phases[operation.ordinal()][phase.ordinal()];
+    }
+
+    /**
+     * Clears every histogram. Operations in flight on other threads may
+     * still be recorded afterwards.
+     */
+    public void reset()
+    {
+        for (int i = 0; i < OPERATIONS.length; i++)
+        {
+            operations[i].reset();
+            for (int j = 0; j < PHASES.length; j++)
+            {
+                phases[i][j].reset();
+            }
+        }
+    }
+
+    /**
+     * One line per recorded operation followed by one per recorded phase,
+     * with count, mean, median, 99th percentile and maximum in microseconds
+     */
+    public String toString()
+    {
+        StringBuilder sb = new StringBuilder();
+        sb.append(String.format("%-28s %10s %10s %10s %10s %10s%n", "operation / phase", "count", "mean us", "p50 us", "p99 us", "max us"));
+        for (int i = 0; i < OPERATIONS.length; i++)
+        {
+            if (operations[i].getCount() == 0)
+            {
+                continue;
+            }
+            appendRow(sb, OPERATIONS[i].name(), operations[i]);
+            for (int j = 0; j < PHASES.length; j++)
+            {
+                if (phases[i][j].getCount() != 0)
+                {
+                    appendRow(sb, "  " + PHASES[j].name(), phases[i][j]);
+                }
+            }
+        }
+        return sb.toString();
+    }
+
+    private static void appendRow(StringBuilder sb, String name, Histogram h)
+    {
+        sb.append(String.format("%-28s %10d %10.2f %10.2f %10.2f %10.2f%n", name, h.getCount(), h.getMeanNanos() / 1000.0,
+            h.getPercentileNanos(50) / 1000.0, h.getPercentileNanos(99) / 1000.0, h.getMaxNanos() / 1000.0));
+    }
+
+    private static final class Timer
+    {
+        Operation operation;
+        long start;
+        long last;
+    }
+
+    /**
+     * Thread safe histogram of durations with power of two buckets:
+     * bucket b holds durations in [2^(b-1), 2^b) ns, bucket 0 holds 0.
+     * Percentiles are therefore only accurate to a factor of two, the
+     * count, mean and maximum are exact.
+     */
+    public static final class Histogram
+    {
+        private static final int BUCKETS = 64;
+
+        private final AtomicLongArray buckets = new AtomicLongArray(BUCKETS);
+        private final AtomicLong count = new AtomicLong();
+        private final AtomicLong total = new AtomicLong();
+        private final AtomicLong max = new AtomicLong();
+
+        /**
+         * @param nanos long: Duration to record, negative durations count as 0
+         */
+        public void record(long nanos)
+        {
+            if (nanos < 0)
+            {
+                nanos = 0;
+            }
+            buckets.incrementAndGet(Math.min(BUCKETS - 1, 64 - Long.numberOfLeadingZeros(nanos)));
+            count.incrementAndGet();
+            total.addAndGet(nanos);
+
+            long m = max.get();
+            while (nanos > m && !max.compareAndSet(m, nanos))
+            {
+                m = max.get();
+            }
+        }
+
+        void reset()
+        {
+            for (int i = 0; i < BUCKETS; i++)
+            {
+                buckets.set(i, 0);
+            }
+            count.set(0);
+            total.set(0);
+            max.set(0);
+        }
+
+        public long getCount()
+        {
+            return count.get();
+        }
+
+        public long getTotalNanos()
+        {
+            return total.get();
+        }
+
+        public double getMeanNanos()
+        {
+            long n = count.get();
+            return n == 0 ? 0 : (double)total.get() / n;
+        }
+
+        public long getMaxNanos()
+        {
+            return max.get();
+        }
+
+        /**
+         * Upper bound of the bucket holding the given percentile, capped at the maximum
+         * @param percentile double: Percentile in [0, 100]
+         * @return long: Duration in ns, 0 when nothing was recorded
+         */
+        public long getPercentileNanos(double percentile)
+        {
+            long n = 0;
+            for (int i = 0; i < BUCKETS; i++)
+            {
+                n += buckets.get(i);
+            }
+            long rank = (long)Math.ceil(n * percentile / 100);
+            long seen = 0;
+            for (int i = 0; i < BUCKETS; i++)
+            {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0)
+                {
+                    return i == 0 ? 0 : Math.min(max.get(), (1L << i) - 1);
+                }
+            }
+            return 0;
+        }
+    }
+}
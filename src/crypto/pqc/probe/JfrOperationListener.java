@@ -0,0 +1,145 @@
+package crypto.pqc.probe;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * OperationListener emitting a KyberEvent or DilithiumEvent per operation
+ * to Java Flight Recorder, for profiling in continuous recordings:
+ * <pre>
+ * jcmd &lt;pid&gt; JFR.start settings=profile
+ * jfr print --events crypto.pqc.Dilithium recording.jfr
+ * </pre>
+ * Attach it with withListener on a parameter set, or start the JVM with
+ * -Dcrypto.pqc.jfr=true to make it the listener of the predefined
+ * parameter sets (see OperationListener.DEFAULT).
+ * <p>
+ * While no recording has the events enabled, an operation costs two
+ * ThreadLocal lookups and nothing is allocated; its phases cost a switch
+ * and one volatile read. Phases are not recorded as events of their own,
+ * only the outcome of every Dilithium signing iteration is counted into
+ * the enclosing event, looked up per thread while any thread is recording
+ * one; HistogramOperationListener gives the time spent per phase.
+ */
+public class JfrOperationListener
+    implements OperationListener
+{
+    // Dilithium events begun and not yet committed, over all threads
+    private final AtomicInteger dilithiumEvents = new AtomicInteger();
+
+    private final ThreadLocal<State> states = new ThreadLocal<State>()
+    {
+        protected State initialValue()
+        {
+            return new State();
+        }
+    };
+
+    public void operationStarted(Operation operation, String parameterSet, int bytes)
+    {
+        State state = states.get();
+        state.kyber = null;
+        if (state.dilithium != null)
+        {
+            // the previous operation threw before completing
+            state.dilithium = null;
+            dilithiumEvents.decrementAndGet();
+        }
+
+        switch (operation)
+        {
+        case KYBER_KEYGEN:
+        case KYBER_ENCAPSULATE:
+        case KYBER_DECAPSULATE:
+            if (state.kyberProbe.isEnabled())
+            {
+                KyberEvent event = new KyberEvent();
+                event.operation = operation.name();
+                event.parameterSet = parameterSet;
+                event.bytes = bytes;
+                event.begin();
+                state.kyber = event;
+            }
+            break;
+        default:
+            if (state.dilithiumProbe.isEnabled())
+            {
+                DilithiumEvent event = new DilithiumEvent();
+                event.operation = operation.name();
+                event.parameterSet = parameterSet;
+                event.bytes = bytes;
+                event.begin();
+                state.dilithium = event;
+                dilithiumEvents.incrementAndGet();
+            }
+            break;
+        }
+    }
+
+    public void phaseCompleted(Phase phase)
+    {
+        if (!phase.isRejection() && phase != Phase.ACCEPTED)
+        {
+            return;
+        }
+        if (dilithiumEvents.get() == 0)
+        {
+            return;
+        }
+        DilithiumEvent event = states.get().dilithium;
+        if (event == null)
+        {
+            return;
+        }
+
+        switch (phase)
+        {
+        case REJECTED_Z_NORM:
+            event.zNormRejections++;
+            event.iterations++;
+            break;
+        case REJECTED_LOW_BITS:
+            event.lowBitsRejections++;
+            event.iterations++;
+            break;
+        case REJECTED_T0_NORM:
+            event.t0NormRejections++;
+            event.iterations++;
+            break;
+        case REJECTED_HINTS:
+            event.hintRejections++;
+            event.iterations++;
+            break;
+        case ACCEPTED:
+            event.iterations++;
+            break;
+        default:
+            break;
+        }
+    }
+
+    public void operationCompleted(Operation operation)
+    {
+        State state = states.get();
+        if (state.kyber != null)
+        {
+            state.kyber.commit();
+            state.kyber = null;
+        }
+        else if (state.dilithium != null)
+        {
+            state.dilithium.commit();
+            state.dilithium = null;
+            dilithiumEvents.decrementAndGet();
+        }
+    }
+
+    private static final class State
+    {
+        // never committed, only asked whether a recording wants the event
+        final KyberEvent kyberProbe = new KyberEvent();
+        final DilithiumEvent dilithiumProbe = new DilithiumEvent();
+
+        KyberEvent kyber;
+        DilithiumEvent dilithium;
+    }
+}
@@ -0,0 +1,33 @@
+package crypto.pqc.probe;
+
+import jdk.jfr.Category;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+
+/**
+ * JFR event for one Kyber key generation, encapsulation or decapsulation,
+ * committed by JfrOperationListener. Its duration is the duration of the
+ * operation.
+ */
+@Name("crypto.pqc.Kyber")
+@Label("Kyber Operation")
+@Category({"Crypto", "PQC"})
+@Description("Kyber key generation, encapsulation or decapsulation")
+@StackTrace(false)
+public final class KyberEvent
+    extends jdk.jfr.Event
+{
+    @Label("Operation")
+    public String operation;
+
+    @Label("Parameter Set")
+    public String parameterSet;
+
+    @Label("Bytes")
+    @Description("Cipher text length, or public plus secret key length for key generation")
+    @DataAmount(DataAmount.BYTES)
+    public int bytes;
+}
@@ -0,0 +1,14 @@
+package crypto.pqc.probe;
+
+/**
+ * Top level operations reported to an OperationListener
+ */
+public enum Operation
+{
+    KYBER_KEYGEN,
+    KYBER_ENCAPSULATE,
+    KYBER_DECAPSULATE,
+    DILITHIUM_KEYGEN,
+    DILITHIUM_SIGN,
+    DILITHIUM_VERIFY
+}
@@ -0,0 +1,70 @@
+package crypto.pqc.probe;
+
+/**
+ * Probe called by KyberEngine, KyberIndCpa and DilithiumEngine at the
+ * start and end of every operation and at its phase boundaries. A listener
+ * is attached to a parameter set with KyberParameters.withListener or
+ * DilithiumParameters.withListener and is then shared by every engine,
+ * key and thread using that parameter set, so implementations must be
+ * thread safe. Calls for one operation always come from the thread
+ * running it and are never interleaved with another operation on that
+ * thread, so per-thread state is enough to pair them up.
+ * <p>
+ * The callbacks carry no timestamps: a listener that wants timings reads
+ * the clock itself, so NONE does not even pay for System.nanoTime. Engines
+ * hold their listener in a final field, and as long as a call site has only
+ * ever seen NONE, the JIT inlines its empty methods and nothing is left.
+ * <p>
+ * Phases may also be reported outside an operation, for example while a
+ * PreparedKyberPublicKey expands its matrix. Listeners should ignore them.
+ * If an operation throws, operationCompleted is not called.
+ */
+public interface OperationListener
+{
+    /**
+     * Listener that does nothing, the default unless crypto.pqc.jfr is set
+     */
+    OperationListener NONE = new OperationListener()
+    {
+        public void operationStarted(Operation operation, String parameterSet, int bytes)
+        {
+        }
+
+        public void phaseCompleted(Phase phase)
+        {
+        }
+
+        public void operationCompleted(Operation operation)
+        {
+        }
+    };
+
+    /**
+     * Listener of the predefined parameter sets: a JfrOperationListener when
+     * the system property crypto.pqc.jfr is true, NONE otherwise
+     */
+    OperationListener DEFAULT = Boolean.getBoolean("crypto.pqc.jfr") ? new JfrOperationListener() : NONE;
+
+    /**
+     * Called before any work of the operation is done
+     * @param operation Operation: Operation starting on the calling thread
+     * @param parameterSet String: Name of the parameter set, e.g. kyber768, kyber768_90s or dilithium3
+     * @param bytes int: Bytes processed: the message length for signing and verification, the cipher
+     *              text length for encapsulation and decapsulation, public plus secret key length
+     *              for key generation
+     */
+    void operationStarted(Operation operation, String parameterSet, int bytes);
+
+    /**
+     * Called when a phase of the current operation of the calling thread ends
+     * @param phase Phase: Phase that just ended
+     */
+    void phaseCompleted(Phase phase);
+
+    /**
+     * Called when the operation returns, including a Dilithium
+     * verification returning false
+     * @param operation Operation: Operation ending on the calling thread
+     */
+    void operationCompleted(Operation operation);
+}
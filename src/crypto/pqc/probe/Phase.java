@@ -0,0 +1,83 @@
+package crypto.pqc.probe;
+
+/**
+ * Phase boundaries reported to an OperationListener. A phase covers the
+ * work since the previous boundary of the same operation, or since its
+ * start, and can occur several times per operation: Kyber decapsulation
+ * for instance samples noise and runs NTTs for both the decryption and
+ * the re-encryption.
+ */
+public enum Phase
+{
+    /**
+     * Keys, cipher texts or signatures decoded into polynomials
+     */
+    UNPACKED,
+
+    /**
+     * Hashing: seed expansion, H, G, the KDF, mu and the challenge
+     */
+    HASHED,
+
+    /**
+     * Public matrix A expanded from its seed
+     */
+    MATRIX_EXPANDED,
+
+    /**
+     * Secret and error polynomials sampled: CBD for Kyber, uniform eta
+     * and gamma1 for Dilithium
+     */
+    NOISE_SAMPLED,
+
+    /**
+     * Forward NTTs of the sampled or decoded vectors
+     */
+    NTT,
+
+    /**
+     * Products in the NTT domain, inverse NTTs and the additions,
+     * reductions and rounding that follow them
+     */
+    MULTIPLIED,
+
+    /**
+     * Results encoded into keys, cipher texts, messages or signatures
+     */
+    PACKED,
+
+    /**
+     * Dilithium signing iteration rejected because z exceeds gamma1 - beta
+     */
+    REJECTED_Z_NORM,
+
+    /**
+     * Dilithium signing iteration rejected because the low bits of
+     * w - cs2 exceed gamma2 - beta
+     */
+    REJECTED_LOW_BITS,
+
+    /**
+     * Dilithium signing iteration rejected because ct0 exceeds gamma2
+     */
+    REJECTED_T0_NORM,
+
+    /**
+     * Dilithium signing iteration rejected because the hint has more
+     * than omega ones
+     */
+    REJECTED_HINTS,
+
+    /**
+     * Dilithium signing iteration that produced the signature
+     */
+    ACCEPTED;
+
+    /**
+     * @return boolean: true for the phases ending a rejected signing iteration
+     */
+    public boolean isRejection()
+    {
+        return this == REJECTED_Z_NORM || this == REJECTED_LOW_BITS || this == REJECTED_T0_NORM || this == REJECTED_HINTS;
+    }
+}
@@ -3,21 +3,41 @@ package crypto.pqc.test;
 import java.io.BufferedReader;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.file.Files;
+import java.nio.file.Path;
 import java.security.SecureRandom;
+import java.util.BitSet;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RejectedExecutionException;
+
+import jdk.jfr.Recording;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordingFile;
 
 import junit.framework.TestCase;
 import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
+import org.bouncycastle.crypto.digests.SHAKEDigest;
 import org.bouncycastle.crypto.params.ParametersWithRandom;
 
 import org.bouncycastle.util.Arrays;
 import org.bouncycastle.util.Strings;
 import org.bouncycastle.util.encoders.Hex;
 
+import crypto.pqc.CrystalsService;
 import crypto.pqc.dilithium.DilithiumKeyGenerationParameters;
 import crypto.pqc.dilithium.DilithiumKeyPairGenerator;
 import crypto.pqc.dilithium.DilithiumParameters;
 import crypto.pqc.dilithium.*;
+import crypto.pqc.probe.HistogramOperationListener;
+import crypto.pqc.probe.JfrOperationListener;
+import crypto.pqc.probe.Operation;
+import crypto.pqc.probe.Phase;
 
 
 
@@ -218,6 +238,131 @@ public class CrystalsDilithiumTest
         }
     }
 
+    public void testVectorArithmetic()
+    {
+        if (DilithiumArithmetic.VECTOR == null)
+        {
+            // JVM started without jdk.incubator.vector, or no 512-bit vectors
+            try
+            {
+                DilithiumParameters.dilithium3.withArithmetic(DilithiumArithmetic.VECTOR);
+                fail("unavailable arithmetic accepted");
+            }
+            catch (IllegalArgumentException e)
+            {
+                // expected
+            }
+            return;
+        }
+
+        byte[] seed = Hex.decode("061550234D158C5EC95595FE04EF7A25767F2E24CC2BC479D09D86DC9ABCFDE7056A8C266F9EF97ED08541DBD2E1FFA1");
+        byte[] msg = Strings.toByteArray("Hello World!");
+        DilithiumParameters[] params = new DilithiumParameters[]{
+            DilithiumParameters.dilithium2,
+            DilithiumParameters.dilithium3,
+            DilithiumParameters.dilithium5,
+        };
+
+        for (int p = 0; p != params.length; p++)
+        {
+            DilithiumParameters mont = params[p].withArithmetic(DilithiumArithmetic.MONTGOMERY);
+            DilithiumParameters vector = params[p].withArithmetic(DilithiumArithmetic.VECTOR);
+
+            NISTSecureRandom montRandom = new NISTSecureRandom(seed, null);
+            NISTSecureRandom vectorRandom = new NISTSecureRandom(seed, null);
+
+            for (int i = 0; i < 5; i++)
+            {
+                DilithiumKeyPairGenerator keyGen = new DilithiumKeyPairGenerator();
+                keyGen.init(new DilithiumKeyGenerationParameters(montRandom, mont));
+                AsymmetricCipherKeyPair montKp = keyGen.generateKeyPair();
+                keyGen.init(new DilithiumKeyGenerationParameters(vectorRandom, vector));
+                AsymmetricCipherKeyPair vectorKp = keyGen.generateKeyPair();
+
+                assertTrue(params[p].getName() + " " + i + ": secret key", Arrays.areEqual(((DilithiumPrivateKeyParameters)montKp.getPrivate()).getPrivateKey(),
+                    ((DilithiumPrivateKeyParameters)vectorKp.getPrivate()).getPrivateKey()));
+
+                DilithiumSigner signer = new DilithiumSigner();
+                signer.init(true, new ParametersWithRandom(montKp.getPrivate(), montRandom));
+                byte[] montSig = signer.generateSignature(msg);
+                signer.init(true, new ParametersWithRandom(vectorKp.getPrivate(), vectorRandom));
+                byte[] vectorSig = signer.generateSignature(msg);
+
+                assertTrue(params[p].getName() + " " + i + ": signature", Arrays.areEqual(montSig, vectorSig));
+
+                DilithiumSigner verifier = new DilithiumSigner();
+                verifier.init(false, vectorKp.getPublic());
+                assertTrue(params[p].getName() + " " + i + ": verify", verifier.verifySignature(msg, montSig));
+            }
+        }
+    }
+
+    public void testUniformRefill()
+    {
+        SecureRandom random = new SecureRandom();
+        int q = DilithiumEngine.DilithiumQ;
+
+        // the first block holds 280 candidates, so rejecting 30 forces one
+        // refill and rejecting 600 several
+        int[] rejections = new int[]{ 30, 279, 600 };
+        for (int r = 0; r != rejections.length; r++)
+        {
+            byte[] stream = new byte[4096];
+            random.nextBytes(stream);
+            for (int c = 0; c < rejections[r]; c++)
+            {
+                // alternate Q, the smallest rejected value, with 2^23 - 1
+                int t = (c & 1) == 0 ? q : 0x7FFFFF;
+                stream[3 * c] = (byte)t;
+                stream[3 * c + 1] = (byte)(t >> 8);
+                stream[3 * c + 2] = (byte)((t >> 16) | ((c & 2) << 6));
+            }
+            // Q - 1 is the largest accepted value
+            int c = rejections[r];
+            stream[3 * c] = (byte)(q - 1);
+            stream[3 * c + 1] = (byte)((q - 1) >> 8);
+            stream[3 * c + 2] = (byte)((q - 1) >> 16);
+
+            int[] coeffs = new int[DilithiumEngine.DilithiumN];
+            Poly.uniformBlocks(coeffs, new FixedShake(stream));
+
+            // reference: every 3 bytes of the stream in order, top bit masked
+            int ctr = 0;
+            for (int pos = 0; ctr < DilithiumEngine.DilithiumN; pos += 3)
+            {
+                int t = (stream[pos] & 0xFF) | (stream[pos + 1] & 0xFF) << 8 | (stream[pos + 2] & 0x7F) << 16;
+                if (t < q)
+                {
+                    assertEquals(rejections[r] + " rejections: coefficient " + ctr, t, coeffs[ctr++]);
+                }
+            }
+            assertEquals(rejections[r] + " rejections: first accepted", q - 1, coeffs[0]);
+        }
+    }
+
+    /**
+     * SHAKEDigest squeezing a fixed byte stream
+     */
+    private static class FixedShake
+        extends SHAKEDigest
+    {
+        private final byte[] stream;
+        private int pos;
+
+        FixedShake(byte[] stream)
+        {
+            super(128);
+            this.stream = stream;
+        }
+
+        public int doOutput(byte[] out, int outOff, int outLen)
+        {
+            System.arraycopy(stream, pos, out, outOff, outLen);
+            pos += outLen;
+            return outLen;
+        }
+    }
+
     public void testDilithiumRandom()
     {
         byte[] msg = Strings.toByteArray("Hello World!");
@@ -247,4 +392,285 @@ public class CrystalsDilithiumTest
             assertTrue("count = " + i, verifier.verifySignature(msg, sigGenerated));
         }
     }
+
+    public void testOperationListener()
+    {
+        byte[] msg = Strings.toByteArray("Hello World!");
+        SecureRandom random = new SecureRandom();
+        HistogramOperationListener listener = new HistogramOperationListener();
+        DilithiumParameters params = DilithiumParameters.dilithium2.withListener(listener);
+
+        DilithiumKeyPairGenerator keyGen = new DilithiumKeyPairGenerator();
+        keyGen.init(new DilithiumKeyGenerationParameters(random, params));
+
+        int signatures = 20;
+        for (int i = 0; i != signatures; i++)
+        {
+            AsymmetricCipherKeyPair keyPair = keyGen.generateKeyPair();
+
+            DilithiumSigner signer = new DilithiumSigner();
+            signer.init(true, new ParametersWithRandom(keyPair.getPrivate(), random));
+            byte[] sig = signer.generateSignature(msg);
+
+            DilithiumSigner verifier = new DilithiumSigner();
+            verifier.init(false, keyPair.getPublic());
+            assertTrue(verifier.verifySignature(msg, sig));
+            sig[0] ^= 1;
+            assertFalse(verifier.verifySignature(msg, sig));
+        }
+
+        assertEquals(signatures, listener.getHistogram(Operation.DILITHIUM_KEYGEN).getCount());
+        assertEquals(signatures, listener.getHistogram(Operation.DILITHIUM_SIGN).getCount());
+        assertEquals(signatures, listener.getHistogram(Operation.DILITHIUM_SIGN, Phase.ACCEPTED).getCount());
+        // rejected signatures are reported as completed verifications too
+        assertEquals(2 * signatures, listener.getHistogram(Operation.DILITHIUM_VERIFY).getCount());
+
+        long rejections = 0;
+        for (Phase phase : Phase.values())
+        {
+            if (phase.isRejection())
+            {
+                rejections += listener.getHistogram(Operation.DILITHIUM_SIGN, phase).getCount();
+            }
+        }
+        // about three rejections per signature for dilithium2
+        assertTrue("rejections = " + rejections, rejections > 0);
+    }
+
+    public void testFlightRecorderEvents()
+        throws Exception
+    {
+        byte[] msg = Strings.toByteArray("Hello World!");
+        SecureRandom random = new SecureRandom();
+        DilithiumParameters params = DilithiumParameters.dilithium2.withListener(new JfrOperationListener());
+
+        DilithiumKeyPairGenerator keyGen = new DilithiumKeyPairGenerator();
+        keyGen.init(new DilithiumKeyGenerationParameters(random, params));
+        AsymmetricCipherKeyPair keyPair = keyGen.generateKeyPair();
+        DilithiumSigner signer = new DilithiumSigner();
+        signer.init(true, new ParametersWithRandom(keyPair.getPrivate(), random));
+
+        Path file = Files.createTempFile("dilithium", ".jfr");
+        int signatures = 10;
+        try
+        {
+            Recording recording = new Recording();
+            recording.enable("crypto.pqc.Dilithium");
+            recording.start();
+            for (int i = 0; i != signatures; i++)
+            {
+                msg[0] = (byte)i;
+                signer.generateSignature(msg);
+            }
+            recording.stop();
+            recording.dump(file);
+            recording.close();
+
+            List<RecordedEvent> events = RecordingFile.readAllEvents(file);
+            assertEquals(signatures, events.size());
+            for (RecordedEvent event : events)
+            {
+                assertEquals("DILITHIUM_SIGN", event.getString("operation"));
+                assertEquals("dilithium2", event.getString("parameterSet"));
+                assertEquals(msg.length, event.getInt("bytes"));
+                int rejections = event.getInt("zNormRejections") + event.getInt("lowBitsRejections")
+                    + event.getInt("t0NormRejections") + event.getInt("hintRejections");
+                assertEquals(rejections + 1, event.getInt("iterations"));
+            }
+        }
+        finally
+        {
+            Files.delete(file);
+        }
+    }
+
+    public void testService()
+        throws Exception
+    {
+        final byte[] msg = Strings.toByteArray("Hello World!");
+        CrystalsService service = new CrystalsService(new SecureRandom(), 2);
+        try
+        {
+            AsymmetricCipherKeyPair keyPair = service.generateKeyPair(DilithiumParameters.dilithium2).get();
+            byte[] sig = service.sign((DilithiumPrivateKeyParameters)keyPair.getPrivate(), msg).get();
+            assertTrue(service.verify((DilithiumPublicKeyParameters)keyPair.getPublic(), msg, sig).get().booleanValue());
+            sig[0] ^= 1;
+            assertFalse(service.verify((DilithiumPublicKeyParameters)keyPair.getPublic(), msg, sig).get().booleanValue());
+            assertEquals(1, service.getRunTime(Operation.DILITHIUM_SIGN).getCount());
+            assertEquals(2, service.getQueueTime(Operation.DILITHIUM_VERIFY).getCount());
+
+            // one signing task at a time, one waiting, the next rejected
+            service.setLimits(Operation.DILITHIUM_SIGN, 1, 1);
+            final CountDownLatch started = new CountDownLatch(1);
+            final CountDownLatch release = new CountDownLatch(1);
+            CompletableFuture<Object> blocker = service.submit(Operation.DILITHIUM_SIGN, new Callable<Object>()
+            {
+                public Object call()
+                    throws Exception
+                {
+                    started.countDown();
+                    release.await();
+                    return null;
+                }
+            });
+            started.await();
+            CompletableFuture<byte[]> queued = service.sign((DilithiumPrivateKeyParameters)keyPair.getPrivate(), msg);
+            CompletableFuture<byte[]> rejected = service.sign((DilithiumPrivateKeyParameters)keyPair.getPrivate(), msg);
+            assertEquals(1, service.getRunning(Operation.DILITHIUM_SIGN));
+            assertEquals(1, service.getQueued(Operation.DILITHIUM_SIGN));
+            try
+            {
+                rejected.get();
+                fail("full lane accepted a task");
+            }
+            catch (ExecutionException e)
+            {
+                assertTrue(e.getCause() instanceof RejectedExecutionException);
+            }
+            assertEquals(1, service.getRejected(Operation.DILITHIUM_SIGN));
+
+            // other operations keep the second thread
+            assertFalse(service.verify((DilithiumPublicKeyParameters)keyPair.getPublic(), msg, sig).get().booleanValue());
+
+            release.countDown();
+            blocker.get();
+            assertTrue(service.verify((DilithiumPublicKeyParameters)keyPair.getPublic(), msg, queued.get()).get().booleanValue());
+            assertEquals(0, service.getQueued(Operation.DILITHIUM_SIGN));
+        }
+        finally
+        {
+            service.close();
+        }
+    }
+
+    public void testPublicKeyCache()
+    {
+        byte[] msg = Strings.toByteArray("Hello World!");
+        SecureRandom random = new SecureRandom();
+        DilithiumKeyPairGenerator keyGen = new DilithiumKeyPairGenerator();
+        keyGen.init(new DilithiumKeyGenerationParameters(random, DilithiumParameters.dilithium3));
+        AsymmetricCipherKeyPair first = keyGen.generateKeyPair();
+        AsymmetricCipherKeyPair second = keyGen.generateKeyPair();
+
+        DilithiumSigner signer = new DilithiumSigner();
+        signer.init(true, new ParametersWithRandom(first.getPrivate(), random));
+        byte[] sig = signer.generateSignature(msg);
+
+        // room for one prepared dilithium3 key
+        long size = new PreparedDilithiumPublicKey((DilithiumPublicKeyParameters)first.getPublic()).getPreparedBytes();
+        DilithiumPublicKeyCache cache = new DilithiumPublicKeyCache(size + size / 2);
+
+        DilithiumPublicKeyParameters encoded = new DilithiumPublicKeyParameters(DilithiumParameters.dilithium3,
+            ((DilithiumPublicKeyParameters)first.getPublic()).getPublicKey());
+        for (int i = 0; i != 3; i++)
+        {
+            DilithiumSigner verifier = new DilithiumSigner();
+            verifier.init(false, cache.get(i == 0 ? (DilithiumPublicKeyParameters)first.getPublic() : encoded));
+            assertTrue(verifier.verifySignature(msg, sig));
+            sig[sig.length - 1] ^= 1;
+            assertFalse(verifier.verifySignature(msg, sig));
+            sig[sig.length - 1] ^= 1;
+        }
+        assertEquals(1, cache.getMisses());
+        assertEquals(2, cache.getHits());
+        assertEquals(size, cache.getBytes());
+
+        // a second key evicts the first
+        cache.get((DilithiumPublicKeyParameters)second.getPublic());
+        assertEquals(1, cache.size());
+        assertEquals(1, cache.getEvictions());
+        DilithiumSigner verifier = new DilithiumSigner();
+        verifier.init(false, cache.get((DilithiumPublicKeyParameters)second.getPublic()));
+        assertFalse(verifier.verifySignature(msg, sig));
+        assertEquals(3, cache.getHits());
+    }
+
+    public void testPreparedPrivateKey()
+    {
+        SecureRandom random = new SecureRandom();
+        DilithiumParameters[] params = { DilithiumParameters.dilithium2, DilithiumParameters.dilithium3, DilithiumParameters.dilithium5 };
+        for (int p = 0; p != params.length; p++)
+        {
+            DilithiumKeyPairGenerator keyGen = new DilithiumKeyPairGenerator();
+            keyGen.init(new DilithiumKeyGenerationParameters(random, params[p]));
+            AsymmetricCipherKeyPair keyPair = keyGen.generateKeyPair();
+            DilithiumPrivateKeyParameters privateKey = (DilithiumPrivateKeyParameters)keyPair.getPrivate();
+            PreparedDilithiumPrivateKey prepared = new PreparedDilithiumPrivateKey(privateKey);
+            assertTrue(Arrays.areEqual(privateKey.getEncoded(), prepared.getEncoded()));
+
+            DilithiumSigner verifier = new DilithiumSigner();
+            verifier.init(false, keyPair.getPublic());
+            for (int i = 0; i != 5; i++)
+            {
+                byte[] msg = new byte[i * 100];
+                random.nextBytes(msg);
+
+                // signing is deterministic, so both keys give the same signature
+                DilithiumSigner signer = new DilithiumSigner();
+                signer.init(true, new ParametersWithRandom(privateKey, random));
+                byte[] sig = signer.generateSignature(msg);
+                signer.init(true, new ParametersWithRandom(prepared, random));
+                assertTrue(params[p].getName() + " " + i, Arrays.areEqual(sig, signer.generateSignature(msg)));
+                assertTrue(verifier.verifySignature(msg, sig));
+            }
+        }
+    }
+
+    public void testBatchVerifier()
+    {
+        SecureRandom random = new SecureRandom();
+        DilithiumParameters[] params = { DilithiumParameters.dilithium2, DilithiumParameters.dilithium3, DilithiumParameters.dilithium2 };
+        AsymmetricCipherKeyPair[] keyPairs = new AsymmetricCipherKeyPair[params.length];
+        for (int k = 0; k != params.length; k++)
+        {
+            DilithiumKeyPairGenerator keyGen = new DilithiumKeyPairGenerator();
+            keyGen.init(new DilithiumKeyGenerationParameters(random, params[k]));
+            keyPairs[k] = keyGen.generateKeyPair();
+        }
+
+        int n = 30;
+        DilithiumPublicKeyParameters[] publicKeys = new DilithiumPublicKeyParameters[n];
+        byte[][] messages = new byte[n][];
+        byte[][] signatures = new byte[n][];
+        BitSet expected = new BitSet(n);
+        for (int i = 0; i != n; i++)
+        {
+            AsymmetricCipherKeyPair keyPair = keyPairs[i % keyPairs.length];
+            DilithiumSigner signer = new DilithiumSigner();
+            signer.init(true, new ParametersWithRandom(keyPair.getPrivate(), random));
+            messages[i] = new byte[i];
+            random.nextBytes(messages[i]);
+            signatures[i] = signer.generateSignature(messages[i]);
+            // equal keys decoded separately still share a group
+            publicKeys[i] = new DilithiumPublicKeyParameters(params[i % params.length],
+                ((DilithiumPublicKeyParameters)keyPair.getPublic()).getPublicKey());
+            if (i % 7 == 3)
+            {
+                signatures[i][i] ^= 1;
+            }
+            else
+            {
+                expected.set(i);
+            }
+        }
+
+        DilithiumPublicKeyCache cache = new DilithiumPublicKeyCache(1 << 20);
+        DilithiumBatchVerifier verifier = new DilithiumBatchVerifier(new ForkJoinPool(4), cache);
+        assertEquals(expected, verifier.verify(publicKeys, messages, signatures));
+        assertEquals(3, cache.getMisses());
+        assertEquals(expected, verifier.verify(publicKeys, messages, signatures));
+        assertEquals(3, cache.getHits());
+
+        BitSet failFast = verifier.verify(publicKeys, messages, signatures, true);
+        assertTrue(failFast.cardinality() < n);
+        failFast.andNot(expected);
+        assertTrue(failFast.isEmpty());
+
+        // an all valid batch passes in fail-fast mode
+        signatures[3][3] ^= 1;
+        signatures[10][10] ^= 1;
+        signatures[17][17] ^= 1;
+        signatures[24][24] ^= 1;
+        assertEquals(n, verifier.verify(publicKeys, messages, signatures, true).cardinality());
+    }
 }
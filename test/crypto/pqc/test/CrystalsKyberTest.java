@@ -4,15 +4,30 @@ import java.io.BufferedReader;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.security.SecureRandom;
+import java.util.ArrayList;
 import java.util.HashMap;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
 
 import junit.framework.TestCase;
 import org.bouncycastle.crypto.AsymmetricCipherKeyPair;
 import org.bouncycastle.crypto.SecretWithEncapsulation;
+import org.bouncycastle.crypto.digests.SHA3Digest;
+import org.bouncycastle.crypto.digests.SHAKEDigest;
+import org.bouncycastle.crypto.params.AsymmetricKeyParameter;
 import org.bouncycastle.util.Arrays;
 import org.bouncycastle.util.encoders.Hex;
 
 import crypto.pqc.kyber.*;
+import crypto.pqc.probe.HistogramOperationListener;
+import crypto.pqc.probe.Operation;
+import crypto.pqc.probe.Phase;
 
 import static org.junit.Assert.assertArrayEquals;
 
@@ -159,6 +174,611 @@ public class CrystalsKyberTest
      }
 
 
+    public void testWorkspaceReuse()
+    {
+        byte[] seed = Hex.decode("061550234D158C5EC95595FE04EF7A25767F2E24CC2BC479D09D86DC9ABCFDE7056A8C266F9EF97ED08541DBD2E1FFA1");
+        KyberParameters[] params = new KyberParameters[]{
+            KyberParameters.kyber512,
+            KyberParameters.kyber768,
+            KyberParameters.kyber1024,
+        };
+
+        for (int p = 0; p != params.length; p++)
+        {
+            NISTSecureRandom random = new NISTSecureRandom(seed, null);
+            NISTSecureRandom wsRandom = new NISTSecureRandom(seed, null);
+            KyberWorkspace ws = new KyberWorkspace(params[p]);
+
+            KyberKeyPairGenerator kpGen = new KyberKeyPairGenerator();
+            kpGen.init(new KyberKeyGenerationParameters(random, params[p]));
+            KyberKeyPairGenerator wsKpGen = new KyberKeyPairGenerator();
+            wsKpGen.init(new KyberKeyGenerationParameters(wsRandom, params[p]));
+
+            for (int i = 0; i < 10; i++)
+            {
+                AsymmetricCipherKeyPair kp = kpGen.generateKeyPair();
+                AsymmetricCipherKeyPair wsKp = wsKpGen.generateKeyPair();
+
+                SecretWithEncapsulation secWenc = new KyberKEMGenerator(random).generateEncapsulated(kp.getPublic());
+                SecretWithEncapsulation wsSecWenc = new KyberKEMGenerator(wsRandom).generateEncapsulated(wsKp.getPublic(), ws);
+
+                assertTrue("kyber" + p + " " + i + ": cipher text", Arrays.areEqual(secWenc.getEncapsulation(), wsSecWenc.getEncapsulation()));
+                assertTrue("kyber" + p + " " + i + ": secret", Arrays.areEqual(secWenc.getSecret(), wsSecWenc.getSecret()));
+
+                KyberKEMExtractor wsExtractor = new KyberKEMExtractor((KyberPrivateKeyParameters)wsKp.getPrivate());
+                assertTrue("kyber" + p + " " + i + ": kem_dec", Arrays.areEqual(wsSecWenc.getSecret(), wsExtractor.extractSecret(wsSecWenc.getEncapsulation(), ws)));
+
+                // implicit rejection: a tampered cipher text c' gives KDF(z || H(c')), z ending the secret key
+                byte[] sk = ((KyberPrivateKeyParameters)wsKp.getPrivate()).getPrivateKey();
+                byte[] ct = wsSecWenc.getEncapsulation();
+                for (int j = i; j < ct.length; j += 10)
+                {
+                    // the top bit and one other bit of every byte over the ten iterations
+                    for (int bit = 0; bit != 2; bit++)
+                    {
+                        byte[] tampered = Arrays.clone(ct);
+                        tampered[j] ^= bit == 0 ? 0x80 : 1 << (j % 7);
+
+                        byte[] kr = new byte[64];
+                        System.arraycopy(sk, sk.length - 32, kr, 0, 32);
+                        SHA3Digest h = new SHA3Digest(256);
+                        h.update(tampered, 0, tampered.length);
+                        h.doFinal(kr, 32);
+                        byte[] rejection = new byte[32];
+                        SHAKEDigest kdf = new SHAKEDigest(256);
+                        kdf.update(kr, 0, kr.length);
+                        kdf.doFinal(rejection, 0, rejection.length);
+
+                        assertTrue("kyber" + p + " " + i + ": tampered byte " + j, Arrays.areEqual(rejection, wsExtractor.extractSecret(tampered, ws)));
+                    }
+                }
+            }
+        }
+    }
+
+    public void testPreparedPublicKey()
+    {
+        byte[] seed = Hex.decode("061550234D158C5EC95595FE04EF7A25767F2E24CC2BC479D09D86DC9ABCFDE7056A8C266F9EF97ED08541DBD2E1FFA1");
+        KyberParameters[] params = new KyberParameters[]{
+            KyberParameters.kyber512,
+            KyberParameters.kyber768,
+            KyberParameters.kyber1024,
+        };
+
+        for (int p = 0; p != params.length; p++)
+        {
+            NISTSecureRandom random = new NISTSecureRandom(seed, null);
+            KyberKeyPairGenerator kpGen = new KyberKeyPairGenerator();
+            kpGen.init(new KyberKeyGenerationParameters(random, params[p]));
+            AsymmetricCipherKeyPair kp = kpGen.generateKeyPair();
+
+            PreparedKyberPublicKey prepared = new PreparedKyberPublicKey((KyberPublicKeyParameters)kp.getPublic());
+            KyberKEMExtractor extractor = new KyberKEMExtractor((KyberPrivateKeyParameters)kp.getPrivate());
+
+            byte[] encSeed = new byte[48];
+            random.nextBytes(encSeed);
+            NISTSecureRandom plainRandom = new NISTSecureRandom(encSeed, null);
+            NISTSecureRandom preparedRandom = new NISTSecureRandom(encSeed, null);
+
+            for (int i = 0; i < 10; i++)
+            {
+                SecretWithEncapsulation plain = new KyberKEMGenerator(plainRandom).generateEncapsulated(kp.getPublic());
+                SecretWithEncapsulation secWenc = new KyberKEMGenerator(preparedRandom).generateEncapsulated(prepared);
+
+                assertTrue("kyber" + p + " " + i + ": cipher text", Arrays.areEqual(plain.getEncapsulation(), secWenc.getEncapsulation()));
+                assertTrue("kyber" + p + " " + i + ": secret", Arrays.areEqual(plain.getSecret(), secWenc.getSecret()));
+                assertTrue("kyber" + p + " " + i + ": kem_dec", Arrays.areEqual(secWenc.getSecret(), extractor.extractSecret(secWenc.getEncapsulation())));
+            }
+        }
+    }
+
+    public void testPlantardArithmetic()
+    {
+        byte[] seed = Hex.decode("061550234D158C5EC95595FE04EF7A25767F2E24CC2BC479D09D86DC9ABCFDE7056A8C266F9EF97ED08541DBD2E1FFA1");
+        KyberParameters[] params = new KyberParameters[]{
+            KyberParameters.kyber512,
+            KyberParameters.kyber768,
+            KyberParameters.kyber1024,
+        };
+
+        for (int p = 0; p != params.length; p++)
+        {
+            KyberParameters plantard = params[p].withArithmetic(KyberArithmetic.PLANTARD);
+            assertEquals(KyberArithmetic.PLANTARD, plantard.getArithmetic());
+
+            NISTSecureRandom montRandom = new NISTSecureRandom(seed, null);
+            NISTSecureRandom plantardRandom = new NISTSecureRandom(seed, null);
+
+            for (int i = 0; i < 10; i++)
+            {
+                KyberKeyPairGenerator kpGen = new KyberKeyPairGenerator();
+                kpGen.init(new KyberKeyGenerationParameters(montRandom, params[p]));
+                AsymmetricCipherKeyPair montKp = kpGen.generateKeyPair();
+                kpGen.init(new KyberKeyGenerationParameters(plantardRandom, plantard));
+                AsymmetricCipherKeyPair plantardKp = kpGen.generateKeyPair();
+
+                assertTrue("kyber" + p + " " + i + ": public key", Arrays.areEqual(((KyberPublicKeyParameters)montKp.getPublic()).getEncoded(),
+                    ((KyberPublicKeyParameters)plantardKp.getPublic()).getEncoded()));
+                assertTrue("kyber" + p + " " + i + ": secret key", Arrays.areEqual(((KyberPrivateKeyParameters)montKp.getPrivate()).getEncoded(),
+                    ((KyberPrivateKeyParameters)plantardKp.getPrivate()).getEncoded()));
+
+                SecretWithEncapsulation montEnc = new KyberKEMGenerator(montRandom).generateEncapsulated(montKp.getPublic());
+                SecretWithEncapsulation plantardEnc = new KyberKEMGenerator(plantardRandom).generateEncapsulated(plantardKp.getPublic());
+
+                assertTrue("kyber" + p + " " + i + ": cipher text", Arrays.areEqual(montEnc.getEncapsulation(), plantardEnc.getEncapsulation()));
+                assertTrue("kyber" + p + " " + i + ": secret", Arrays.areEqual(montEnc.getSecret(), plantardEnc.getSecret()));
+
+                KyberKEMExtractor extractor = new KyberKEMExtractor((KyberPrivateKeyParameters)plantardKp.getPrivate());
+                assertTrue("kyber" + p + " " + i + ": kem_dec", Arrays.areEqual(montEnc.getSecret(), extractor.extractSecret(montEnc.getEncapsulation())));
+            }
+        }
+    }
+
+    public void testVectorArithmetic()
+    {
+        if (KyberArithmetic.VECTOR == null)
+        {
+            // JVM started without jdk.incubator.vector
+            try
+            {
+                KyberParameters.kyber768.withArithmetic(KyberArithmetic.VECTOR);
+                fail("unavailable arithmetic accepted");
+            }
+            catch (IllegalArgumentException e)
+            {
+                // expected
+            }
+            return;
+        }
+
+        byte[] seed = Hex.decode("061550234D158C5EC95595FE04EF7A25767F2E24CC2BC479D09D86DC9ABCFDE7056A8C266F9EF97ED08541DBD2E1FFA1");
+        KyberParameters[] params = new KyberParameters[]{
+            KyberParameters.kyber512,
+            KyberParameters.kyber768,
+            KyberParameters.kyber1024,
+        };
+
+        for (int p = 0; p != params.length; p++)
+        {
+            KyberParameters mont = params[p].withArithmetic(KyberArithmetic.MONTGOMERY);
+            KyberParameters vector = params[p].withArithmetic(KyberArithmetic.VECTOR);
+
+            NISTSecureRandom montRandom = new NISTSecureRandom(seed, null);
+            NISTSecureRandom vectorRandom = new NISTSecureRandom(seed, null);
+
+            for (int i = 0; i < 10; i++)
+            {
+                KyberKeyPairGenerator kpGen = new KyberKeyPairGenerator();
+                kpGen.init(new KyberKeyGenerationParameters(montRandom, mont));
+                AsymmetricCipherKeyPair montKp = kpGen.generateKeyPair();
+                kpGen.init(new KyberKeyGenerationParameters(vectorRandom, vector));
+                AsymmetricCipherKeyPair vectorKp = kpGen.generateKeyPair();
+
+                assertTrue("kyber" + p + " " + i + ": secret key", Arrays.areEqual(((KyberPrivateKeyParameters)montKp.getPrivate()).getEncoded(),
+                    ((KyberPrivateKeyParameters)vectorKp.getPrivate()).getEncoded()));
+
+                SecretWithEncapsulation montEnc = new KyberKEMGenerator(montRandom).generateEncapsulated(montKp.getPublic());
+                SecretWithEncapsulation vectorEnc = new KyberKEMGenerator(vectorRandom).generateEncapsulated(vectorKp.getPublic());
+
+                assertTrue("kyber" + p + " " + i + ": cipher text", Arrays.areEqual(montEnc.getEncapsulation(), vectorEnc.getEncapsulation()));
+
+                KyberKEMExtractor extractor = new KyberKEMExtractor((KyberPrivateKeyParameters)vectorKp.getPrivate());
+                assertTrue("kyber" + p + " " + i + ": kem_dec", Arrays.areEqual(montEnc.getSecret(), extractor.extractSecret(montEnc.getEncapsulation())));
+            }
+        }
+    }
+
+    public void testKyber90s()
+        throws Exception
+    {
+        KyberParameters[] params = new KyberParameters[]{
+            KyberParameters.kyber512_90s,
+            KyberParameters.kyber768_90s,
+            KyberParameters.kyber1024_90s,
+        };
+        String[] files = new String[]{
+            "kyber512-90s.rsp",
+            "kyber768-90s.rsp",
+            "kyber1024-90s.rsp",
+        };
+
+        for (int fileIndex = 0; fileIndex != files.length; fileIndex++)
+        {
+            String name = files[fileIndex];
+            InputStream src = CrystalsKyberTest.class.getResourceAsStream("/resources/crypto/pqc/test/kyber/" + name);
+            BufferedReader bin = new BufferedReader(new InputStreamReader(src));
+
+            int tested = 0;
+            String line;
+            HashMap<String, String> buf = new HashMap<String, String>();
+            while ((line = bin.readLine()) != null)
+            {
+                line = line.trim();
+                if (line.startsWith("#"))
+                {
+                    continue;
+                }
+                if (line.length() != 0)
+                {
+                    int a = line.indexOf("=");
+                    buf.put(line.substring(0, a).trim(), line.substring(a + 1).trim());
+                    continue;
+                }
+                if (buf.size() == 0)
+                {
+                    continue;
+                }
+
+                String count = buf.get("count");
+                NISTSecureRandom random = new NISTSecureRandom(Hex.decode(buf.get("seed")), null);
+
+                KyberKeyPairGenerator kpGen = new KyberKeyPairGenerator();
+                kpGen.init(new KyberKeyGenerationParameters(random, params[fileIndex]));
+                AsymmetricCipherKeyPair kp = kpGen.generateKeyPair();
+
+                assertTrue(name + " " + count + ": public key", Arrays.areEqual(Hex.decode(buf.get("pk")), ((KyberPublicKeyParameters)kp.getPublic()).getPublicKey()));
+                assertTrue(name + " " + count + ": secret key", Arrays.areEqual(Hex.decode(buf.get("sk")), ((KyberPrivateKeyParameters)kp.getPrivate()).getPrivateKey()));
+
+                SecretWithEncapsulation secWenc = new KyberKEMGenerator(random).generateEncapsulated(kp.getPublic());
+                assertTrue(name + " " + count + ": kem_enc cipher text", Arrays.areEqual(Hex.decode(buf.get("ct")), secWenc.getEncapsulation()));
+                assertTrue(name + " " + count + ": kem_enc key", Arrays.areEqual(Hex.decode(buf.get("ss")), secWenc.getSecret()));
+
+                KyberKEMExtractor extractor = new KyberKEMExtractor((KyberPrivateKeyParameters)kp.getPrivate());
+                assertTrue(name + " " + count + ": kem_dec key", Arrays.areEqual(Hex.decode(buf.get("ss")), extractor.extractSecret(secWenc.getEncapsulation())));
+
+                buf.clear();
+                tested++;
+            }
+            assertEquals(name, 100, tested);
+        }
+    }
+
+    public void testMatrixExpansion()
+    {
+        SecureRandom random = new SecureRandom();
+        byte[] seed = new byte[32];
+        byte[] buf = new byte[3];
+
+        for (int k = 2; k <= 4; k++)
+        {
+            KyberEngine engine = new KyberEngine(k);
+            KyberIndCpa indCpa = new KyberIndCpa(engine);
+            PolyVec[] a = new PolyVec[k];
+
+            // enough seeds that some entries need more than the initial squeeze
+            for (int n = 0; n < 200; n++)
+            {
+                random.nextBytes(seed);
+                for (int i = 0; i < k; i++)
+                {
+                    a[i] = new PolyVec(engine);
+                }
+                indCpa.generateMatrix(a, seed, true);
+
+                for (int i = 0; i < k; i++)
+                {
+                    for (int j = 0; j < k; j++)
+                    {
+                        SHAKEDigest xof = Symmetric.KyberXOF(seed, i, j);
+                        int ctr = 0;
+                        while (ctr < 256)
+                        {
+                            xof.doOutput(buf, 0, 3);
+                            int val0 = ((buf[0] & 0xFF) | ((buf[1] & 0xFF) << 8)) & 0xFFF;
+                            int val1 = ((buf[1] & 0xFF) >> 4) | ((buf[2] & 0xFF) << 4);
+                            if (val0 < KyberEngine.KyberQ)
+                            {
+                                assertEquals("kyber k=" + k + " A[" + i + "][" + j + "]", val0, a[i].getVectorIndex(j).getCoeffIndex(ctr++));
+                            }
+                            if (ctr < 256 && val1 < KyberEngine.KyberQ)
+                            {
+                                assertEquals("kyber k=" + k + " A[" + i + "][" + j + "]", val1, a[i].getVectorIndex(j).getCoeffIndex(ctr++));
+                            }
+                        }
+                    }
+                }
+            }
+        }
+    }
+
+    public void testSharedEngineConcurrency() throws Exception
+    {
+        KyberKeyPairGenerator kpGen = new KyberKeyPairGenerator();
+        kpGen.init(new KyberKeyGenerationParameters(new SecureRandom(), KyberParameters.kyber768));
+        final AsymmetricCipherKeyPair kp = kpGen.generateKeyPair();
+        final KyberKEMExtractor extractor = new KyberKEMExtractor((KyberPrivateKeyParameters)kp.getPrivate());
+
+        ExecutorService executor = Executors.newFixedThreadPool(8);
+        List<Future<Boolean>> results = new ArrayList<Future<Boolean>>();
+        for (int t = 0; t < 8; t++)
+        {
+            results.add(executor.submit(new Callable<Boolean>()
+            {
+                public Boolean call()
+                {
+                    KyberKEMGenerator generator = new KyberKEMGenerator(new SecureRandom());
+                    for (int i = 0; i < 50; i++)
+                    {
+                        SecretWithEncapsulation secWenc = generator.generateEncapsulated(kp.getPublic());
+                        if (!Arrays.areEqual(secWenc.getSecret(), extractor.extractSecret(secWenc.getEncapsulation())))
+                        {
+                            return Boolean.FALSE;
+                        }
+                    }
+                    return Boolean.TRUE;
+                }
+            }));
+        }
+        executor.shutdown();
+
+        for (int t = 0; t < results.size(); t++)
+        {
+            assertTrue("thread " + t, results.get(t).get().booleanValue());
+        }
+    }
+
+    public void testBatchEncapsulation()
+    {
+        KyberParameters[] params = new KyberParameters[]{
+            KyberParameters.kyber512,
+            KyberParameters.kyber768,
+            KyberParameters.kyber1024,
+        };
+        SecureRandom random = new SecureRandom();
+        List<AsymmetricKeyParameter> recipients = new ArrayList<AsymmetricKeyParameter>();
+        List<KyberKEMExtractor> extractors = new ArrayList<KyberKEMExtractor>();
+        for (int i = 0; i < 30; i++)
+        {
+            KyberKeyPairGenerator kpGen = new KyberKeyPairGenerator();
+            kpGen.init(new KyberKeyGenerationParameters(random, params[i % params.length]));
+            AsymmetricCipherKeyPair kp = kpGen.generateKeyPair();
+
+            recipients.add(i % 2 == 0 ? kp.getPublic() : new PreparedKyberPublicKey((KyberPublicKeyParameters)kp.getPublic()));
+            extractors.add(new KyberKEMExtractor((KyberPrivateKeyParameters)kp.getPrivate()));
+        }
+
+        List<SecretWithEncapsulation> batch = new KyberKEMGenerator(random, new ForkJoinPool(4)).generateEncapsulated(recipients);
+
+        assertEquals(recipients.size(), batch.size());
+        for (int i = 0; i < batch.size(); i++)
+        {
+            SecretWithEncapsulation secWenc = batch.get(i);
+            assertTrue("recipient " + i, Arrays.areEqual(secWenc.getSecret(), extractors.get(i).extractSecret(secWenc.getEncapsulation())));
+        }
+    }
+
+    public void testBatchExtraction()
+    {
+        SecureRandom random = new SecureRandom();
+        KyberKeyPairGenerator kpGen = new KyberKeyPairGenerator();
+        kpGen.init(new KyberKeyGenerationParameters(random, KyberParameters.kyber1024));
+        AsymmetricCipherKeyPair kp = kpGen.generateKeyPair();
+
+        KyberKEMGenerator generator = new KyberKEMGenerator(random);
+        KyberKEMExtractor extractor = new KyberKEMExtractor((KyberPrivateKeyParameters)kp.getPrivate(), new ForkJoinPool(4));
+        int ctBytes = extractor.getInputSize();
+
+        int count = 40;
+        byte[][] secrets = new byte[count][];
+        byte[][] encapsulations = new byte[count][];
+        ByteBuffer received = ByteBuffer.allocate(count * ctBytes);
+        ByteBuffer receivedDirect = ByteBuffer.allocateDirect(count * ctBytes);
+        for (int i = 0; i < count; i++)
+        {
+            SecretWithEncapsulation secWenc = generator.generateEncapsulated(kp.getPublic());
+            secrets[i] = secWenc.getSecret();
+            encapsulations[i] = secWenc.getEncapsulation();
+            received.put(encapsulations[i]);
+            receivedDirect.put(encapsulations[i]);
+        }
+
+        ByteBuffer[] slices = new ByteBuffer[count];
+        ByteBuffer[] directSlices = new ByteBuffer[count];
+        for (int i = 0; i < count; i++)
+        {
+            received.limit((i + 1) * ctBytes).position(i * ctBytes);
+            slices[i] = received.slice();
+            receivedDirect.limit((i + 1) * ctBytes).position(i * ctBytes);
+            directSlices[i] = receivedDirect.slice();
+        }
+
+        byte[][] extracted = extractor.extractSecrets(encapsulations);
+        byte[][] extractedSlices = extractor.extractSecrets(slices);
+        byte[][] extractedDirect = extractor.extractSecrets(directSlices);
+        for (int i = 0; i < count; i++)
+        {
+            assertTrue("byte[] " + i, Arrays.areEqual(secrets[i], extracted[i]));
+            assertTrue("slice " + i, Arrays.areEqual(secrets[i], extractedSlices[i]));
+            assertTrue("direct " + i, Arrays.areEqual(secrets[i], extractedDirect[i]));
+            assertEquals(ctBytes, slices[i].remaining());
+        }
+    }
+
+    public void testZeroCopyBuffers()
+    {
+        SecureRandom random = new SecureRandom();
+        KyberKeyPairGenerator kpGen = new KyberKeyPairGenerator();
+        kpGen.init(new KyberKeyGenerationParameters(random, KyberParameters.kyber768));
+        AsymmetricCipherKeyPair kp = kpGen.generateKeyPair();
+
+        KyberKEMGenerator generator = new KyberKEMGenerator(random);
+        KyberKEMExtractor extractor = new KyberKEMExtractor((KyberPrivateKeyParameters)kp.getPrivate());
+        int ctBytes = extractor.getInputSize();
+
+        // cipher text and secret written at offsets into one frame
+        byte[] frame = new byte[5 + ctBytes + 32];
+        generator.generateEncapsulated(kp.getPublic(), frame, 5, frame, 5 + ctBytes);
+        byte[] secret = Arrays.copyOfRange(frame, 5 + ctBytes, 5 + ctBytes + 32);
+
+        byte[] extracted = new byte[3 + 32];
+        extractor.extractSecret(frame, 5, extracted, 3);
+        assertTrue(Arrays.areEqual(secret, Arrays.copyOfRange(extracted, 3, 35)));
+
+        // direct buffers, positions advance past what was read and written
+        ByteBuffer ct = ByteBuffer.allocateDirect(ctBytes + 7);
+        ByteBuffer ss = ByteBuffer.allocateDirect(32);
+        ct.position(7);
+        generator.generateEncapsulated(kp.getPublic(), ct, ss);
+        assertEquals(ctBytes + 7, ct.position());
+        assertEquals(32, ss.position());
+
+        ct.position(7);
+        ByteBuffer out = ByteBuffer.allocate(32);
+        extractor.extractSecret(ct, out);
+        assertEquals(ctBytes + 7, ct.position());
+        ss.flip();
+        out.flip();
+        assertEquals(ss, out);
+
+        // engine level, unprepared secret key read from a heap slice
+        KyberEngine engine = new KyberEngine(3);
+        KyberWorkspace ws = new KyberWorkspace(KyberParameters.kyber768);
+        byte[] sk = ((KyberPrivateKeyParameters)kp.getPrivate()).getPrivateKey();
+        ByteBuffer skBuf = ByteBuffer.allocate(sk.length + 11);
+        skBuf.position(11);
+        skBuf.put(sk).position(11);
+        ct.position(7);
+        out.clear();
+        engine.kemDecrypt(out, ct, skBuf.slice(), ws);
+        out.flip();
+        assertEquals(ss, out);
+    }
+
+    public void testOperationListener()
+    {
+        SecureRandom random = new SecureRandom();
+        HistogramOperationListener listener = new HistogramOperationListener();
+        KyberParameters params = KyberParameters.kyber768.withListener(listener);
+        assertSame(params, params.withListener(listener));
+        assertSame(listener, params.withArithmetic(KyberArithmetic.MONTGOMERY).getListener());
+
+        KyberKeyPairGenerator kpGen = new KyberKeyPairGenerator();
+        kpGen.init(new KyberKeyGenerationParameters(random, params));
+        AsymmetricCipherKeyPair kp = kpGen.generateKeyPair();
+
+        SecretWithEncapsulation secret = new KyberKEMGenerator(random).generateEncapsulated(kp.getPublic());
+        byte[] extracted = new KyberKEMExtractor((KyberPrivateKeyParameters)kp.getPrivate()).extractSecret(secret.getEncapsulation());
+        assertTrue(Arrays.areEqual(secret.getSecret(), extracted));
+
+        assertEquals(1, listener.getHistogram(Operation.KYBER_KEYGEN).getCount());
+        assertEquals(1, listener.getHistogram(Operation.KYBER_ENCAPSULATE).getCount());
+        assertEquals(1, listener.getHistogram(Operation.KYBER_DECAPSULATE).getCount());
+        assertEquals(1, listener.getHistogram(Operation.KYBER_ENCAPSULATE, Phase.MATRIX_EXPANDED).getCount());
+        // the extractor prepares the key outside the operation, so decapsulation expands no matrix
+        assertEquals(0, listener.getHistogram(Operation.KYBER_DECAPSULATE, Phase.MATRIX_EXPANDED).getCount());
+        // decryption and re-encryption
+        assertEquals(2, listener.getHistogram(Operation.KYBER_DECAPSULATE, Phase.NTT).getCount());
+
+        HistogramOperationListener.Histogram total = listener.getHistogram(Operation.KYBER_DECAPSULATE);
+        assertTrue(total.getMaxNanos() > 0);
+        assertTrue(total.getPercentileNanos(50) <= total.getMaxNanos());
+
+        listener.reset();
+        assertEquals(0, listener.getHistogram(Operation.KYBER_KEYGEN).getCount());
+    }
+
+    public void testKeyPairPool() throws Exception
+    {
+        SecureRandom random = new SecureRandom();
+        KyberKeyPairPool pool = new KyberKeyPairPool(new KyberKeyGenerationParameters(random, KyberParameters.kyber512), 8);
+        try
+        {
+            // idle pool keeps one key pair per worker ready
+            for (int i = 0; i < 100 && pool.getQueueDepth() == 0; i++)
+            {
+                Thread.sleep(10);
+            }
+            assertEquals(1, pool.getQueueDepth());
+
+            KyberKEMGenerator generator = new KyberKEMGenerator(random);
+            List<byte[]> publicKeys = new ArrayList<byte[]>();
+            for (int i = 0; i < 20; i++)
+            {
+                AsymmetricCipherKeyPair kp = pool.takeKeyPair();
+                SecretWithEncapsulation secret = generator.generateEncapsulated(kp.getPublic());
+                KyberKEMExtractor extractor = new KyberKEMExtractor((KyberPrivateKeyParameters)kp.getPrivate());
+                assertTrue(Arrays.areEqual(secret.getSecret(), extractor.extractSecret(secret.getEncapsulation())));
+
+                byte[] pk = ((KyberPublicKeyParameters)kp.getPublic()).getPublicKey();
+                for (int j = 0; j < publicKeys.size(); j++)
+                {
+                    assertFalse(Arrays.areEqual(pk, publicKeys.get(j)));
+                }
+                publicKeys.add(pk);
+            }
+
+            assertEquals(20, pool.getHits() + pool.getMisses());
+            assertTrue(pool.getHits() >= 1);
+            assertTrue(pool.getQueueDepth() <= pool.getHighWaterMark());
+            assertTrue(pool.getTargetDepth() >= 1 && pool.getTargetDepth() <= 8);
+        }
+        finally
+        {
+            pool.close();
+        }
+        assertEquals(0, pool.getQueueDepth());
+        try
+        {
+            pool.takeKeyPair();
+            fail("closed pool handed out a key pair");
+        }
+        catch (IllegalStateException e)
+        {
+            // expected
+        }
+    }
+
+    public void testEncapsulationPool() throws Exception
+    {
+        SecureRandom random = new SecureRandom();
+        KyberKeyPairGenerator kpGen = new KyberKeyPairGenerator();
+        kpGen.init(new KyberKeyGenerationParameters(random, KyberParameters.kyber768));
+        AsymmetricCipherKeyPair hot = kpGen.generateKeyPair();
+        AsymmetricCipherKeyPair cold = kpGen.generateKeyPair();
+        KyberKEMExtractor hotExtractor = new KyberKEMExtractor((KyberPrivateKeyParameters)hot.getPrivate());
+
+        KyberEncapsulationPool pool = new KyberEncapsulationPool(random, 4);
+        try
+        {
+            KyberPublicKeyParameters hotKey = (KyberPublicKeyParameters)hot.getPublic();
+            pool.register(hotKey);
+            for (int i = 0; i < 100 && pool.getQueueDepth(hotKey) < 4; i++)
+            {
+                Thread.sleep(10);
+            }
+            assertEquals(4, pool.getQueueDepth(hotKey));
+
+            // an equal key decoded from the encoding shares the queue
+            KyberPublicKeyParameters decoded = new KyberPublicKeyParameters(KyberParameters.kyber768, hotKey.getPublicKey());
+            List<byte[]> cipherTexts = new ArrayList<byte[]>();
+            for (int i = 0; i < 10; i++)
+            {
+                SecretWithEncapsulation secret = pool.generateEncapsulated(i % 2 == 0 ? hotKey : decoded);
+                assertTrue(Arrays.areEqual(secret.getSecret(), hotExtractor.extractSecret(secret.getEncapsulation())));
+                for (int j = 0; j < cipherTexts.size(); j++)
+                {
+                    assertFalse(Arrays.areEqual(secret.getEncapsulation(), cipherTexts.get(j)));
+                }
+                cipherTexts.add(secret.getEncapsulation());
+            }
+            assertEquals(10, pool.getHits() + pool.getMisses());
+            assertTrue(pool.getHits() >= 4);
+
+            // unregistered keys are encapsulated to inline
+            SecretWithEncapsulation secret = pool.generateEncapsulated(cold.getPublic());
+            KyberKEMExtractor coldExtractor = new KyberKEMExtractor((KyberPrivateKeyParameters)cold.getPrivate());
+            assertTrue(Arrays.areEqual(secret.getSecret(), coldExtractor.extractSecret(secret.getEncapsulation())));
+            assertEquals(10, pool.getHits() + pool.getMisses());
+
+            pool.unregister(hotKey);
+            assertEquals(0, pool.getQueueDepth(hotKey));
+        }
+        finally
+        {
+            pool.close();
+        }
+    }
+
     private void testConcurrency() throws Exception {
         String temp = "061550234D158C5EC95595FE04EF7A25767F2E24CC2BC479D09D86DC9ABCFDE7056A8C266F9EF97ED08541DBD2E1FFA1";
         byte[] seed = Hex.decode(temp);